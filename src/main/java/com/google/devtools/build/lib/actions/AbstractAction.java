@@ -38,6 +38,7 @@ import com.google.devtools.build.lib.syntax.Dict;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.devtools.build.lib.syntax.Printer;
 import com.google.devtools.build.lib.syntax.Sequence;
+import com.google.devtools.build.lib.vfs.ParallelTreeDeleter;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.Root;
 import com.google.devtools.build.lib.vfs.Symlinks;
@@ -382,7 +383,8 @@ public abstract class AbstractAction extends ActionKeyCacher implements Action,
         parentDir.setWritable(true);
         deleteOutput(path, root);
       } else if (path.isDirectory(Symlinks.NOFOLLOW)) {
-        path.deleteTree();
+        // Tree artifacts can hold many directories, which are deleted faster in parallel.
+        ParallelTreeDeleter.getInstance().deleteTree(path);
       } else {
         throw new IOException(e);
       }
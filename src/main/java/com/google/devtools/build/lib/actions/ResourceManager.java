@@ -23,11 +23,11 @@ import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.unix.ProcMeminfoParser;
 import com.google.devtools.build.lib.util.OS;
-import com.google.devtools.build.lib.util.Pair;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.concurrent.CountDownLatch;
 
 /**
@@ -57,6 +57,9 @@ import java.util.concurrent.CountDownLatch;
  * guarantees that at least one thread will always be able to acquire any amount of requested
  * resources (even if it is greater than amount of available resources). Therefore, assuming that
  * threads correctly release acquired resources, Blaze will never be fully blocked.
+ *
+ * <p>When resources are released, waiting threads are offered them in the order given by the
+ * {@link SchedulingPolicy}, which by default is the order in which they requested them.
  */
 @ThreadSafe
 public class ResourceManager {
@@ -86,6 +89,34 @@ public class ResourceManager {
     }
   }
 
+  /** Decides the order in which the actions waiting for resources are offered them. */
+  @FunctionalInterface
+  public interface SchedulingPolicy {
+    /** Offers resources in the order in which they were requested. */
+    SchedulingPolicy FIFO = owner -> 0;
+
+    /**
+     * Returns the priority of an action that has to wait for resources. Waiting actions with a
+     * higher priority are offered resources first, and actions with equal priorities are offered
+     * them in the order in which they requested them.
+     */
+    long getPriority(ActionExecutionMetadata owner);
+  }
+
+  /** A thread waiting for resources. */
+  private static final class Request {
+    final ResourceSet resources;
+    final long priority;
+    // Always initialized to 1. Counted down when the resources are acquired or the request is
+    // cancelled.
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    Request(ResourceSet resources, long priority) {
+      this.resources = resources;
+      this.priority = priority;
+    }
+  }
+
   private final ThreadLocal<Boolean> threadLocked = new ThreadLocal<Boolean>() {
     @Override
     protected Boolean initialValue() {
@@ -117,9 +148,10 @@ public class ResourceManager {
   private static final double MIN_NECESSARY_CPU_RATIO = 0.6;
   private static final double MIN_NECESSARY_RAM_RATIO = 1.0;
 
-  // List of blocked threads. Associated CountDownLatch object will always
-  // be initialized to 1 during creation in the acquire() method.
-  private final List<Pair<ResourceSet, CountDownLatch>> requestList;
+  // List of blocked threads, ordered by decreasing priority.
+  private final List<Request> requestList;
+
+  private SchedulingPolicy schedulingPolicy = SchedulingPolicy.FIFO;
 
   // The total amount of resources on the local host. Must be set by
   // an explicit call to setAvailableResources(), often using
@@ -163,9 +195,9 @@ public class ResourceManager {
     usedCpu = 0;
     usedRam = 0;
     usedLocalTestCount = 0;
-    for (Pair<ResourceSet, CountDownLatch> request : requestList) {
+    for (Request request : requestList) {
       // CountDownLatch can be set only to 0 or 1.
-      request.second.countDown();
+      request.latch.countDown();
     }
     requestList.clear();
   }
@@ -199,6 +231,11 @@ public class ResourceManager {
     localMemoryEstimate = value;
   }
 
+  /** Sets the policy that orders the actions waiting for resources. */
+  public synchronized void setSchedulingPolicy(SchedulingPolicy schedulingPolicy) {
+    this.schedulingPolicy = Preconditions.checkNotNull(schedulingPolicy);
+  }
+
   /**
    * Acquires requested resource set. Will block if resource is not available.
    * NB! This method must be thread-safe!
@@ -213,7 +250,7 @@ public class ResourceManager {
     AutoProfiler p = profiled(owner.describe(), ProfilerTask.ACTION_LOCK);
     CountDownLatch latch = null;
     try {
-      latch = acquire(resources);
+      latch = acquire(owner, resources);
       if (latch != null) {
         latch.await();
       }
@@ -318,15 +355,24 @@ public class ResourceManager {
     }
   }
 
-  private synchronized CountDownLatch acquire(ResourceSet resources) {
+  private synchronized CountDownLatch acquire(
+      ActionExecutionMetadata owner, ResourceSet resources) {
     if (areResourcesAvailable(resources)) {
       incrementResources(resources);
       return null;
     }
-    Pair<ResourceSet, CountDownLatch> request =
-      new Pair<>(resources, new CountDownLatch(1));
-    requestList.add(request);
-    return request.second;
+    Request request = new Request(resources, schedulingPolicy.getPriority(owner));
+    // Insert after all requests of the same or higher priority. The list is usually short: at most
+    // one request per execution thread.
+    ListIterator<Request> iterator = requestList.listIterator(requestList.size());
+    while (iterator.hasPrevious()) {
+      if (iterator.previous().priority >= request.priority) {
+        iterator.next();
+        break;
+      }
+    }
+    iterator.add(request);
+    return request.latch;
   }
 
   private synchronized boolean release(ResourceSet resources) {
@@ -354,13 +400,13 @@ public class ResourceManager {
    * Tries to unblock one or more waiting threads if there are sufficient resources available.
    */
   private synchronized void processWaitingThreads() {
-    Iterator<Pair<ResourceSet, CountDownLatch>> iterator = requestList.iterator();
+    Iterator<Request> iterator = requestList.iterator();
     while (iterator.hasNext()) {
-      Pair<ResourceSet, CountDownLatch> request = iterator.next();
-      if (request.second.getCount() != 0) {
-        if (areResourcesAvailable(request.first)) {
-          incrementResources(request.first);
-          request.second.countDown();
+      Request request = iterator.next();
+      if (request.latch.getCount() != 0) {
+        if (areResourcesAvailable(request.resources)) {
+          incrementResources(request.resources);
+          request.latch.countDown();
           iterator.remove();
         }
       } else {
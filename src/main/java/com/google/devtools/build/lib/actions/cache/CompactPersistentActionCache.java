@@ -17,11 +17,13 @@ import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
 import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics;
 import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics.MissReason;
 import com.google.devtools.build.lib.clock.Clock;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ConditionallyThreadSafe;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
+import com.google.devtools.build.lib.util.MappedPersistentIntMap;
 import com.google.devtools.build.lib.util.PersistentMap;
 import com.google.devtools.build.lib.util.StringIndexer;
 import com.google.devtools.build.lib.util.VarInt;
@@ -41,10 +43,12 @@ import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * An implementation of the ActionCache interface that uses a {@link StringIndexer} to reduce memory
- * footprint and saves cached actions using the {@link PersistentMap}.
+ * footprint and saves cached actions using the {@link PersistentMap}, or a {@link
+ * MappedPersistentIntMap} if the cache is memory-mapped.
  */
 @ConditionallyThreadSafe // condition: each instance must instantiated with
 // different cache root
@@ -66,7 +70,27 @@ public class CompactPersistentActionCache implements ActionCache {
   private static final Logger logger =
       Logger.getLogger(CompactPersistentActionCache.class.getName());
 
-  private final class ActionMap extends PersistentMap<Integer, byte[]> {
+  /** Storage of encoded entries, keyed by the index of their action key. */
+  private interface EntryStore {
+    @Nullable
+    byte[] get(int index);
+
+    void put(int index, byte[] entry);
+
+    void remove(int index);
+
+    int size();
+
+    boolean isEmpty();
+
+    int[] keys();
+
+    long save() throws IOException;
+
+    void clear();
+  }
+
+  private final class ActionMap extends PersistentMap<Integer, byte[]> implements EntryStore {
     private final Clock clock;
     private long nextUpdateSecs;
 
@@ -79,6 +103,26 @@ public class CompactPersistentActionCache implements ActionCache {
       load();
     }
 
+    @Override
+    public byte[] get(int index) {
+      return get(Integer.valueOf(index));
+    }
+
+    @Override
+    public void put(int index, byte[] entry) {
+      put(Integer.valueOf(index), entry);
+    }
+
+    @Override
+    public void remove(int index) {
+      remove(Integer.valueOf(index));
+    }
+
+    @Override
+    public int[] keys() {
+      return Ints.toArray(keySet());
+    }
+
     @Override
     protected boolean updateJournal() {
       // Using nanoTime. currentTimeMillis may not provide enough granularity.
@@ -150,29 +194,97 @@ public class CompactPersistentActionCache implements ActionCache {
     }
   }
 
-  private final PersistentMap<Integer, byte[]> map;
+  /**
+   * Keeps the encoded entries in a memory-mapped file instead of on the heap. Updates are appended
+   * to the file right away, and the file is compacted in the background.
+   */
+  private static final class MappedEntryStore implements EntryStore {
+    private final MappedPersistentIntMap map;
+
+    MappedEntryStore(Path mapFile) throws IOException {
+      map = new MappedPersistentIntMap(mapFile, VERSION);
+    }
+
+    @Override
+    public byte[] get(int index) {
+      return map.get(index);
+    }
+
+    @Override
+    public void put(int index, byte[] entry) {
+      map.put(index, entry);
+    }
+
+    @Override
+    public void remove(int index) {
+      map.remove(index);
+    }
+
+    @Override
+    public int size() {
+      return map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return map.isEmpty();
+    }
+
+    @Override
+    public int[] keys() {
+      return map.keys();
+    }
+
+    @Override
+    public long save() throws IOException {
+      return map.save();
+    }
+
+    @Override
+    public void clear() {
+      map.clear();
+    }
+  }
+
+  private final EntryStore map;
   private final PersistentStringIndexer indexer;
 
   private final AtomicInteger hits = new AtomicInteger();
   private final Map<MissReason, AtomicInteger> misses = new EnumMap<>(MissReason.class);
 
   public CompactPersistentActionCache(Path cacheRoot, Clock clock) throws IOException {
-    Path cacheFile = cacheFile(cacheRoot);
-    Path journalFile = journalFile(cacheRoot);
-    Path indexFile = cacheRoot.getChild("filename_index_v" + VERSION + ".blaze");
-    // we can now use normal hash map as backing map, since dependency checker
-    // will manually purge records from the action cache.
-    Map<Integer, byte[]> backingMap = new HashMap<>();
+    this(cacheRoot, clock, /*memoryMapped=*/ false);
+  }
 
+  /**
+   * Loads the action cache stored in {@code cacheRoot}.
+   *
+   * @param memoryMapped whether to keep the entries and the filename index in memory-mapped files
+   *     rather than on the heap. Both kinds of caches are stored in different files. {@code
+   *     cacheRoot} must be on the local file system for memory-mapped caches.
+   */
+  public CompactPersistentActionCache(Path cacheRoot, Clock clock, boolean memoryMapped)
+      throws IOException {
     try {
-      indexer = PersistentStringIndexer.newPersistentStringIndexer(indexFile, clock);
+      indexer =
+          memoryMapped
+              ? PersistentStringIndexer.newMappedStringIndexer(mappedIndexFile(cacheRoot))
+              : PersistentStringIndexer.newPersistentStringIndexer(
+                  cacheRoot.getChild("filename_index_v" + VERSION + ".blaze"), clock);
     } catch (IOException e) {
       renameCorruptedFiles(cacheRoot);
       throw new IOException("Failed to load filename index data", e);
     }
 
     try {
-      map = new ActionMap(backingMap, clock, cacheFile, journalFile);
+      if (memoryMapped) {
+        map = new MappedEntryStore(mappedCacheFile(cacheRoot));
+      } else {
+        // we can now use normal hash map as backing map, since dependency checker
+        // will manually purge records from the action cache.
+        Map<Integer, byte[]> backingMap = new HashMap<>();
+        map = new ActionMap(backingMap, clock, cacheFile(cacheRoot), journalFile(cacheRoot));
+      }
     } catch (IOException e) {
       renameCorruptedFiles(cacheRoot);
       throw new IOException("Failed to load action cache data", e);
@@ -248,6 +360,14 @@ public class CompactPersistentActionCache implements ActionCache {
     return cacheRoot.getChild("action_journal_v" + VERSION + ".blaze");
   }
 
+  public static Path mappedCacheFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_cache_v" + VERSION + ".mmap");
+  }
+
+  private static Path mappedIndexFile(Path cacheRoot) {
+    return cacheRoot.getChild("filename_index_v" + VERSION + ".mmap");
+  }
+
   @Override
   public ActionCache.Entry get(String key) {
     int index = indexer.getIndex(key);
@@ -313,16 +433,17 @@ public class CompactPersistentActionCache implements ActionCache {
     builder.append("Action cache (" + (map.size() - 1) + " records):\n");
     int size = map.size() > 1000 ? 10 : map.size();
     int ct = 0;
-    for (Map.Entry<Integer, byte[]> entry: map.entrySet()) {
-      if (entry.getKey() == VALIDATION_KEY) { continue; }
+    for (int key : map.keys()) {
+      if (key == VALIDATION_KEY) { continue; }
+      byte[] value = map.get(key);
       String content;
       try {
-        content = decode(indexer, entry.getValue()).toString();
+        content = decode(indexer, value).toString();
       } catch (IOException e) {
         content = e + "\n";
       }
-      builder.append("-> ").append(indexer.getStringForIndex(entry.getKey())).append("\n")
-          .append(content).append("  packed_len = ").append(entry.getValue().length).append("\n");
+      builder.append("-> ").append(indexer.getStringForIndex(key)).append("\n")
+          .append(content).append("  packed_len = ").append(value.length).append("\n");
       if (++ct > size) {
         builder.append("...");
         break;
@@ -339,16 +460,17 @@ public class CompactPersistentActionCache implements ActionCache {
     out.println("String indexer content:\n");
     out.println(indexer);
     out.println("Action cache (" + map.size() + " records):\n");
-    for (Map.Entry<Integer, byte[]> entry: map.entrySet()) {
-      if (entry.getKey() == VALIDATION_KEY) { continue; }
+    for (int key : map.keys()) {
+      if (key == VALIDATION_KEY) { continue; }
+      byte[] value = map.get(key);
       String content;
       try {
-        content = CompactPersistentActionCache.decode(indexer, entry.getValue()).toString();
+        content = CompactPersistentActionCache.decode(indexer, value).toString();
       } catch (IOException e) {
         content = e + "\n";
       }
-      out.println(entry.getKey() + ", " + indexer.getStringForIndex(entry.getKey()) + ":\n"
-          +  content + "\n      packed_len = " + entry.getValue().length + "\n");
+      out.println(key + ", " + indexer.getStringForIndex(key) + ":\n"
+          +  content + "\n      packed_len = " + value.length + "\n");
     }
   }
 
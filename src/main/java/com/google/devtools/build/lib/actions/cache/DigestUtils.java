@@ -13,11 +13,14 @@
 // limitations under the License.
 package com.google.devtools.build.lib.actions.cache;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheStats;
+import com.google.common.io.BaseEncoding;
 import com.google.common.primitives.Longs;
 import com.google.devtools.build.lib.actions.FileArtifactValue;
 import com.google.devtools.build.lib.clock.BlazeClock;
@@ -26,13 +29,19 @@ import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.util.VarInt;
 import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
 
 /**
  * Utility class for getting digests of files.
@@ -43,6 +52,13 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * impact on correctness because not all changes to files can be purely detected from their
  * metadata.
  *
+ * <p>The contents of the cache can be saved to and restored from disk with {@link #saveCache} and
+ * {@link #loadCache}, so that a new server does not have to read all files again. Restored entries
+ * are validated against the current file metadata exactly like the ones computed by this server.
+ *
+ * <p>If the file system stores file digests in an extended attribute, {@link
+ * #setDigestXattrName} makes this class read them from there before resorting to the cache.
+ *
  * <p>Note that this class is responsible for digesting file metadata in an order-independent
  * manner. Care must be taken to do this properly. The digest must be a function of the set of
  * (path, metadata) tuples. While the order of these pairs must not matter, it would <b>not</b> be
@@ -72,6 +88,9 @@ public class DigestUtils {
   // to be considered a slow-read.
   private static final long SLOW_READ_THROUGHPUT = (10 * 1024 * 1024) / 1000;
 
+  private static final int PERSISTENT_CACHE_MAGIC = 0x64696763;
+  private static final int PERSISTENT_CACHE_VERSION = 1;
+
   /**
    * Keys used to cache the values of the digests for files where we don't have fast digests.
    *
@@ -99,10 +118,14 @@ public class DigestUtils {
      * @throws IOException if reading the file status data fails
      */
     public CacheKey(Path path, FileStatus status) throws IOException {
-      this.path = path.asFragment();
-      this.nodeId = status.getNodeId();
-      this.modifiedTime = status.getLastModifiedTime();
-      this.size = status.getSize();
+      this(path.asFragment(), status.getNodeId(), status.getLastModifiedTime(), status.getSize());
+    }
+
+    private CacheKey(PathFragment path, long nodeId, long modifiedTime, long size) {
+      this.path = path;
+      this.nodeId = nodeId;
+      this.modifiedTime = modifiedTime;
+      this.size = size;
     }
 
     @Override
@@ -142,6 +165,9 @@ public class DigestUtils {
    */
   private static Cache<CacheKey, byte[]> globalCache = null;
 
+  /** Name of the extended attribute that holds file digests, or null to not look for one. */
+  @Nullable private static volatile String digestXattrName = null;
+
   /** Private constructor to prevent instantiation of utility class. */
   private DigestUtils() {}
 
@@ -205,6 +231,107 @@ public class DigestUtils {
     return cache.stats();
   }
 
+  /**
+   * Saves the contents of the cache to {@code file}, replacing it atomically.
+   *
+   * <p>The cache must have previously been enabled by a call to {@link #configureCache(long)}.
+   *
+   * @return the number of saved digests
+   */
+  public static int saveCache(Path file) throws IOException {
+    Cache<CacheKey, byte[]> cache = globalCache;
+    Preconditions.checkNotNull(cache, "configureCache() must have been called with a size >= 0");
+    Path tempFile = file.getParentDirectory().getChild(file.getBaseName() + ".tmp");
+    FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
+    int count = 0;
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(tempFile.getOutputStream()))) {
+        out.writeInt(PERSISTENT_CACHE_MAGIC);
+        out.writeInt(PERSISTENT_CACHE_VERSION);
+        out.writeUTF(file.getFileSystem().getDigestFunction().toString());
+        for (Map.Entry<CacheKey, byte[]> entry : cache.asMap().entrySet()) {
+          CacheKey key = entry.getKey();
+          byte[] path = key.path.getPathString().getBytes(ISO_8859_1);
+          out.writeBoolean(true);
+          out.writeInt(path.length);
+          out.write(path);
+          out.writeLong(key.nodeId);
+          out.writeLong(key.modifiedTime);
+          out.writeLong(key.size);
+          out.writeInt(entry.getValue().length);
+          out.write(entry.getValue());
+          count++;
+        }
+        out.writeBoolean(false);
+      }
+      tempFile.renameTo(file);
+    } finally {
+      tempFile.delete();
+    }
+    return count;
+  }
+
+  /**
+   * Adds the digests saved in {@code file} by {@link #saveCache} to the cache. Does nothing if the
+   * file does not exist or was written for a different digest function.
+   *
+   * <p>The cache must have previously been enabled by a call to {@link #configureCache(long)}.
+   *
+   * @return the number of loaded digests
+   * @throws IOException if the file cannot be read or is corrupted
+   */
+  public static int loadCache(Path file) throws IOException {
+    Cache<CacheKey, byte[]> cache = globalCache;
+    Preconditions.checkNotNull(cache, "configureCache() must have been called with a size >= 0");
+    if (!file.exists()) {
+      return 0;
+    }
+    int count = 0;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(file.getInputStream()))) {
+      if (in.readInt() != PERSISTENT_CACHE_MAGIC || in.readInt() != PERSISTENT_CACHE_VERSION) {
+        throw new IOException(file + " has an unexpected format");
+      }
+      if (!in.readUTF().equals(file.getFileSystem().getDigestFunction().toString())) {
+        return 0;
+      }
+      while (in.readBoolean()) {
+        byte[] path = readArray(in);
+        CacheKey key =
+            new CacheKey(
+                PathFragment.create(new String(path, ISO_8859_1)),
+                /*nodeId=*/ in.readLong(),
+                /*modifiedTime=*/ in.readLong(),
+                /*size=*/ in.readLong());
+        cache.put(key, readArray(in));
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static byte[] readArray(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("found negative array size: " + length);
+    }
+    byte[] data = new byte[length];
+    in.readFully(data);
+    return data;
+  }
+
+  /**
+   * Makes {@link #getDigestOrFail} read file digests from the given extended attribute, if the file
+   * system supports them. The attribute must hold the digest either as raw bytes or as lowercase
+   * hex, and is ignored otherwise.
+   *
+   * @param name the name of the attribute, or null to not look for digests in attributes
+   */
+  public static void setDigestXattrName(@Nullable String name) {
+    digestXattrName = name;
+  }
+
   /**
    * Enable or disable multi-threaded digesting even for large files.
    */
@@ -228,6 +355,14 @@ public class DigestUtils {
       return digest;
     }
 
+    String xattrName = digestXattrName;
+    if (xattrName != null) {
+      digest = getDigestFromXattr(path, xattrName);
+      if (digest != null) {
+        return digest;
+      }
+    }
+
     // Attempt a cache lookup if the cache is enabled.
     Cache<CacheKey, byte[]> cache = globalCache;
     CacheKey key = null;
@@ -257,6 +392,26 @@ public class DigestUtils {
     return digest;
   }
 
+  @Nullable
+  private static byte[] getDigestFromXattr(Path path, String name) throws IOException {
+    byte[] value = path.getxattr(name);
+    if (value == null) {
+      return null;
+    }
+    int length =
+        path.getFileSystem().getDigestFunction().getDigestLength().getDigestMaximumLength();
+    if (value.length == length) {
+      return value;
+    }
+    if (value.length == 2 * length) {
+      String hex = new String(value, ISO_8859_1);
+      if (BaseEncoding.base16().lowerCase().canDecode(hex)) {
+        return BaseEncoding.base16().lowerCase().decode(hex);
+      }
+    }
+    return null;
+  }
+
   /**
    * @param source the byte buffer source.
    * @return the digest from the given buffer.
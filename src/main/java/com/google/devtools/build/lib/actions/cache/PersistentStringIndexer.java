@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.actions.cache;
 import com.google.devtools.build.lib.clock.Clock;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ConditionallyThreadSafe;
 import com.google.devtools.build.lib.util.CanonicalStringIndexer;
+import com.google.devtools.build.lib.util.MappedPersistentIntMap;
 import com.google.devtools.build.lib.util.PersistentMap;
 import com.google.devtools.build.lib.util.StringCanonicalizer;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
@@ -23,30 +24,46 @@ import com.google.devtools.build.lib.vfs.Path;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
 
 /**
  * Persistent version of the CanonicalStringIndexer.
  *
  * <p>This class is backed by a PersistentMap that holds one direction of the
- * canonicalization mapping. The other direction is handled purely in memory
- * and reconstituted at load-time.
+ * canonicalization mapping. The other direction is handled purely in memory and
+ * reconstituted at load-time. Alternatively, it is backed by a
+ * MappedPersistentIntMap that serves both directions from a memory-mapped file.
  *
  * <p>Thread-safety is ensured by locking on all mutating operations from the
  * superclass. Read-only operations are not locked, but rather backed by
- * ConcurrentMaps.
+ * ConcurrentMaps or the synchronized MappedPersistentIntMap.
  */
 @ConditionallyThreadSafe // condition: each instance must instantiated with
                          // different dataFile.
 final class PersistentStringIndexer extends CanonicalStringIndexer {
 
+  /** A backing map that persists the mapping from strings to indices. */
+  private interface PersistentIndex extends Map<String, Integer> {
+    long save() throws IOException;
+
+    void flush();
+  }
+
   /**
    * Persistent metadata map. Used as a backing map to provide a persistent
    * implementation of the metadata cache.
    */
-  private static final class PersistentIndexMap extends PersistentMap<String, Integer>  {
+  private static final class PersistentIndexMap extends PersistentMap<String, Integer>
+      implements PersistentIndex {
     private static final int VERSION = 0x01;
     private static final long SAVE_INTERVAL_NS = 3L * 1000 * 1000 * 1000;
 
@@ -76,6 +93,7 @@ final class PersistentStringIndexer extends CanonicalStringIndexer {
       throw new UnsupportedOperationException();
     }
 
+    @Override
     public void flush() {
       super.forceFlush();
     }
@@ -109,7 +127,142 @@ final class PersistentStringIndexer extends CanonicalStringIndexer {
     }
   }
 
-  private final PersistentIndexMap persistentIndexMap;
+  /**
+   * Memory-mapped metadata map. Every new mapping is appended to a
+   * {@link MappedPersistentIntMap} keyed by its index as soon as it is added, so
+   * there is no journal to flush. Strings are not kept on the heap: they are
+   * looked up through the value index of the mapped file and decoded on demand.
+   */
+  private static final class MappedIndexMap extends AbstractMap<String, Integer>
+      implements PersistentIndex {
+    private static final long VERSION = 0x01;
+
+    private final MappedPersistentIntMap store;
+
+    MappedIndexMap(Path dataPath) throws IOException {
+      store = new MappedPersistentIntMap(dataPath, VERSION, /*indexValues=*/ true);
+    }
+
+    @Override
+    public Integer get(Object key) {
+      return key instanceof String ? store.findKey(string2bytes((String) key)) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return get(key) != null;
+    }
+
+    @Override
+    public Integer put(String key, Integer value) {
+      // Only called by the indexer for strings without an index.
+      store.put(value, string2bytes(key));
+      return null;
+    }
+
+    @Override
+    public Integer remove(Object object) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int size() {
+      return store.size();
+    }
+
+    @Override
+    public void clear() {
+      store.clear();
+    }
+
+    @Override
+    public Set<Map.Entry<String, Integer>> entrySet() {
+      return new AbstractSet<Map.Entry<String, Integer>>() {
+        @Override
+        public Iterator<Map.Entry<String, Integer>> iterator() {
+          return entries()
+              .<Map.Entry<String, Integer>>map(
+                  e -> new SimpleImmutableEntry<>(e.getValue(), e.getKey()))
+              .iterator();
+        }
+
+        @Override
+        public int size() {
+          return store.size();
+        }
+      };
+    }
+
+    /**
+     * Returns the reverse mapping, which decodes the strings from the mapped file. It ignores
+     * updates, since they are already applied to the mapped file through this map.
+     */
+    Map<Integer, String> reverse() {
+      return new AbstractMap<Integer, String>() {
+        @Override
+        public String get(Object key) {
+          if (!(key instanceof Integer)) {
+            return null;
+          }
+          byte[] value = store.get((Integer) key);
+          return value == null ? null : bytes2string(value);
+        }
+
+        @Override
+        public String put(Integer key, String value) {
+          return null;
+        }
+
+        @Override
+        public void clear() {}
+
+        @Override
+        public int size() {
+          return store.size();
+        }
+
+        @Override
+        public Set<Map.Entry<Integer, String>> entrySet() {
+          return new AbstractSet<Map.Entry<Integer, String>>() {
+            @Override
+            public Iterator<Map.Entry<Integer, String>> iterator() {
+              return entries().iterator();
+            }
+
+            @Override
+            public int size() {
+              return store.size();
+            }
+          };
+        }
+      };
+    }
+
+    /** Decodes the current mappings from index to string. */
+    private Stream<Map.Entry<Integer, String>> entries() {
+      return Arrays.stream(store.keys())
+          .<Map.Entry<Integer, String>>mapToObj(
+              index -> {
+                byte[] value = store.get(index);
+                return value == null
+                    ? null
+                    : new SimpleImmutableEntry<>(index, bytes2string(value));
+              })
+          .filter(Objects::nonNull);
+    }
+
+    @Override
+    public long save() throws IOException {
+      return store.save();
+    }
+
+    @Override
+    public void flush() {
+      // Mappings are written to the mapped file as they are added.
+    }
+  }
+
+  private final PersistentIndex persistentIndexMap;
   private static final int INITIAL_ENTRIES = 10000;
 
   /**
@@ -117,8 +270,22 @@ final class PersistentStringIndexer extends CanonicalStringIndexer {
    */
   static PersistentStringIndexer newPersistentStringIndexer(Path dataPath,
                                                             Clock clock) throws IOException {
-    PersistentIndexMap persistentIndexMap = new PersistentIndexMap(dataPath,
-        FileSystemUtils.replaceExtension(dataPath, ".journal"), clock);
+    return create(
+        new PersistentIndexMap(
+            dataPath, FileSystemUtils.replaceExtension(dataPath, ".journal"), clock));
+  }
+
+  /**
+   * Instantiates and loads instance of the persistent string indexer that keeps its data in a
+   * memory-mapped file. {@code dataPath} must be on the local file system.
+   */
+  static PersistentStringIndexer newMappedStringIndexer(Path dataPath) throws IOException {
+    MappedIndexMap map = new MappedIndexMap(dataPath);
+    return new PersistentStringIndexer(map, map.reverse());
+  }
+
+  private static PersistentStringIndexer create(PersistentIndex persistentIndexMap)
+      throws IOException {
     Map<Integer, String> reverseMapping = newConcurrentMap(INITIAL_ENTRIES);
     for (Map.Entry<String, Integer> entry : persistentIndexMap.entrySet()) {
       if (reverseMapping.put(entry.getValue(), entry.getKey()) != null) {
@@ -128,7 +295,7 @@ final class PersistentStringIndexer extends CanonicalStringIndexer {
     return new PersistentStringIndexer(persistentIndexMap, reverseMapping);
   }
 
-  private PersistentStringIndexer(PersistentIndexMap stringToInt,
+  private PersistentStringIndexer(PersistentIndex stringToInt,
                                   Map<Integer, String> intToString) {
     super(stringToInt, intToString);
     this.persistentIndexMap = stringToInt;
@@ -548,7 +548,7 @@ public class SpawnAction extends AbstractAction implements CommandAction {
   /** A spawn instance that is tied to a specific SpawnAction. */
   private class ActionSpawn extends BaseSpawn {
 
-    private final ImmutableList<ActionInput> inputs;
+    private final NestedSet<ActionInput> inputs;
     private final Map<Artifact, ImmutableList<FilesetOutputSymlink>> filesetMappings;
     private final ImmutableMap<String, String> effectiveEnvironment;
 
@@ -571,11 +571,18 @@ public class SpawnAction extends AbstractAction implements CommandAction {
           SpawnAction.this.getRunfilesSupplier(),
           SpawnAction.this,
           resourceSet);
-      ImmutableList.Builder<ActionInput> inputsBuilder = ImmutableList.builder();
+      NestedSetBuilder<ActionInput> inputsBuilder = NestedSetBuilder.stableOrder();
       ImmutableList<Artifact> manifests = getRunfilesSupplier().getManifests();
-      for (Artifact input : inputs) {
-        if (!input.isFileset() && !manifests.contains(input)) {
-          inputsBuilder.add(input);
+      if (inputs instanceof NestedSet
+          && !Iterables.any(inputs, input -> input.isFileset() || manifests.contains(input))) {
+        // Keeps the structure of the inputs, so that spawn runners can share work between spawns
+        // with common inputs.
+        inputsBuilder.addTransitive((NestedSet<Artifact>) inputs);
+      } else {
+        for (Artifact input : inputs) {
+          if (!input.isFileset() && !manifests.contains(input)) {
+            inputsBuilder.add(input);
+          }
         }
       }
       inputsBuilder.addAll(additionalInputs);
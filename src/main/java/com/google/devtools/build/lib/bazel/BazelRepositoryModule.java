@@ -214,6 +214,7 @@ public class BazelRepositoryModule extends BlazeModule {
     RepositoryOptions repoOptions = env.getOptions().getOptions(RepositoryOptions.class);
     if (repoOptions != null) {
       repositoryCache.setHardlink(repoOptions.useHardlinks);
+      repositoryCache.setMaxSize(Math.max(repoOptions.repositoryCacheMaxSize, 0));
       if (repoOptions.experimentalScaleTimeouts > 0.0) {
         skylarkRepositoryFunction.setTimeoutScaling(repoOptions.experimentalScaleTimeouts);
       } else {
@@ -280,6 +281,8 @@ public class BazelRepositoryModule extends BlazeModule {
             .handle(Event.warn("Ingoring request to scale http timeouts by a non-positive factor"));
         httpDownloader.setTimeoutScaling(1.0f);
       }
+      httpDownloader.setDownloadSegments(Math.max(repoOptions.httpDownloadSegments, 1));
+      httpDownloader.setStreamArchives(repoOptions.streamArchiveExtraction);
 
       if (repoOptions.repositoryOverrides != null) {
         // To get the usual latest-wins semantics, we need a mutable map, as the builder
@@ -17,25 +17,50 @@ package com.google.devtools.build.lib.bazel.repository;
 import static com.google.devtools.build.lib.bazel.repository.StripPrefixedPath.maybeDeprefixSymlink;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
 import com.google.common.io.ByteStreams;
-import com.google.devtools.build.lib.bazel.repository.DecompressorValue.Decompressor;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.bazel.repository.DecompressorValue.StreamingDecompressor;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 
 /**
  * Common code for unarchiving a compressed TAR file.
+ *
+ * <p>When extracting an archive that is still being downloaded, the contents of small files are
+ * written on a thread pool, so that reading the archive doesn't wait for the file system.
  */
-public abstract class CompressedTarFunction implements Decompressor {
-  protected abstract InputStream getDecompressorStream(DecompressorDescriptor descriptor)
+public abstract class CompressedTarFunction implements StreamingDecompressor {
+  private static final int BUFFER_SIZE = 32 * 1024;
+  private static final int WRITER_THREADS = 8;
+  // Larger files are written by the reading thread.
+  private static final int MAX_BUFFERED_FILE_BYTES = 4 * 1024 * 1024;
+  private static final int MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+
+  /** Returns the uncompressed TAR file read from {@code compressedStream}. */
+  protected abstract InputStream getDecompressorStream(InputStream compressedStream)
       throws IOException;
 
   @Override
@@ -44,83 +69,202 @@ public abstract class CompressedTarFunction implements Decompressor {
     if (Thread.interrupted()) {
       throw new InterruptedException();
     }
+    try (InputStream decompressorStream =
+            getDecompressorStream(
+                new BufferedInputStream(
+                    new FileInputStream(descriptor.archivePath().getPathFile()), BUFFER_SIZE));
+        EntryWriter writer = new EntryWriter(/*executor=*/ null)) {
+      extract(descriptor, decompressorStream, writer);
+    }
+    return descriptor.repositoryPath();
+  }
+
+  @Override
+  public Path decompress(DecompressorDescriptor descriptor, InputStream archiveStream)
+      throws InterruptedException, IOException {
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+    // The caller owns the archive stream, but the decompressor stream must be closed to free the
+    // memory of its decoder.
+    InputStream unclosedArchiveStream =
+        new FilterInputStream(archiveStream) {
+          @Override
+          public void close() {}
+        };
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            WRITER_THREADS,
+            new ThreadFactoryBuilder()
+                .setNameFormat("tar-entry-writer-%d")
+                .setDaemon(true)
+                .build());
+    try (InputStream decompressorStream =
+            getDecompressorStream(new BufferedInputStream(unclosedArchiveStream, BUFFER_SIZE));
+        EntryWriter writer = new EntryWriter(executor)) {
+      extract(descriptor, decompressorStream, writer);
+    }
+    return descriptor.repositoryPath();
+  }
+
+  private static void extract(
+      DecompressorDescriptor descriptor, InputStream decompressorStream, EntryWriter writer)
+      throws InterruptedException, IOException {
     Optional<String> prefix = descriptor.prefix();
     boolean foundPrefix = false;
     Set<String> availablePrefixes = new HashSet<>();
 
-    try (InputStream decompressorStream = getDecompressorStream(descriptor)) {
-      TarArchiveInputStream tarStream = new TarArchiveInputStream(decompressorStream);
-      TarArchiveEntry entry;
-      while ((entry = tarStream.getNextTarEntry()) != null) {
-        StripPrefixedPath entryPath = StripPrefixedPath.maybeDeprefix(entry.getName(), prefix);
-        foundPrefix = foundPrefix || entryPath.foundPrefix();
-
-        if (prefix.isPresent() && !foundPrefix) {
-          Optional<String> suggestion =
-              CouldNotFindPrefixException.maybeMakePrefixSuggestion(entryPath.getPathFragment());
-          if (suggestion.isPresent()) {
-            availablePrefixes.add(suggestion.get());
-          }
-        }
+    TarArchiveInputStream tarStream = new TarArchiveInputStream(decompressorStream);
+    TarArchiveEntry entry;
+    while ((entry = tarStream.getNextTarEntry()) != null) {
+      StripPrefixedPath entryPath = StripPrefixedPath.maybeDeprefix(entry.getName(), prefix);
+      foundPrefix = foundPrefix || entryPath.foundPrefix();
 
-        if (entryPath.skip()) {
-          continue;
+      if (prefix.isPresent() && !foundPrefix) {
+        Optional<String> suggestion =
+            CouldNotFindPrefixException.maybeMakePrefixSuggestion(entryPath.getPathFragment());
+        if (suggestion.isPresent()) {
+          availablePrefixes.add(suggestion.get());
         }
+      }
 
-        Path filePath = descriptor.repositoryPath().getRelative(entryPath.getPathFragment());
-        FileSystemUtils.createDirectoryAndParents(filePath.getParentDirectory());
-        if (entry.isDirectory()) {
-          FileSystemUtils.createDirectoryAndParents(filePath);
-        } else {
-          if (entry.isSymbolicLink() || entry.isLink()) {
-            PathFragment targetName = PathFragment.create(entry.getLinkName());
-            targetName = maybeDeprefixSymlink(targetName, prefix, descriptor.repositoryPath());
-            if (entry.isSymbolicLink()) {
+      if (entryPath.skip()) {
+        continue;
+      }
+
+      Path filePath = descriptor.repositoryPath().getRelative(entryPath.getPathFragment());
+      writer.await(filePath);
+      FileSystemUtils.createDirectoryAndParents(filePath.getParentDirectory());
+      if (entry.isDirectory()) {
+        FileSystemUtils.createDirectoryAndParents(filePath);
+      } else {
+        if (entry.isSymbolicLink() || entry.isLink()) {
+          PathFragment targetName = PathFragment.create(entry.getLinkName());
+          targetName = maybeDeprefixSymlink(targetName, prefix, descriptor.repositoryPath());
+          if (entry.isSymbolicLink()) {
+            if (filePath.exists()) {
+              filePath.delete();
+            }
+            FileSystemUtils.ensureSymbolicLink(filePath, targetName);
+          } else {
+            Path targetPath = descriptor.repositoryPath().getRelative(targetName);
+            writer.await(targetPath);
+            if (filePath.equals(targetPath)) {
+              // The behavior here is semantically different, depending on whether the underlying
+              // filesystem is case-sensitive or case-insensitive. However, it is effectively the
+              // same: we drop the link entry.
+              // * On a case-sensitive filesystem, this is a hardlink to itself, such as GNU tar
+              //   creates when given repeated files. We do nothing since the link already exists.
+              // * On a case-insensitive filesystem, we may be extracting a differently-cased
+              //   hardlink to the same file (such as when extracting an archive created on a
+              //   case-sensitive filesystem). GNU tar, for example, will drop the new link entry.
+              //   BSD tar on MacOS X (by default case-insensitive) errors and aborts extraction.
+            } else {
               if (filePath.exists()) {
                 filePath.delete();
               }
-              FileSystemUtils.ensureSymbolicLink(filePath, targetName);
-            } else {
-              Path targetPath = descriptor.repositoryPath().getRelative(targetName);
-              if (filePath.equals(targetPath)) {
-                // The behavior here is semantically different, depending on whether the underlying
-                // filesystem is case-sensitive or case-insensitive. However, it is effectively the
-                // same: we drop the link entry.
-                // * On a case-sensitive filesystem, this is a hardlink to itself, such as GNU tar
-                //   creates when given repeated files. We do nothing since the link already exists.
-                // * On a case-insensitive filesystem, we may be extracting a differently-cased
-                //   hardlink to the same file (such as when extracting an archive created on a
-                //   case-sensitive filesystem). GNU tar, for example, will drop the new link entry.
-                //   BSD tar on MacOS X (by default case-insensitive) errors and aborts extraction.
-              } else {
-                if (filePath.exists()) {
-                  filePath.delete();
-                }
-                FileSystemUtils.createHardLink(filePath, targetPath);
-              }
+              FileSystemUtils.createHardLink(filePath, targetPath);
             }
-          } else {
-            try (OutputStream out = filePath.getOutputStream()) {
-              ByteStreams.copy(tarStream, out);
-            }
-            filePath.chmod(entry.getMode());
-
-            // This can only be done on real files, not links, or it will skip the reader to
-            // the next "real" file to try to find the mod time info.
-            Date lastModified = entry.getLastModifiedDate();
-            filePath.setLastModifiedTime(lastModified.getTime());
           }
+        } else {
+          // This can only be done on real files, not links, or it will skip the reader to
+          // the next "real" file to try to find the mod time info.
+          Date lastModified = entry.getLastModifiedDate();
+          writer.write(
+              filePath, tarStream, entry.getSize(), entry.getMode(), lastModified.getTime());
         }
-        if (Thread.interrupted()) {
-          throw new InterruptedException();
+      }
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+    }
+
+    writer.awaitAll();
+
+    if (prefix.isPresent() && !foundPrefix) {
+      throw new CouldNotFindPrefixException(prefix.get(), availablePrefixes);
+    }
+  }
+
+  /**
+   * Writes the contents of regular files. Given an executor, it writes small files on its threads,
+   * keeping their contents in memory until then.
+   */
+  private static final class EntryWriter implements AutoCloseable {
+    @Nullable private final ExecutorService executor;
+    private final Semaphore bufferedBytes = new Semaphore(MAX_BUFFERED_BYTES);
+    private final Map<Path, Future<?>> pendingWrites = new HashMap<>();
+
+    EntryWriter(@Nullable ExecutorService executor) {
+      this.executor = executor;
+    }
+
+    /** Writes the rest of {@code in} to {@code path}, now or later. */
+    void write(Path path, InputStream in, long size, int mode, long lastModifiedTime)
+        throws InterruptedException, IOException {
+      if (executor == null || size > MAX_BUFFERED_FILE_BYTES) {
+        try (OutputStream out = path.getOutputStream()) {
+          ByteStreams.copy(in, out);
         }
+        finish(path, mode, lastModifiedTime);
+        return;
+      }
+      int permits = (int) Math.max(size, 0);
+      bufferedBytes.acquire(permits);
+      byte[] content;
+      try {
+        content = ByteStreams.toByteArray(in);
+      } catch (IOException e) {
+        bufferedBytes.release(permits);
+        throw e;
       }
+      pendingWrites.put(
+          path,
+          executor.submit(
+              () -> {
+                try {
+                  FileSystemUtils.writeContent(path, content);
+                  finish(path, mode, lastModifiedTime);
+                } finally {
+                  bufferedBytes.release(permits);
+                }
+                return null;
+              }));
+    }
 
-      if (prefix.isPresent() && !foundPrefix) {
-        throw new CouldNotFindPrefixException(prefix.get(), availablePrefixes);
+    private static void finish(Path path, int mode, long lastModifiedTime) throws IOException {
+      path.chmod(mode);
+      path.setLastModifiedTime(lastModifiedTime);
+    }
+
+    /** Waits until the pending write to {@code path}, if any, is done. */
+    void await(Path path) throws InterruptedException, IOException {
+      Future<?> write = pendingWrites.remove(path);
+      if (write == null) {
+        return;
+      }
+      try {
+        write.get();
+      } catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause(), IOException.class);
+        throw new IOException(e.getCause());
       }
     }
 
-    return descriptor.repositoryPath();
+    /** Waits until all pending writes are done. */
+    void awaitAll() throws InterruptedException, IOException {
+      for (Path path : new ArrayList<>(pendingWrites.keySet())) {
+        await(path);
+      }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+      if (executor != null) {
+        // Only pending writes are left after a failure, and their files are not needed anymore.
+        executor.shutdownNow();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+      }
+    }
   }
 }
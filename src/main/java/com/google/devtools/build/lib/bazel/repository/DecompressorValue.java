@@ -22,6 +22,7 @@ import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import com.google.devtools.build.skyframe.SkyValue;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Set;
 
 /**
@@ -74,6 +75,21 @@ public class DecompressorValue implements SkyValue {
         throws IOException, RepositoryFunctionException, InterruptedException;
   }
 
+  /**
+   * A decompressor that can also extract an archive while it is being read, e.g. while it is
+   * downloaded, without the archive ever being written to disk.
+   */
+  public interface StreamingDecompressor extends Decompressor {
+
+    /**
+     * Extracts the archive read from {@code archiveStream} to the repository path of {@code
+     * descriptor}, ignoring its archive path. Does not close {@code archiveStream}, and does not
+     * necessarily read it to its end.
+     */
+    Path decompress(DecompressorDescriptor descriptor, InputStream archiveStream)
+        throws IOException, InterruptedException;
+  }
+
   private final Path directory;
 
   public DecompressorValue(Path repositoryPath) {
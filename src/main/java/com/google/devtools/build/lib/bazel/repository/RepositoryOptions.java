@@ -56,6 +56,18 @@ public class RepositoryOptions extends OptionsBase {
               + " cache hit, rather than copying. This is inteded to save disk space.")
   public boolean useHardlinks;
 
+  @Option(
+      name = "experimental_repository_cache_max_size",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.BAZEL_CLIENT_OPTIONS,
+      effectTags = {OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      help =
+          "The maximum size in bytes of the downloaded files in the repository cache. When a "
+              + "download makes the cache exceed this size, the least recently used files are "
+              + "deleted in the background until the cache is below 90% of the limit. 0 means no "
+              + "limit.")
+  public long repositoryCacheMaxSize;
+
   @Option(
       name = "distdir",
       oldName = "experimental_distdir",
@@ -77,6 +89,28 @@ public class RepositoryOptions extends OptionsBase {
       help = "Scale all timeouts related to http downloads by the given factor")
   public double httpTimeoutScaling;
 
+  @Option(
+      name = "experimental_http_download_segments",
+      defaultValue = "1",
+      documentationCategory = OptionDocumentationCategory.BAZEL_CLIENT_OPTIONS,
+      effectTags = {OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      help =
+          "If greater than 1, large files are downloaded in up to this many segments in "
+              + "parallel from servers that support HTTP range requests. Files are downloaded "
+              + "over a single connection from other servers.")
+  public int httpDownloadSegments;
+
+  @Option(
+      name = "experimental_stream_archive_extraction",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.BAZEL_CLIENT_OPTIONS,
+      effectTags = {OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      help =
+          "If true, tar archives fetched by download_and_extract without a checksum are extracted "
+              + "while they are downloaded, without being written to disk. Archives with a "
+              + "checksum are still downloaded through the repository cache first.")
+  public boolean streamArchiveExtraction;
+
   @Option(
     name = "override_repository",
     defaultValue = "null",
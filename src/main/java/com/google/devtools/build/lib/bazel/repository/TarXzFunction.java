@@ -15,8 +15,6 @@
 package com.google.devtools.build.lib.bazel.repository;
 
 import com.google.devtools.build.lib.bazel.repository.DecompressorValue.Decompressor;
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import org.tukaani.xz.XZInputStream;
@@ -26,16 +24,13 @@ import org.tukaani.xz.XZInputStream;
  */
 class TarXzFunction extends CompressedTarFunction {
   public static final Decompressor INSTANCE = new TarXzFunction();
-  private static final int BUFFER_SIZE = 32 * 1024;
 
   private TarXzFunction() {
   }
 
   @Override
-  protected InputStream getDecompressorStream(DecompressorDescriptor descriptor)
+  protected InputStream getDecompressorStream(InputStream compressedStream)
       throws IOException {
-    return new XZInputStream(
-        new BufferedInputStream(
-            new FileInputStream(descriptor.archivePath().getPathFile()), BUFFER_SIZE));
+    return new XZInputStream(compressedStream);
   }
 }
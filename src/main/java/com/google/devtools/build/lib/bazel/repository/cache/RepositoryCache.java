@@ -16,24 +16,55 @@ package com.google.devtools.build.lib.bazel.repository.cache;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
-/** The cache implementation to store download artifacts from external repositories.
- *  TODO(jingwen): Implement file locking for concurrent cache accesses.
+/**
+ * The cache implementation to store download artifacts from external repositories.
+ *
+ * <p>Accesses to different entries run concurrently. Each entry is guarded by a striped read-write
+ * lock: lookups of an entry share its lock, while adding or evicting it takes the lock exclusively.
+ * Values are copied into the cache outside of any lock and renamed into place, so the lock is only
+ * held while checksumming and copying out on lookups.
+ *
+ * <p>If a maximum size is set, the least recently used entries of {@code content_addressable} are
+ * deleted in the background whenever the cache grows past it, until the cache is below {@link
+ * #LOW_WATERMARK} of the limit. Lookups bump the modification time of the value they hit.
+ *
+ * <p>TODO(jingwen): Implement file locking for concurrent cache accesses by several servers.
  */
 public class RepositoryCache {
 
+  private static final Logger logger = Logger.getLogger(RepositoryCache.class.getName());
+
   /** The types of cache keys used. */
   public enum KeyType {
     SHA1("SHA-1", "\\p{XDigit}{40}", "sha1", Hashing.sha1()),
@@ -77,6 +108,13 @@ public class RepositoryCache {
   }
 
   private static final int BUFFER_SIZE = 32 * 1024;
+  private static final int LOCK_STRIPES = 256;
+
+  /** Fraction of the maximum size the cache is trimmed down to when it overflows. */
+  @VisibleForTesting static final double LOW_WATERMARK = 0.9;
+
+  /** Temporary files that have not been modified for this long were left behind by a crash. */
+  @VisibleForTesting static final Duration STALE_TEMP_FILE_AGE = Duration.ofHours(1);
 
   // Repository cache subdirectories
   private static final String CAS_DIR = "content_addressable";
@@ -86,20 +124,71 @@ public class RepositoryCache {
   public static final String TMP_PREFIX = "tmp-";
   public static final String ID_PREFIX = "id-";
 
-  @Nullable private Path repositoryCachePath;
-  @Nullable private Path contentAddressablePath;
-  private boolean useHardlinks;
+  @Nullable private volatile Path repositoryCachePath;
+  @Nullable private volatile Path contentAddressablePath;
+  private volatile boolean useHardlinks;
+  private volatile long maxSizeBytes;
+
+  /** Guards the entries of the cache, keyed by the path of the entry directory. */
+  private final Striped<ReadWriteLock> entryLocks = Striped.readWriteLock(LOCK_STRIPES);
+
+  private final ExecutorService collectionExecutor;
+  private final AtomicBoolean collectionScheduled = new AtomicBoolean(false);
+
+  /** Approximate size of the cached values in bytes, or -1 until the cache has been scanned. */
+  private final AtomicLong approximateSize = new AtomicLong(-1);
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public RepositoryCache() {
+    this(
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("repository-cache-gc")
+                .setDaemon(true)
+                .build()));
+  }
+
+  @VisibleForTesting
+  RepositoryCache(ExecutorService collectionExecutor) {
+    this.collectionExecutor = collectionExecutor;
+  }
 
   public void setRepositoryCachePath(@Nullable Path repositoryCachePath) {
+    if (repositoryCachePath != null && repositoryCachePath.equals(this.repositoryCachePath)) {
+      return;
+    }
     this.repositoryCachePath = repositoryCachePath;
     this.contentAddressablePath = (repositoryCachePath != null)
         ? repositoryCachePath.getRelative(CAS_DIR) : null;
+    approximateSize.set(-1);
+    if (repositoryCachePath != null) {
+      // Deletes stale temporary files even if the size of the cache is not limited.
+      scheduleCollection();
+    }
   }
 
   public void setHardlink(boolean useHardlinks) {
     this.useHardlinks = useHardlinks;
   }
 
+  /**
+   * Sets the maximum size in bytes of the values in {@code content_addressable}, or 0 for no limit.
+   * If the limit is lowered, the cache is trimmed in the background.
+   */
+  public void setMaxSize(long maxSizeBytes) {
+    Preconditions.checkArgument(maxSizeBytes >= 0, maxSizeBytes);
+    long oldMaxSizeBytes = this.maxSizeBytes;
+    this.maxSizeBytes = maxSizeBytes;
+    if (maxSizeBytes > 0
+        && isEnabled()
+        && (approximateSize.get() < 0 || maxSizeBytes < oldMaxSizeBytes)) {
+      scheduleCollection();
+    }
+  }
+
   /**
    * @return true iff the cache path is set.
    */
@@ -133,7 +222,7 @@ public class RepositoryCache {
         .exists();
   }
 
-  public synchronized Path get(String cacheKey, Path targetPath, KeyType keyType)
+  public Path get(String cacheKey, Path targetPath, KeyType keyType)
       throws IOException, InterruptedException {
     return get(cacheKey, targetPath, keyType, null);
   }
@@ -155,8 +244,7 @@ public class RepositoryCache {
    * @throws IOException
    */
   @Nullable
-  public synchronized Path get(
-      String cacheKey, Path targetPath, KeyType keyType, String canonicalId)
+  public Path get(String cacheKey, Path targetPath, KeyType keyType, String canonicalId)
       throws IOException, InterruptedException {
     if (Thread.interrupted()) {
       throw new InterruptedException();
@@ -164,44 +252,53 @@ public class RepositoryCache {
     Preconditions.checkState(isEnabled());
 
     assertKeyIsValid(cacheKey, keyType);
-    if (!exists(cacheKey, keyType)) {
-      return null;
-    }
-
     Path cacheEntry = keyType.getCachePath(contentAddressablePath).getRelative(cacheKey);
     Path cacheValue = cacheEntry.getRelative(DEFAULT_CACHE_FILENAME);
 
+    Lock lock = entryLocks.get(cacheEntry).readLock();
+    lock.lockInterruptibly();
     try {
-      assertFileChecksum(cacheKey, cacheValue, keyType);
-    } catch (IOException e) {
-      // New lines because this error message gets large printing multiple absolute filepaths.
-      throw new IOException(e.getMessage() + "\n\n"
-          + "Please delete the directory " + cacheEntry + " and try again.");
-    }
-
-    if (!Strings.isNullOrEmpty(canonicalId)) {
-      if (!hasCanonicalId(cacheKey, keyType, canonicalId)) {
+      if (!cacheValue.exists()) {
+        misses.incrementAndGet();
         return null;
       }
-    }
 
-    FileSystemUtils.createDirectoryAndParents(targetPath.getParentDirectory());
-    if (useHardlinks) {
-      FileSystemUtils.createHardLink(targetPath, cacheValue);
-    } else {
-      FileSystemUtils.copyFile(cacheValue, targetPath);
-    }
+      try {
+        assertFileChecksum(cacheKey, cacheValue, keyType);
+      } catch (IOException e) {
+        // New lines because this error message gets large printing multiple absolute filepaths.
+        throw new IOException(e.getMessage() + "\n\n"
+            + "Please delete the directory " + cacheEntry + " and try again.");
+      }
 
-    try {
-      FileSystemUtils.touchFile(cacheValue);
-    } catch (IOException e) {
-      // Ignore, because the cache might be on a read-only volume.
+      if (!Strings.isNullOrEmpty(canonicalId)) {
+        if (!hasCanonicalId(cacheKey, keyType, canonicalId)) {
+          misses.incrementAndGet();
+          return null;
+        }
+      }
+
+      FileSystemUtils.createDirectoryAndParents(targetPath.getParentDirectory());
+      if (useHardlinks) {
+        FileSystemUtils.createHardLink(targetPath, cacheValue);
+      } else {
+        FileSystemUtils.copyFile(cacheValue, targetPath);
+      }
+
+      try {
+        FileSystemUtils.touchFile(cacheValue);
+      } catch (IOException e) {
+        // Ignore, because the cache might be on a read-only volume.
+      }
+    } finally {
+      lock.unlock();
     }
 
+    hits.incrementAndGet();
     return targetPath;
   }
 
-  public synchronized void put(String cacheKey, Path sourcePath, KeyType keyType)
+  public void put(String cacheKey, Path sourcePath, KeyType keyType)
       throws IOException, InterruptedException {
     put(cacheKey, sourcePath, keyType, null);
   }
@@ -216,35 +313,77 @@ public class RepositoryCache {
    *     restricted cache lookups later.
    * @throws IOException
    */
-  public synchronized void put(
-      String cacheKey, Path sourcePath, KeyType keyType, String canonicalId)
+  public void put(String cacheKey, Path sourcePath, KeyType keyType, String canonicalId)
       throws IOException, InterruptedException {
-    // Check for interrupts while waiting for the monitor of this synchronized method
     if (Thread.interrupted()) {
       throw new InterruptedException();
     }
     Preconditions.checkState(isEnabled());
 
     assertKeyIsValid(cacheKey, keyType);
+    // Copy next to the entries rather than into the entry, which may be evicted meanwhile.
+    Path tmpName = newTemporaryFile(keyType);
+    try {
+      FileSystemUtils.copyFile(sourcePath, tmpName);
+    } catch (IOException e) {
+      tmpName.delete();
+      throw e;
+    }
+    putTemporaryFile(cacheKey, tmpName, keyType, canonicalId);
+  }
+
+  /**
+   * Returns a new path next to the cache entries, to write a value to whose key is not known yet.
+   * The value is added to the cache by {@link #putTemporaryFile}. A file left behind at the path is
+   * deleted by a later garbage collection.
+   */
+  public Path newTemporaryFile(KeyType keyType) throws IOException {
+    Preconditions.checkState(isEnabled());
     ensureCacheDirectoryExists(keyType);
+    return keyType.getCachePath(contentAddressablePath).getRelative(TMP_PREFIX + UUID.randomUUID());
+  }
 
+  /**
+   * Moves a value written to a path returned by {@link #newTemporaryFile} into the cache. The
+   * temporary file is gone afterwards, even if this fails.
+   *
+   * @param cacheKey The string key to cache the value by.
+   * @param tmpFile The path returned by {@link #newTemporaryFile} for the same key type.
+   * @param keyType The type of key used. See: KeyType
+   * @param canonicalId If set to a non-empty String associate the file with this name, allowing
+   *     restricted cache lookups later.
+   */
+  public void putTemporaryFile(String cacheKey, Path tmpFile, KeyType keyType, String canonicalId)
+      throws IOException, InterruptedException {
     Path cacheEntry = keyType.getCachePath(contentAddressablePath).getRelative(cacheKey);
     Path cacheValue = cacheEntry.getRelative(DEFAULT_CACHE_FILENAME);
-    Path tmpName = cacheEntry.getRelative(TMP_PREFIX + UUID.randomUUID());
-    FileSystemUtils.createDirectoryAndParents(cacheEntry);
-    FileSystemUtils.copyFile(sourcePath, tmpName);
-    FileSystemUtils.moveFile(tmpName, cacheValue);
-
-    if (!Strings.isNullOrEmpty(canonicalId)) {
-      byte[] canonicalIdBytes = canonicalId.getBytes(UTF_8);
-      String idHash = keyType.newHasher().putBytes(canonicalIdBytes).hash().toString();
-      OutputStream idStream = cacheEntry.getRelative(ID_PREFIX + idHash).getOutputStream();
-      idStream.write(canonicalIdBytes);
-      idStream.close();
+    try {
+      assertKeyIsValid(cacheKey, keyType);
+      Lock lock = entryLocks.get(cacheEntry).writeLock();
+      lock.lockInterruptibly();
+      try {
+        FileSystemUtils.createDirectoryAndParents(cacheEntry);
+        FileSystemUtils.moveFile(tmpFile, cacheValue);
+
+        if (!Strings.isNullOrEmpty(canonicalId)) {
+          byte[] canonicalIdBytes = canonicalId.getBytes(UTF_8);
+          String idHash = keyType.newHasher().putBytes(canonicalIdBytes).hash().toString();
+          OutputStream idStream = cacheEntry.getRelative(ID_PREFIX + idHash).getOutputStream();
+          idStream.write(canonicalIdBytes);
+          idStream.close();
+        }
+      } finally {
+        lock.unlock();
+      }
+    } finally {
+      // Nothing is left to delete once the value has been moved into place.
+      tmpFile.delete();
     }
+
+    recordWrite(cacheValue);
   }
 
-  public synchronized String put(Path sourcePath, KeyType keyType)
+  public String put(Path sourcePath, KeyType keyType)
       throws IOException, InterruptedException {
     return put(sourcePath, keyType, null);
   }
@@ -259,7 +398,7 @@ public class RepositoryCache {
    * @throws IOException
    * @return The key for the cached entry.
    */
-  public synchronized String put(Path sourcePath, KeyType keyType, String canonicalId)
+  public String put(Path sourcePath, KeyType keyType, String canonicalId)
       throws IOException, InterruptedException {
     String cacheKey = getChecksum(keyType, sourcePath);
     put(cacheKey, sourcePath, keyType, canonicalId);
@@ -273,6 +412,133 @@ public class RepositoryCache {
     }
   }
 
+  private void recordWrite(Path cacheValue) {
+    if (maxSizeBytes <= 0) {
+      return;
+    }
+    long size;
+    try {
+      size = cacheValue.getFileSize();
+    } catch (IOException e) {
+      // Evicted already.
+      return;
+    }
+    long newSize =
+        approximateSize.updateAndGet(current -> current < 0 ? current : current + size);
+    if (newSize > maxSizeBytes) {
+      scheduleCollection();
+    }
+  }
+
+  private void scheduleCollection() {
+    if (!collectionScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      collectionExecutor.execute(
+          () -> {
+            try {
+              collect();
+            } catch (IOException e) {
+              logger.log(Level.WARNING, "Repository cache garbage collection failed", e);
+            } finally {
+              collectionScheduled.set(false);
+            }
+          });
+    } catch (RuntimeException e) {
+      // The executor was shut down.
+      collectionScheduled.set(false);
+    }
+  }
+
+  /**
+   * Scans {@code content_addressable}, deletes temporary files that were not modified for {@link
+   * #STALE_TEMP_FILE_AGE} and, if the cache is over the maximum size, deletes the least recently
+   * used entries until it is below {@link #LOW_WATERMARK} of the limit. Entries that are in use are
+   * skipped.
+   */
+  @VisibleForTesting
+  void collect() throws IOException {
+    Path contentAddressablePath = this.contentAddressablePath;
+    long maxSizeBytes = this.maxSizeBytes;
+    if (contentAddressablePath == null) {
+      return;
+    }
+    long staleTempFileCutoff = System.currentTimeMillis() - STALE_TEMP_FILE_AGE.toMillis();
+    List<Entry> entries = new ArrayList<>();
+    long totalSize = 0;
+    for (KeyType keyType : KeyType.values()) {
+      Path keyTypeDir = keyType.getCachePath(contentAddressablePath);
+      if (!keyTypeDir.isDirectory()) {
+        continue;
+      }
+      for (Dirent dirent : keyTypeDir.readdir(Symlinks.NOFOLLOW)) {
+        if (dirent.getName().startsWith(TMP_PREFIX)) {
+          deleteIfStale(keyTypeDir.getChild(dirent.getName()), staleTempFileCutoff);
+          continue;
+        }
+        if (maxSizeBytes <= 0 || dirent.getType() != Dirent.Type.DIRECTORY) {
+          continue;
+        }
+        Path cacheEntry = keyTypeDir.getChild(dirent.getName());
+        FileStatus stat =
+            cacheEntry.getChild(DEFAULT_CACHE_FILENAME).statIfFound(Symlinks.NOFOLLOW);
+        if (stat == null) {
+          continue;
+        }
+        entries.add(new Entry(cacheEntry, stat.getSize(), stat.getLastModifiedTime()));
+        totalSize += stat.getSize();
+      }
+    }
+
+    if (maxSizeBytes <= 0) {
+      return;
+    }
+    if (totalSize > maxSizeBytes) {
+      long target = (long) (maxSizeBytes * LOW_WATERMARK);
+      entries.sort(Comparator.comparingLong(e -> e.lastAccessTime));
+      for (Entry entry : entries) {
+        if (totalSize <= target) {
+          break;
+        }
+        Lock lock = entryLocks.get(entry.path).writeLock();
+        if (!lock.tryLock()) {
+          continue;
+        }
+        try {
+          entry.path.deleteTree();
+        } finally {
+          lock.unlock();
+        }
+        totalSize -= entry.size;
+        evictions.incrementAndGet();
+      }
+    }
+    approximateSize.set(totalSize);
+  }
+
+  private static void deleteIfStale(Path tmpPath, long cutoff) throws IOException {
+    FileStatus stat = tmpPath.statIfFound(Symlinks.NOFOLLOW);
+    if (stat != null && stat.getLastModifiedTime() < cutoff) {
+      tmpPath.deleteTree();
+    }
+  }
+
+  /** Returns the number of lookups that found a value since this cache was created. */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /** Returns the number of lookups that found no value since this cache was created. */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /** Returns the number of entries deleted to keep the cache below its maximum size. */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
   /**
    * Assert that a file has an expected checksum.
    *
@@ -341,4 +607,16 @@ public class RepositoryCache {
   public Path getContentAddressableCachePath() {
     return contentAddressablePath;
   }
+
+  private static final class Entry {
+    private final Path path;
+    private final long size;
+    private final long lastAccessTime;
+
+    Entry(Path path, long size, long lastAccessTime) {
+      this.path = path;
+      this.size = size;
+      this.lastAccessTime = lastAccessTime;
+    }
+  }
 }
@@ -17,16 +17,26 @@ package com.google.devtools.build.lib.bazel.repository.cache;
 import com.google.devtools.build.lib.events.ExtendedEventHandler.ProgressLike;
 import java.net.URL;
 
-/** Event reporting about cache hits for download requests. */
+/**
+ * Event reporting about cache hits for download requests. It also carries the counters of the
+ * repository cache at the time of the hit, accumulated since the server started.
+ */
 public class RepositoryCacheHitEvent implements ProgressLike {
   private final String repo;
   private final String hash;
   private final URL url;
+  private final long hitCount;
+  private final long missCount;
+  private final long evictionCount;
 
-  public RepositoryCacheHitEvent(String repo, String hash, URL url) {
+  public RepositoryCacheHitEvent(
+      String repo, String hash, URL url, long hitCount, long missCount, long evictionCount) {
     this.repo = repo;
     this.hash = hash;
     this.url = url;
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.evictionCount = evictionCount;
   }
 
   public String getRepo() {
@@ -40,4 +50,19 @@ public class RepositoryCacheHitEvent implements ProgressLike {
   public String getFileHash() {
     return hash;
   }
+
+  /** Returns the number of lookups in the repository cache that found a file, including this. */
+  public long getHitCount() {
+    return hitCount;
+  }
+
+  /** Returns the number of lookups in the repository cache that found no file. */
+  public long getMissCount() {
+    return missCount;
+  }
+
+  /** Returns the number of files deleted to keep the repository cache below its maximum size. */
+  public long getEvictionCount() {
+    return evictionCount;
+  }
 }
@@ -16,10 +16,14 @@ package com.google.devtools.build.lib.bazel.repository.downloader;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
 import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache;
 import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.KeyType;
@@ -30,11 +34,12 @@ import com.google.devtools.build.lib.clock.JavaClock;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.util.JavaSleeper;
-import com.google.devtools.build.lib.util.Sleeper;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.SocketTimeoutException;
@@ -46,6 +51,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
+import javax.annotation.Nullable;
 
 /**
  * Bazel file downloader.
@@ -57,10 +63,14 @@ public class HttpDownloader {
 
   private static final int MAX_PARALLEL_DOWNLOADS = 8;
   private static final Semaphore semaphore = new Semaphore(MAX_PARALLEL_DOWNLOADS, true);
+  // Up to 4 MiB of a streamed download are buffered while the consumer is busy.
+  private static final int READ_AHEAD_CHUNKS = 64;
 
   protected final RepositoryCache repositoryCache;
   private List<Path> distdir = ImmutableList.of();
   private float timeoutScaling = 1.0f;
+  private int downloadSegments = 1;
+  private boolean streamArchives = false;
 
   public HttpDownloader(RepositoryCache repositoryCache) {
     this.repositoryCache = repositoryCache;
@@ -74,6 +84,27 @@ public class HttpDownloader {
     this.timeoutScaling = timeoutScaling;
   }
 
+  /**
+   * Sets the number of parallel range requests that large files are downloaded with, from servers
+   * that support them. With 1, every file is downloaded over a single connection.
+   */
+  public void setDownloadSegments(int downloadSegments) {
+    Preconditions.checkArgument(downloadSegments > 0, downloadSegments);
+    this.downloadSegments = downloadSegments;
+  }
+
+  /**
+   * Sets whether archives without a known checksum should be extracted while they are downloaded,
+   * using {@link #downloadStreaming}, instead of being extracted from disk afterwards.
+   */
+  public void setStreamArchives(boolean streamArchives) {
+    this.streamArchives = streamArchives;
+  }
+
+  public boolean shouldStreamArchives() {
+    return streamArchives;
+  }
+
   /**
    * Downloads file to disk and returns path.
    *
@@ -150,7 +181,14 @@ public class HttpDownloader {
               repositoryCache.get(cacheKey, destination, cacheKeyType, canonicalId);
           if (cachedDestination != null) {
             // Cache hit!
-            eventHandler.post(new RepositoryCacheHitEvent(repo, cacheKey, mainUrl));
+            eventHandler.post(
+                new RepositoryCacheHitEvent(
+                    repo,
+                    cacheKey,
+                    mainUrl,
+                    repositoryCache.getHitCount(),
+                    repositoryCache.getMissCount(),
+                    repositoryCache.getEvictionCount()));
             return cachedDestination;
           }
         } catch (IOException e) {
@@ -204,17 +242,12 @@ public class HttpDownloader {
       }
     }
 
-    Clock clock = new JavaClock();
-    Sleeper sleeper = new JavaSleeper();
-    Locale locale = Locale.getDefault();
-    ProxyHelper proxyHelper = new ProxyHelper(clientEnv);
-    HttpConnector connector =
-        new HttpConnector(locale, eventHandler, proxyHelper, sleeper, timeoutScaling);
-    ProgressInputStream.Factory progressInputStreamFactory =
-        new ProgressInputStream.Factory(locale, clock, eventHandler);
-    HttpStream.Factory httpStreamFactory = new HttpStream.Factory(progressInputStreamFactory);
-    HttpConnectorMultiplexer multiplexer =
-        new HttpConnectorMultiplexer(eventHandler, connector, httpStreamFactory, clock, sleeper);
+    HttpConnector connector = createConnector(eventHandler, clientEnv);
+    HttpConnectorMultiplexer multiplexer = createMultiplexer(connector, eventHandler);
+    ParallelRangeDownloader rangeDownloader =
+        downloadSegments > 1
+            ? new ParallelRangeDownloader(connector, eventHandler, downloadSegments)
+            : null;
 
     // Iterate over urls and download the file falling back to the next url if previous failed,
     // while reporting progress to the CLI.
@@ -225,11 +258,16 @@ public class HttpDownloader {
     for (URL url : urls) {
       semaphore.acquire();
 
-      try (HttpStream payload =
-              multiplexer.connect(Collections.singletonList(url), checksum, authHeaders);
-          OutputStream out = destination.getOutputStream()) {
+      try {
         try {
-          ByteStreams.copy(payload, out);
+          if (rangeDownloader == null
+              || !rangeDownloader.download(url, authHeaders, checksum, destination)) {
+            try (HttpStream payload =
+                    multiplexer.connect(Collections.singletonList(url), checksum, authHeaders);
+                OutputStream out = destination.getOutputStream()) {
+              ByteStreams.copy(payload, out);
+            }
+          }
         } catch (SocketTimeoutException e) {
           // SocketTimeoutExceptions are InterruptedIOExceptions; however they do not signify
           // an external interruption, but simply a failed download due to some server timing
@@ -255,21 +293,7 @@ public class HttpDownloader {
     }
 
     if (!success) {
-      final IOException exception =
-          new IOException(
-              "Error downloading "
-                  + urls
-                  + " to "
-                  + destination
-                  + (ioExceptions.isEmpty()
-                      ? ""
-                      : ": " + Iterables.getLast(ioExceptions).getMessage()));
-
-      for (IOException cause : ioExceptions) {
-        exception.addSuppressed(cause);
-      }
-
-      throw exception;
+      throw downloadFailure(urls, " to " + destination, ioExceptions);
     }
 
     if (isCachingByProvidedChecksum) {
@@ -283,7 +307,227 @@ public class HttpDownloader {
     return destination;
   }
 
-  private Path getDownloadDestination(URL url, Optional<String> type, Path output) {
+  /** Consumes the contents of a file while it is downloaded. */
+  public interface StreamConsumer {
+    void accept(InputStream in) throws IOException, InterruptedException;
+  }
+
+  /** Failure of a {@link StreamConsumer} that was given a stream without read errors. */
+  public static final class StreamConsumerException extends Exception {
+    private StreamConsumerException(IOException cause) {
+      super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public synchronized IOException getCause() {
+      return (IOException) super.getCause();
+    }
+  }
+
+  /**
+   * Downloads a file and passes its contents to {@code consumer} as they arrive, without writing
+   * the file to disk. The file is read ahead of the consumer on another thread, so that the
+   * download and the consumer overlap.
+   *
+   * <p>Since there is no checksum to check the file against before it is consumed, neither the
+   * {@link RepositoryCache} nor the distdirs are consulted. The caller should use {@link #download}
+   * instead if a checksum is known. If the repository cache is enabled, the file is written to it
+   * while it is downloaded, and added by its SHA-256 checksum once it is complete, like {@link
+   * #download} does.
+   *
+   * @param urls list of mirror URLs with identical content; if the download from one of them
+   *     fails, {@code consumer} is called again with the contents of the next one, and must first
+   *     undo whatever it did with the partial contents
+   * @return the SHA-256 checksum of the downloaded file
+   * @throws StreamConsumerException if {@code consumer} fails although the download doesn't
+   * @throws IOException if downloads from all URLs failed
+   */
+  public Checksum downloadStreaming(
+      List<URL> urls,
+      Map<URI, Map<String, String>> authHeaders,
+      String canonicalId,
+      ExtendedEventHandler eventHandler,
+      Map<String, String> clientEnv,
+      StreamConsumer consumer)
+      throws IOException, InterruptedException, StreamConsumerException {
+    Preconditions.checkArgument(!urls.isEmpty(), "No URLs specified");
+    HttpConnectorMultiplexer multiplexer =
+        createMultiplexer(createConnector(eventHandler, clientEnv), eventHandler);
+
+    List<IOException> ioExceptions = new ArrayList<>(1);
+    for (URL url : urls) {
+      Path cacheFile =
+          repositoryCache.isEnabled() ? repositoryCache.newTemporaryFile(KeyType.SHA256) : null;
+      HashCode hash;
+      semaphore.acquire();
+      boolean success = false;
+      try {
+        hash = downloadStreaming(multiplexer, url, authHeaders, cacheFile, consumer);
+        success = true;
+      } catch (StreamConsumerException e) {
+        success = true;
+        throw e;
+      } catch (InterruptedIOException e) {
+        throw new InterruptedException(e.getMessage());
+      } catch (IOException e) {
+        ioExceptions.add(e);
+        eventHandler.handle(
+            Event.warn("Download from " + url + " failed: " + e.getClass() + " " + e.getMessage()));
+        continue;
+      } finally {
+        semaphore.release();
+        eventHandler.post(new FetchEvent(url.toString(), success));
+      }
+
+      eventHandler.handle(Event.info("SHA256 (" + url + ") = " + hash));
+      if (cacheFile != null) {
+        repositoryCache.putTemporaryFile(hash.toString(), cacheFile, KeyType.SHA256, canonicalId);
+      }
+      return Checksum.fromString(KeyType.SHA256, hash.toString());
+    }
+    throw downloadFailure(urls, "", ioExceptions);
+  }
+
+  /**
+   * Passes the file from {@code url} to {@code consumer}, and writes it to {@code cacheFile} unless
+   * that is null. The partial {@code cacheFile} is deleted if this fails.
+   */
+  private static HashCode downloadStreaming(
+      HttpConnectorMultiplexer multiplexer,
+      URL url,
+      Map<URI, Map<String, String>> authHeaders,
+      @Nullable Path cacheFile,
+      StreamConsumer consumer)
+      throws IOException, InterruptedException, StreamConsumerException {
+    boolean complete = false;
+    try (ReadAheadInputStream readAhead =
+            new ReadAheadInputStream(
+                multiplexer.connect(
+                    Collections.singletonList(url), Optional.<Checksum>absent(), authHeaders),
+                READ_AHEAD_CHUNKS,
+                "download-read-ahead");
+        OutputStream copy = cacheFile == null ? null : cacheFile.getOutputStream()) {
+      HashingInputStream hashing = new HashingInputStream(Hashing.sha256(), readAhead);
+      InputStream in = new CopyingInputStream(hashing, copy);
+      try {
+        consumer.accept(in);
+        // Consumers need not read trailing bytes, such as the padding at the end of a tar file.
+        ByteStreams.exhaust(in);
+      } catch (IOException e) {
+        if (readAhead.getFailure() == null && !(e instanceof InterruptedIOException)) {
+          throw new StreamConsumerException(e);
+        }
+        if (e instanceof SocketTimeoutException) {
+          // See download().
+          throw new IOException(e);
+        }
+        throw e;
+      }
+      complete = true;
+      return hashing.hash();
+    } finally {
+      if (!complete && cacheFile != null) {
+        try {
+          cacheFile.delete();
+        } catch (IOException e) {
+          // The repository cache deletes stale temporary files eventually.
+        }
+      }
+    }
+  }
+
+  /**
+   * Passes on the bytes read from a stream, and writes them to a copy unless that is null. Skipped
+   * bytes are read, too, so that they are not missing from the copy or from the checksum computed
+   * by the underlying stream.
+   */
+  private static final class CopyingInputStream extends FilterInputStream {
+    @Nullable private final OutputStream copy;
+
+    CopyingInputStream(InputStream in, @Nullable OutputStream copy) {
+      super(in);
+      this.copy = copy;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b != -1 && copy != null) {
+        copy.write(b);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = in.read(b, off, len);
+      if (n > 0 && copy != null) {
+        copy.write(b, off, n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      byte[] buffer = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+      long skipped = 0;
+      while (skipped < n) {
+        int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+        if (read == -1) {
+          break;
+        }
+        skipped += read;
+      }
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  private HttpConnector createConnector(
+      ExtendedEventHandler eventHandler, Map<String, String> clientEnv) {
+    return new HttpConnector(
+        Locale.getDefault(),
+        eventHandler,
+        new ProxyHelper(clientEnv),
+        new JavaSleeper(),
+        timeoutScaling);
+  }
+
+  private static HttpConnectorMultiplexer createMultiplexer(
+      HttpConnector connector, ExtendedEventHandler eventHandler) {
+    Clock clock = new JavaClock();
+    ProgressInputStream.Factory progressInputStreamFactory =
+        new ProgressInputStream.Factory(Locale.getDefault(), clock, eventHandler);
+    HttpStream.Factory httpStreamFactory = new HttpStream.Factory(progressInputStreamFactory);
+    return new HttpConnectorMultiplexer(
+        eventHandler, connector, httpStreamFactory, clock, new JavaSleeper());
+  }
+
+  private static IOException downloadFailure(
+      List<URL> urls, String destination, List<IOException> ioExceptions) {
+    IOException exception =
+        new IOException(
+            "Error downloading "
+                + urls
+                + destination
+                + (ioExceptions.isEmpty()
+                    ? ""
+                    : ": " + Iterables.getLast(ioExceptions).getMessage()));
+    for (IOException cause : ioExceptions) {
+      exception.addSuppressed(cause);
+    }
+    return exception;
+  }
+
+  /**
+   * Returns the path that {@link #download} writes the file from {@code url} to, given the same
+   * {@code type} and {@code output}.
+   */
+  public Path getDownloadDestination(URL url, Optional<String> type, Path output) {
     if (!type.isPresent()) {
       return output;
     }
@@ -0,0 +1,290 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.repository.downloader;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.analysis.BlazeVersionInfo;
+import com.google.devtools.build.lib.bazel.repository.downloader.RetryingInputStream.Reconnector;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads a file in segments over parallel connections, using HTTP range requests.
+ *
+ * <p>The size of the file is determined by requesting its first byte. If the server answers with
+ * the whole file instead, or the file is too small to be worth splitting, nothing is downloaded
+ * and the caller should fall back to a single connection. Otherwise the destination is allocated
+ * with its final size and each segment is written at its own offset as it arrives. Every segment
+ * reconnects on its own and resumes where it stopped, like a single-stream download does.
+ *
+ * <p>Since segments arrive out of order, the checksum is computed once all of them are written,
+ * by reading the file back.
+ */
+final class ParallelRangeDownloader {
+
+  /** Files are not split into segments smaller than this. */
+  private static final long MIN_SEGMENT_BYTES = 8L * 1024 * 1024;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final long PROGRESS_INTERVAL_MS = 200;
+
+  // Compression would make the ranges refer to the encoded bytes, so ask for the file as is.
+  private static final ImmutableMap<String, String> REQUEST_HEADERS =
+      ImmutableMap.of(
+          "Accept-Encoding",
+          "identity",
+          "User-Agent",
+          "Bazel/" + BlazeVersionInfo.instance().getReleaseName());
+
+  private static final Pattern CONTENT_RANGE = Pattern.compile("bytes 0-0/(\\d+)");
+
+  private final HttpConnector connector;
+  private final ExtendedEventHandler eventHandler;
+  private final int maxSegments;
+  private final long minSegmentBytes;
+
+  ParallelRangeDownloader(
+      HttpConnector connector, ExtendedEventHandler eventHandler, int maxSegments) {
+    this(connector, eventHandler, maxSegments, MIN_SEGMENT_BYTES);
+  }
+
+  @VisibleForTesting
+  ParallelRangeDownloader(
+      HttpConnector connector,
+      ExtendedEventHandler eventHandler,
+      int maxSegments,
+      long minSegmentBytes) {
+    Preconditions.checkArgument(maxSegments > 1, maxSegments);
+    Preconditions.checkArgument(minSegmentBytes > 0, minSegmentBytes);
+    this.connector = connector;
+    this.eventHandler = eventHandler;
+    this.maxSegments = maxSegments;
+    this.minSegmentBytes = minSegmentBytes;
+  }
+
+  /**
+   * Downloads {@code url} to {@code destination} in parallel segments, if the server supports it.
+   *
+   * @return false if the file should be downloaded over a single connection instead, in which case
+   *     {@code destination} is unchanged
+   * @throws UnrecoverableHttpException if the downloaded file does not match {@code checksum}
+   */
+  boolean download(
+      URL url,
+      Map<URI, Map<String, String>> authHeaders,
+      Optional<Checksum> checksum,
+      Path destination)
+      throws IOException {
+    Function<URL, ImmutableMap<String, String>> headerFunction =
+        HttpConnectorMultiplexer.getHeaderFunction(REQUEST_HEADERS, authHeaders);
+    URLConnection probe =
+        connector.connect(url, withHeaders(headerFunction, ImmutableMap.of("Range", "bytes=0-0")));
+    URL resolvedUrl = probe.getURL();
+    long size = getSizeFromProbe(probe);
+    discard(probe);
+    if (size < 2 * minSegmentBytes) {
+      return false;
+    }
+    int segments = (int) Math.min(maxSegments, size / minSegmentBytes);
+
+    try (RandomAccessFile file = new RandomAccessFile(destination.getPathFile(), "rw")) {
+      file.setLength(size);
+      downloadSegments(url, resolvedUrl, headerFunction, file.getChannel(), size, segments);
+    }
+    eventHandler.post(new DownloadProgressEvent(url, resolvedUrl, size, true));
+
+    if (checksum.isPresent()) {
+      try (InputStream in = new HashInputStream(destination.getInputStream(), checksum.get())) {
+        ByteStreams.exhaust(in);
+      }
+    }
+    return true;
+  }
+
+  /** Returns the size of the file, or -1 if the server did not honor the range request. */
+  private static long getSizeFromProbe(URLConnection probe) {
+    if (!(probe instanceof HttpURLConnection)) {
+      return -1;
+    }
+    try {
+      if (((HttpURLConnection) probe).getResponseCode() != 206) {
+        return -1;
+      }
+    } catch (IOException e) {
+      return -1;
+    }
+    if (!Strings.isNullOrEmpty(probe.getContentEncoding())
+        && !probe.getContentEncoding().equals("identity")) {
+      return -1;
+    }
+    Matcher matcher =
+        CONTENT_RANGE.matcher(Strings.nullToEmpty(probe.getHeaderField("Content-Range")));
+    if (!matcher.matches()) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(matcher.group(1));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private void downloadSegments(
+      URL originalUrl,
+      URL url,
+      Function<URL, ImmutableMap<String, String>> headerFunction,
+      FileChannel channel,
+      long size,
+      int segments)
+      throws IOException {
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            segments,
+            new ThreadFactoryBuilder()
+                .setNameFormat("download-segment-%d")
+                .setDaemon(true)
+                .build());
+    AtomicLong bytesWritten = new AtomicLong();
+    List<Future<?>> futures = new ArrayList<>(segments);
+    try {
+      for (int i = 0; i < segments; i++) {
+        long start = size * i / segments;
+        long end = size * (i + 1) / segments - 1;
+        futures.add(
+            executor.submit(
+                () -> {
+                  downloadSegment(url, headerFunction, channel, start, end, bytesWritten);
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        while (true) {
+          try {
+            future.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            break;
+          } catch (TimeoutException e) {
+            eventHandler.post(
+                new DownloadProgressEvent(originalUrl, url, bytesWritten.get(), false));
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Download of " + url + " was interrupted");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to download a segment of " + url, e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void downloadSegment(
+      URL url,
+      Function<URL, ImmutableMap<String, String>> headerFunction,
+      FileChannel channel,
+      long start,
+      long end,
+      AtomicLong bytesWritten)
+      throws IOException {
+    String range = String.format("bytes=%d-%d", start, end);
+    URLConnection connection =
+        connector.connect(url, withHeaders(headerFunction, ImmutableMap.of("Range", range)));
+    if (!Strings.nullToEmpty(connection.getHeaderField("Content-Range"))
+        .startsWith(String.format("bytes %d-", start))) {
+      discard(connection);
+      throw new IOException(
+          String.format("Server didn't honor the range request %s for %s", range, url));
+    }
+    Reconnector reconnector =
+        (cause, extraHeaders) -> {
+          eventHandler.handle(
+              Event.progress(String.format("Lost connection for %s due to %s", url, cause)));
+          return connector.connect(url, withHeaders(headerFunction, extraHeaders));
+        };
+    long position = start;
+    try (InputStream in =
+        new RetryingInputStream(
+            new InterruptibleInputStream(connection.getInputStream()), reconnector, start, end)) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      while (position <= end) {
+        int amount = in.read(buffer, 0, (int) Math.min(buffer.length, end - position + 1));
+        if (amount == -1) {
+          break;
+        }
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, amount);
+        while (data.hasRemaining()) {
+          position += channel.write(data, position);
+        }
+        bytesWritten.addAndGet(amount);
+      }
+    }
+    if (position <= end) {
+      throw new IOException(
+          String.format(
+              "Connection for %s ended %,d bytes before the end of range %s",
+              url, end - position + 1, range));
+    }
+  }
+
+  private static void discard(URLConnection connection) throws IOException {
+    if (connection instanceof HttpURLConnection) {
+      ((HttpURLConnection) connection).disconnect();
+    } else {
+      connection.getInputStream().close();
+    }
+  }
+
+  private static Function<URL, ImmutableMap<String, String>> withHeaders(
+      Function<URL, ImmutableMap<String, String>> headerFunction,
+      ImmutableMap<String, String> extraHeaders) {
+    return u ->
+        new ImmutableMap.Builder<String, String>()
+            .putAll(headerFunction.apply(u))
+            .putAll(extraHeaders)
+            .build();
+  }
+}
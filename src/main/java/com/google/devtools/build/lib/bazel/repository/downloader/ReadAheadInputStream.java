@@ -0,0 +1,132 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.repository.downloader;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.annotation.Nullable;
+import javax.annotation.WillCloseWhenClosed;
+
+/**
+ * Input stream that reads its delegate on a thread of its own, up to a bounded number of bytes
+ * ahead of its reader, so that a slow reader and a slow delegate wait for each other less.
+ *
+ * <p>Failures to read the delegate are thrown by the read that reaches them. The delegate is closed
+ * by the reading thread once it is exhausted or fails, or when this stream is closed.
+ */
+@ThreadCompatible
+final class ReadAheadInputStream extends InputStream {
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  /** Marks the end of the delegate, or the point at which reading it failed. */
+  private static final byte[] END = new byte[0];
+
+  private final BlockingQueue<byte[]> chunks;
+  private final Thread readAheadThread;
+  @Nullable private volatile IOException failure;
+
+  @Nullable private byte[] chunk;
+  private int position;
+
+  ReadAheadInputStream(@WillCloseWhenClosed InputStream delegate, int maxChunks, String name) {
+    this.chunks = new ArrayBlockingQueue<>(maxChunks);
+    this.readAheadThread = new Thread(() -> readAhead(delegate), name);
+    readAheadThread.setDaemon(true);
+    readAheadThread.start();
+  }
+
+  private void readAhead(InputStream delegate) {
+    try (InputStream in = delegate) {
+      byte[] buffer = new byte[CHUNK_SIZE];
+      int amount;
+      while ((amount = in.read(buffer)) != -1) {
+        if (amount > 0) {
+          chunks.put(Arrays.copyOf(buffer, amount));
+        }
+      }
+    } catch (IOException e) {
+      failure = e;
+    } catch (InterruptedException e) {
+      // The stream was closed.
+      return;
+    }
+    try {
+      chunks.put(END);
+    } catch (InterruptedException e) {
+      // The stream was closed.
+    }
+  }
+
+  /** Returns the failure to read the delegate, if reading it has failed so far. */
+  @Nullable
+  IOException getFailure() {
+    return failure;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    if (chunk == null || position == chunk.length) {
+      if (chunk == END) {
+        return endOfStream();
+      }
+      try {
+        chunk = chunks.take();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+      position = 0;
+      if (chunk == END) {
+        return endOfStream();
+      }
+    }
+    int amount = Math.min(length, chunk.length - position);
+    System.arraycopy(chunk, position, buffer, offset, amount);
+    position += amount;
+    return amount;
+  }
+
+  private int endOfStream() throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+    return -1;
+  }
+
+  @Override
+  public int available() {
+    return chunk == null ? 0 : chunk.length - position;
+  }
+
+  @Override
+  public void close() {
+    readAheadThread.interrupt();
+    // Makes room for the end marker, in case the delegate turned the interrupt into a failure.
+    chunks.clear();
+  }
+}
@@ -48,13 +48,26 @@ class RetryingInputStream extends InputStream {
   volatile boolean disabled;
   private volatile InputStream delegate;
   private final Reconnector reconnector;
+  private final long rangeStart;
+  private final long rangeEnd;
   private final AtomicLong toto = new AtomicLong();
   private final AtomicInteger resumes = new AtomicInteger();
   private final Vector<Throwable> suppressed = new Vector<>();
 
   RetryingInputStream(InputStream delegate, Reconnector reconnector) {
+    this(delegate, reconnector, 0, -1);
+  }
+
+  /**
+   * Creates a stream over the bytes {@code rangeStart} to {@code rangeEnd} (inclusive) of the
+   * resource, or to its end if {@code rangeEnd} is negative, that resumes within that range.
+   */
+  RetryingInputStream(
+      InputStream delegate, Reconnector reconnector, long rangeStart, long rangeEnd) {
     this.delegate = delegate;
     this.reconnector = reconnector;
+    this.rangeStart = rangeStart;
+    this.rangeEnd = rangeEnd;
   }
 
   @Override
@@ -119,17 +132,20 @@ class RetryingInputStream extends InputStream {
   private void reconnectWhereWeLeftOff(IOException cause) throws IOException {
     try {
       URLConnection connection;
-      long amountRead = toto.get();
-      if (amountRead == 0) {
+      long offset = rangeStart + toto.get();
+      if (offset == 0 && rangeEnd < 0) {
         connection = reconnector.connect(cause, ImmutableMap.<String, String>of());
       } else {
         connection =
             reconnector.connect(
-                cause, ImmutableMap.of("Range", String.format("bytes=%d-", amountRead)));
+                cause,
+                ImmutableMap.of(
+                    "Range",
+                    String.format("bytes=%d-%s", offset, rangeEnd < 0 ? "" : rangeEnd)));
         if (!Strings.nullToEmpty(connection.getHeaderField("Content-Range"))
-                .startsWith(String.format("bytes %d-", amountRead))) {
+                .startsWith(String.format("bytes %d-", offset))) {
           throw new IOException(String.format(
-              "Tried to reconnect at offset %,d but server didn't support it", amountRead));
+              "Tried to reconnect at offset %,d but server didn't support it", offset));
         }
       }
       delegate = new InterruptibleInputStream(connection.getInputStream());
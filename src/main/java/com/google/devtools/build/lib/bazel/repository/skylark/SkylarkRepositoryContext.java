@@ -26,11 +26,13 @@ import com.google.devtools.build.lib.actions.FileValue;
 import com.google.devtools.build.lib.bazel.debug.WorkspaceRuleEvent;
 import com.google.devtools.build.lib.bazel.repository.DecompressorDescriptor;
 import com.google.devtools.build.lib.bazel.repository.DecompressorValue;
+import com.google.devtools.build.lib.bazel.repository.DecompressorValue.StreamingDecompressor;
 import com.google.devtools.build.lib.bazel.repository.PatchUtil;
 import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache;
 import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.KeyType;
 import com.google.devtools.build.lib.bazel.repository.downloader.Checksum;
 import com.google.devtools.build.lib.bazel.repository.downloader.HttpDownloader;
+import com.google.devtools.build.lib.bazel.repository.downloader.HttpDownloader.StreamConsumerException;
 import com.google.devtools.build.lib.bazel.repository.downloader.HttpUtils;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.events.ExtendedEventHandler.FetchProgress;
@@ -82,8 +84,10 @@ import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
@@ -775,6 +779,34 @@ public class SkylarkRepositoryContext
     checkInOutputDirectory("write", outputPath);
     createDirectory(outputPath.getPath());
 
+    // Without a checksum, the archive can't come from the repository cache, and it doesn't need to
+    // be checked before it is extracted.
+    if (httpDownloader.shouldStreamArchives()
+        && !checksum.isPresent()
+        && checksumValidation == null
+        && !urls.isEmpty()) {
+      DecompressorDescriptor descriptor;
+      try {
+        descriptor =
+            DecompressorDescriptor.builder()
+                .setTargetKind(rule.getTargetKind())
+                .setTargetName(rule.getName())
+                .setArchivePath(
+                    httpDownloader.getDownloadDestination(
+                        urls.get(0), Optional.of(type), outputPath.getPath()))
+                .setRepositoryPath(outputPath.getPath())
+                .setPrefix(stripPrefix)
+                .build();
+      } catch (RepositoryFunctionException e) {
+        // Unknown archive type; report it after the download, as usual.
+        descriptor = null;
+      }
+      if (descriptor != null && descriptor.getDecompressor() instanceof StreamingDecompressor) {
+        return downloadAndExtractStreaming(
+            urls, authHeaders, canonicalId, descriptor, allowFail, w);
+      }
+    }
+
     Path downloadedPath;
     try (SilentCloseable c =
         Profiler.instance().profile("fetching: " + rule.getLabel().toString())) {
@@ -836,6 +868,95 @@ public class SkylarkRepositoryContext
     return downloadResult;
   }
 
+  /**
+   * Extracts the archive of {@link #downloadAndExtract} while it is downloaded. Whatever a failed
+   * download from one mirror extracted is deleted before the next mirror is tried.
+   */
+  private StructImpl downloadAndExtractStreaming(
+      List<URL> urls,
+      Map<URI, Map<String, String>> authHeaders,
+      String canonicalId,
+      DecompressorDescriptor descriptor,
+      boolean allowFail,
+      WorkspaceRuleEvent w)
+      throws RepositoryFunctionException, InterruptedException, EvalException {
+    StreamingDecompressor decompressor = (StreamingDecompressor) descriptor.getDecompressor();
+    String repositoryPath = descriptor.repositoryPath().toString();
+    Set<String> existingEntries;
+    try {
+      existingEntries = getEntryNames(descriptor.repositoryPath());
+    } catch (IOException e) {
+      throw new RepositoryFunctionException(e, Transience.TRANSIENT);
+    }
+    Checksum checksum;
+    try (SilentCloseable c =
+        Profiler.instance().profile("fetching and extracting: " + rule.getLabel().toString())) {
+      env.getListener().post(new ExtractProgress(repositoryPath, "Extracting " + urls.get(0)));
+      checksum =
+          httpDownloader.downloadStreaming(
+              urls,
+              authHeaders,
+              canonicalId,
+              env.getListener(),
+              osObject.getEnvironmentVariables(),
+              in -> {
+                deleteNewEntries(descriptor.repositoryPath(), existingEntries);
+                decompressor.decompress(descriptor, in);
+              });
+    } catch (StreamConsumerException e) {
+      env.getListener().post(w);
+      throw new RepositoryFunctionException(
+          new IOException(
+              String.format(
+                  "Error extracting %s to %s: %s",
+                  urls, descriptor.repositoryPath(), e.getMessage())),
+          Transience.TRANSIENT);
+    } catch (InterruptedException e) {
+      env.getListener().post(w);
+      throw new RepositoryFunctionException(
+          new IOException("thread interrupted"), Transience.TRANSIENT);
+    } catch (IOException e) {
+      env.getListener().post(w);
+      try {
+        deleteNewEntries(descriptor.repositoryPath(), existingEntries);
+      } catch (IOException deleteFailure) {
+        e.addSuppressed(deleteFailure);
+      }
+      if (allowFail) {
+        Dict<String, Object> dict = Dict.of((Mutability) null, "success", false);
+        return StructProvider.STRUCT.createStruct(dict, null);
+      } else {
+        throw new RepositoryFunctionException(e, Transience.TRANSIENT);
+      }
+    } finally {
+      env.getListener().post(new ExtractProgress(repositoryPath));
+    }
+    env.getListener().post(w);
+    // The archive was never written to disk, but its checksum is known now.
+    return calculateDownloadResult(Optional.of(checksum), descriptor.archivePath());
+  }
+
+  private static Set<String> getEntryNames(Path directory) throws IOException {
+    Set<String> names = new HashSet<>();
+    for (Path entry : directory.getDirectoryEntries()) {
+      names.add(entry.getBaseName());
+    }
+    return names;
+  }
+
+  /**
+   * Deletes the entries of {@code directory} that are not in {@code existingEntries}, i.e. that a
+   * partial extraction added.
+   */
+  private static void deleteNewEntries(Path directory, Set<String> existingEntries)
+      throws IOException {
+    for (Path entry : directory.getDirectoryEntries()) {
+      if (!existingEntries.contains(entry.getBaseName())) {
+        entry.deleteTree();
+      }
+    }
+  }
+
   private Checksum calculateChecksum(Optional<Checksum> originalChecksum, Path path)
       throws IOException, InterruptedException {
     if (originalChecksum.isPresent()) {
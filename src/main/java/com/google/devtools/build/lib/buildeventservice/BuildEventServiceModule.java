@@ -25,6 +25,8 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
 import com.google.common.flogger.GoogleLogger;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -39,16 +41,21 @@ import com.google.devtools.build.lib.buildeventstream.AnnounceBuildEventTranspor
 import com.google.devtools.build.lib.buildeventstream.BuildEventArtifactUploader;
 import com.google.devtools.build.lib.buildeventstream.BuildEventProtocolOptions;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.Aborted.AbortReason;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.BuildEventStreamMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventTransport;
 import com.google.devtools.build.lib.buildeventstream.BuildEventTransportClosedEvent;
 import com.google.devtools.build.lib.buildeventstream.LocalFilesArtifactUploader;
 import com.google.devtools.build.lib.buildeventstream.transports.BinaryFormatFileTransport;
 import com.google.devtools.build.lib.buildeventstream.transports.BuildEventStreamOptions;
+import com.google.devtools.build.lib.buildeventstream.transports.ChunkedGzipOutputStream;
+import com.google.devtools.build.lib.buildeventstream.transports.FileTransport;
 import com.google.devtools.build.lib.buildeventstream.transports.JsonFormatFileTransport;
 import com.google.devtools.build.lib.buildeventstream.transports.TextFormatFileTransport;
+import com.google.devtools.build.lib.buildtool.buildevent.ExecutionPhaseCompleteEvent;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.metrics.BuildEventStreamMetricsEvent;
 import com.google.devtools.build.lib.network.ConnectivityStatus;
 import com.google.devtools.build.lib.network.ConnectivityStatus.Status;
 import com.google.devtools.build.lib.network.ConnectivityStatusProvider;
@@ -67,6 +74,7 @@ import com.google.devtools.common.options.OptionsParsingException;
 import com.google.devtools.common.options.OptionsParsingResult;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.Duration;
@@ -129,6 +137,7 @@ public abstract class BuildEventServiceModule<BESOptionsT extends BuildEventServ
   // TODO(lpino): Use Optional instead of @Nullable for the members below.
   @Nullable private OutErr outErr;
   @Nullable private ImmutableSet<BuildEventTransport> bepTransports;
+  @Nullable private EventBus eventBus;
   @Nullable private String buildRequestId;
   @Nullable private String invocationId;
   @Nullable private Reporter reporter;
@@ -349,6 +358,8 @@ public abstract class BuildEventServiceModule<BESOptionsT extends BuildEventServ
             .build();
 
     cmdEnv.getEventBus().register(streamer);
+    eventBus = cmdEnv.getEventBus();
+    eventBus.register(this);
     registerOutAndErrOutputStreams();
 
     // This event should probably be posted in a more general place (e.g. {@link BuildTool};
@@ -357,6 +368,29 @@ public abstract class BuildEventServiceModule<BESOptionsT extends BuildEventServ
     reporter.post(new AnnounceBuildEventTransportsEvent(bepTransports));
   }
 
+  @Subscribe
+  public void executionPhaseComplete(ExecutionPhaseCompleteEvent event) {
+    BuildEventStreamMetrics.Builder metrics = BuildEventStreamMetrics.newBuilder();
+    boolean hasFileTransport = false;
+    for (BuildEventTransport transport : bepTransports) {
+      if (!(transport instanceof FileTransport)) {
+        continue;
+      }
+      hasFileTransport = true;
+      BuildEventStreamMetrics transportMetrics = ((FileTransport) transport).getMetrics();
+      metrics
+          .setMaxPendingEvents(
+              Math.max(metrics.getMaxPendingEvents(), transportMetrics.getMaxPendingEvents()))
+          .setSerializationTimeMillis(
+              metrics.getSerializationTimeMillis() + transportMetrics.getSerializationTimeMillis())
+          .setBlockedTimeMillis(
+              metrics.getBlockedTimeMillis() + transportMetrics.getBlockedTimeMillis());
+    }
+    if (hasFileTransport) {
+      eventBus.post(new BuildEventStreamMetricsEvent(metrics.build()));
+    }
+  }
+
   private void registerOutAndErrOutputStreams() {
     int bufferSize = besOptions.besOuterrBufferSize;
     int chunkSize = besOptions.besOuterrChunkSize;
@@ -569,6 +603,7 @@ public abstract class BuildEventServiceModule<BESOptionsT extends BuildEventServ
   public void commandComplete() {
     this.outErr = null;
     this.bepTransports = null;
+    this.eventBus = null;
     this.invocationId = null;
     this.buildRequestId = null;
     this.reporter = null;
@@ -710,9 +745,12 @@ public abstract class BuildEventServiceModule<BESOptionsT extends BuildEventServ
 
     if (!Strings.isNullOrEmpty(besStreamOptions.buildEventBinaryFile)) {
       try {
-        BufferedOutputStream bepBinaryOutputStream =
-            new BufferedOutputStream(
-                Files.newOutputStream(Paths.get(besStreamOptions.buildEventBinaryFile)));
+        OutputStream bepBinaryFileStream =
+            Files.newOutputStream(Paths.get(besStreamOptions.buildEventBinaryFile));
+        if (besStreamOptions.buildEventBinaryFileCompression) {
+          bepBinaryFileStream = new ChunkedGzipOutputStream(bepBinaryFileStream);
+        }
+        BufferedOutputStream bepBinaryOutputStream = new BufferedOutputStream(bepBinaryFileStream);
 
         BuildEventArtifactUploader localFileUploader =
             besStreamOptions.buildEventBinaryFilePathConversion
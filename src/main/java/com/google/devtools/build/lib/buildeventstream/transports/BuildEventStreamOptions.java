@@ -84,6 +84,17 @@ public class BuildEventStreamOptions extends OptionsBase {
           + "always be used")
   public boolean buildEventBinaryFilePathConversion;
 
+  @Option(
+      name = "experimental_build_event_binary_file_compression",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.LOGGING,
+      effectTags = {OptionEffectTag.AFFECTS_OUTPUTS},
+      help =
+          "If enabled, gzip the --build_event_binary_file as a sequence of gzip members, one per "
+              + "flush. The file can be read with gunzip, and stays readable up to the last flush "
+              + "if the build is interrupted.")
+  public boolean buildEventBinaryFileCompression;
+
   @Option(
       name = "build_event_json_file_path_conversion",
       oldName = "experimental_build_event_json_file_path_conversion",
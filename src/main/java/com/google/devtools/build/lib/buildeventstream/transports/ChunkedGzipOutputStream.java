@@ -0,0 +1,103 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.buildeventstream.transports;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+
+/**
+ * Output stream that gzips its data as a sequence of complete gzip members, starting a new member
+ * on every flush and whenever the current one holds {@link #MAX_CHUNK_BYTES} of input.
+ *
+ * <p>Concatenated gzip members are a valid gzip file, so the output can be read with {@code
+ * gunzip} or {@link java.util.zip.GZIPInputStream}. Unlike a single member, everything flushed so
+ * far stays readable if the writer dies, and readers can follow the file while it is written.
+ */
+public final class ChunkedGzipOutputStream extends OutputStream {
+
+  private static final int MAX_CHUNK_BYTES = 1024 * 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final OutputStream out;
+  @Nullable private GZIPOutputStream chunk;
+  private int chunkBytes;
+
+  public ChunkedGzipOutputStream(OutputStream out) {
+    this.out = out;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (chunk == null) {
+        chunk = new GZIPOutputStream(new NonClosingOutputStream(out), BUFFER_SIZE);
+        chunkBytes = 0;
+      }
+      int amount = Math.min(len, MAX_CHUNK_BYTES - chunkBytes);
+      chunk.write(b, off, amount);
+      chunkBytes += amount;
+      off += amount;
+      len -= amount;
+      if (chunkBytes == MAX_CHUNK_BYTES) {
+        finishChunk();
+      }
+    }
+  }
+
+  private void finishChunk() throws IOException {
+    if (chunk != null) {
+      // Writes the trailer and releases the deflater, but leaves out open.
+      chunk.close();
+      chunk = null;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    finishChunk();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finishChunk();
+    } finally {
+      out.close();
+    }
+  }
+
+  private static final class NonClosingOutputStream extends FilterOutputStream {
+    NonClosingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -19,6 +19,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -30,6 +31,7 @@ import com.google.devtools.build.lib.buildeventstream.BuildEventArtifactUploader
 import com.google.devtools.build.lib.buildeventstream.BuildEventContext;
 import com.google.devtools.build.lib.buildeventstream.BuildEventProtocolOptions;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.BuildEventStreamMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventTransport;
 import com.google.devtools.build.lib.buildeventstream.PathConverter;
 import com.google.devtools.build.lib.util.AbruptExitException;
@@ -38,15 +40,20 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.concurrent.ThreadSafe;
@@ -56,8 +63,13 @@ import javax.annotation.concurrent.ThreadSafe;
  *
  * <p>Implementors of this class need to implement {@code #sendBuildEvent(BuildEvent)} which
  * serializes the build event and writes it to a file.
+ *
+ * <p>Events are serialized in parallel and written in the order they were sent. The number of
+ * events waiting to be written is bounded: once the limit is reached, {@link #sendBuildEvent}
+ * blocks until the writer catches up, so that a slow file or slow uploads hold back the build
+ * instead of growing the heap.
  */
-abstract class FileTransport implements BuildEventTransport {
+public abstract class FileTransport implements BuildEventTransport {
   private static final Logger logger = Logger.getLogger(FileTransport.class.getName());
 
   private final BuildEventProtocolOptions options;
@@ -86,13 +98,17 @@ abstract class FileTransport implements BuildEventTransport {
   @VisibleForTesting
   static final class SequentialWriter implements Runnable {
     private static final Logger logger = Logger.getLogger(SequentialWriter.class.getName());
-    private static final ListenableFuture<BuildEventStreamProtos.BuildEvent> CLOSE_EVENT_FUTURE =
+    private static final ListenableFuture<byte[]> CLOSE_EVENT_FUTURE =
         Futures.immediateFailedFuture(
             new IllegalStateException(
                 "A FileTransport is trying to write CLOSE_EVENT_FUTURE, this is a bug."));
     private static final Duration FLUSH_INTERVAL =
         Duration.ofMillis(
             Long.parseLong(System.getProperty("EXPERIMENTAL_BEP_FILE_FLUSH_MILLIS", "250")));
+    private static final int MAX_PENDING_WRITES =
+        Integer.parseInt(System.getProperty("EXPERIMENTAL_BEP_FILE_MAX_PENDING_EVENTS", "10000"));
+    private static final int SERIALIZER_THREADS =
+        Math.min(4, Runtime.getRuntime().availableProcessors());
 
     private final Thread writerThread;
     private final BufferedOutputStream out;
@@ -100,10 +116,21 @@ abstract class FileTransport implements BuildEventTransport {
     private final BuildEventArtifactUploader uploader;
     private final AtomicBoolean isClosed = new AtomicBoolean();
     private final SettableFuture<Void> closeFuture = SettableFuture.create();
+    private final ExecutorService serializerExecutor;
 
     @VisibleForTesting
-    final BlockingQueue<ListenableFuture<BuildEventStreamProtos.BuildEvent>> pendingWrites =
-        new LinkedBlockingDeque<>();
+    final BlockingQueue<ListenableFuture<byte[]>> pendingWrites = new LinkedBlockingDeque<>();
+
+    // Bounds the events in pendingWrites, but not CLOSE_EVENT_FUTURE.
+    private final Semaphore pendingWritePermits;
+    // Events that were queued without a permit, because their sender was interrupted. Writing them
+    // must not release a permit.
+    private final Set<ListenableFuture<byte[]>> writesWithoutPermit = Sets.newConcurrentHashSet();
+
+    // Reported as a build metric, to tell a slow file apart from slow uploads.
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong serializationNanos = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
 
     private ScheduledExecutorService timeoutExecutor;
 
@@ -112,6 +139,16 @@ abstract class FileTransport implements BuildEventTransport {
         Function<BuildEventStreamProtos.BuildEvent, byte[]> serializeFunc,
         BuildEventArtifactUploader uploader,
         ScheduledExecutorService timeoutExecutor) {
+      this(outputStream, serializeFunc, uploader, timeoutExecutor, MAX_PENDING_WRITES);
+    }
+
+    @VisibleForTesting
+    SequentialWriter(
+        BufferedOutputStream outputStream,
+        Function<BuildEventStreamProtos.BuildEvent, byte[]> serializeFunc,
+        BuildEventArtifactUploader uploader,
+        ScheduledExecutorService timeoutExecutor,
+        int maxPendingWrites) {
       checkNotNull(uploader);
 
       this.out = checkNotNull(outputStream);
@@ -119,23 +156,82 @@ abstract class FileTransport implements BuildEventTransport {
       this.serializeFunc = checkNotNull(serializeFunc);
       this.uploader = checkNotNull(uploader);
       this.timeoutExecutor = checkNotNull(timeoutExecutor);
+      this.pendingWritePermits = new Semaphore(maxPendingWrites);
+      this.serializerExecutor =
+          Executors.newFixedThreadPool(
+              SERIALIZER_THREADS,
+              new ThreadFactoryBuilder()
+                  .setNameFormat("bep-local-serializer-%d")
+                  .setDaemon(true)
+                  .build());
       writerThread.start();
     }
 
+    /**
+     * Queues {@code buildEvent} for writing, blocking while the queue is full. Serialization starts
+     * on a separate thread as soon as the event is converted.
+     */
+    void enqueue(ListenableFuture<BuildEventStreamProtos.BuildEvent> buildEvent) {
+      long startNanos = System.nanoTime();
+      boolean acquired = false;
+      try {
+        while (!(acquired =
+            pendingWritePermits.tryAcquire(FLUSH_INTERVAL.toMillis(), TimeUnit.MILLISECONDS))) {
+          if (closeFuture.isDone()) {
+            // The writer is gone and will not make room anymore.
+            return;
+          }
+        }
+      } catch (InterruptedException e) {
+        // Queue the event regardless, dropping it would leave a hole in the stream.
+        Thread.currentThread().interrupt();
+      } finally {
+        blockedNanos.addAndGet(System.nanoTime() - startNanos);
+      }
+      ListenableFuture<byte[]> serialized =
+          Futures.transform(buildEvent, this::serialize, serializerExecutor);
+      if (!acquired) {
+        writesWithoutPermit.add(serialized);
+      }
+      pendingWrites.add(serialized);
+      maxQueueDepth.accumulateAndGet(pendingWrites.size(), Math::max);
+    }
+
+    BuildEventStreamMetrics getMetrics() {
+      return BuildEventStreamMetrics.newBuilder()
+          .setMaxPendingEvents(maxQueueDepth.get())
+          .setSerializationTimeMillis(TimeUnit.NANOSECONDS.toMillis(serializationNanos.get()))
+          .setBlockedTimeMillis(TimeUnit.NANOSECONDS.toMillis(blockedNanos.get()))
+          .build();
+    }
+
+    @VisibleForTesting
+    int availablePendingWritePermits() {
+      return pendingWritePermits.availablePermits();
+    }
+
+    private byte[] serialize(BuildEventStreamProtos.BuildEvent buildEvent) {
+      long startNanos = System.nanoTime();
+      byte[] serialized = serializeFunc.apply(buildEvent);
+      serializationNanos.addAndGet(System.nanoTime() - startNanos);
+      return serialized;
+    }
+
     @Override
     public void run() {
-      ListenableFuture<BuildEventStreamProtos.BuildEvent> buildEventF;
+      ListenableFuture<byte[]> serializedF;
       try {
         Instant prevFlush = Instant.now();
-        while ((buildEventF = pendingWrites.poll(FLUSH_INTERVAL.toMillis(), TimeUnit.MILLISECONDS))
+        while ((serializedF = pendingWrites.poll(FLUSH_INTERVAL.toMillis(), TimeUnit.MILLISECONDS))
             != CLOSE_EVENT_FUTURE) {
-          if (buildEventF != null) {
-            BuildEventStreamProtos.BuildEvent buildEvent = buildEventF.get();
-            byte[] serialized = serializeFunc.apply(buildEvent);
-            out.write(serialized);
+          if (serializedF != null) {
+            out.write(serializedF.get());
+            if (!writesWithoutPermit.remove(serializedF)) {
+              pendingWritePermits.release();
+            }
           }
           Instant now = Instant.now();
-          if (buildEventF == null || now.compareTo(prevFlush.plus(FLUSH_INTERVAL)) > 0) {
+          if (serializedF == null || now.compareTo(prevFlush.plus(FLUSH_INTERVAL)) > 0) {
             // Some users, e.g. Tulsi, expect prompt BEP stream flushes for interactive use.
             out.flush();
             prevFlush = now;
@@ -154,6 +250,7 @@ abstract class FileTransport implements BuildEventTransport {
           } finally {
             uploader.shutdown();
             timeoutExecutor.shutdown();
+            serializerExecutor.shutdownNow();
           }
         } catch (IOException e) {
           logger.log(Level.SEVERE, "Failed to close BEP file output stream.", e);
@@ -177,6 +274,7 @@ abstract class FileTransport implements BuildEventTransport {
       closeFuture.setException(
           new AbruptExitException(message, ExitCode.TRANSIENT_BUILD_EVENT_SERVICE_UPLOAD_ERROR, e));
       pendingWrites.clear();
+      writesWithoutPermit.clear();
       logger.log(Level.SEVERE, message, e);
     }
 
@@ -186,6 +284,7 @@ abstract class FileTransport implements BuildEventTransport {
       }
       try {
         pendingWrites.clear();
+        writesWithoutPermit.clear();
         pendingWrites.put(CLOSE_EVENT_FUTURE);
       } catch (InterruptedException e) {
         logger.log(Level.SEVERE, "Failed to immediately close the sequential writer.", e);
@@ -228,9 +327,7 @@ abstract class FileTransport implements BuildEventTransport {
     if (writer.isClosed.get()) {
       return;
     }
-    if (!writer.pendingWrites.add(asStreamProto(event, namer))) {
-      logger.log(Level.SEVERE, "Failed to add BEP event to the write queue");
-    }
+    writer.enqueue(asStreamProto(event, namer));
   }
 
   protected abstract byte[] serializeEvent(BuildEventStreamProtos.BuildEvent buildEvent);
@@ -288,6 +385,14 @@ abstract class FileTransport implements BuildEventTransport {
     return uploader;
   }
 
+  /**
+   * Returns how many events waited to be written so far, and how long serializing them and waiting
+   * for room in the queue took.
+   */
+  public BuildEventStreamMetrics getMetrics() {
+    return writer.getMetrics();
+  }
+
   /** Determines how often the {@link FileTransport} flushes events. */
   Duration getFlushInterval() {
     return writer.getFlushInterval();
@@ -365,6 +365,21 @@ public class BuildRequestOptions extends OptionsBase {
   )
   public boolean useActionCache;
 
+  @Option(
+      name = "experimental_memory_mapped_action_cache",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {
+        OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION,
+        OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS
+      },
+      help =
+          "If enabled, the action cache is kept in memory-mapped files in the output base instead "
+              + "of on the Java heap. Updates are appended to the files as they happen, and saving "
+              + "the cache no longer rewrites it. The memory-mapped cache is stored separately "
+              + "from the regular one, so switching this flag starts from an empty cache.")
+  public boolean memoryMappedActionCache;
+
   @Option(
       name = "discard_actions_after_execution",
       defaultValue = "true",
@@ -16,6 +16,9 @@ package com.google.devtools.build.lib.collect.nestedset;
 import static java.util.stream.Collectors.joining;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Futures;
@@ -69,6 +72,21 @@ public final class NestedSet<E> implements Iterable<E> {
    */
   private static final AtomicInteger expansionDepthLimit = new AtomicInteger(3500);
 
+  /**
+   * Flattened lists of non-leaf nested sets, keyed by the identity of their children array, or null
+   * if the cache is disabled. Weighted by the number of elements of each list.
+   *
+   * <p>Replaying the memo of a deep set visits every node of the set again, which adds up for sets
+   * like the transitive headers of C++ compilations that are flattened many times. Since the keys
+   * are weak, entries go away together with their nested set.
+   */
+  @Nullable private static volatile Cache<Object[], ImmutableList<?>> flatteningCache = null;
+
+  private static long flatteningCacheSize = 0;
+
+  /** Smaller lists are cheap enough to replay that caching them is not worth the entry. */
+  private static final int MIN_FLATTENING_CACHE_LIST_SIZE = 64;
+
   private static final byte[] LEAF_MEMO = {};
   @AutoCodec static final Object[] EMPTY_CHILDREN = {};
 
@@ -419,13 +437,34 @@ public final class NestedSet<E> implements Iterable<E> {
   /**
    * Implementation of {@link #toList}. Uses one of three strategies based on the value of {@code
    * this.memo}: wrap our direct items in a list, call {@link #lockedExpand} to perform the initial
-   * {@link #walk}, or call {@link #replay} if we have a nontrivial memo.
+   * {@link #walk}, or call {@link #replay} if we have a nontrivial memo. Large results of the
+   * latter two are looked up in and added to the flattening cache, if it is enabled.
    */
   private ImmutableList<E> expand(boolean handleInterruptedException) throws InterruptedException {
     // This value is only set in the constructor, so safe to test here with no lock.
     if (memo == LEAF_MEMO) {
       return ImmutableList.copyOf(new ArraySharingCollection<>((Object[]) children));
     }
+    Cache<Object[], ImmutableList<?>> cache = flatteningCache;
+    int size = orderAndSize >> 2;
+    if (cache == null || (size != 0 && size < MIN_FLATTENING_CACHE_LIST_SIZE)) {
+      return expandUncached(handleInterruptedException);
+    }
+    Object[] children = (Object[]) this.getChildren(handleInterruptedException);
+    ImmutableList<E> cached = (ImmutableList<E>) cache.getIfPresent(children);
+    if (cached != null) {
+      return cached;
+    }
+    ImmutableList<E> expanded = expandUncached(handleInterruptedException);
+    if (expanded.size() >= MIN_FLATTENING_CACHE_LIST_SIZE) {
+      cache.put(children, expanded);
+    }
+    return expanded;
+  }
+
+  /** Implementation of {@link #expand} for non-leaf sets that bypasses the flattening cache. */
+  private ImmutableList<E> expandUncached(boolean handleInterruptedException)
+      throws InterruptedException {
     CompactHashSet<E> members = lockedExpand(handleInterruptedException);
     if (members != null) {
       return ImmutableList.copyOf(members);
@@ -572,6 +611,39 @@ public final class NestedSet<E> implements Iterable<E> {
     return oldValue != newLimit;
   }
 
+  /**
+   * Sets the maximum total number of elements of the flattened lists kept by the flattening cache.
+   * Zero disables the cache. Changing the size drops the contents of the cache.
+   *
+   * <p>This size should be set by command line option processing.
+   */
+  public static synchronized void setFlatteningCacheSize(long newSize) {
+    Preconditions.checkArgument(newSize >= 0, newSize);
+    if (newSize == flatteningCacheSize) {
+      return;
+    }
+    flatteningCacheSize = newSize;
+    flatteningCache =
+        newSize == 0
+            ? null
+            : CacheBuilder.newBuilder()
+                .weakKeys()
+                .maximumWeight(newSize)
+                .<Object[], ImmutableList<?>>weigher((children, list) -> list.size())
+                .recordStats()
+                .build();
+  }
+
+  /**
+   * Returns the statistics of the flattening cache since it was last resized, or null if it is
+   * disabled.
+   */
+  @Nullable
+  public static CacheStats getFlatteningCacheStats() {
+    Cache<Object[], ImmutableList<?>> cache = flatteningCache;
+    return cache == null ? null : cache.stats();
+  }
+
   /** An exception thrown when a nested set exceeds the application's depth limits. */
   public static final class NestedSetDepthException extends RuntimeException {
     private final int depthLimit;
@@ -14,7 +14,13 @@
 
 package com.google.devtools.build.lib.collect.nestedset;
 
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.NestedSetMetrics;
+import com.google.devtools.build.lib.buildtool.buildevent.ExecutionPhaseCompleteEvent;
+import com.google.devtools.build.lib.metrics.NestedSetMetricsEvent;
 import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.common.options.Option;
@@ -24,7 +30,6 @@ import com.google.devtools.common.options.OptionsBase;
 
 /** A {@link BlazeModule} handling options pertaining to {@link NestedSet}. */
 public class NestedSetOptionsModule extends BlazeModule {
-
   /** Command line options controlling the behavior of {@link NestedSet}. */
   public static final class Options extends OptionsBase {
     @Option(
@@ -38,8 +43,24 @@ public class NestedSetOptionsModule extends BlazeModule {
                 + "Starlark code or a NestedSet is flattened internally, and that data structure "
                 + "has a depth exceeding this limit, then the Bazel invocation will fail.")
     public int nestedSetDepthLimit;
+
+    @Option(
+        name = "experimental_nested_set_flattening_cache_size",
+        defaultValue = "0",
+        documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+        effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS, OptionEffectTag.EXECUTION},
+        help =
+            "If positive, keeps the flattened contents of large NestedSets in memory so that "
+                + "flattening them again is cheap, up to this many elements in total. Entries "
+                + "are dropped when their NestedSet is garbage collected.")
+    public long nestedSetFlatteningCacheSize;
   }
 
+  private EventBus eventBus;
+
+  /** Statistics of the flattening cache at the start of the current command. */
+  private CacheStats statsAtStart;
+
   @Override
   public void beforeCommand(CommandEnvironment env) {
     Options options = env.getOptions().getOptions(Options.class);
@@ -47,6 +68,32 @@ public class NestedSetOptionsModule extends BlazeModule {
     if (changed) {
       env.getSkyframeExecutor().resetEvaluator();
     }
+    NestedSet.setFlatteningCacheSize(options.nestedSetFlatteningCacheSize);
+    statsAtStart = NestedSet.getFlatteningCacheStats();
+    eventBus = env.getEventBus();
+    eventBus.register(this);
+  }
+
+  @Subscribe
+  public void executionPhaseComplete(ExecutionPhaseCompleteEvent event) {
+    CacheStats stats = NestedSet.getFlatteningCacheStats();
+    if (stats == null || statsAtStart == null) {
+      return;
+    }
+    stats = stats.minus(statsAtStart);
+    eventBus.post(
+        new NestedSetMetricsEvent(
+            NestedSetMetrics.newBuilder()
+                .setFlatteningCacheHits(stats.hitCount())
+                .setFlatteningCacheMisses(stats.missCount())
+                .setFlatteningCacheEvictions(stats.evictionCount())
+                .build()));
+  }
+
+  @Override
+  public void afterCommand() {
+    eventBus = null;
+    statsAtStart = null;
   }
 
   @Override
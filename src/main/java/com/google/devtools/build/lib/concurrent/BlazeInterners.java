@@ -17,14 +17,21 @@ import com.google.common.collect.Interner;
 import com.google.common.collect.Interners;
 import com.google.common.collect.Interners.InternerBuilder;
 
-/** Wrapper around {@link Interners}, with Blaze-specific predetermined concurrency levels. */
+/**
+ * Factory of {@link Interner}s, with Blaze-specific predetermined concurrency levels.
+ *
+ * <p>Returns {@link ShardedInterner}s, unless the environment variable {@code
+ * BLAZE_USE_GUAVA_INTERNERS} is set, in which case it returns the interners of {@link Interners}.
+ */
 public class BlazeInterners {
   private static final int DEFAULT_CONCURRENCY_LEVEL = Runtime.getRuntime().availableProcessors();
   private static final int CONCURRENCY_LEVEL;
+  private static final boolean USE_GUAVA_INTERNERS;
 
   static {
     String val = System.getenv("BLAZE_INTERNER_CONCURRENCY_LEVEL");
     CONCURRENCY_LEVEL = (val == null) ? DEFAULT_CONCURRENCY_LEVEL : Integer.parseInt(val);
+    USE_GUAVA_INTERNERS = System.getenv("BLAZE_USE_GUAVA_INTERNERS") != null;
   }
 
   public static int concurrencyLevel() {
@@ -36,11 +43,15 @@ public class BlazeInterners {
   }
 
   public static <T> Interner<T> newWeakInterner() {
-    return setConcurrencyLevel(Interners.newBuilder().weak()).build();
+    return USE_GUAVA_INTERNERS
+        ? setConcurrencyLevel(Interners.newBuilder().weak()).build()
+        : ShardedInterner.newWeakInterner(CONCURRENCY_LEVEL);
   }
 
   public static <T> Interner<T> newStrongInterner() {
-    return setConcurrencyLevel(Interners.newBuilder().strong()).build();
+    return USE_GUAVA_INTERNERS
+        ? setConcurrencyLevel(Interners.newBuilder().strong()).build()
+        : ShardedInterner.newStrongInterner(CONCURRENCY_LEVEL);
   }
 }
 
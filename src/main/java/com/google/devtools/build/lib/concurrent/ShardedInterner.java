@@ -0,0 +1,274 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Interner;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.Nullable;
+
+/**
+ * An {@link Interner} made of many independently locked shards, each an open-addressing hash table
+ * with linear probing.
+ *
+ * <p>Interning an element that is already present, by far the most common case during loading and
+ * analysis, takes no lock and does no cleanup: it only reads the shard's table. Adding an element
+ * locks its shard. Since there are several shards per thread, threads adding different elements
+ * rarely wait for each other.
+ *
+ * <p>A weak interner keeps its elements through weak references. The slots of collected elements
+ * are freed the next time an element is added to their shard.
+ */
+@ThreadSafe
+public final class ShardedInterner<T> implements Interner<T> {
+
+  private static final int SHARDS_PER_THREAD = 4;
+  private static final int MAX_SHARDS = 1 << 16;
+  private static final int INITIAL_SHARD_CAPACITY = 8;
+
+  /** Marks the slot of a removed entry, so that probing continues past it. */
+  private static final Object TOMBSTONE = new Object();
+
+  private final Shard<T>[] shards;
+  private final int shardShift;
+
+  @SuppressWarnings("unchecked")
+  private ShardedInterner(boolean weak, int concurrencyLevel) {
+    Preconditions.checkArgument(concurrencyLevel > 0, concurrencyLevel);
+    int numShards = SHARDS_PER_THREAD;
+    while (numShards < concurrencyLevel * SHARDS_PER_THREAD && numShards < MAX_SHARDS) {
+      numShards <<= 1;
+    }
+    shards = new Shard[numShards];
+    for (int i = 0; i < numShards; i++) {
+      shards[i] = new Shard<>(weak);
+    }
+    shardShift = Integer.numberOfLeadingZeros(numShards) + 1;
+  }
+
+  /** Returns a new interner that keeps its elements through weak references. */
+  public static <T> ShardedInterner<T> newWeakInterner(int concurrencyLevel) {
+    return new ShardedInterner<>(/*weak=*/ true, concurrencyLevel);
+  }
+
+  /** Returns a new interner that keeps its elements forever. */
+  public static <T> ShardedInterner<T> newStrongInterner(int concurrencyLevel) {
+    return new ShardedInterner<>(/*weak=*/ false, concurrencyLevel);
+  }
+
+  @Override
+  public T intern(T sample) {
+    Preconditions.checkNotNull(sample);
+    int hash = spread(sample.hashCode());
+    // The shard is chosen by the high bits of the hash, the slot in the shard by the low bits.
+    Shard<T> shard = shards[hash >>> shardShift];
+    T existing = shard.get(sample, hash);
+    return existing != null ? existing : shard.intern(sample, hash);
+  }
+
+  /** Murmur3's finalizer, since shards and slots are picked by different bits of the hash. */
+  private static int spread(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  /** An entry of a shard's table. */
+  private interface Entry<T> {
+    int hash();
+
+    /** Returns the element, or null if it has been collected. */
+    @Nullable
+    T get();
+  }
+
+  private static final class StrongEntry<T> implements Entry<T> {
+    private final T value;
+    private final int hash;
+
+    StrongEntry(T value, int hash) {
+      this.value = value;
+      this.hash = hash;
+    }
+
+    @Override
+    public int hash() {
+      return hash;
+    }
+
+    @Override
+    public T get() {
+      return value;
+    }
+  }
+
+  private static final class WeakEntry<T> extends WeakReference<T> implements Entry<T> {
+    private final int hash;
+
+    WeakEntry(T value, int hash, ReferenceQueue<T> queue) {
+      super(value, queue);
+      this.hash = hash;
+    }
+
+    @Override
+    public int hash() {
+      return hash;
+    }
+  }
+
+  /**
+   * One shard of the interner. Its table is only modified while holding the shard's lock, and
+   * replaced by a new one before it is more than three quarters full, so that readers always
+   * find an empty slot to stop at.
+   */
+  private static final class Shard<T> {
+    @Nullable private final ReferenceQueue<T> queue;
+    private volatile AtomicReferenceArray<Object> table =
+        new AtomicReferenceArray<>(INITIAL_SHARD_CAPACITY);
+
+    /** The number of non-null slots of {@link #table}, including tombstones. */
+    private int occupied = 0;
+
+    Shard(boolean weak) {
+      this.queue = weak ? new ReferenceQueue<>() : null;
+    }
+
+    /** Returns the interned element equal to {@code sample}, or null. Takes no lock. */
+    @Nullable
+    T get(T sample, int hash) {
+      AtomicReferenceArray<Object> table = this.table;
+      int mask = table.length() - 1;
+      for (int i = hash & mask; ; i = (i + 1) & mask) {
+        Object entry = table.get(i);
+        if (entry == null) {
+          return null;
+        }
+        T value = matching(entry, sample, hash);
+        if (value != null) {
+          return value;
+        }
+      }
+    }
+
+    synchronized T intern(T sample, int hash) {
+      expungeCollectedEntries();
+      AtomicReferenceArray<Object> table = this.table;
+      int mask = table.length() - 1;
+      int free = -1;
+      int i = hash & mask;
+      for (Object entry; (entry = table.get(i)) != null; i = (i + 1) & mask) {
+        if (entry == TOMBSTONE || ((Entry<?>) entry).get() == null) {
+          if (free < 0) {
+            free = i;
+          }
+          continue;
+        }
+        T value = matching(entry, sample, hash);
+        if (value != null) {
+          return value;
+        }
+      }
+      Object newEntry =
+          queue != null ? new WeakEntry<>(sample, hash, queue) : new StrongEntry<>(sample, hash);
+      if (free >= 0) {
+        table.set(free, newEntry);
+      } else if ((occupied + 1) * 4 <= table.length() * 3) {
+        table.set(i, newEntry);
+        occupied++;
+      } else {
+        resize(newEntry);
+      }
+      return sample;
+    }
+
+    @Nullable
+    private static <T> T matching(Object entry, T sample, int hash) {
+      if (entry == TOMBSTONE || ((Entry<?>) entry).hash() != hash) {
+        return null;
+      }
+      @SuppressWarnings("unchecked")
+      T value = ((Entry<T>) entry).get();
+      return value != null && (value == sample || value.equals(sample)) ? value : null;
+    }
+
+    /** Replaces the table by one at most half full with its live entries and {@code newEntry}. */
+    private void resize(Object newEntry) {
+      AtomicReferenceArray<Object> oldTable = table;
+      int live = 1;
+      for (int i = 0; i < oldTable.length(); i++) {
+        if (isLive(oldTable.get(i))) {
+          live++;
+        }
+      }
+      int capacity = INITIAL_SHARD_CAPACITY;
+      while (live * 2 > capacity) {
+        capacity <<= 1;
+      }
+      AtomicReferenceArray<Object> newTable = new AtomicReferenceArray<>(capacity);
+      occupied = 0;
+      for (int i = 0; i < oldTable.length(); i++) {
+        Object entry = oldTable.get(i);
+        if (isLive(entry)) {
+          insertIntoEmpty(newTable, entry);
+        }
+      }
+      insertIntoEmpty(newTable, newEntry);
+      // Readers still using the old table may miss the new entry and then take the lock.
+      table = newTable;
+    }
+
+    private void insertIntoEmpty(AtomicReferenceArray<Object> table, Object entry) {
+      int mask = table.length() - 1;
+      int i = ((Entry<?>) entry).hash() & mask;
+      while (table.get(i) != null) {
+        i = (i + 1) & mask;
+      }
+      table.lazySet(i, entry);
+      occupied++;
+    }
+
+    private static boolean isLive(Object entry) {
+      return entry != null && entry != TOMBSTONE && ((Entry<?>) entry).get() != null;
+    }
+
+    /** Replaces the entries of collected elements by tombstones. */
+    private void expungeCollectedEntries() {
+      if (queue == null) {
+        return;
+      }
+      AtomicReferenceArray<Object> table = this.table;
+      int mask = table.length() - 1;
+      for (Reference<? extends T> ref; (ref = queue.poll()) != null; ) {
+        // The entry may already be gone, if its slot was reused or the table was replaced.
+        for (int i = ((WeakEntry<?>) ref).hash & mask; ; i = (i + 1) & mask) {
+          Object entry = table.get(i);
+          if (entry == null) {
+            break;
+          }
+          if (entry == ref) {
+            table.set(i, TOMBSTONE);
+            break;
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,394 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.actions.ActionContext;
+import com.google.devtools.build.lib.actions.ActionExecutionMetadata;
+import com.google.devtools.build.lib.actions.ExecutionStrategy;
+import com.google.devtools.build.lib.actions.SpawnResult;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A persistent history of the executions of actions: how often they ran and hit a cache, how long
+ * they took locally and remotely, and how much CPU time and memory they used.
+ *
+ * <p>The history keeps an entry for every action, identified by its mnemonic and the exec path of
+ * its primary output, which unlike its action key is stable across changes to its inputs, and an
+ * entry for every mnemonic that aggregates all of its actions. Durations and CPU times are moving
+ * averages, which favor the latest executions; memory is the largest value observed.
+ *
+ * <p>Entries are fixed-size records in an open-addressing hash table stored in a memory-mapped
+ * file, so the history takes no space on the Java heap and is never read or written as a whole.
+ * Keys are 64-bit fingerprints: colliding actions share an entry, which only makes its statistics
+ * less accurate. The table doubles in size when it is 3/4 full, up to {@link #MAX_CAPACITY}
+ * entries, after which new actions are not recorded. The file must be on the local file system,
+ * since it is accessed through {@link Path#getPathFile}.
+ *
+ * <p>Strategies can look up the history with {@code
+ * actionExecutionContext.getContext(ActionHistory.class)}, which returns null if it is disabled.
+ */
+@ExecutionStrategy(contextType = ActionHistory.class)
+@ThreadSafe
+public final class ActionHistory implements ActionContext {
+
+  private static final Logger logger = Logger.getLogger(ActionHistory.class.getName());
+
+  private static final long MAGIC = 0x41435448_49535431L; // "ACTHIST1"
+  private static final int HEADER_SIZE = 32;
+  private static final int ENTRY_SIZE = 32;
+
+  // Offsets of the fields of an entry. A key of 0 marks an empty slot.
+  private static final int KEY = 0;
+  private static final int RUNS = 8;
+  private static final int CACHE_HITS = 12;
+  private static final int LOCAL_WALL_MILLIS = 16;
+  private static final int REMOTE_WALL_MILLIS = 20;
+  private static final int CPU_MILLIS = 24;
+  private static final int MEMORY_KB = 28;
+
+  @VisibleForTesting static final int INITIAL_CAPACITY = 1 << 12;
+  @VisibleForTesting static final int MAX_CAPACITY = 1 << 22;
+
+  /** The weight of the latest sample in the moving averages is 1 / 2^AVERAGE_SHIFT. */
+  private static final int AVERAGE_SHIFT = 2;
+
+  private final Path file;
+  private int maxCapacity; // Guarded by this.
+
+  // Guarded by this.
+  private MappedByteBuffer table;
+  private int capacity;
+  private int size;
+
+  private ActionHistory(Path file, int maxCapacity, MappedByteBuffer table) {
+    this.file = file;
+    this.maxCapacity = maxCapacity;
+    this.table = table;
+    this.capacity = table.getInt(8);
+    this.size = table.getInt(12);
+  }
+
+  /**
+   * Opens the history stored in {@code file}, or creates an empty one if the file does not exist.
+   *
+   * @throws IOException if the file cannot be mapped or was not written by this class
+   */
+  public static ActionHistory open(Path file) throws IOException {
+    return open(file, MAX_CAPACITY);
+  }
+
+  @VisibleForTesting
+  static ActionHistory open(Path file, int maxCapacity) throws IOException {
+    if (!file.exists()) {
+      createTable(file, Math.min(INITIAL_CAPACITY, maxCapacity));
+    }
+    MappedByteBuffer table = map(file);
+    if (table.capacity() < HEADER_SIZE || table.getLong(0) != MAGIC) {
+      throw new IOException(file + " is not an action history");
+    }
+    int capacity = table.getInt(8);
+    int size = table.getInt(12);
+    if (Integer.bitCount(capacity) != 1
+        || table.capacity() != HEADER_SIZE + (long) capacity * ENTRY_SIZE
+        || size < 0
+        || size > capacity) {
+      throw new IOException(file + " is corrupted");
+    }
+    return new ActionHistory(file, maxCapacity, table);
+  }
+
+  /** Records the results of the spawns that {@code action} executed. */
+  public void record(ActionExecutionMetadata action, Iterable<SpawnResult> spawnResults) {
+    String mnemonic = action.getMnemonic();
+    long actionKey = fingerprint(mnemonic, action.getPrimaryOutput().getExecPathString());
+    long mnemonicKey = fingerprint(mnemonic, "");
+    synchronized (this) {
+      for (SpawnResult result : spawnResults) {
+        record(actionKey, result);
+        record(mnemonicKey, result);
+      }
+    }
+  }
+
+  /** Returns the history of the given action, or null if it was never recorded. */
+  @Nullable
+  public Entry get(ActionExecutionMetadata action) {
+    return get(fingerprint(action.getMnemonic(), action.getPrimaryOutput().getExecPathString()));
+  }
+
+  /** Returns the history of all actions with the given mnemonic, or null if there is none. */
+  @Nullable
+  public Entry getForMnemonic(String mnemonic) {
+    return get(fingerprint(mnemonic, ""));
+  }
+
+  @Nullable
+  private synchronized Entry get(long key) {
+    int slot = find(table, capacity, key);
+    if (slot < 0) {
+      return null;
+    }
+    int offset = offset(slot);
+    return new Entry(
+        table.getInt(offset + RUNS),
+        table.getInt(offset + CACHE_HITS),
+        table.getInt(offset + LOCAL_WALL_MILLIS),
+        table.getInt(offset + REMOTE_WALL_MILLIS),
+        table.getInt(offset + CPU_MILLIS),
+        table.getInt(offset + MEMORY_KB));
+  }
+
+  /** Returns the number of entries, for actions and mnemonics. */
+  public synchronized int size() {
+    return size;
+  }
+
+  /** Writes the changes to the history to disk. */
+  public synchronized void save() {
+    table.force();
+  }
+
+  private void record(long key, SpawnResult result) {
+    int slot = find(table, capacity, key);
+    if (slot < 0) {
+      if (size + 1 > capacity / 4 * 3) {
+        if (capacity >= maxCapacity) {
+          return;
+        }
+        try {
+          grow();
+        } catch (IOException e) {
+          // Stop recording new actions, like when the table is full.
+          logger.log(Level.WARNING, "Failed to grow the action history " + file, e);
+          maxCapacity = capacity;
+          return;
+        }
+        slot = find(table, capacity, key);
+      }
+      slot = -slot - 1;
+      table.putLong(offset(slot) + KEY, key);
+      size++;
+      table.putInt(12, size);
+    }
+    int offset = offset(slot);
+    if (result.isCacheHit()) {
+      increment(offset + CACHE_HITS);
+      return;
+    }
+    increment(offset + RUNS);
+    Optional<Duration> wallTime = result.getWallTime();
+    if (wallTime.isPresent()) {
+      boolean remote = "remote".equals(result.getRunnerName());
+      int field = remote ? REMOTE_WALL_MILLIS : LOCAL_WALL_MILLIS;
+      average(offset + field, wallTime.get().toMillis());
+    }
+    Optional<Duration> userTime = result.getUserTime();
+    Optional<Duration> systemTime = result.getSystemTime();
+    if (userTime.isPresent() || systemTime.isPresent()) {
+      average(
+          offset + CPU_MILLIS,
+          userTime.orElse(Duration.ZERO).plus(systemTime.orElse(Duration.ZERO)).toMillis());
+    }
+    long memoryKb = result.getMetrics().memoryEstimate() / 1024;
+    if (memoryKb > table.getInt(offset + MEMORY_KB)) {
+      table.putInt(offset + MEMORY_KB, (int) Math.min(memoryKb, Integer.MAX_VALUE));
+    }
+  }
+
+  private void increment(int offset) {
+    int value = table.getInt(offset);
+    if (value < Integer.MAX_VALUE) {
+      table.putInt(offset, value + 1);
+    }
+  }
+
+  private void average(int offset, long sampleMillis) {
+    // 0 means that there is no sample yet, so durations are recorded as at least 1ms.
+    int sample = (int) Math.max(1, Math.min(sampleMillis, Integer.MAX_VALUE));
+    int average = table.getInt(offset);
+    table.putInt(
+        offset, average == 0 ? sample : average + ((sample - average) >> AVERAGE_SHIFT));
+  }
+
+  private void grow() throws IOException {
+    int newCapacity = capacity * 2;
+    Path tmpFile = file.getParentDirectory().getChild(file.getBaseName() + ".tmp");
+    createTable(tmpFile, newCapacity);
+    MappedByteBuffer newTable = map(tmpFile);
+    for (int slot = 0; slot < capacity; slot++) {
+      int offset = offset(slot);
+      long key = table.getLong(offset);
+      if (key != 0) {
+        int newOffset = offset(-find(newTable, newCapacity, key) - 1);
+        for (int i = 0; i < ENTRY_SIZE; i += 8) {
+          newTable.putLong(newOffset + i, table.getLong(offset + i));
+        }
+      }
+    }
+    newTable.putInt(12, size);
+    newTable.force();
+    tmpFile.renameTo(file);
+    table = newTable;
+    capacity = newCapacity;
+  }
+
+  /**
+   * Returns the slot of {@code key}, or {@code -slot - 1} for the empty slot where it would be
+   * inserted.
+   */
+  private static int find(MappedByteBuffer table, int capacity, long key) {
+    int mask = capacity - 1;
+    for (int slot = (int) (key ^ (key >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+      long slotKey = table.getLong(offset(slot));
+      if (slotKey == key) {
+        return slot;
+      }
+      if (slotKey == 0) {
+        return -slot - 1;
+      }
+    }
+  }
+
+  private static int offset(int slot) {
+    return HEADER_SIZE + slot * ENTRY_SIZE;
+  }
+
+  private static void createTable(Path file, int capacity) throws IOException {
+    Preconditions.checkArgument(Integer.bitCount(capacity) == 1, capacity);
+    file.delete();
+    try (FileChannel channel =
+        FileChannel.open(
+            file.getPathFile().toPath(),
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+      long size = HEADER_SIZE + (long) capacity * ENTRY_SIZE;
+      MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      table.order(ByteOrder.LITTLE_ENDIAN);
+      table.putLong(0, MAGIC);
+      table.putInt(8, capacity);
+      table.putInt(12, 0);
+      table.force();
+    }
+  }
+
+  private static MappedByteBuffer map(Path file) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(
+            file.getPathFile().toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+      table.order(ByteOrder.LITTLE_ENDIAN);
+      return table;
+    }
+  }
+
+  private static long fingerprint(String mnemonic, String primaryOutput) {
+    long key =
+        Hashing.murmur3_128()
+            .newHasher()
+            .putString(mnemonic, StandardCharsets.UTF_8)
+            .putByte((byte) 0)
+            .putString(primaryOutput, StandardCharsets.UTF_8)
+            .hash()
+            .asLong();
+    // 0 marks empty slots.
+    return key == 0 ? 1 : key;
+  }
+
+  /** The history of an action or a mnemonic. */
+  public static final class Entry {
+    private final int runs;
+    private final int cacheHits;
+    private final int localWallMillis;
+    private final int remoteWallMillis;
+    private final int cpuMillis;
+    private final int memoryKb;
+
+    private Entry(
+        int runs,
+        int cacheHits,
+        int localWallMillis,
+        int remoteWallMillis,
+        int cpuMillis,
+        int memoryKb) {
+      this.runs = runs;
+      this.cacheHits = cacheHits;
+      this.localWallMillis = localWallMillis;
+      this.remoteWallMillis = remoteWallMillis;
+      this.cpuMillis = cpuMillis;
+      this.memoryKb = memoryKb;
+    }
+
+    /** Returns how many spawns were executed, excluding cache hits. */
+    public int getRuns() {
+      return runs;
+    }
+
+    /** Returns how many spawns were cache hits. */
+    public int getCacheHits() {
+      return cacheHits;
+    }
+
+    /** Returns the average wall time of the spawns executed by a non-remote runner. */
+    public Optional<Duration> getLocalWallTime() {
+      return millis(localWallMillis);
+    }
+
+    /** Returns the average wall time of the spawns executed remotely. */
+    public Optional<Duration> getRemoteWallTime() {
+      return millis(remoteWallMillis);
+    }
+
+    /** Returns the average user and system time of the spawns. */
+    public Optional<Duration> getCpuTime() {
+      return millis(cpuMillis);
+    }
+
+    /** Returns the largest memory estimate of the spawns, 0 if unknown. */
+    public long getMemoryBytes() {
+      return memoryKb * 1024L;
+    }
+
+    private static Optional<Duration> millis(int millis) {
+      return millis == 0 ? Optional.empty() : Optional.of(Duration.ofMillis(millis));
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "runs=%d cache_hits=%d local=%s remote=%s cpu=%s memory=%dKB",
+          runs,
+          cacheHits,
+          getLocalWallTime().map(Duration::toString).orElse("?"),
+          getRemoteWallTime().map(Duration::toString).orElse("?"),
+          getCpuTime().map(Duration::toString).orElse("?"),
+          memoryKb);
+    }
+  }
+}
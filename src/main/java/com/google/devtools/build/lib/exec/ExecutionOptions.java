@@ -409,6 +409,30 @@ public class ExecutionOptions extends OptionsBase {
               + "number of file digests to be cached.")
   public long cacheSizeForComputedFileDigests;
 
+  @Option(
+      name = "experimental_persist_computed_file_digests",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "If true and --cache_computed_file_digests is enabled, the cached file digests are "
+              + "saved in the output base after every command and reloaded when a new server "
+              + "starts, so that the first build after a restart does not have to read all files "
+              + "again. Saved digests are validated against the file metadata like in-memory ones.")
+  public boolean persistComputedFileDigests;
+
+  @Option(
+      name = "experimental_file_digest_xattr_name",
+      defaultValue = "null",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "The name of an extended attribute from which Bazel reads file digests before "
+              + "computing them, for file systems that maintain such an attribute. The attribute "
+              + "must hold the digest as raw bytes or lowercase hex; other values are ignored. "
+              + "Only supported on Linux and macOS.")
+  public String fileDigestXattrName;
+
   @Option(
     name = "experimental_enable_critical_path_profiling",
     defaultValue = "true",
@@ -421,6 +445,30 @@ public class ExecutionOptions extends OptionsBase {
   )
   public boolean enableCriticalPathProfiling;
 
+  @Option(
+      name = "experimental_prioritize_critical_path",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If set, actions waiting for local resources are offered them in decreasing order of "
+              + "the length of the critical path that remained after them in previous builds, "
+              + "instead of in the order in which they asked for them. The estimates are learned "
+              + "from the critical path profiling of each build and kept in the output base. Has "
+              + "no effect unless --experimental_enable_critical_path_profiling is set.")
+  public boolean prioritizeCriticalPath;
+
+  @Option(
+      name = "experimental_action_history",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If set, the wall time, CPU time, memory and cache hits of the spawns of every action "
+              + "are recorded in a history kept in the output base, which execution strategies "
+              + "can use to estimate the cost of actions before running them.")
+  public boolean recordActionHistory;
+
   @Option(
       name = "experimental_stats_summary",
       documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
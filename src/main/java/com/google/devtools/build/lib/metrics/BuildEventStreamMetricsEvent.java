@@ -0,0 +1,32 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.metrics;
+
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.BuildEventStreamMetrics;
+
+/**
+ * Carries the statistics of the build event file writers to the {@link BuildMetricsEvent}. Must be
+ * posted before the build completes.
+ */
+public final class BuildEventStreamMetricsEvent {
+  private final BuildEventStreamMetrics buildEventStreamMetrics;
+
+  public BuildEventStreamMetricsEvent(BuildEventStreamMetrics buildEventStreamMetrics) {
+    this.buildEventStreamMetrics = buildEventStreamMetrics;
+  }
+
+  public BuildEventStreamMetrics getBuildEventStreamMetrics() {
+    return buildEventStreamMetrics;
+  }
+}
@@ -19,7 +19,10 @@ import com.google.devtools.build.lib.actions.ActionCompletionEvent;
 import com.google.devtools.build.lib.analysis.AnalysisPhaseCompleteEvent;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.ActionSummary;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.DiskCacheMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.MemoryMetrics;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.BuildEventStreamMetrics;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.NestedSetMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.PackageMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.TargetMetrics;
 import com.google.devtools.build.lib.buildtool.BuildPrecompleteEvent;
@@ -39,6 +42,9 @@ class MetricsCollector {
   private int targetsLoaded;
   private int targetsConfigured;
   private int packagesLoaded;
+  private DiskCacheMetrics diskCacheMetrics;
+  private NestedSetMetrics nestedSetMetrics;
+  private BuildEventStreamMetrics buildEventStreamMetrics;
 
   MetricsCollector(CommandEnvironment env) {
     this.env = env;
@@ -66,6 +72,21 @@ class MetricsCollector {
     executedActionCount.incrementAndGet();
   }
 
+  @Subscribe
+  public void onDiskCacheMetrics(DiskCacheMetricsEvent event) {
+    diskCacheMetrics = event.getDiskCacheMetrics();
+  }
+
+  @Subscribe
+  public void onNestedSetMetrics(NestedSetMetricsEvent event) {
+    nestedSetMetrics = event.getNestedSetMetrics();
+  }
+
+  @Subscribe
+  public void onBuildEventStreamMetrics(BuildEventStreamMetricsEvent event) {
+    buildEventStreamMetrics = event.getBuildEventStreamMetrics();
+  }
+
   @Subscribe
   public void onBuildComplete(BuildPrecompleteEvent event) {
     env.getEventBus().post(new BuildMetricsEvent(createBuildMetrics()));
@@ -77,6 +98,15 @@ class MetricsCollector {
     metrics.setMemoryMetrics(createMemoryMetrics());
     metrics.setTargetMetrics(createTargetMetrics());
     metrics.setPackageMetrics(createPackageMetrics());
+    if (diskCacheMetrics != null) {
+      metrics.setDiskCacheMetrics(diskCacheMetrics);
+    }
+    if (nestedSetMetrics != null) {
+      metrics.setNestedSetMetrics(nestedSetMetrics);
+    }
+    if (buildEventStreamMetrics != null) {
+      metrics.setBuildEventStreamMetrics(buildEventStreamMetrics);
+    }
     return metrics.build();
   }
 
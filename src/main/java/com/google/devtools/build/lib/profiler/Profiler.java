@@ -46,9 +46,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 import java.util.zip.Deflater;
@@ -62,7 +63,8 @@ import java.util.zip.GZIPOutputStream;
  * <p>Implemented as singleton so any caller should use Profiler.instance() to obtain reference.
  *
  * <p>Internally, profiler uses two data structures - ThreadLocal task stack to track nested tasks
- * and single ConcurrentLinkedQueue to gather all completed tasks.
+ * and a single bounded queue to gather all completed tasks. Completed tasks are dropped rather than
+ * queued when the writer cannot keep up, so that profiling does not slow down the build.
  *
  * <p>Also, due to the nature of the provided functionality (instrumentation of all Blaze
  * components), build.lib.profiler package will be used by almost every other Blaze package, so
@@ -148,6 +150,13 @@ public final class Profiler {
 
   private static final long ACTION_COUNT_BUCKET_MS = 200;
 
+  /**
+   * The maximum number of recorded tasks waiting to be written. Tasks recorded while the queue is
+   * full are dropped, such that an output stream that cannot keep up neither slows down the build
+   * nor fills up the heap.
+   */
+  @VisibleForTesting static final int MAX_QUEUED_TASKS = 1 << 18;
+
   /** File format enum. */
   public enum Format {
     BINARY_BAZEL_FORMAT,
@@ -520,6 +529,46 @@ public final class Profiler {
       boolean slimProfile,
       boolean enableActionCountProfile)
       throws IOException {
+    start(
+        profiledTasks,
+        stream,
+        format,
+        productName,
+        outputBase,
+        buildID,
+        recordAllDurations,
+        clock,
+        execStartTimeNanos,
+        enabledCpuUsageProfiling,
+        slimProfile,
+        enableActionCountProfile,
+        /* flushInterval= */ Duration.ZERO);
+  }
+
+  /**
+   * Enable profiling, periodically flushing the profile data to the provided output stream.
+   *
+   * <p>Like {@link #start(ImmutableSet, OutputStream, Format, String, String, UUID, boolean,
+   * Clock, long, boolean, boolean, boolean)}, but a JSON profile is flushed at least every {@code
+   * flushInterval}, such that the profile of a running command can be inspected. A compressed
+   * profile is flushed such that all of its data written so far can be decompressed. A zero
+   * {@code flushInterval} only flushes the profile when profiling stops.
+   */
+  public synchronized void start(
+      ImmutableSet<ProfilerTask> profiledTasks,
+      OutputStream stream,
+      Format format,
+      String productName,
+      String outputBase,
+      UUID buildID,
+      boolean recordAllDurations,
+      Clock clock,
+      long execStartTimeNanos,
+      boolean enabledCpuUsageProfiling,
+      boolean slimProfile,
+      boolean enableActionCountProfile,
+      Duration flushInterval)
+      throws IOException {
     Preconditions.checkState(!isActive(), "Profiler already active");
     initHistograms();
 
@@ -554,16 +603,18 @@ public final class Profiler {
           break;
         case JSON_TRACE_FILE_FORMAT:
           writer =
-              new JsonTraceFileWriter(stream, execStartTimeNanos, slimProfile, outputBase, buildID);
+              new JsonTraceFileWriter(
+                  stream, execStartTimeNanos, slimProfile, outputBase, buildID, flushInterval);
           break;
         case JSON_TRACE_FILE_COMPRESSED_FORMAT:
           writer =
               new JsonTraceFileWriter(
-                  new GZIPOutputStream(stream),
+                  new GZIPOutputStream(stream, /* syncFlush= */ true),
                   execStartTimeNanos,
                   slimProfile,
                   outputBase,
-                  buildID);
+                  buildID,
+                  flushInterval);
       }
       writer.start();
     }
@@ -907,18 +958,19 @@ public final class Profiler {
 
   private abstract static class FileWriter implements Runnable {
     protected final BlockingQueue<TaskData> queue;
+    protected final AtomicLong droppedTasks = new AtomicLong();
     protected final Thread thread;
     protected IOException savedException;
 
     FileWriter() {
-      this.queue = new LinkedBlockingDeque<>();
+      this.queue = new LinkedBlockingQueue<>(MAX_QUEUED_TASKS);
       this.thread = new Thread(this, "profile-writer-thread");
     }
 
     public void shutdown() throws IOException {
-      // Add poison pill to queue and then wait for writer thread to shut down.
-      queue.add(POISON_PILL);
       try {
+        // Add poison pill to queue and then wait for writer thread to shut down.
+        queue.put(POISON_PILL);
         thread.join();
       } catch (InterruptedException e) {
         thread.interrupt();
@@ -933,8 +985,13 @@ public final class Profiler {
       thread.start();
     }
 
-    public void enqueue(TaskData data) {
-      queue.add(data);
+    /** Queues the task for writing, or drops it if too many tasks are queued already. */
+    public boolean enqueue(TaskData data) {
+      if (queue.offer(data)) {
+        return true;
+      }
+      droppedTasks.incrementAndGet();
+      return false;
     }
   }
 
@@ -1049,6 +1106,9 @@ public final class Profiler {
     private final boolean slimProfile;
     private final UUID buildID;
     private final String outputBase;
+    private final long flushIntervalNanos;
+    private long nextFlushNanos;
+    private long lastTimestampNanos;
 
     // The JDK never returns 0 as thread id so we use that as fake thread id for the critical path.
     private static final long CRITICAL_PATH_THREAD_ID = 0;
@@ -1062,28 +1122,77 @@ public final class Profiler {
         long profileStartTimeNanos,
         boolean slimProfile,
         String outputBase,
-        UUID buildID) {
+        UUID buildID,
+        Duration flushInterval) {
       this.outStream = outStream;
       this.profileStartTimeNanos = profileStartTimeNanos;
+      this.lastTimestampNanos = profileStartTimeNanos;
       this.slimProfile = slimProfile;
       this.buildID = buildID;
       this.outputBase = outputBase;
+      this.flushIntervalNanos = flushInterval.toNanos();
     }
 
     @Override
-    public void enqueue(TaskData data) {
+    public boolean enqueue(TaskData data) {
       if (!metadataPosted.get().booleanValue()) {
-        metadataPosted.set(Boolean.TRUE);
         // Create a TaskData object that is special-cased below.
-        queue.add(
+        TaskData threadName =
             new TaskData(
                 /* id= */ 0,
                 /* startTimeNanos= */ -1,
                 /* parent= */ null,
                 ProfilerTask.THREAD_NAME,
-                Thread.currentThread().getName()));
+                Thread.currentThread().getName());
+        if (super.enqueue(threadName)) {
+          metadataPosted.set(Boolean.TRUE);
+        }
+      }
+      return super.enqueue(data);
+    }
+
+    /**
+     * Returns the next queued task. If periodic flushing is enabled, flushes the profile written so
+     * far whenever it is due while waiting.
+     */
+    private TaskData takeTask(JsonWriter writer) throws IOException, InterruptedException {
+      if (flushIntervalNanos <= 0) {
+        return queue.take();
+      }
+      while (true) {
+        long waitNanos = nextFlushNanos - System.nanoTime();
+        if (waitNanos <= 0) {
+          writeDroppedTasks(writer);
+          writer.flush();
+          nextFlushNanos = System.nanoTime() + flushIntervalNanos;
+          continue;
+        }
+        TaskData data = queue.poll(waitNanos, TimeUnit.NANOSECONDS);
+        if (data != null) {
+          return data;
+        }
+      }
+    }
+
+    /** Writes an instant event recording the number of tasks dropped since the last such event. */
+    private void writeDroppedTasks(JsonWriter writer) throws IOException {
+      long dropped = droppedTasks.getAndSet(0);
+      if (dropped == 0) {
+        return;
       }
-      queue.add(data);
+      writer.setIndent("  ");
+      writer.beginObject();
+      writer.setIndent("");
+      writer.name("cat").value("profiler");
+      writer.name("name").value("dropped " + dropped + " events");
+      writer.name("ph").value("i");
+      writer.name("s").value("g");
+      writer
+          .name("ts")
+          .value(TimeUnit.NANOSECONDS.toMicros(lastTimestampNanos - profileStartTimeNanos));
+      writer.name("pid").value(1);
+      writer.name("tid").value(CRITICAL_PATH_THREAD_ID);
+      writer.endObject();
     }
 
     private static final class MergedEvent {
@@ -1218,8 +1327,12 @@ public final class Profiler {
 
           HashMap<Long, MergedEvent> eventsPerThread = new HashMap<>();
           int eventCount = 0;
-          while ((data = queue.take()) != POISON_PILL) {
+          nextFlushNanos = System.nanoTime() + flushIntervalNanos;
+          while ((data = takeTask(writer)) != POISON_PILL) {
             eventCount++;
+            if (data.startTimeNanos > lastTimestampNanos) {
+              lastTimestampNanos = data.startTimeNanos;
+            }
             if (data.type == ProfilerTask.THREAD_NAME) {
               writer.setIndent("  ");
               writer.beginObject();
@@ -1285,6 +1398,7 @@ public final class Profiler {
             }
           }
           receivedPoisonPill = true;
+          writeDroppedTasks(writer);
           writer.setIndent("  ");
           writer.endArray();
           writer.endObject();
@@ -0,0 +1,131 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import io.grpc.Context;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Coalesces small CAS requests into batches that are sent with a single RPC.
+ *
+ * <p>A request is sent right away if no batch is in flight for the gRPC {@link Context} it was made
+ * in. Otherwise it is added to the pending batch of that context, which is sent once it is full or
+ * once one of the batches in flight completes. This adds no latency to isolated requests, while the
+ * bursts of requests made for the inputs or outputs of an action end up in few RPCs.
+ *
+ * <p>Batches never mix requests of different contexts, so that every RPC carries the request
+ * metadata of the action it is made for.
+ */
+@ThreadSafe
+final class BlobBatcher<T> {
+
+  private final long maxBatchSize;
+  private final ToLongFunction<T> sizeFunction;
+  private final Function<List<T>, ListenableFuture<?>> sender;
+
+  @GuardedBy("this")
+  private final Map<Context, PendingBatch<T>> pendingBatches = new HashMap<>();
+
+  /**
+   * @param maxBatchSize the maximum total size of the requests in a batch. A request larger than
+   *     that is sent in a batch of its own.
+   * @param sizeFunction returns the size a request contributes to its batch.
+   * @param sender sends a batch, and returns a future that completes once the RPC is done. It is
+   *     called in the context the requests were made in, and is responsible for completing the
+   *     requests.
+   */
+  BlobBatcher(
+      long maxBatchSize,
+      ToLongFunction<T> sizeFunction,
+      Function<List<T>, ListenableFuture<?>> sender) {
+    this.maxBatchSize = maxBatchSize;
+    this.sizeFunction = sizeFunction;
+    this.sender = sender;
+  }
+
+  /** Adds a request to a batch of the current context. */
+  void add(T request) {
+    Context ctx = Context.current();
+    long size = sizeFunction.applyAsLong(request);
+    List<List<T>> toSend = new ArrayList<>(2);
+    synchronized (this) {
+      PendingBatch<T> pending = pendingBatches.computeIfAbsent(ctx, (k) -> new PendingBatch<>());
+      if (!pending.requests.isEmpty() && pending.size + size > maxBatchSize) {
+        toSend.add(pending.take());
+      }
+      pending.requests.add(request);
+      pending.size += size;
+      if (pending.inFlight == 0 && toSend.isEmpty()) {
+        toSend.add(pending.take());
+      }
+      pending.inFlight += toSend.size();
+    }
+    for (List<T> batch : toSend) {
+      send(ctx, batch);
+    }
+  }
+
+  private void send(Context ctx, List<T> batch) {
+    ListenableFuture<?> rpc;
+    try {
+      rpc = ctx.call(() -> sender.apply(batch));
+    } catch (Exception e) {
+      // The sender does not throw checked exceptions. If it failed unexpectedly, at least make
+      // sure that the requests pending in this context are not stuck.
+      batchDone(ctx);
+      throw new IllegalStateException(e);
+    }
+    rpc.addListener(() -> batchDone(ctx), MoreExecutors.directExecutor());
+  }
+
+  private void batchDone(Context ctx) {
+    List<T> next = null;
+    synchronized (this) {
+      PendingBatch<T> pending = pendingBatches.get(ctx);
+      pending.inFlight--;
+      if (!pending.requests.isEmpty()) {
+        next = pending.take();
+        pending.inFlight++;
+      } else if (pending.inFlight == 0) {
+        pendingBatches.remove(ctx);
+      }
+    }
+    if (next != null) {
+      send(ctx, next);
+    }
+  }
+
+  private static final class PendingBatch<T> {
+    private List<T> requests = new ArrayList<>();
+    private long size;
+    private int inFlight;
+
+    private List<T> take() {
+      List<T> batch = requests;
+      requests = new ArrayList<>();
+      size = 0;
+      return batch;
+    }
+  }
+}
@@ -33,6 +33,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.devtools.build.lib.remote.RemoteRetrier.ProgressiveBackoff;
+import com.google.devtools.build.lib.remote.util.Compression;
 import com.google.devtools.build.lib.remote.util.TracingMetadataUtils;
 import io.grpc.CallCredentials;
 import io.grpc.CallOptions;
@@ -67,6 +68,9 @@ import javax.annotation.concurrent.GuardedBy;
  * <p>The uploader supports reference counting to easily be shared between components with
  * different lifecyles. After instantiation the reference count is {@code 1}.
  *
+ * <p>Blobs provided by a compressing {@link Chunker} are uploaded to the {@code compressed-blobs}
+ * resource name of the blob. Such uploads are not resumed after an error, but restarted.
+ *
  * See {@link ReferenceCounted} for more information on reference counting.
  */
 class ByteStreamUploader extends AbstractReferenceCounted {
@@ -269,8 +273,12 @@ class ByteStreamUploader extends AbstractReferenceCounted {
   }
 
   private static String uploadResourceName(
-      String instanceName, UUID uuid, HashCode hash, long size) {
-    String resourceName = format("uploads/%s/blobs/%s/%d", uuid, hash, size);
+      String instanceName, UUID uuid, HashCode hash, long size, boolean compressed) {
+    String resourceName =
+        compressed
+            ? format(
+                "uploads/%s/compressed-blobs/%s/%s/%d", uuid, Compression.COMPRESSOR, hash, size)
+            : format("uploads/%s/blobs/%s/%d", uuid, hash, size);
     if (!Strings.isNullOrEmpty(instanceName)) {
       resourceName = instanceName + "/" + resourceName;
     }
@@ -286,7 +294,9 @@ class ByteStreamUploader extends AbstractReferenceCounted {
     }
 
     UUID uploadId = UUID.randomUUID();
-    String resourceName = uploadResourceName(instanceName, uploadId, hash, chunker.getSize());
+    String resourceName =
+        uploadResourceName(
+            instanceName, uploadId, hash, chunker.getSize(), chunker.isCompressed());
     AsyncUpload newUpload =
         new AsyncUpload(channel, callCredentials, callTimeoutSecs, retrier, resourceName, chunker);
     ListenableFuture<Void> currUpload = newUpload.start();
@@ -331,6 +341,8 @@ class ByteStreamUploader extends AbstractReferenceCounted {
     private final Chunker chunker;
 
     private ClientCall<WriteRequest, WriteResponse> call;
+    // The size of the compressed data, once the last chunk of it has been sent.
+    private volatile long compressedSize = -1;
 
     AsyncUpload(
         Channel channel,
@@ -354,7 +366,7 @@ class ByteStreamUploader extends AbstractReferenceCounted {
       return Futures.transformAsync(
           retrier.executeAsync(
               () -> {
-                if (committedOffset.get() < chunker.getSize()) {
+                if (!isComplete(committedOffset.get())) {
                   return ctx.call(() -> callAndQueryOnFailure(committedOffset, progressiveBackoff));
                 }
                 return Futures.immediateFuture(null);
@@ -362,8 +374,8 @@ class ByteStreamUploader extends AbstractReferenceCounted {
               progressiveBackoff),
           (result) -> {
             long committedSize = committedOffset.get();
-            long expected = chunker.getSize();
-            if (committedSize != expected) {
+            long expected = chunker.isCompressed() ? compressedSize : chunker.getSize();
+            if (chunker.isCompressed() ? !isComplete(committedSize) : committedSize != expected) {
               String message =
                   format(
                       "write incomplete: committed_size %d for %d total", committedSize, expected);
@@ -374,6 +386,14 @@ class ByteStreamUploader extends AbstractReferenceCounted {
           MoreExecutors.directExecutor());
     }
 
+    private boolean isComplete(long committedSize) {
+      if (!chunker.isCompressed()) {
+        return committedSize >= chunker.getSize();
+      }
+      // A committed size of -1 means that the blob already existed on the server.
+      return committedSize == -1 || (compressedSize >= 0 && committedSize == compressedSize);
+    }
+
     private ByteStreamFutureStub bsFutureStub() {
       return ByteStreamGrpc.newFutureStub(channel)
           .withInterceptors(TracingMetadataUtils.attachMetadataFromContextInterceptor())
@@ -402,6 +422,12 @@ class ByteStreamUploader extends AbstractReferenceCounted {
         return exceptionFuture;
       }
 
+      if (chunker.isCompressed()) {
+        // The offsets of a compressed upload can't be resumed from, so start over.
+        committedOffset.set(0);
+        return exceptionFuture;
+      }
+
       ListenableFuture<Void> suppressedQueryFuture =
           Futures.catchingAsync(
               query(committedOffset, progressiveBackoff),
@@ -528,6 +554,9 @@ class ByteStreamUploader extends AbstractReferenceCounted {
                   }
 
                   boolean isLastChunk = !chunker.hasNext();
+                  if (isLastChunk && chunker.isCompressed()) {
+                    compressedSize = chunk.getOffset() + chunk.getData().size();
+                  }
                   WriteRequest request =
                       requestBuilder
                           .setData(chunk.getData())
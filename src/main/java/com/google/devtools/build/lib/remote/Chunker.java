@@ -23,12 +23,14 @@ import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputHelper;
 import com.google.devtools.build.lib.actions.cache.VirtualActionInput;
+import com.google.devtools.build.lib.remote.util.Compression;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.protobuf.ByteString;
 import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.function.Supplier;
@@ -40,6 +42,10 @@ import java.util.function.Supplier;
  * {@code false}, the chunker closes the underlying data source (i.e. file) itself. However, in
  * case of error or when a data source does not get fully consumed, a user must call
  * {@link #reset()} manually.
+ *
+ * <p>A chunker can also compress the data source as it reads it, see {@link
+ * Builder#setCompressed}. The chunks and offsets then refer to the compressed data, whose size is
+ * only known once it has been fully consumed.
  */
 public final class Chunker {
 
@@ -96,6 +102,7 @@ public final class Chunker {
   private final Supplier<InputStream> dataSupplier;
   private final long size;
   private final int chunkSize;
+  private final boolean compressed;
   private final Chunk emptyChunk;
 
   private InputStream data;
@@ -107,9 +114,14 @@ public final class Chunker {
   private boolean initialized;
 
   Chunker(Supplier<InputStream> dataSupplier, long size, int chunkSize) {
+    this(dataSupplier, size, chunkSize, /* compressed= */ false);
+  }
+
+  Chunker(Supplier<InputStream> dataSupplier, long size, int chunkSize, boolean compressed) {
     this.dataSupplier = checkNotNull(dataSupplier);
     this.size = size;
     this.chunkSize = chunkSize;
+    this.compressed = compressed;
     this.emptyChunk = new Chunk(ByteString.EMPTY, 0);
   }
 
@@ -117,10 +129,16 @@ public final class Chunker {
     return offset;
   }
 
+  /** Returns the size of the uncompressed data source. */
   public long getSize() {
     return size;
   }
 
+  /** Returns whether the chunks are the compressed contents of the data source. */
+  public boolean isCompressed() {
+    return compressed;
+  }
+
   /**
    * Reset the {@link Chunker} state to when it was newly constructed.
    *
@@ -146,10 +164,11 @@ public final class Chunker {
     if (toOffset < offset) {
       reset();
       if (toOffset != 0) {
-        data.skip(toOffset);
+        maybeInitialize();
+        skip(toOffset);
       }
     } else if (offset != toOffset) {
-      data.skip(toOffset - offset);
+      skip(toOffset - offset);
     }
     offset = toOffset;
   }
@@ -177,6 +196,10 @@ public final class Chunker {
 
     maybeInitialize();
 
+    if (compressed) {
+      return nextCompressed();
+    }
+
     if (size == 0) {
       data = null;
       return emptyChunk;
@@ -218,10 +241,48 @@ public final class Chunker {
     return new Chunk(blob, offsetBefore);
   }
 
+  private Chunk nextCompressed() throws IOException {
+    if (chunkCache == null) {
+      chunkCache = new byte[chunkSize];
+    }
+    // The compressed data is never empty, so there is at least one byte to read.
+    long offsetBefore = offset;
+    int bytesRead = ByteStreams.read(data, chunkCache, 0, chunkSize);
+    offset += bytesRead;
+    ByteString blob = ByteString.copyFrom(chunkCache, 0, bytesRead);
+
+    // Look ahead, so that hasNext() returns false once the last chunk was returned.
+    PushbackInputStream in = (PushbackInputStream) data;
+    int nextByte = in.read();
+    if (nextByte == -1) {
+      data.close();
+      data = null;
+      chunkCache = null;
+    } else {
+      in.unread(nextByte);
+    }
+
+    return new Chunk(blob, offsetBefore);
+  }
+
+  /**
+   * Returns the number of bytes left to read from an uncompressed data source. Must not be called
+   * for compressed data sources, whose size is not known in advance.
+   */
   public long bytesLeft() {
+    checkState(!compressed);
     return getSize() - getOffset();
   }
 
+  private void skip(long n) throws IOException {
+    if (compressed) {
+      // The compressed stream may skip less than requested, as it only produces data on demand.
+      ByteStreams.skipFully(data, n);
+    } else {
+      data.skip(n);
+    }
+  }
+
   private void maybeInitialize() throws IOException {
     if (initialized) {
       return;
@@ -231,6 +292,9 @@ public final class Chunker {
     checkState(chunkCache == null);
     try {
       data = dataSupplier.get();
+      if (compressed) {
+        data = new PushbackInputStream(Compression.compress(data), 1);
+      }
     } catch (RuntimeException e) {
       Throwables.propagateIfPossible(e.getCause(), IOException.class);
       throw e;
@@ -247,6 +311,7 @@ public final class Chunker {
     private int chunkSize = getDefaultChunkSize();
     private long size;
     private Supplier<InputStream> inputStream;
+    private boolean compressed;
 
     public Builder setInput(byte[] data) {
       checkState(inputStream == null);
@@ -307,9 +372,18 @@ public final class Chunker {
       return this;
     }
 
+    /**
+     * Sets whether the chunker compresses the data source, see {@link Compression}. Defaults to
+     * {@code false}.
+     */
+    public Builder setCompressed(boolean compressed) {
+      this.compressed = compressed;
+      return this;
+    }
+
     public Chunker build() {
       checkNotNull(inputStream);
-      return new Chunker(inputStream, size, chunkSize);
+      return new Chunker(inputStream, size, chunkSize, compressed);
     }
   }
 }
@@ -20,6 +20,11 @@ import build.bazel.remote.execution.v2.ActionCacheGrpc;
 import build.bazel.remote.execution.v2.ActionCacheGrpc.ActionCacheBlockingStub;
 import build.bazel.remote.execution.v2.ActionCacheGrpc.ActionCacheFutureStub;
 import build.bazel.remote.execution.v2.ActionResult;
+import build.bazel.remote.execution.v2.BatchReadBlobsRequest;
+import build.bazel.remote.execution.v2.BatchReadBlobsResponse;
+import build.bazel.remote.execution.v2.BatchUpdateBlobsRequest;
+import build.bazel.remote.execution.v2.BatchUpdateBlobsResponse;
+import build.bazel.remote.execution.v2.CacheCapabilities;
 import build.bazel.remote.execution.v2.ContentAddressableStorageGrpc;
 import build.bazel.remote.execution.v2.ContentAddressableStorageGrpc.ContentAddressableStorageFutureStub;
 import build.bazel.remote.execution.v2.Digest;
@@ -38,6 +43,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -49,6 +55,8 @@ import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.common.MissingDigestsFinder;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
+import com.google.devtools.build.lib.remote.util.Compression;
+import com.google.devtools.build.lib.remote.util.Compression.DecompressingOutputStream;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.remote.util.TracingMetadataUtils;
 import com.google.devtools.build.lib.remote.util.Utils;
@@ -61,9 +69,14 @@ import io.grpc.Status.Code;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -80,8 +93,15 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
   private final RemoteRetrier retrier;
   private final ByteStreamUploader uploader;
   private final int maxMissingBlobsDigestsPerMessage;
+  private final long maxBatchSize;
+  private final BlobBatcher<PendingRead> readBatcher;
+  private final BlobBatcher<PendingUpdate> updateBatcher;
 
   private AtomicBoolean closed = new AtomicBoolean();
+  // Set if the server does not implement the batch RPCs.
+  private volatile boolean batchingUnsupported;
+  // Set if the server does not support the compressed-blobs resource names.
+  private volatile boolean compressionUnsupported;
 
   @VisibleForTesting
   public GrpcCacheClient(
@@ -91,6 +111,25 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
       RemoteRetrier retrier,
       DigestUtil digestUtil,
       ByteStreamUploader uploader) {
+    this(
+        channel, credentials, options, retrier, digestUtil, uploader, /* maxBatchTotalSize= */ 0);
+  }
+
+  /**
+   * Creates a client that reads and writes blobs of at most {@code maxBatchTotalSize} bytes with
+   * the batch RPCs of the CAS, and all other blobs with the ByteStream API.
+   *
+   * @param maxBatchTotalSize the maximum size of the batch RPCs, as returned by {@link
+   *     #getMaxBatchTotalSize}, or 0 to use the ByteStream API for all blobs.
+   */
+  public GrpcCacheClient(
+      ReferenceCountedChannel channel,
+      CallCredentials credentials,
+      RemoteOptions options,
+      RemoteRetrier retrier,
+      DigestUtil digestUtil,
+      ByteStreamUploader uploader,
+      long maxBatchTotalSize) {
     this.credentials = credentials;
     this.channel = channel;
     this.options = options;
@@ -100,6 +139,62 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
     maxMissingBlobsDigestsPerMessage = computeMaxMissingBlobsDigestsPerMessage();
     Preconditions.checkState(
         maxMissingBlobsDigestsPerMessage > 0, "Error: gRPC message size too small.");
+    // Leave room for the instance name and the encoding of the request.
+    this.maxBatchSize =
+        maxBatchTotalSize > 0
+            ? maxBatchTotalSize - options.remoteInstanceName.length() - BATCH_OVERHEAD
+            : 0;
+    this.readBatcher =
+        new BlobBatcher<>(maxBatchSize, (read) -> batchEntrySize(read.digest), this::readBatch);
+    this.updateBatcher =
+        new BlobBatcher<>(
+            maxBatchSize, (update) -> batchEntrySize(update.digest), this::updateBatch);
+  }
+
+  // An upper bound for the encoding overhead of a batch request or response, and of each of its
+  // entries on top of the digest and the data.
+  private static final int BATCH_OVERHEAD = 32;
+
+  /**
+   * Returns the maximum size of the batch RPCs to use with a server of the given capabilities, or 0
+   * if the batch RPCs should not be used.
+   */
+  public static long getMaxBatchTotalSize(CacheCapabilities capabilities, RemoteOptions options) {
+    if (!options.remoteCacheBatching) {
+      return 0;
+    }
+    // A server limit of 0 means that the batch size is only limited by the gRPC message size.
+    long serverLimit = capabilities.getMaxBatchTotalSizeBytes();
+    return serverLimit > 0
+        ? Math.min(serverLimit, options.maxOutboundMessageSize)
+        : options.maxOutboundMessageSize;
+  }
+
+  private static long batchEntrySize(Digest digest) {
+    return digest.getSizeBytes() + digest.getSerializedSize() + BATCH_OVERHEAD;
+  }
+
+  private boolean useBatchRpcs(Digest digest) {
+    return maxBatchSize > 0 && !batchingUnsupported && batchEntrySize(digest) <= maxBatchSize;
+  }
+
+  private boolean useCompression() {
+    return options.cacheCompression && !compressionUnsupported;
+  }
+
+  /**
+   * Returns whether a compressed transfer failed because the server does not support compressed
+   * blobs, in which case compression is disabled and the blobs are transferred uncompressed.
+   *
+   * <p>Only UNIMPLEMENTED means that. Other errors, like INVALID_ARGUMENT for a digest mismatch,
+   * are about the particular blob and must not turn compression off for the remaining transfers.
+   */
+  private boolean checkCompressionUnsupported(Throwable t) {
+    if (Status.fromThrowable(t).getCode() == Code.UNIMPLEMENTED) {
+      compressionUnsupported = true;
+      return true;
+    }
+    return false;
   }
 
   private int computeMaxMissingBlobsDigestsPerMessage() {
@@ -266,6 +361,12 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
     }
     resourceName += "blobs/" + digestToString(digest);
 
+    if (useBatchRpcs(digest)) {
+      SettableFuture<Void> future = SettableFuture.create();
+      readBatcher.add(new PendingRead(digest, out, future));
+      return future;
+    }
+
     @Nullable Supplier<HashCode> hashSupplier = null;
     if (options.remoteVerifyDownloads) {
       HashingOutputStream hashOut = digestUtil.newHashingOutputStream(out);
@@ -273,9 +374,13 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
       out = hashOut;
     }
 
+    ListenableFuture<Void> download =
+        useCompression()
+            ? downloadCompressedBlob(resourceName, digest, out, hashSupplier)
+            : downloadBlob(resourceName, digest, out, hashSupplier, /* compressed= */ false);
     SettableFuture<Void> outerF = SettableFuture.create();
     Futures.addCallback(
-        downloadBlob(resourceName, digest, out, hashSupplier),
+        download,
         new FutureCallback<Void>() {
           @Override
           public void onSuccess(Void result) {
@@ -294,11 +399,37 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
     return outerF;
   }
 
-  private ListenableFuture<Void> downloadBlob(
+  private ListenableFuture<Void> downloadCompressedBlob(
       String resourceName,
       Digest digest,
       OutputStream out,
       @Nullable Supplier<HashCode> hashSupplier) {
+    CountingOutputStream countingOut = new CountingOutputStream(out);
+    return Futures.catchingAsync(
+        downloadBlob(
+            Compression.readResourceName(
+                options.remoteInstanceName, digest.getHash(), digest.getSizeBytes()),
+            digest,
+            countingOut,
+            hashSupplier,
+            /* compressed= */ true),
+        IOException.class,
+        (e) -> {
+          // Only fall back if nothing was written yet, as the output can't be rewound.
+          if (countingOut.getCount() == 0 && checkCompressionUnsupported(e)) {
+            return downloadBlob(resourceName, digest, out, hashSupplier, /* compressed= */ false);
+          }
+          return Futures.immediateFailedFuture(e);
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<Void> downloadBlob(
+      String resourceName,
+      Digest digest,
+      OutputStream out,
+      @Nullable Supplier<HashCode> hashSupplier,
+      boolean compressed) {
     Context ctx = Context.current();
     AtomicLong offset = new AtomicLong(0);
     ProgressiveBackoff progressiveBackoff = new ProgressiveBackoff(retrier::newBackoff);
@@ -308,21 +439,38 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
                 ctx.call(
                     () ->
                         requestRead(
-                            resourceName, offset, progressiveBackoff, digest, out, hashSupplier)),
+                            resourceName,
+                            offset,
+                            progressiveBackoff,
+                            digest,
+                            out,
+                            hashSupplier,
+                            compressed)),
             progressiveBackoff),
         StatusRuntimeException.class,
         (e) -> Futures.immediateFailedFuture(new IOException(e)),
         MoreExecutors.directExecutor());
   }
 
+  /**
+   * Reads a blob starting at {@code offset}, which is advanced as data is written to {@code out}.
+   *
+   * <p>For a compressed blob, the offset refers to the uncompressed data, and each read returns a
+   * separate compressed stream of the data from that offset on.
+   */
   private ListenableFuture<Void> requestRead(
       String resourceName,
       AtomicLong offset,
       ProgressiveBackoff progressiveBackoff,
       Digest digest,
       OutputStream out,
-      @Nullable Supplier<HashCode> hashSupplier) {
+      @Nullable Supplier<HashCode> hashSupplier,
+      boolean compressed) {
     SettableFuture<Void> future = SettableFuture.create();
+    long initialOffset = offset.get();
+    CountingOutputStream uncompressedOut = compressed ? new CountingOutputStream(out) : null;
+    DecompressingOutputStream decompressor =
+        compressed ? Compression.decompress(uncompressedOut) : null;
     bsAsyncStub()
         .read(
             ReadRequest.newBuilder()
@@ -334,8 +482,13 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
               public void onNext(ReadResponse readResponse) {
                 ByteString data = readResponse.getData();
                 try {
-                  data.writeTo(out);
-                  offset.addAndGet(data.size());
+                  if (compressed) {
+                    data.writeTo(decompressor);
+                    offset.set(initialOffset + uncompressedOut.getCount());
+                  } else {
+                    data.writeTo(out);
+                    offset.addAndGet(data.size());
+                  }
                 } catch (IOException e) {
                   future.setException(e);
                   // Cancel the call.
@@ -347,6 +500,9 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
 
               @Override
               public void onError(Throwable t) {
+                if (compressed) {
+                  decompressor.close();
+                }
                 Status status = Status.fromThrowable(t);
                 if (status.getCode() == Status.Code.NOT_FOUND) {
                   future.setException(new CacheNotFoundException(digest));
@@ -358,6 +514,11 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
               @Override
               public void onCompleted() {
                 try {
+                  if (compressed) {
+                    // Fails if the compressed data was truncated.
+                    decompressor.finish();
+                    decompressor.close();
+                  }
                   if (hashSupplier != null) {
                     Utils.verifyBlobContents(
                         digest.getHash(), DigestUtil.hashCodeToString(hashSupplier.get()));
@@ -374,17 +535,223 @@ public class GrpcCacheClient implements RemoteCacheClient, MissingDigestsFinder
 
   @Override
   public ListenableFuture<Void> uploadFile(Digest digest, Path path) {
-    return uploader.uploadBlobAsync(
-        HashCode.fromString(digest.getHash()),
-        Chunker.builder().setInput(digest.getSizeBytes(), path).build(),
-        /* forceUpload= */ true);
+    if (useBatchRpcs(digest)) {
+      ByteString data;
+      try (InputStream in = path.getInputStream()) {
+        data = ByteString.readFrom(in);
+      } catch (IOException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+      return uploadBlob(digest, data);
+    }
+    return uploadWithByteStream(digest, Chunker.builder().setInput(digest.getSizeBytes(), path));
   }
 
   @Override
   public ListenableFuture<Void> uploadBlob(Digest digest, ByteString data) {
-    return uploader.uploadBlobAsync(
-        HashCode.fromString(digest.getHash()),
-        Chunker.builder().setInput(data.toByteArray()).build(),
-        /* forceUpload= */ true);
+    if (useBatchRpcs(digest)) {
+      SettableFuture<Void> future = SettableFuture.create();
+      updateBatcher.add(new PendingUpdate(digest, data, future));
+      return future;
+    }
+    return uploadBlobWithByteStream(digest, data);
+  }
+
+  private ListenableFuture<Void> uploadBlobWithByteStream(Digest digest, ByteString data) {
+    return uploadWithByteStream(digest, Chunker.builder().setInput(data.toByteArray()));
+  }
+
+  private ListenableFuture<Void> uploadWithByteStream(Digest digest, Chunker.Builder chunker) {
+    HashCode hash = HashCode.fromString(digest.getHash());
+    if (!useCompression()) {
+      return uploader.uploadBlobAsync(hash, chunker.build(), /* forceUpload= */ true);
+    }
+    return Futures.catchingAsync(
+        uploader.uploadBlobAsync(
+            hash, chunker.setCompressed(true).build(), /* forceUpload= */ true),
+        IOException.class,
+        (e) -> {
+          if (checkCompressionUnsupported(e)) {
+            return uploader.uploadBlobAsync(
+                hash, chunker.setCompressed(false).build(), /* forceUpload= */ true);
+          }
+          return Futures.immediateFailedFuture(e);
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /** A blob download waiting to be sent in a {@code BatchReadBlobs} call. */
+  private static final class PendingRead {
+    private final Digest digest;
+    private final OutputStream out;
+    private final SettableFuture<Void> future;
+
+    private PendingRead(Digest digest, OutputStream out, SettableFuture<Void> future) {
+      this.digest = digest;
+      this.out = out;
+      this.future = future;
+    }
+  }
+
+  /** A blob upload waiting to be sent in a {@code BatchUpdateBlobs} call. */
+  private static final class PendingUpdate {
+    private final Digest digest;
+    private final ByteString data;
+    private final SettableFuture<Void> future;
+
+    private PendingUpdate(Digest digest, ByteString data, SettableFuture<Void> future) {
+      this.digest = digest;
+      this.data = data;
+      this.future = future;
+    }
+  }
+
+  /**
+   * Returns whether a batch RPC failed because the server does not implement it, in which case
+   * batching is disabled and the blobs are transferred with the ByteStream API instead.
+   */
+  private boolean checkBatchingUnsupported(Throwable t) {
+    if (Status.fromThrowable(t).getCode() == Code.UNIMPLEMENTED) {
+      batchingUnsupported = true;
+      return true;
+    }
+    return false;
+  }
+
+  private static IOException batchEntryError(com.google.rpc.Status status) {
+    return new IOException(
+        Status.fromCodeValue(status.getCode())
+            .withDescription(status.getMessage())
+            .asRuntimeException());
+  }
+
+  private ListenableFuture<BatchReadBlobsResponse> readBatch(List<PendingRead> batch) {
+    // The same blob may be requested more than once, e.g. for identical outputs.
+    Set<Digest> digests = new LinkedHashSet<>();
+    for (PendingRead read : batch) {
+      digests.add(read.digest);
+    }
+    BatchReadBlobsRequest request =
+        BatchReadBlobsRequest.newBuilder()
+            .setInstanceName(options.remoteInstanceName)
+            .addAllDigests(digests)
+            .build();
+    Context ctx = Context.current();
+    ListenableFuture<BatchReadBlobsResponse> call =
+        retrier.executeAsync(() -> ctx.call(() -> casFutureStub().batchReadBlobs(request)));
+    Futures.addCallback(
+        call,
+        new FutureCallback<BatchReadBlobsResponse>() {
+          @Override
+          public void onSuccess(BatchReadBlobsResponse response) {
+            Map<Digest, BatchReadBlobsResponse.Response> responses = new HashMap<>();
+            for (BatchReadBlobsResponse.Response r : response.getResponsesList()) {
+              responses.put(r.getDigest(), r);
+            }
+            for (PendingRead read : batch) {
+              completeRead(read, responses.get(read.digest));
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            boolean fallBack = checkBatchingUnsupported(t);
+            for (PendingRead read : batch) {
+              if (fallBack) {
+                read.future.setFuture(downloadBlob(read.digest, read.out));
+              } else {
+                read.future.setException(
+                    t instanceof StatusRuntimeException ? new IOException(t) : t);
+              }
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+    return call;
+  }
+
+  private void completeRead(
+      PendingRead read, @Nullable BatchReadBlobsResponse.Response response) {
+    if (response == null) {
+      read.future.setException(
+          new IOException(
+              "BatchReadBlobs response is missing the blob " + digestToString(read.digest)));
+      return;
+    }
+    int code = response.getStatus().getCode();
+    if (code == Code.NOT_FOUND.value()) {
+      read.future.setException(new CacheNotFoundException(read.digest));
+      return;
+    }
+    if (code != Code.OK.value()) {
+      read.future.setException(batchEntryError(response.getStatus()));
+      return;
+    }
+    try {
+      ByteString data = response.getData();
+      if (options.remoteVerifyDownloads) {
+        Utils.verifyBlobContents(
+            read.digest.getHash(), digestUtil.compute(data.toByteArray()).getHash());
+      }
+      data.writeTo(read.out);
+      read.out.flush();
+      read.future.set(null);
+    } catch (IOException e) {
+      read.future.setException(e);
+    }
+  }
+
+  private ListenableFuture<BatchUpdateBlobsResponse> updateBatch(List<PendingUpdate> batch) {
+    Map<Digest, ByteString> blobs = new HashMap<>();
+    BatchUpdateBlobsRequest.Builder request =
+        BatchUpdateBlobsRequest.newBuilder().setInstanceName(options.remoteInstanceName);
+    for (PendingUpdate update : batch) {
+      if (blobs.put(update.digest, update.data) == null) {
+        request.addRequestsBuilder().setDigest(update.digest).setData(update.data);
+      }
+    }
+    Context ctx = Context.current();
+    ListenableFuture<BatchUpdateBlobsResponse> call =
+        retrier.executeAsync(
+            () -> ctx.call(() -> casFutureStub().batchUpdateBlobs(request.build())));
+    Futures.addCallback(
+        call,
+        new FutureCallback<BatchUpdateBlobsResponse>() {
+          @Override
+          public void onSuccess(BatchUpdateBlobsResponse response) {
+            Map<Digest, com.google.rpc.Status> statuses = new HashMap<>();
+            for (BatchUpdateBlobsResponse.Response r : response.getResponsesList()) {
+              statuses.put(r.getDigest(), r.getStatus());
+            }
+            for (PendingUpdate update : batch) {
+              com.google.rpc.Status status = statuses.get(update.digest);
+              if (status == null) {
+                update.future.setException(
+                    new IOException(
+                        "BatchUpdateBlobs response is missing the blob "
+                            + digestToString(update.digest)));
+              } else if (status.getCode() != Code.OK.value()) {
+                update.future.setException(batchEntryError(status));
+              } else {
+                update.future.set(null);
+              }
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            boolean fallBack = checkBatchingUnsupported(t);
+            for (PendingUpdate update : batch) {
+              if (fallBack) {
+                update.future.setFuture(uploadBlobWithByteStream(update.digest, update.data));
+              } else {
+                update.future.setException(
+                    t instanceof StatusRuntimeException ? new IOException(t) : t);
+              }
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+    return call;
   }
 }
@@ -23,6 +23,7 @@ import com.google.devtools.build.lib.authandtls.GoogleAuthUtils;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
 import com.google.devtools.build.lib.remote.disk.DiskAndRemoteCacheClient;
 import com.google.devtools.build.lib.remote.disk.DiskCacheClient;
+import com.google.devtools.build.lib.remote.disk.DiskCacheGarbageCollector;
 import com.google.devtools.build.lib.remote.http.HttpCacheClient;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
@@ -48,10 +49,16 @@ public final class RemoteCacheClientFactory {
       boolean remoteVerifyDownloads,
       DigestUtil digestUtil,
       RemoteCacheClient remoteCacheClient,
-      RemoteOptions options)
+      RemoteOptions options,
+      @Nullable DiskCacheGarbageCollector diskCacheGarbageCollector)
       throws IOException {
     DiskCacheClient diskCacheClient =
-        createDiskCache(workingDirectory, diskCachePath, remoteVerifyDownloads, digestUtil);
+        createDiskCache(
+            workingDirectory,
+            diskCachePath,
+            remoteVerifyDownloads,
+            digestUtil,
+            diskCacheGarbageCollector);
     return new DiskAndRemoteCacheClient(diskCacheClient, remoteCacheClient, options);
   }
 
@@ -69,19 +76,29 @@ public final class RemoteCacheClientFactory {
       RemoteOptions options,
       @Nullable Credentials creds,
       Path workingDirectory,
-      DigestUtil digestUtil)
+      DigestUtil digestUtil,
+      @Nullable DiskCacheGarbageCollector diskCacheGarbageCollector)
       throws IOException {
     Preconditions.checkNotNull(workingDirectory, "workingDirectory");
     if (isHttpCache(options) && isDiskCache(options)) {
       return createDiskAndHttpCache(
-          workingDirectory, options.diskCache, options, creds, digestUtil);
+          workingDirectory,
+          options.diskCache,
+          options,
+          creds,
+          digestUtil,
+          diskCacheGarbageCollector);
     }
     if (isHttpCache(options)) {
       return createHttp(options, creds, digestUtil);
     }
     if (isDiskCache(options)) {
       return createDiskCache(
-          workingDirectory, options.diskCache, options.remoteVerifyDownloads, digestUtil);
+          workingDirectory,
+          options.diskCache,
+          options.remoteVerifyDownloads,
+          digestUtil,
+          diskCacheGarbageCollector);
     }
     throw new IllegalArgumentException(
         "Unrecognized RemoteOptions configuration: remote Http cache URL and/or local disk cache"
@@ -110,6 +127,7 @@ public final class RemoteCacheClientFactory {
               options.remoteTimeout,
               options.remoteMaxConnections,
               options.remoteVerifyDownloads,
+              options.cacheCompression,
               ImmutableList.copyOf(options.remoteHeaders),
               digestUtil,
               creds);
@@ -122,6 +140,7 @@ public final class RemoteCacheClientFactory {
             options.remoteTimeout,
             options.remoteMaxConnections,
             options.remoteVerifyDownloads,
+            options.cacheCompression,
             ImmutableList.copyOf(options.remoteHeaders),
             digestUtil,
             creds);
@@ -135,14 +154,21 @@ public final class RemoteCacheClientFactory {
       Path workingDirectory,
       PathFragment diskCachePath,
       boolean verifyDownloads,
-      DigestUtil digestUtil)
+      DigestUtil digestUtil,
+      @Nullable DiskCacheGarbageCollector garbageCollector)
       throws IOException {
-    Path cacheDir =
-        workingDirectory.getRelative(Preconditions.checkNotNull(diskCachePath, "diskCachePath"));
+    Path cacheDir = getDiskCacheDirectory(workingDirectory, diskCachePath);
     if (!cacheDir.exists()) {
       cacheDir.createDirectoryAndParents();
     }
-    return new DiskCacheClient(cacheDir, verifyDownloads, digestUtil);
+    if (garbageCollector != null) {
+      Preconditions.checkArgument(
+          garbageCollector.getRoot().equals(cacheDir),
+          "garbage collector for %s used with disk cache %s",
+          garbageCollector.getRoot(),
+          cacheDir);
+    }
+    return new DiskCacheClient(cacheDir, verifyDownloads, digestUtil, garbageCollector);
   }
 
   private static RemoteCacheClient createDiskAndHttpCache(
@@ -150,10 +176,10 @@ public final class RemoteCacheClientFactory {
       PathFragment diskCachePath,
       RemoteOptions options,
       Credentials cred,
-      DigestUtil digestUtil)
+      DigestUtil digestUtil,
+      @Nullable DiskCacheGarbageCollector diskCacheGarbageCollector)
       throws IOException {
-    Path cacheDir =
-        workingDirectory.getRelative(Preconditions.checkNotNull(diskCachePath, "diskCachePath"));
+    Path cacheDir = getDiskCacheDirectory(workingDirectory, diskCachePath);
     if (!cacheDir.exists()) {
       cacheDir.createDirectoryAndParents();
     }
@@ -165,7 +191,14 @@ public final class RemoteCacheClientFactory {
         options.remoteVerifyDownloads,
         digestUtil,
         httpCache,
-        options);
+        options,
+        diskCacheGarbageCollector);
+  }
+
+  /** Returns the absolute path of the {@code --disk_cache} directory. */
+  public static Path getDiskCacheDirectory(Path workingDirectory, PathFragment diskCachePath) {
+    return workingDirectory.getRelative(
+        Preconditions.checkNotNull(diskCachePath, "diskCachePath"));
   }
 
   public static boolean isDiskCache(RemoteOptions options) {
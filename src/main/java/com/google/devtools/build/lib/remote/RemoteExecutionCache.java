@@ -24,6 +24,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
 import com.google.devtools.build.lib.remote.merkletree.MerkleTree;
 import com.google.devtools.build.lib.remote.merkletree.MerkleTree.PathOrBytes;
+import com.google.devtools.build.lib.remote.merkletree.MerkleTreeCache;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.remote.util.Utils;
@@ -36,13 +37,29 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import javax.annotation.Nullable;
 
 /** A {@link RemoteCache} with additional functionality needed for remote execution. */
 public class RemoteExecutionCache extends RemoteCache {
 
+  @Nullable private final MerkleTreeCache merkleTreeCache;
+
   public RemoteExecutionCache(
       RemoteCacheClient protocolImpl, RemoteOptions options, DigestUtil digestUtil) {
     super(protocolImpl, options, digestUtil);
+    this.merkleTreeCache =
+        options.remoteMerkleTreeCache
+            ? new MerkleTreeCache(options.remoteMerkleTreeCacheSize)
+            : null;
+  }
+
+  /**
+   * Returns the cache of merkle subtrees to build the input trees of this build's actions with, or
+   * {@code null} if subtrees are not cached.
+   */
+  @Nullable
+  public MerkleTreeCache getMerkleTreeCache() {
+    return merkleTreeCache;
   }
 
   private void uploadMissing(Map<Digest, Path> files, Map<Digest, ByteString> blobs)
@@ -20,6 +20,8 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
 import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.devtools.build.lib.actions.ActionInput;
@@ -35,15 +37,22 @@ import com.google.devtools.build.lib.analysis.test.TestProvider;
 import com.google.devtools.build.lib.authandtls.AuthAndTLSOptions;
 import com.google.devtools.build.lib.authandtls.GoogleAuthUtils;
 import com.google.devtools.build.lib.buildeventstream.BuildEventArtifactUploader;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.DiskCacheMetrics;
 import com.google.devtools.build.lib.buildeventstream.LocalFilesArtifactUploader;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
+import com.google.devtools.build.lib.buildtool.buildevent.ExecutionPhaseCompleteEvent;
 import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
+import com.google.devtools.build.lib.metrics.DiskCacheMetricsEvent;
 import com.google.devtools.build.lib.packages.TargetUtils;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
+import com.google.devtools.build.lib.remote.disk.DiskAndRemoteCacheClient;
+import com.google.devtools.build.lib.remote.disk.DiskCacheGarbageCollector;
 import com.google.devtools.build.lib.remote.logging.LoggingInterceptor;
+import com.google.devtools.build.lib.remote.memory.MemoryBlobCache;
+import com.google.devtools.build.lib.remote.memory.MemoryCacheClient;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.options.RemoteOutputsMode;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
@@ -69,10 +78,12 @@ import io.grpc.CallCredentials;
 import io.grpc.ClientInterceptor;
 import io.grpc.Context;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /** RemoteModule provides distributed cache and remote execution for Bazel. */
 public final class RemoteModule extends BlazeModule {
@@ -89,6 +100,20 @@ public final class RemoteModule extends BlazeModule {
   private RemoteOutputsMode remoteOutputsMode;
   private RemoteOutputService remoteOutputService;
 
+  /** Outlives commands so that the disk cache is only scanned once per server. */
+  @Nullable private DiskCacheGarbageCollector diskCacheGarbageCollector;
+
+  @Nullable private DiskCacheGarbageCollector.Stats diskCacheStatsAtCommandStart;
+
+  /** Outlives commands so that blobs read by every build stay in memory. */
+  @Nullable private MemoryBlobCache memoryBlobCache;
+
+  @Nullable private MemoryBlobCache.Stats memoryCacheStatsAtCommandStart;
+  @Nullable private DiskAndRemoteCacheClient diskAndRemoteCacheClient;
+  @Nullable private MemoryCacheClient memoryCacheClient;
+  @Nullable private EventBus eventBus;
+  @Nullable private Reporter reporter;
+
   private final BuildEventArtifactUploaderFactoryDelegate
       buildEventArtifactUploaderFactoryDelegate = new BuildEventArtifactUploaderFactoryDelegate();
 
@@ -120,6 +145,8 @@ public final class RemoteModule extends BlazeModule {
     }
 
     remoteOutputsMode = remoteOptions.remoteOutputsMode;
+    updateDiskCacheGarbageCollector(env, remoteOptions);
+    updateMemoryBlobCache(remoteOptions);
 
     AuthAndTLSOptions authAndTlsOptions = env.getOptions().getOptions(AuthAndTLSOptions.class);
     DigestHashFunction hashFn = env.getRuntime().getFileSystem().getDigestFunction();
@@ -141,7 +168,9 @@ public final class RemoteModule extends BlazeModule {
           ExitCode.COMMAND_LINE_ERROR);
     }
 
-    env.getEventBus().register(this);
+    eventBus = env.getEventBus();
+    eventBus.register(this);
+    reporter = env.getReporter();
     String invocationId = env.getCommandId().toString();
     String buildRequestId = env.getBuildRequestId();
     env.getReporter().handle(Event.info(String.format("Invocation ID: %s", invocationId)));
@@ -157,8 +186,10 @@ public final class RemoteModule extends BlazeModule {
                 remoteOptions,
                 GoogleAuthUtils.newCredentials(authAndTlsOptions),
                 Preconditions.checkNotNull(env.getWorkingDirectory(), "workingDirectory"),
-                digestUtil);
-        RemoteCache remoteCache = new RemoteCache(cacheClient, remoteOptions, digestUtil);
+                digestUtil,
+                diskCacheGarbageCollector);
+        RemoteCache remoteCache =
+            new RemoteCache(withMemoryTier(cacheClient), remoteOptions, digestUtil);
         actionContextProvider =
             RemoteActionContextProvider.createForRemoteCaching(
                 env, remoteCache, /* retryScheduler= */ null, digestUtil);
@@ -249,7 +280,9 @@ public final class RemoteModule extends BlazeModule {
               remoteOptions,
               retrier,
               digestUtil,
-              uploader.retain());
+              uploader.retain(),
+              GrpcCacheClient.getMaxBatchTotalSize(
+                  capabilities.getCacheCapabilities(), remoteOptions));
       uploader.release();
       Context requestContext =
           TracingMetadataUtils.contextWithMetadata(buildRequestId, invocationId, "bes-upload");
@@ -276,7 +309,7 @@ public final class RemoteModule extends BlazeModule {
                 remoteOptions);
         execChannel.release();
         RemoteExecutionCache remoteCache =
-            new RemoteExecutionCache(cacheClient, remoteOptions, digestUtil);
+            new RemoteExecutionCache(withMemoryTier(cacheClient), remoteOptions, digestUtil);
         actionContextProvider =
             RemoteActionContextProvider.createForRemoteExecution(
                 env, remoteCache, remoteExecutor, retryScheduler, digestUtil, logDir);
@@ -300,10 +333,12 @@ public final class RemoteModule extends BlazeModule {
                   remoteOptions.remoteVerifyDownloads,
                   digestUtil,
                   cacheClient,
-                  remoteOptions);
+                  remoteOptions,
+                  diskCacheGarbageCollector);
         }
 
-        RemoteCache remoteCache = new RemoteCache(cacheClient, remoteOptions, digestUtil);
+        RemoteCache remoteCache =
+            new RemoteCache(withMemoryTier(cacheClient), remoteOptions, digestUtil);
         actionContextProvider =
             RemoteActionContextProvider.createForRemoteCaching(
                 env, remoteCache, retryScheduler, digestUtil);
@@ -317,6 +352,127 @@ public final class RemoteModule extends BlazeModule {
     }
   }
 
+  /**
+   * Creates, keeps or discards the {@link DiskCacheGarbageCollector} according to {@code
+   * --disk_cache} and {@code --disk_cache_max_size}.
+   */
+  private void updateDiskCacheGarbageCollector(CommandEnvironment env, RemoteOptions options) {
+    diskCacheStatsAtCommandStart = null;
+    Path diskCache =
+        RemoteCacheClientFactory.isDiskCache(options) && options.diskCacheMaxSize > 0
+            ? RemoteCacheClientFactory.getDiskCacheDirectory(
+                env.getWorkingDirectory(), options.diskCache)
+            : null;
+    if (diskCacheGarbageCollector != null
+        && (diskCache == null
+            || !diskCacheGarbageCollector.getRoot().equals(diskCache)
+            || diskCacheGarbageCollector.getMaxSizeBytes() != options.diskCacheMaxSize)) {
+      diskCacheGarbageCollector.shutdown();
+      diskCacheGarbageCollector = null;
+    }
+    if (diskCache == null) {
+      return;
+    }
+    if (diskCacheGarbageCollector == null) {
+      diskCacheGarbageCollector =
+          new DiskCacheGarbageCollector(diskCache, options.diskCacheMaxSize);
+    }
+    diskCacheStatsAtCommandStart = diskCacheGarbageCollector.getStats();
+  }
+
+  /**
+   * Creates, keeps or discards the {@link MemoryBlobCache} according to {@code
+   * --experimental_remote_memory_cache_size} and related options.
+   */
+  private void updateMemoryBlobCache(RemoteOptions options) {
+    memoryCacheStatsAtCommandStart = null;
+    if (options.remoteMemoryCacheSize <= 0) {
+      memoryBlobCache = null;
+      return;
+    }
+    if (memoryBlobCache == null
+        || memoryBlobCache.getMaxSizeBytes() != options.remoteMemoryCacheSize
+        || memoryBlobCache.isOffHeap() != options.remoteMemoryCacheOffHeap
+        || memoryBlobCache.getMaxBlobSizeBytes() != options.remoteMemoryCacheMaxBlobSize) {
+      memoryBlobCache =
+          new MemoryBlobCache(
+              options.remoteMemoryCacheSize,
+              options.remoteMemoryCacheMaxBlobSize,
+              options.remoteMemoryCacheOffHeap);
+    }
+    memoryCacheStatsAtCommandStart = memoryBlobCache.getStats();
+  }
+
+  /** Puts the memory cache, if enabled, in front of {@code cacheClient}. */
+  private RemoteCacheClient withMemoryTier(RemoteCacheClient cacheClient) {
+    if (cacheClient instanceof DiskAndRemoteCacheClient) {
+      diskAndRemoteCacheClient = (DiskAndRemoteCacheClient) cacheClient;
+    }
+    if (memoryBlobCache == null) {
+      return cacheClient;
+    }
+    memoryCacheClient = new MemoryCacheClient(memoryBlobCache, cacheClient);
+    return memoryCacheClient;
+  }
+
+  @Subscribe
+  public void executionPhaseComplete(ExecutionPhaseCompleteEvent event) {
+    reportCacheHitRatios();
+    if (diskCacheGarbageCollector == null || diskCacheStatsAtCommandStart == null) {
+      return;
+    }
+    DiskCacheGarbageCollector.Stats stats =
+        diskCacheGarbageCollector.getStats().minus(diskCacheStatsAtCommandStart);
+    eventBus.post(
+        new DiskCacheMetricsEvent(
+            DiskCacheMetrics.newBuilder()
+                .setHits(stats.getHits())
+                .setMisses(stats.getMisses())
+                .setEvictedEntries(stats.getEvictedEntries())
+                .setEvictedBytes(stats.getEvictedBytes())
+                .setSizeBytes(stats.getSizeBytes())
+                .build()));
+  }
+
+  /** Reports the hit ratio of each cache tier, if the memory cache is enabled. */
+  private void reportCacheHitRatios() {
+    if (memoryBlobCache == null || memoryCacheStatsAtCommandStart == null || reporter == null) {
+      return;
+    }
+    MemoryBlobCache.Stats memoryStats =
+        memoryBlobCache.getStats().minus(memoryCacheStatsAtCommandStart);
+    List<String> tiers = new ArrayList<>();
+    tiers.add(formatHitRatio("memory", memoryStats.getHits(), memoryStats.getMisses()));
+    if (diskAndRemoteCacheClient != null) {
+      tiers.add(
+          formatHitRatio(
+              "disk",
+              diskAndRemoteCacheClient.getDiskHits(),
+              diskAndRemoteCacheClient.getDiskMisses()));
+      tiers.add(
+          formatHitRatio(
+              "remote",
+              diskAndRemoteCacheClient.getRemoteHits(),
+              diskAndRemoteCacheClient.getRemoteMisses()));
+    } else if (memoryCacheClient != null) {
+      // Without a disk cache, the memory cache sits directly in front of the remote cache.
+      tiers.add(
+          formatHitRatio(
+              "remote",
+              memoryCacheClient.getDelegateHits(),
+              memoryCacheClient.getDelegateMisses()));
+    }
+    reporter.handle(Event.info("Remote cache hit ratios: " + String.join(", ", tiers)));
+  }
+
+  private static String formatHitRatio(String tier, long hits, long misses) {
+    long lookups = hits + misses;
+    if (lookups == 0) {
+      return tier + " -";
+    }
+    return String.format("%s %.1f%% (%d/%d)", tier, 100.0 * hits / lookups, hits, lookups);
+  }
+
   private static ImmutableList<Artifact> getRunfiles(ConfiguredTarget buildTarget) {
     FilesToRunProvider runfilesProvider = buildTarget.getProvider(FilesToRunProvider.class);
     if (runfilesProvider == null) {
@@ -421,6 +577,14 @@ public final class RemoteModule extends BlazeModule {
     }
   }
 
+  @Override
+  public void blazeShutdown() {
+    if (diskCacheGarbageCollector != null) {
+      diskCacheGarbageCollector.shutdown();
+      diskCacheGarbageCollector = null;
+    }
+  }
+
   @Override
   public void afterCommand() throws AbruptExitException {
     IOException failure = null;
@@ -444,6 +608,12 @@ public final class RemoteModule extends BlazeModule {
     actionInputFetcher = null;
     remoteOutputsMode = null;
     remoteOutputService = null;
+    diskCacheStatsAtCommandStart = null;
+    memoryCacheStatsAtCommandStart = null;
+    diskAndRemoteCacheClient = null;
+    memoryCacheClient = null;
+    eventBus = null;
+    reporter = null;
 
     if (failure != null) {
       throw new AbruptExitException(ExitCode.LOCAL_ENVIRONMENTAL_ERROR, failure);
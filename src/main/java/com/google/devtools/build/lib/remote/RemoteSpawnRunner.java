@@ -50,6 +50,7 @@ import com.google.devtools.build.lib.actions.SpawnResult.Status;
 import com.google.devtools.build.lib.actions.Spawns;
 import com.google.devtools.build.lib.actions.cache.VirtualActionInput;
 import com.google.devtools.build.lib.analysis.platform.PlatformUtils;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
@@ -61,6 +62,7 @@ import com.google.devtools.build.lib.profiler.SilentCloseable;
 import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient.ActionKey;
 import com.google.devtools.build.lib.remote.merkletree.MerkleTree;
+import com.google.devtools.build.lib.remote.merkletree.MerkleTreeCache;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.options.RemoteOutputsMode;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
@@ -89,6 +91,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -203,8 +206,7 @@ public class RemoteSpawnRunner implements SpawnRunner {
     context.report(ProgressStatus.EXECUTING, getName());
     RemoteOutputsMode remoteOutputsMode = remoteOptions.remoteOutputsMode;
     SortedMap<PathFragment, ActionInput> inputMap = context.getInputMapping(true);
-    final MerkleTree merkleTree =
-        MerkleTree.build(inputMap, context.getMetadataProvider(), execRoot, digestUtil);
+    final MerkleTree merkleTree = buildInputMerkleTree(spawn, context, inputMap);
     maybeWriteParamFilesLocally(spawn);
 
     // Get the remote platform properties.
@@ -364,6 +366,43 @@ public class RemoteSpawnRunner implements SpawnRunner {
     return Spawns.mayBeExecutedRemotely(spawn);
   }
 
+  /**
+   * Builds the merkle tree of the spawn's inputs. If the spawn's inputs are a nested set and subtrees
+   * are cached, the subtrees of the nested set's nodes are shared with other spawns of the build.
+   */
+  @SuppressWarnings("unchecked")
+  private MerkleTree buildInputMerkleTree(
+      Spawn spawn, SpawnExecutionContext context, SortedMap<PathFragment, ActionInput> inputMap)
+      throws IOException {
+    MerkleTreeCache merkleTreeCache = remoteCache.getMerkleTreeCache();
+    if (merkleTreeCache == null || !(spawn.getInputFiles() instanceof NestedSet)) {
+      return MerkleTree.build(inputMap, context.getMetadataProvider(), execRoot, digestUtil);
+    }
+    MerkleTree inputFilesTree =
+        merkleTreeCache.getOrBuild(
+            (NestedSet<ActionInput>) spawn.getInputFiles(),
+            context.getArtifactExpander(),
+            context.getMetadataProvider(),
+            execRoot,
+            digestUtil);
+    // The input files are staged at their exec paths. Everything else, i.e. runfiles and
+    // filesets, is staged elsewhere and not covered by the cached subtrees.
+    SortedMap<PathFragment, ActionInput> otherInputs = new TreeMap<>();
+    for (Map.Entry<PathFragment, ActionInput> e : inputMap.entrySet()) {
+      if (!e.getKey().equals(e.getValue().getExecPath())) {
+        otherInputs.put(e.getKey(), e.getValue());
+      }
+    }
+    if (otherInputs.isEmpty()) {
+      return inputFilesTree;
+    }
+    return MerkleTree.merge(
+        ImmutableList.of(
+            inputFilesTree,
+            MerkleTree.build(otherInputs, context.getMetadataProvider(), execRoot, digestUtil)),
+        digestUtil);
+  }
+
   private void maybeWriteParamFilesLocally(Spawn spawn) throws IOException {
     if (!executionOptions.shouldMaterializeParamFiles()) {
       return;
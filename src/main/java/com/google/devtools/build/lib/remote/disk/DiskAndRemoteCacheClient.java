@@ -20,14 +20,16 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.protobuf.ByteString;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A {@link RemoteCacheClient} implementation combining two blob stores. A local disk blob store and
@@ -40,6 +42,12 @@ public final class DiskAndRemoteCacheClient implements RemoteCacheClient {
   private final DiskCacheClient diskCache;
   private final RemoteOptions options;
 
+  // Lookups of blobs in each store, to report their hit ratios.
+  private final AtomicLong diskHits = new AtomicLong();
+  private final AtomicLong diskMisses = new AtomicLong();
+  private final AtomicLong remoteHits = new AtomicLong();
+  private final AtomicLong remoteMisses = new AtomicLong();
+
   public DiskAndRemoteCacheClient(
       DiskCacheClient diskCache, RemoteCacheClient remoteCache, RemoteOptions options) {
     this.diskCache = Preconditions.checkNotNull(diskCache);
@@ -106,10 +114,6 @@ public final class DiskAndRemoteCacheClient implements RemoteCacheClient {
             MoreExecutors.directExecutor());
   }
 
-  private Path newTempPath() {
-    return diskCache.toPath(UUID.randomUUID().toString(), /* actionResult= */ false);
-  }
-
   private static ListenableFuture<Void> closeStreamOnError(
       ListenableFuture<Void> f, OutputStream out) {
     return Futures.catchingAsync(
@@ -126,13 +130,48 @@ public final class DiskAndRemoteCacheClient implements RemoteCacheClient {
         MoreExecutors.directExecutor());
   }
 
+  /** Returns the number of blobs found in the disk cache. */
+  public long getDiskHits() {
+    return diskHits.get();
+  }
+
+  /** Returns the number of blobs not found in the disk cache. */
+  public long getDiskMisses() {
+    return diskMisses.get();
+  }
+
+  /** Returns the number of blobs downloaded from the remote cache. */
+  public long getRemoteHits() {
+    return remoteHits.get();
+  }
+
+  /** Returns the number of blobs not found in the remote cache. */
+  public long getRemoteMisses() {
+    return remoteMisses.get();
+  }
+
+  private void countRemoteLookup(ListenableFuture<Void> download) {
+    try {
+      Futures.getDone(download);
+      remoteHits.incrementAndGet();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof CacheNotFoundException) {
+        remoteMisses.incrementAndGet();
+      }
+    } catch (CancellationException e) {
+      // Neither a hit nor a miss.
+    }
+  }
+
   @Override
   public ListenableFuture<Void> downloadBlob(Digest digest, OutputStream out) {
     if (diskCache.contains(digest)) {
+      diskHits.incrementAndGet();
       return diskCache.downloadBlob(digest, out);
     }
+    diskMisses.incrementAndGet();
 
-    Path tempPath = newTempPath();
+    Path tempPath = diskCache.newTempPath();
     final OutputStream tempOut;
     try {
       tempOut = tempPath.getOutputStream();
@@ -143,6 +182,7 @@ public final class DiskAndRemoteCacheClient implements RemoteCacheClient {
     if (!options.incompatibleRemoteResultsIgnoreDisk || options.remoteAcceptCached) {
       ListenableFuture<Void> download =
           closeStreamOnError(remoteCache.downloadBlob(digest, tempOut), tempOut);
+      download.addListener(() -> countRemoteLookup(download), MoreExecutors.directExecutor());
       ListenableFuture<Void> saveToDiskAndTarget =
           Futures.transformAsync(
               download,
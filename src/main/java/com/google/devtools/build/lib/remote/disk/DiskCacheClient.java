@@ -27,6 +27,7 @@ import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.remote.util.Utils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.protobuf.ByteString;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -37,15 +38,35 @@ import javax.annotation.Nullable;
 public class DiskCacheClient implements RemoteCacheClient {
 
   private static final String ACTION_KEY_PREFIX = "ac_";
+  private static final String TEMP_FILE_PREFIX = "tmp-";
 
   private final Path root;
   private final boolean verifyDownloads;
   private final DigestUtil digestUtil;
+  @Nullable private final DiskCacheGarbageCollector garbageCollector;
 
   public DiskCacheClient(Path root, boolean verifyDownloads, DigestUtil digestUtil) {
+    this(root, verifyDownloads, digestUtil, /* garbageCollector= */ null);
+  }
+
+  /**
+   * @param garbageCollector if not null, records accesses to the cache and keeps it below its size
+   *     limit. It must have been created for the same {@code root}.
+   */
+  public DiskCacheClient(
+      Path root,
+      boolean verifyDownloads,
+      DigestUtil digestUtil,
+      @Nullable DiskCacheGarbageCollector garbageCollector) {
     this.root = root;
     this.verifyDownloads = verifyDownloads;
     this.digestUtil = digestUtil;
+    this.garbageCollector = garbageCollector;
+  }
+
+  /** Returns whether {@code name} is a file that is still being written to the cache. */
+  static boolean isTemporaryFile(String name) {
+    return name.startsWith(TEMP_FILE_PREFIX);
   }
 
   /** Returns {@code true} if the provided {@code key} is stored in the CAS. */
@@ -61,19 +82,36 @@ public class DiskCacheClient implements RemoteCacheClient {
   public void captureFile(Path src, Digest digest, boolean isActionCache) throws IOException {
     Path target = toPath(digest.getHash(), isActionCache);
     src.renameTo(target);
+    if (garbageCollector != null) {
+      garbageCollector.recordWrite(target.getFileSize());
+    }
   }
 
   private ListenableFuture<Void> download(Digest digest, OutputStream out, boolean isActionCache) {
     Path p = toPath(digest.getHash(), isActionCache);
     if (!p.exists()) {
+      recordMiss();
       return Futures.immediateFailedFuture(new CacheNotFoundException(digest));
     } else {
       try (InputStream in = p.getInputStream()) {
         ByteStreams.copy(in, out);
-        return Futures.immediateFuture(null);
+      } catch (FileNotFoundException e) {
+        // The entry was evicted between the existence check and opening it.
+        recordMiss();
+        return Futures.immediateFailedFuture(new CacheNotFoundException(digest));
       } catch (IOException e) {
         return Futures.immediateFailedFuture(e);
       }
+      if (garbageCollector != null) {
+        garbageCollector.recordHit(p);
+      }
+      return Futures.immediateFuture(null);
+    }
+  }
+
+  private void recordMiss() {
+    if (garbageCollector != null) {
+      garbageCollector.recordMiss();
     }
   }
 
@@ -146,6 +184,14 @@ public class DiskCacheClient implements RemoteCacheClient {
     return root.getChild(getDiskKey(key, actionResult));
   }
 
+  /**
+   * Returns a fresh path in the cache directory to write a blob to before renaming it into place.
+   * The garbage collector skips such files.
+   */
+  Path newTempPath() {
+    return toPath(TEMP_FILE_PREFIX + UUID.randomUUID(), /* actionResult= */ false);
+  }
+
   private static String getDiskKey(String key, boolean actionResult) {
     return actionResult ? ACTION_KEY_PREFIX + key : key;
   }
@@ -157,12 +203,16 @@ public class DiskCacheClient implements RemoteCacheClient {
     }
 
     // Write a temporary file first, and then rename, to avoid data corruption in case of a crash.
-    Path temp = toPath(UUID.randomUUID().toString(), /* actionResult= */ false);
+    Path temp = newTempPath();
     try (OutputStream out = temp.getOutputStream()) {
       ByteStreams.copy(in, out);
     }
     // TODO(ulfjack): Fsync temp here before we rename it to avoid data loss in the case of machine
     // crashes (the OS may reorder the writes and the rename).
+    long size = temp.getFileSize();
     temp.renameTo(target);
+    if (garbageCollector != null) {
+      garbageCollector.recordWrite(size);
+    }
   }
 }
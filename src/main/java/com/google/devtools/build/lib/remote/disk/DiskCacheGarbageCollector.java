@@ -0,0 +1,284 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.clock.BlazeClock;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a {@link DiskCacheClient} directory below a maximum size by deleting the least recently
+ * used entries.
+ *
+ * <p>Entries are ordered by their modification time, which {@link DiskCacheClient} bumps on every
+ * cache hit. The collector keeps an approximate running total of the cache size; when a write
+ * pushes it over the limit, a single background thread scans the directory and deletes the oldest
+ * entries until the cache is below {@link #LOW_WATERMARK} of the limit. Reads and writes never wait
+ * for a collection.
+ *
+ * <p>Deleting an entry that is concurrently being read is safe: readers either have the file open
+ * already, or fail to open it and report a cache miss. Temporary files of in-flight writes are
+ * not counted and not evicted. Temporary files that have not been written to for {@link
+ * #STALE_TEMP_FILE_AGE} were left behind by a crashed writer and are deleted by every scan,
+ * including the one when the collector is created.
+ *
+ * <p>An instance is meant to outlive individual commands, so that the directory is only scanned
+ * once per server.
+ */
+public final class DiskCacheGarbageCollector {
+
+  private static final Logger logger = Logger.getLogger(DiskCacheGarbageCollector.class.getName());
+
+  /** Fraction of the maximum size the cache is trimmed down to when it overflows. */
+  @VisibleForTesting static final double LOW_WATERMARK = 0.9;
+
+  /** Temporary files that have not been modified for this long are no longer being written. */
+  @VisibleForTesting static final Duration STALE_TEMP_FILE_AGE = Duration.ofHours(1);
+
+  private final Path root;
+  private final long maxSizeBytes;
+  private final ExecutorService executor;
+  private final Clock clock;
+
+  /** Approximate size of the cache in bytes, or -1 until the first scan has finished. */
+  private final AtomicLong approximateSize = new AtomicLong(-1);
+
+  private final AtomicBoolean collectionScheduled = new AtomicBoolean(false);
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictedEntries = new AtomicLong();
+  private final AtomicLong evictedBytes = new AtomicLong();
+
+  public DiskCacheGarbageCollector(Path root, long maxSizeBytes) {
+    this(
+        root,
+        maxSizeBytes,
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("disk-cache-gc")
+                .setDaemon(true)
+                .build()),
+        BlazeClock.instance());
+  }
+
+  @VisibleForTesting
+  DiskCacheGarbageCollector(
+      Path root, long maxSizeBytes, ExecutorService executor, Clock clock) {
+    Preconditions.checkArgument(maxSizeBytes > 0, "maxSizeBytes must be positive");
+    this.root = root;
+    this.maxSizeBytes = maxSizeBytes;
+    this.executor = executor;
+    this.clock = clock;
+    // Learn the initial size of the cache, and trim it if the limit was lowered.
+    scheduleCollection();
+  }
+
+  public Path getRoot() {
+    return root;
+  }
+
+  public long getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  /** Records a cache hit on {@code path}, marking it as recently used. */
+  void recordHit(Path path) {
+    hits.incrementAndGet();
+    try {
+      path.setLastModifiedTime(-1L);
+    } catch (IOException e) {
+      // The entry was evicted after it was read; there is nothing left to mark.
+    }
+  }
+
+  /** Records a cache miss. */
+  void recordMiss() {
+    misses.incrementAndGet();
+  }
+
+  /** Records that a new entry of {@code size} bytes was added to the cache. */
+  void recordWrite(long size) {
+    long newSize =
+        approximateSize.updateAndGet(current -> current < 0 ? current : current + size);
+    if (newSize > maxSizeBytes) {
+      scheduleCollection();
+    }
+  }
+
+  private void scheduleCollection() {
+    if (!collectionScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(
+          () -> {
+            try {
+              collect();
+            } catch (IOException e) {
+              logger.log(Level.WARNING, "Disk cache garbage collection failed", e);
+            } finally {
+              collectionScheduled.set(false);
+            }
+          });
+    } catch (RuntimeException e) {
+      // The executor was shut down.
+      collectionScheduled.set(false);
+    }
+  }
+
+  /**
+   * Scans the cache directory, deletes stale temporary files and, if it is over the limit, deletes
+   * the least recently used entries until it is below {@link #LOW_WATERMARK} of the limit.
+   */
+  @VisibleForTesting
+  void collect() throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    long totalSize = 0;
+    long staleTempFileCutoff = clock.currentTimeMillis() - STALE_TEMP_FILE_AGE.toMillis();
+    for (Dirent dirent : root.readdir(Symlinks.NOFOLLOW)) {
+      if (dirent.getType() != Dirent.Type.FILE) {
+        continue;
+      }
+      Path path = root.getChild(dirent.getName());
+      FileStatus stat = path.statIfFound(Symlinks.NOFOLLOW);
+      if (stat == null) {
+        continue;
+      }
+      if (DiskCacheClient.isTemporaryFile(dirent.getName())) {
+        if (stat.getLastModifiedTime() < staleTempFileCutoff) {
+          path.delete();
+        }
+        continue;
+      }
+      entries.add(new Entry(path, stat.getSize(), stat.getLastModifiedTime()));
+      totalSize += stat.getSize();
+    }
+
+    if (totalSize > maxSizeBytes) {
+      long target = (long) (maxSizeBytes * LOW_WATERMARK);
+      entries.sort(Comparator.comparingLong(e -> e.lastAccessTime));
+      for (Entry entry : entries) {
+        if (totalSize <= target) {
+          break;
+        }
+        if (entry.path.delete()) {
+          totalSize -= entry.size;
+          evictedEntries.incrementAndGet();
+          evictedBytes.addAndGet(entry.size);
+        }
+      }
+    }
+    approximateSize.set(totalSize);
+  }
+
+  /** Returns a snapshot of the statistics gathered since this collector was created. */
+  public Stats getStats() {
+    return new Stats(
+        hits.get(),
+        misses.get(),
+        evictedEntries.get(),
+        evictedBytes.get(),
+        Math.max(approximateSize.get(), 0));
+  }
+
+  /** Stops the background thread, letting a running collection finish. */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  @VisibleForTesting
+  void awaitTermination() throws InterruptedException {
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+  }
+
+  /** Hit and eviction counters of a {@link DiskCacheGarbageCollector}. */
+  public static final class Stats {
+    private final long hits;
+    private final long misses;
+    private final long evictedEntries;
+    private final long evictedBytes;
+    private final long sizeBytes;
+
+    Stats(long hits, long misses, long evictedEntries, long evictedBytes, long sizeBytes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.evictedEntries = evictedEntries;
+      this.evictedBytes = evictedBytes;
+      this.sizeBytes = sizeBytes;
+    }
+
+    public long getHits() {
+      return hits;
+    }
+
+    public long getMisses() {
+      return misses;
+    }
+
+    public long getEvictedEntries() {
+      return evictedEntries;
+    }
+
+    public long getEvictedBytes() {
+      return evictedBytes;
+    }
+
+    /** Approximate size of the cache directory in bytes. */
+    public long getSizeBytes() {
+      return sizeBytes;
+    }
+
+    /** Returns the counters accumulated since {@code earlier}; the size is taken from this one. */
+    public Stats minus(Stats earlier) {
+      return new Stats(
+          hits - earlier.hits,
+          misses - earlier.misses,
+          evictedEntries - earlier.evictedEntries,
+          evictedBytes - earlier.evictedBytes,
+          sizeBytes);
+    }
+  }
+
+  private static final class Entry {
+    private final Path path;
+    private final long size;
+    private final long lastAccessTime;
+
+    Entry(Path path, long size, long lastAccessTime) {
+      this.path = path;
+      this.size = size;
+      this.lastAccessTime = lastAccessTime;
+    }
+  }
+}
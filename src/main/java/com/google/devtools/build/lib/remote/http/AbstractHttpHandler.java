@@ -97,13 +97,17 @@ abstract class AbstractHttpHandler<T extends HttpObject> extends SimpleChannelIn
     request.headers().set(HttpHeaderNames.USER_AGENT, USER_AGENT_VALUE);
   }
 
-  protected String constructPath(URI uri, String hash, boolean isCas) {
+  protected String constructPath(URI uri, String hash, boolean isCas, boolean compressed) {
     StringBuilder builder = new StringBuilder();
     builder.append(uri.getPath());
     if (!uri.getPath().endsWith("/")) {
       builder.append("/");
     }
-    builder.append(isCas ? HttpCacheClient.CAS_PREFIX : HttpCacheClient.AC_PREFIX);
+    if (isCas) {
+      builder.append(compressed ? HttpCacheClient.CAS_DEFLATE_PREFIX : HttpCacheClient.CAS_PREFIX);
+    } else {
+      builder.append(HttpCacheClient.AC_PREFIX);
+    }
     builder.append(hash);
     return builder.toString();
   }
@@ -25,12 +25,23 @@ final class DownloadCommand {
   private final boolean casDownload;
   private final Digest digest;
   private final OutputStream out;
+  private final boolean compressed;
 
   protected DownloadCommand(URI uri, boolean casDownload, Digest digest, OutputStream out) {
+    this(uri, casDownload, digest, out, /* compressed= */ false);
+  }
+
+  /**
+   * Creates a command to download a blob, whose compressed contents are written to {@code out} if
+   * {@code compressed} is true.
+   */
+  protected DownloadCommand(
+      URI uri, boolean casDownload, Digest digest, OutputStream out, boolean compressed) {
     this.uri = Preconditions.checkNotNull(uri);
     this.casDownload = casDownload;
     this.digest = Preconditions.checkNotNull(digest);
     this.out = Preconditions.checkNotNull(out);
+    this.compressed = compressed;
   }
 
   public URI uri() {
@@ -48,4 +59,8 @@ final class DownloadCommand {
   public OutputStream out() {
     return out;
   }
+
+  public boolean compressed() {
+    return compressed;
+  }
 }
@@ -25,6 +25,8 @@ import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
+import com.google.devtools.build.lib.remote.util.Compression;
+import com.google.devtools.build.lib.remote.util.Compression.DecompressingOutputStream;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.remote.util.Utils;
 import com.google.devtools.build.lib.vfs.Path;
@@ -103,6 +105,10 @@ import javax.net.ssl.SSLEngine;
  * as the 204 (NO CONTENT) status code is only supported for compatibility with the nginx webdav
  * module.
  *
+ * <p>If compression is enabled, CAS blobs are instead stored compressed with raw deflate (see
+ * {@link Compression}) under the path {@code /cas.deflate/base16-key}, where the key is the digest
+ * of the uncompressed blob. Action cache blobs are never compressed.
+ *
  * <p>TLS is supported and enabled automatically when using HTTPS as the URI scheme.
  *
  * <p>Uploads do not use {@code Expect: 100-CONTINUE} headers, as this would incur an additional
@@ -115,6 +121,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
 
   public static final String AC_PREFIX = "ac/";
   public static final String CAS_PREFIX = "cas/";
+  public static final String CAS_DEFLATE_PREFIX = "cas.deflate/";
   private static final Pattern INVALID_TOKEN_ERROR =
       Pattern.compile("\\s*error\\s*=\\s*\"?invalid_token\"?");
 
@@ -127,6 +134,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
   private final ImmutableList<Entry<String, String>> extraHttpHeaders;
   private final boolean useTls;
   private final boolean verifyDownloads;
+  private final boolean compressed;
   private final DigestUtil digestUtil;
 
   private final Object closeLock = new Object();
@@ -147,6 +155,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
       int timeoutSeconds,
       int remoteMaxConnections,
       boolean verifyDownloads,
+      boolean compressed,
       ImmutableList<Entry<String, String>> extraHttpHeaders,
       DigestUtil digestUtil,
       @Nullable final Credentials creds)
@@ -158,6 +167,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
         timeoutSeconds,
         remoteMaxConnections,
         verifyDownloads,
+        compressed,
         extraHttpHeaders,
         digestUtil,
         creds,
@@ -170,6 +180,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
       int timeoutSeconds,
       int remoteMaxConnections,
       boolean verifyDownloads,
+      boolean compressed,
       ImmutableList<Entry<String, String>> extraHttpHeaders,
       DigestUtil digestUtil,
       @Nullable final Credentials creds)
@@ -183,6 +194,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
           timeoutSeconds,
           remoteMaxConnections,
           verifyDownloads,
+          compressed,
           extraHttpHeaders,
           digestUtil,
           creds,
@@ -195,6 +207,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
           timeoutSeconds,
           remoteMaxConnections,
           verifyDownloads,
+          compressed,
           extraHttpHeaders,
           digestUtil,
           creds,
@@ -211,6 +224,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
       int timeoutSeconds,
       int remoteMaxConnections,
       boolean verifyDownloads,
+      boolean compressed,
       ImmutableList<Entry<String, String>> extraHttpHeaders,
       DigestUtil digestUtil,
       @Nullable final Credentials creds,
@@ -280,6 +294,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
     this.timeoutSeconds = timeoutSeconds;
     this.extraHttpHeaders = extraHttpHeaders;
     this.verifyDownloads = verifyDownloads;
+    this.compressed = compressed;
     this.digestUtil = digestUtil;
   }
 
@@ -441,25 +456,42 @@ public final class HttpCacheClient implements RemoteCacheClient {
   public ListenableFuture<Void> downloadBlob(Digest digest, OutputStream out) {
     final HashingOutputStream hashOut =
         verifyDownloads ? digestUtil.newHashingOutputStream(out) : null;
-    return Futures.transformAsync(
-        get(digest, hashOut != null ? hashOut : out, /* casDownload= */ true),
-        (v) -> {
-          try {
-            if (hashOut != null) {
-              Utils.verifyBlobContents(
-                  digest.getHash(), DigestUtil.hashCodeToString(hashOut.hash()));
-            }
-            out.flush();
-            return Futures.immediateFuture(null);
-          } catch (IOException e) {
-            return Futures.immediateFailedFuture(e);
-          }
-        },
-        MoreExecutors.directExecutor());
+    OutputStream uncompressedOut = hashOut != null ? hashOut : out;
+    final DecompressingOutputStream decompressor =
+        compressed ? Compression.decompress(uncompressedOut) : null;
+    ListenableFuture<Void> download =
+        Futures.transformAsync(
+            get(
+                digest,
+                decompressor != null ? decompressor : uncompressedOut,
+                /* casDownload= */ true,
+                compressed),
+            (v) -> {
+              try {
+                if (decompressor != null) {
+                  // Fails if the compressed data was truncated.
+                  decompressor.finish();
+                }
+                if (hashOut != null) {
+                  Utils.verifyBlobContents(
+                      digest.getHash(), DigestUtil.hashCodeToString(hashOut.hash()));
+                }
+                out.flush();
+                return Futures.immediateFuture(null);
+              } catch (IOException e) {
+                return Futures.immediateFailedFuture(e);
+              }
+            },
+            MoreExecutors.directExecutor());
+    if (decompressor != null) {
+      download.addListener(decompressor::close, MoreExecutors.directExecutor());
+    }
+    return download;
   }
 
   @SuppressWarnings("FutureReturnValueIgnored")
-  private ListenableFuture<Void> get(Digest digest, final OutputStream out, boolean casDownload) {
+  private ListenableFuture<Void> get(
+      Digest digest, final OutputStream out, boolean casDownload, boolean compressed) {
     final AtomicBoolean dataWritten = new AtomicBoolean();
     OutputStream wrappedOut =
         new OutputStream() {
@@ -484,7 +516,8 @@ public final class HttpCacheClient implements RemoteCacheClient {
             out.flush();
           }
         };
-    DownloadCommand downloadCmd = new DownloadCommand(uri, casDownload, digest, wrappedOut);
+    DownloadCommand downloadCmd =
+        new DownloadCommand(uri, casDownload, digest, wrappedOut, compressed);
     SettableFuture<Void> outerF = SettableFuture.create();
     acquireDownloadChannel()
         .addListener(
@@ -568,12 +601,24 @@ public final class HttpCacheClient implements RemoteCacheClient {
   @Override
   public ListenableFuture<ActionResult> downloadActionResult(ActionKey actionKey) {
     return Utils.downloadAsActionResult(
-        actionKey, (digest, out) -> get(digest, out, /* casDownload= */ false));
+        actionKey,
+        (digest, out) -> get(digest, out, /* casDownload= */ false, /* compressed= */ false));
   }
 
-  @SuppressWarnings("FutureReturnValueIgnored")
   private void uploadBlocking(String key, long length, InputStream in, boolean casUpload)
       throws IOException, InterruptedException {
+    uploadBlocking(key, length, in, casUpload, /* compressed= */ false);
+  }
+
+  /**
+   * Uploads {@code length} bytes from {@code in}, which are the compressed contents of the blob if
+   * {@code compressed} is true. If {@code length} is {@link UploadCommand#UNKNOWN_CONTENT_LENGTH},
+   * {@code in} is uploaded up to its end.
+   */
+  @SuppressWarnings("FutureReturnValueIgnored")
+  private void uploadBlocking(
+      String key, long length, InputStream in, boolean casUpload, boolean compressed)
+      throws IOException, InterruptedException {
     InputStream wrappedIn =
         new FilterInputStream(in) {
           @Override
@@ -583,10 +628,11 @@ public final class HttpCacheClient implements RemoteCacheClient {
             // the finally block below.
           }
         };
-    UploadCommand upload = new UploadCommand(uri, casUpload, key, wrappedIn, length);
+    UploadCommand upload = new UploadCommand(uri, casUpload, key, wrappedIn, length, compressed);
     Channel ch = null;
     boolean success = false;
-    if (storedBlobs.putIfAbsent((casUpload ? CAS_PREFIX : AC_PREFIX) + key, true) == null) {
+    String prefix = casUpload ? (compressed ? CAS_DEFLATE_PREFIX : CAS_PREFIX) : AC_PREFIX;
+    if (storedBlobs.putIfAbsent(prefix + key, true) == null) {
       try {
         ch = acquireUploadChannel();
         ChannelFuture uploadFuture = ch.writeAndFlush(upload);
@@ -613,7 +659,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
         throw e;
       } finally {
         if (!success) {
-          storedBlobs.remove(key);
+          storedBlobs.remove(prefix + key);
         }
         in.close();
         if (ch != null) {
@@ -625,6 +671,21 @@ public final class HttpCacheClient implements RemoteCacheClient {
 
   @Override
   public ListenableFuture<Void> uploadFile(Digest digest, Path file) {
+    if (compressed) {
+      // The compressed size is not known in advance, so the file is compressed once while it is
+      // sent with chunked transfer encoding.
+      try (InputStream in = Compression.compress(file.getInputStream())) {
+        uploadBlocking(
+            digest.getHash(),
+            UploadCommand.UNKNOWN_CONTENT_LENGTH,
+            in,
+            /* casUpload= */ true,
+            /* compressed= */ true);
+      } catch (IOException | InterruptedException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+      return Futures.immediateFuture(null);
+    }
     try (InputStream in = file.getInputStream()) {
       uploadBlocking(digest.getHash(), digest.getSizeBytes(), in, /* casUpload= */ true);
     } catch (IOException | InterruptedException e) {
@@ -635,6 +696,22 @@ public final class HttpCacheClient implements RemoteCacheClient {
 
   @Override
   public ListenableFuture<Void> uploadBlob(Digest digest, ByteString data) {
+    if (compressed) {
+      try {
+        ByteString compressedData = ByteString.readFrom(Compression.compress(data.newInput()));
+        try (InputStream in = compressedData.newInput()) {
+          uploadBlocking(
+              digest.getHash(),
+              compressedData.size(),
+              in,
+              /* casUpload= */ true,
+              /* compressed= */ true);
+        }
+      } catch (IOException | InterruptedException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+      return Futures.immediateFuture(null);
+    }
     try (InputStream in = data.newInput()) {
       uploadBlocking(digest.getHash(), digest.getSizeBytes(), in, /* casUpload= */ true);
     } catch (IOException | InterruptedException e) {
@@ -92,7 +92,7 @@ final class HttpUploadHandler extends AbstractHttpHandler<FullHttpResponse> {
       return;
     }
     UploadCommand cmd = (UploadCommand) msg;
-    path = constructPath(cmd.uri(), cmd.hash(), cmd.casUpload());
+    path = constructPath(cmd.uri(), cmd.hash(), cmd.casUpload(), cmd.compressed());
     contentLength = cmd.contentLength();
     HttpRequest request = buildRequest(path, constructHost(cmd.uri()), contentLength);
     addCredentialHeaders(request, cmd.uri());
@@ -133,7 +133,11 @@ final class HttpUploadHandler extends AbstractHttpHandler<FullHttpResponse> {
     HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.PUT, path);
     request.headers().set(HttpHeaderNames.HOST, host);
     request.headers().set(HttpHeaderNames.ACCEPT, "*/*");
-    request.headers().set(HttpHeaderNames.CONTENT_LENGTH, contentLength);
+    if (contentLength == UploadCommand.UNKNOWN_CONTENT_LENGTH) {
+      HttpUtil.setTransferEncodingChunked(request, true);
+    } else {
+      request.headers().set(HttpHeaderNames.CONTENT_LENGTH, contentLength);
+    }
     request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
     return request;
   }
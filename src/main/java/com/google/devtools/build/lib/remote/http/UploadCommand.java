@@ -20,19 +20,39 @@ import java.net.URI;
 /** Object sent through the channel pipeline to start an upload. */
 final class UploadCommand {
 
+  /** The content length of uploads that are sent with chunked transfer encoding. */
+  static final long UNKNOWN_CONTENT_LENGTH = -1;
+
   private final URI uri;
   private final boolean casUpload;
   private final String hash;
   private final InputStream data;
   private final long contentLength;
+  private final boolean compressed;
 
   protected UploadCommand(
       URI uri, boolean casUpload, String hash, InputStream data, long contentLength) {
+    this(uri, casUpload, hash, data, contentLength, /* compressed= */ false);
+  }
+
+  /**
+   * Creates a command to upload {@code data}, which are the compressed contents of the blob if
+   * {@code compressed} is true. {@code contentLength} is the length of {@code data}, or {@link
+   * #UNKNOWN_CONTENT_LENGTH}.
+   */
+  protected UploadCommand(
+      URI uri,
+      boolean casUpload,
+      String hash,
+      InputStream data,
+      long contentLength,
+      boolean compressed) {
     this.uri = Preconditions.checkNotNull(uri);
     this.casUpload = casUpload;
     this.hash = Preconditions.checkNotNull(hash);
     this.data = Preconditions.checkNotNull(data);
     this.contentLength = contentLength;
+    this.compressed = compressed;
   }
 
   public URI uri() {
@@ -54,4 +74,8 @@ final class UploadCommand {
   public long contentLength() {
     return contentLength;
   }
+
+  public boolean compressed() {
+    return compressed;
+  }
 }
@@ -23,6 +23,9 @@ final class UploadTimeoutException extends IOException {
   }
 
   private static String buildMessage(String url, long contentLength) {
+    if (contentLength < 0) {
+      return String.format("Upload of '%s' timed out.", url);
+    }
     return String.format("Upload of '%s' timed out. Sent %d bytes.", url, contentLength);
   }
 }
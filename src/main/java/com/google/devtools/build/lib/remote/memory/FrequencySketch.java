@@ -0,0 +1,91 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.memory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Approximates how often keys were accessed recently, in a fixed amount of memory (TinyLFU).
+ *
+ * <p>This is a count-min sketch with {@link #DEPTH} rows of counters that saturate at {@link
+ * #MAX_COUNT}. Once there have been ten times as many increments as a row has counters, all
+ * counters are halved, so that keys that were popular long ago lose their advantage.
+ *
+ * <p>Not thread-safe.
+ */
+final class FrequencySketch {
+
+  private static final int DEPTH = 4;
+  private static final int MAX_COUNT = 15;
+
+  private final byte[][] counters;
+  private final int mask;
+  private final int sampleSize;
+  private int increments;
+
+  /** Creates a sketch with at least {@code width} counters per row. */
+  FrequencySketch(int width) {
+    Preconditions.checkArgument(width > 0, width);
+    int size = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+    this.counters = new byte[DEPTH][size];
+    this.mask = size - 1;
+    this.sampleSize = 10 * size;
+  }
+
+  /** Returns the estimated number of recent accesses to {@code key}, at most {@link #MAX_COUNT}. */
+  int frequency(Object key) {
+    int hash = spread(key.hashCode());
+    int frequency = MAX_COUNT;
+    for (int i = 0; i < DEPTH; i++) {
+      frequency = Math.min(frequency, counters[i][index(hash, i)]);
+    }
+    return frequency;
+  }
+
+  /** Records an access to {@code key}. */
+  void increment(Object key) {
+    int hash = spread(key.hashCode());
+    for (int i = 0; i < DEPTH; i++) {
+      int index = index(hash, i);
+      if (counters[i][index] < MAX_COUNT) {
+        counters[i][index]++;
+      }
+    }
+    if (++increments == sampleSize) {
+      reset();
+    }
+  }
+
+  private void reset() {
+    for (byte[] row : counters) {
+      for (int i = 0; i < row.length; i++) {
+        row[i] >>= 1;
+      }
+    }
+    increments /= 2;
+  }
+
+  private int index(int hash, int row) {
+    // Double hashing: derives the index of each row from two halves of one well mixed hash.
+    int h = hash + row * ((hash >>> 16) | 1);
+    return spread(h) & mask;
+  }
+
+  private static int spread(int x) {
+    x ^= x >>> 16;
+    x *= 0x45d9f3b;
+    x ^= x >>> 16;
+    return x;
+  }
+}
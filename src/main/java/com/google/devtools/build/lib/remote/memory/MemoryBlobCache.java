@@ -0,0 +1,281 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.memory;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * A size-bounded in-memory cache of blobs, keyed by their digest.
+ *
+ * <p>Entries are admitted with the W-TinyLFU policy: new blobs enter a small LRU window, and a blob
+ * leaving the window only replaces blobs of the main area if it has been requested more often
+ * recently, as estimated by a {@link FrequencySketch}. The main area is a segmented LRU, in which
+ * blobs requested again are protected from blobs that were requested only once. This keeps blobs
+ * that every build reads, like toolchain headers, in memory while large one-off outputs stream
+ * through.
+ *
+ * <p>With {@code offHeap}, the contents of blobs are copied to direct buffers, so that they don't
+ * count towards the Java heap. Their memory is released once evicted blobs are garbage collected.
+ */
+@ThreadSafe
+public final class MemoryBlobCache {
+
+  private static final double WINDOW_FRACTION = 0.01;
+  private static final double PROTECTED_FRACTION = 0.8;
+
+  /** Used to size the frequency sketch to the expected number of entries. */
+  private static final long ASSUMED_BLOB_SIZE = 4 * 1024;
+
+  private static final int MIN_SKETCH_WIDTH = 64;
+  private static final int MAX_SKETCH_WIDTH = 1 << 24;
+
+  private final long maxSizeBytes;
+  private final long maxBlobSizeBytes;
+  private final boolean offHeap;
+  private final long maxWindowBytes;
+  private final long maxMainBytes;
+  private final long maxProtectedBytes;
+
+  // All fields below are guarded by this.
+  private final FrequencySketch sketch;
+  private final Segment window = new Segment();
+  private final Segment probation = new Segment();
+  private final Segment protectedSegment = new Segment();
+  private long hits;
+  private long misses;
+  private long evictedEntries;
+  private long evictedBytes;
+
+  /**
+   * @param maxSizeBytes the maximum total size of the cached blobs
+   * @param maxBlobSizeBytes blobs larger than this are never cached
+   * @param offHeap whether to keep the contents of blobs outside the Java heap
+   */
+  public MemoryBlobCache(long maxSizeBytes, long maxBlobSizeBytes, boolean offHeap) {
+    Preconditions.checkArgument(maxSizeBytes > 0, maxSizeBytes);
+    this.maxSizeBytes = maxSizeBytes;
+    this.maxBlobSizeBytes = maxBlobSizeBytes;
+    this.offHeap = offHeap;
+    this.maxWindowBytes = (long) (maxSizeBytes * WINDOW_FRACTION);
+    this.maxMainBytes = maxSizeBytes - maxWindowBytes;
+    this.maxProtectedBytes = (long) (maxMainBytes * PROTECTED_FRACTION);
+    long expectedEntries = maxSizeBytes / ASSUMED_BLOB_SIZE;
+    this.sketch =
+        new FrequencySketch(
+            (int) Math.max(MIN_SKETCH_WIDTH, Math.min(MAX_SKETCH_WIDTH, expectedEntries)));
+  }
+
+  public long getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  public long getMaxBlobSizeBytes() {
+    return maxBlobSizeBytes;
+  }
+
+  public boolean isOffHeap() {
+    return offHeap;
+  }
+
+  /** Returns whether blobs of {@code sizeBytes} are cached at all. */
+  public boolean accepts(long sizeBytes) {
+    // A blob larger than the main area could never be admitted to it.
+    return sizeBytes <= maxBlobSizeBytes && sizeBytes <= maxMainBytes;
+  }
+
+  /** Returns the contents of the blob with {@code digest}, or null if it is not cached. */
+  @Nullable
+  public synchronized ByteString get(Digest digest) {
+    sketch.increment(digest);
+    ByteString data = window.get(digest);
+    if (data == null) {
+      data = protectedSegment.get(digest);
+    }
+    if (data == null) {
+      data = probation.remove(digest);
+      if (data != null) {
+        protectedSegment.add(digest, data);
+        demoteFromProtected();
+      }
+    }
+    if (data == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return data;
+  }
+
+  /**
+   * Offers the contents of the blob with {@code digest} to the cache, which may keep it or
+   * immediately evict it again.
+   */
+  public void put(Digest digest, ByteString data) {
+    if (!accepts(data.size())) {
+      return;
+    }
+    if (offHeap) {
+      data = copyOffHeap(data);
+    }
+    synchronized (this) {
+      if (window.contains(digest)
+          || probation.contains(digest)
+          || protectedSegment.contains(digest)) {
+        return;
+      }
+      window.add(digest, data);
+      while (window.sizeBytes > maxWindowBytes) {
+        Digest candidate = window.eldest();
+        admit(candidate, window.remove(candidate));
+      }
+    }
+  }
+
+  /** Moves {@code candidate} from the window to the main area, if it is popular enough. */
+  private void admit(Digest candidate, ByteString data) {
+    int candidateFrequency = sketch.frequency(candidate);
+    while (probation.sizeBytes + protectedSegment.sizeBytes + data.size() > maxMainBytes) {
+      Segment victims = probation.isEmpty() ? protectedSegment : probation;
+      Digest victim = victims.eldest();
+      if (victim == null || candidateFrequency <= sketch.frequency(victim)) {
+        recordEviction(data);
+        return;
+      }
+      recordEviction(victims.remove(victim));
+    }
+    probation.add(candidate, data);
+  }
+
+  private void demoteFromProtected() {
+    while (protectedSegment.sizeBytes > maxProtectedBytes) {
+      Digest eldest = protectedSegment.eldest();
+      probation.add(eldest, protectedSegment.remove(eldest));
+    }
+  }
+
+  private void recordEviction(ByteString data) {
+    evictedEntries++;
+    evictedBytes += data.size();
+  }
+
+  private static ByteString copyOffHeap(ByteString data) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(data.size());
+    data.copyTo(buffer);
+    buffer.flip();
+    return UnsafeByteOperations.unsafeWrap(buffer);
+  }
+
+  public synchronized Stats getStats() {
+    return new Stats(
+        hits,
+        misses,
+        evictedEntries,
+        evictedBytes,
+        window.sizeBytes + probation.sizeBytes + protectedSegment.sizeBytes);
+  }
+
+  /** Counters of a {@link MemoryBlobCache}, accumulated since it was created. */
+  public static final class Stats {
+    private final long hits;
+    private final long misses;
+    private final long evictedEntries;
+    private final long evictedBytes;
+    private final long sizeBytes;
+
+    Stats(long hits, long misses, long evictedEntries, long evictedBytes, long sizeBytes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.evictedEntries = evictedEntries;
+      this.evictedBytes = evictedBytes;
+      this.sizeBytes = sizeBytes;
+    }
+
+    public long getHits() {
+      return hits;
+    }
+
+    public long getMisses() {
+      return misses;
+    }
+
+    public long getEvictedEntries() {
+      return evictedEntries;
+    }
+
+    public long getEvictedBytes() {
+      return evictedBytes;
+    }
+
+    /** Total size of the cached blobs in bytes. */
+    public long getSizeBytes() {
+      return sizeBytes;
+    }
+
+    /** Returns the counters accumulated since {@code earlier}; the size is taken from this one. */
+    public Stats minus(Stats earlier) {
+      return new Stats(
+          hits - earlier.hits,
+          misses - earlier.misses,
+          evictedEntries - earlier.evictedEntries,
+          evictedBytes - earlier.evictedBytes,
+          sizeBytes);
+    }
+  }
+
+  /** Entries in least recently used order, with their total size. */
+  private static final class Segment {
+    private final LinkedHashMap<Digest, ByteString> entries =
+        new LinkedHashMap<>(16, 0.75f, /* accessOrder= */ true);
+    private long sizeBytes;
+
+    @Nullable
+    ByteString get(Digest digest) {
+      return entries.get(digest);
+    }
+
+    boolean contains(Digest digest) {
+      return entries.containsKey(digest);
+    }
+
+    boolean isEmpty() {
+      return entries.isEmpty();
+    }
+
+    void add(Digest digest, ByteString data) {
+      entries.put(digest, data);
+      sizeBytes += data.size();
+    }
+
+    @Nullable
+    ByteString remove(Digest digest) {
+      ByteString data = entries.remove(digest);
+      if (data != null) {
+        sizeBytes -= data.size();
+      }
+      return data;
+    }
+
+    @Nullable
+    Digest eldest() {
+      return entries.isEmpty() ? null : entries.keySet().iterator().next();
+    }
+  }
+}
@@ -0,0 +1,149 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.memory;
+
+import build.bazel.remote.execution.v2.ActionResult;
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
+import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link RemoteCacheClient} that serves small blobs from a {@link MemoryBlobCache} and falls
+ * back to another client, e.g. a {@link
+ * com.google.devtools.build.lib.remote.disk.DiskAndRemoteCacheClient}, for everything else.
+ *
+ * <p>Blobs downloaded from or uploaded to the other client are offered to the memory cache. Action
+ * results are not content-addressed and always go to the other client.
+ */
+public final class MemoryCacheClient implements RemoteCacheClient {
+
+  private final MemoryBlobCache memoryCache;
+  private final RemoteCacheClient delegate;
+
+  // Lookups of blobs in the other client, to report its hit ratio.
+  private final AtomicLong delegateHits = new AtomicLong();
+  private final AtomicLong delegateMisses = new AtomicLong();
+
+  public MemoryCacheClient(MemoryBlobCache memoryCache, RemoteCacheClient delegate) {
+    this.memoryCache = Preconditions.checkNotNull(memoryCache);
+    this.delegate = Preconditions.checkNotNull(delegate);
+  }
+
+  @Override
+  public ListenableFuture<ActionResult> downloadActionResult(ActionKey actionKey) {
+    return delegate.downloadActionResult(actionKey);
+  }
+
+  @Override
+  public void uploadActionResult(ActionKey actionKey, ActionResult actionResult)
+      throws IOException, InterruptedException {
+    delegate.uploadActionResult(actionKey, actionResult);
+  }
+
+  @Override
+  public ListenableFuture<Void> downloadBlob(Digest digest, OutputStream out) {
+    if (!memoryCache.accepts(digest.getSizeBytes())) {
+      return downloadFromDelegate(digest, out);
+    }
+    ByteString cached = memoryCache.get(digest);
+    if (cached != null) {
+      try {
+        cached.writeTo(out);
+        out.flush();
+      } catch (IOException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+      return Futures.immediateFuture(null);
+    }
+
+    ByteString.Output buffer = ByteString.newOutput((int) digest.getSizeBytes());
+    return Futures.transformAsync(
+        downloadFromDelegate(digest, buffer),
+        (unused) -> {
+          ByteString data = buffer.toByteString();
+          // Some clients complete without writing anything, e.g. if they don't accept cached
+          // results. Only blobs of the expected size are worth remembering.
+          if (data.size() == digest.getSizeBytes()) {
+            memoryCache.put(digest, data);
+          }
+          data.writeTo(out);
+          out.flush();
+          return Futures.immediateFuture(null);
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<Void> downloadFromDelegate(Digest digest, OutputStream out) {
+    ListenableFuture<Void> download = delegate.downloadBlob(digest, out);
+    download.addListener(() -> countDelegateLookup(download), MoreExecutors.directExecutor());
+    return download;
+  }
+
+  private void countDelegateLookup(ListenableFuture<Void> download) {
+    try {
+      Futures.getDone(download);
+      delegateHits.incrementAndGet();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof CacheNotFoundException) {
+        delegateMisses.incrementAndGet();
+      }
+    } catch (CancellationException e) {
+      // Neither a hit nor a miss.
+    }
+  }
+
+  /** Returns the number of blobs downloaded from the other client. */
+  public long getDelegateHits() {
+    return delegateHits.get();
+  }
+
+  /** Returns the number of blobs not found by the other client. */
+  public long getDelegateMisses() {
+    return delegateMisses.get();
+  }
+
+  @Override
+  public ListenableFuture<Void> uploadFile(Digest digest, Path file) {
+    return delegate.uploadFile(digest, file);
+  }
+
+  @Override
+  public ListenableFuture<Void> uploadBlob(Digest digest, ByteString data) {
+    memoryCache.put(digest, data);
+    return delegate.uploadBlob(digest, data);
+  }
+
+  @Override
+  public ListenableFuture<ImmutableSet<Digest>> findMissingDigests(Iterable<Digest> digests) {
+    // The remote cache must have the blobs itself, e.g. to run actions remotely.
+    return delegate.findMissingDigests(digests);
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+}
@@ -30,9 +30,16 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.protobuf.ByteString;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.TreeMap;
 import javax.annotation.Nullable;
 
 /** A merkle tree representation as defined by the remote execution api. */
@@ -125,6 +132,101 @@ public class MerkleTree {
     }
   }
 
+  /**
+   * Merges merkle trees that are all rooted at the exec root into one. Directories that are
+   * present in more than one of the trees are merged recursively. Of several files at the same
+   * path, the one from the first tree is kept.
+   */
+  public static MerkleTree merge(Collection<MerkleTree> trees, DigestUtil digestUtil) {
+    if (trees.size() == 1) {
+      return Iterables.getOnlyElement(trees);
+    }
+    if (trees.isEmpty()) {
+      return new MerkleTree(ImmutableMap.of(), ImmutableMap.of(), digestUtil.compute(new byte[0]));
+    }
+    Map<Digest, Directory> allDirectories = new HashMap<>();
+    Map<Digest, PathOrBytes> allFiles = new HashMap<>();
+    List<Digest> rootDigests = new ArrayList<>(trees.size());
+    for (MerkleTree tree : trees) {
+      allDirectories.putAll(tree.digestDirectoryMap);
+      allFiles.putAll(tree.digestFileMap);
+      rootDigests.add(tree.rootDigest);
+    }
+    Digest rootDigest = mergeDirectories(rootDigests, allDirectories, digestUtil);
+    if (!allDirectories.containsKey(rootDigest)) {
+      return new MerkleTree(ImmutableMap.of(), ImmutableMap.of(), digestUtil.compute(new byte[0]));
+    }
+
+    // Only keep what is reachable from the new root, so that the directories of the input trees
+    // that were merged away are not uploaded.
+    Map<Digest, Directory> digestDirectoryMap = new HashMap<>();
+    Map<Digest, PathOrBytes> digestFileMap = new HashMap<>();
+    Deque<Digest> pending = new ArrayDeque<>();
+    pending.push(rootDigest);
+    while (!pending.isEmpty()) {
+      Digest dirDigest = pending.pop();
+      Directory dir = allDirectories.get(dirDigest);
+      if (digestDirectoryMap.put(dirDigest, dir) != null) {
+        continue;
+      }
+      for (FileNode file : dir.getFilesList()) {
+        digestFileMap.put(file.getDigest(), allFiles.get(file.getDigest()));
+      }
+      for (DirectoryNode subdir : dir.getDirectoriesList()) {
+        pending.push(subdir.getDigest());
+      }
+    }
+    return new MerkleTree(digestDirectoryMap, digestFileMap, rootDigest);
+  }
+
+  /**
+   * Returns the digest of the directory that contains the contents of all the given directories,
+   * adding the directories created on the way to {@code digestDirectoryMap}.
+   */
+  private static Digest mergeDirectories(
+      List<Digest> dirDigests, Map<Digest, Directory> digestDirectoryMap, DigestUtil digestUtil) {
+    List<Directory> dirs = new ArrayList<>(dirDigests.size());
+    Digest lastDigest = null;
+    for (Digest dirDigest : new LinkedHashSet<>(dirDigests)) {
+      Directory dir = digestDirectoryMap.get(dirDigest);
+      // Empty trees have no root directory and add nothing.
+      if (dir != null) {
+        dirs.add(dir);
+        lastDigest = dirDigest;
+      }
+    }
+    if (dirs.isEmpty()) {
+      return dirDigests.get(0);
+    }
+    if (dirs.size() == 1) {
+      return lastDigest;
+    }
+
+    Map<String, FileNode> files = new TreeMap<>();
+    Map<String, List<Digest>> subdirs = new TreeMap<>();
+    for (Directory dir : dirs) {
+      for (FileNode file : dir.getFilesList()) {
+        files.putIfAbsent(file.getName(), file);
+      }
+      for (DirectoryNode subdir : dir.getDirectoriesList()) {
+        subdirs
+            .computeIfAbsent(subdir.getName(), name -> new ArrayList<>())
+            .add(subdir.getDigest());
+      }
+    }
+    Directory.Builder b = Directory.newBuilder().addAllFiles(files.values());
+    for (Map.Entry<String, List<Digest>> subdir : subdirs.entrySet()) {
+      b.addDirectories(
+          DirectoryNode.newBuilder()
+              .setName(subdir.getKey())
+              .setDigest(mergeDirectories(subdir.getValue(), digestDirectoryMap, digestUtil)));
+    }
+    Directory merged = b.build();
+    Digest mergedDigest = digestUtil.compute(merged);
+    digestDirectoryMap.put(mergedDigest, merged);
+    return mergedDigest;
+  }
+
   private static MerkleTree build(DirectoryTree tree, DigestUtil digestUtil) {
     Preconditions.checkNotNull(tree);
     if (tree.isEmpty()) {
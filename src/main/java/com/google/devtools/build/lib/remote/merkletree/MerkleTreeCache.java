@@ -0,0 +1,96 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.merkletree;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.actions.Artifact.ArtifactExpander;
+import com.google.devtools.build.lib.actions.MetadataProvider;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetView;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Remembers the merkle trees of the nodes of the input {@link NestedSet}s of a build, so that the
+ * inputs shared by many actions are looked up, staged and hashed only once.
+ *
+ * <p>The tree of a node holds the node's direct members at their exec paths, merged with the trees
+ * of its transitive members. Nodes are keyed by identity, and the metadata of an input does not
+ * change during a build, so an instance must not outlive the build it was created for.
+ */
+@ThreadSafe
+public final class MerkleTreeCache {
+
+  private final Cache<Object, MerkleTree> subtrees;
+
+  /** Creates a cache holding the merkle trees of at most {@code maxSubtrees} nested set nodes. */
+  public MerkleTreeCache(long maxSubtrees) {
+    Preconditions.checkArgument(maxSubtrees > 0, "maxSubtrees must be positive");
+    this.subtrees =
+        CacheBuilder.newBuilder().weakKeys().softValues().maximumSize(maxSubtrees).build();
+  }
+
+  /**
+   * Returns the merkle tree of {@code inputs}, with every input at its exec path and tree
+   * artifacts expanded, building only the subtrees of nodes that are not cached yet.
+   */
+  public MerkleTree getOrBuild(
+      NestedSet<ActionInput> inputs,
+      ArtifactExpander artifactExpander,
+      MetadataProvider metadataProvider,
+      Path execRoot,
+      DigestUtil digestUtil)
+      throws IOException {
+    return getOrBuild(
+        new NestedSetView<>(inputs), artifactExpander, metadataProvider, execRoot, digestUtil);
+  }
+
+  private MerkleTree getOrBuild(
+      NestedSetView<ActionInput> node,
+      ArtifactExpander artifactExpander,
+      MetadataProvider metadataProvider,
+      Path execRoot,
+      DigestUtil digestUtil)
+      throws IOException {
+    MerkleTree tree = subtrees.getIfPresent(node.identifier());
+    if (tree != null) {
+      return tree;
+    }
+    SortedMap<PathFragment, ActionInput> directs = new TreeMap<>();
+    for (ActionInput input : ActionInputHelper.expandArtifacts(node.directs(), artifactExpander)) {
+      directs.put(input.getExecPath(), input);
+    }
+    List<MerkleTree> trees = new ArrayList<>();
+    if (!directs.isEmpty()) {
+      trees.add(MerkleTree.build(directs, metadataProvider, execRoot, digestUtil));
+    }
+    for (NestedSetView<ActionInput> transitive : node.transitives()) {
+      trees.add(getOrBuild(transitive, artifactExpander, metadataProvider, execRoot, digestUtil));
+    }
+    tree = MerkleTree.merge(trees, digestUtil);
+    subtrees.put(node.identifier(), tree);
+    return tree;
+  }
+}
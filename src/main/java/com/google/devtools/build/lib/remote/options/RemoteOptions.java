@@ -220,6 +220,48 @@ public final class RemoteOptions extends OptionsBase {
               + "If the directory does not exist, it will be created.")
   public PathFragment diskCache;
 
+  @Option(
+      name = "disk_cache_max_size",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "The maximum size in bytes of the --disk_cache directory. When a write makes the cache "
+              + "exceed this size, the least recently used entries are deleted in the background "
+              + "until the cache is below 90% of the limit. 0 means no limit.")
+  public long diskCacheMaxSize;
+
+  @Option(
+      name = "experimental_remote_memory_cache_size",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "The size in bytes of an in-memory cache of blobs in front of the --disk_cache and "
+              + "remote caches. The cache is kept by the server across builds and only holds "
+              + "blobs that are requested repeatedly. 0 disables it.")
+  public long remoteMemoryCacheSize;
+
+  @Option(
+      name = "experimental_remote_memory_cache_max_blob_size",
+      defaultValue = "1048576",
+      documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "The size in bytes of the largest blob kept by --experimental_remote_memory_cache_size.")
+  public long remoteMemoryCacheMaxBlobSize;
+
+  @Option(
+      name = "experimental_remote_memory_cache_off_heap",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "If enabled, the blobs of --experimental_remote_memory_cache_size are kept outside the "
+              + "Java heap, in direct buffers. Their size is then limited by "
+              + "-XX:MaxDirectMemorySize in --host_jvm_args.")
+  public boolean remoteMemoryCacheOffHeap;
+
   @Option(
       name = "experimental_guard_against_concurrent_changes",
       defaultValue = "false",
@@ -405,6 +447,56 @@ public final class RemoteOptions extends OptionsBase {
               + " discard the remotely cached values if they don't match the expected value.")
   public boolean remoteVerifyDownloads;
 
+  @Option(
+      name = "experimental_remote_cache_batching",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+      help =
+          "If set to true, blobs smaller than the maximum batch size advertised by the gRPC remote "
+              + "cache are uploaded and downloaded with the BatchUpdateBlobs and BatchReadBlobs "
+              + "calls, packing many blobs into a single call. Larger blobs always use the "
+              + "ByteStream API.")
+  public boolean remoteCacheBatching;
+
+  @Option(
+      name = "experimental_remote_cache_compression",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+      help =
+          "If set to true, blobs are compressed with deflate when they are transferred with the "
+              + "ByteStream API or the HTTP remote cache, and decompressed as they are downloaded. "
+              + "The gRPC remote cache must support the compressed-blobs resource names; if it "
+              + "does not, Bazel falls back to uncompressed transfers. Blobs stored in an HTTP "
+              + "remote cache with this option are not visible to clients without it.")
+  public boolean cacheCompression;
+
+  @Option(
+      name = "experimental_remote_merkle_tree_cache",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+      help =
+          "If set to true, the merkle trees of the input nested sets of remotely executed actions "
+              + "are cached for the duration of a build, so that inputs shared by many actions are "
+              + "staged and hashed only once.")
+  public boolean remoteMerkleTreeCache;
+
+  @Option(
+      name = "experimental_remote_merkle_tree_cache_size",
+      defaultValue = "10000",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+      help =
+          "The maximum number of nested set nodes whose merkle trees are cached by "
+              + "--experimental_remote_merkle_tree_cache.")
+  public long remoteMerkleTreeCacheSize;
+
   // The below options are not configurable by users, only tests.
   // This is part of the effort to reduce the overall number of flags.
 
@@ -0,0 +1,133 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.util;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Streaming compression of blobs transferred to and from a remote cache.
+ *
+ * <p>Blobs are compressed with raw deflate (RFC 1951), which is the {@code DEFLATE} compressor of
+ * the remote execution API. The compressed form of a blob is identified by the same digest as the
+ * uncompressed blob, and is stored by servers under the {@code compressed-blobs/deflate} resource
+ * names.
+ */
+public final class Compression {
+
+  /** The name of the compressor in {@code compressed-blobs} resource names. */
+  public static final String COMPRESSOR = "deflate";
+
+  private Compression() {}
+
+  /**
+   * Returns the resource name of the compressed blob with the given hash and size, as used to read
+   * it with the {@code ByteStream} API.
+   */
+  public static String readResourceName(String instanceName, String hash, long size) {
+    String resourceName = "compressed-blobs/" + COMPRESSOR + "/" + hash + "/" + size;
+    if (!Strings.isNullOrEmpty(instanceName)) {
+      resourceName = instanceName + "/" + resourceName;
+    }
+    return resourceName;
+  }
+
+  /** Returns whether the given {@code ByteStream} resource name refers to a compressed blob. */
+  public static boolean isCompressedResourceName(String resourceName) {
+    return resourceName.startsWith("compressed-blobs/" + COMPRESSOR + "/")
+        || resourceName.contains("/compressed-blobs/" + COMPRESSOR + "/");
+  }
+
+  /**
+   * Returns a stream of the compressed contents of {@code in}. Closing the returned stream closes
+   * {@code in}.
+   */
+  public static InputStream compress(InputStream in) {
+    return new DeflatingInputStream(in);
+  }
+
+  /** Returns the size of the compressed contents of {@code in}, and closes it. */
+  public static long compressedSize(InputStream in) throws IOException {
+    try (InputStream compressed = compress(in)) {
+      return ByteStreams.exhaust(compressed);
+    }
+  }
+
+  /**
+   * Returns a stream that decompresses the data written to it and writes the result to {@code
+   * out}.
+   */
+  public static DecompressingOutputStream decompress(OutputStream out) {
+    return new DecompressingOutputStream(out);
+  }
+
+  private static final class DeflatingInputStream extends DeflaterInputStream {
+
+    DeflatingInputStream(InputStream in) {
+      // Compression must keep up with the network, so favor speed over the compression ratio.
+      super(in, new Deflater(Deflater.BEST_SPEED, /* nowrap= */ true));
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        // The deflater is not owned by the superclass, so it won't release it.
+        def.end();
+      }
+    }
+  }
+
+  /**
+   * A stream that decompresses the data written to it. It does not own the underlying stream:
+   * {@link #close()} releases the decompressor but leaves the underlying stream open.
+   */
+  public static final class DecompressingOutputStream extends InflaterOutputStream {
+
+    private DecompressingOutputStream(OutputStream out) {
+      super(out, new Inflater(/* nowrap= */ true));
+    }
+
+    /**
+     * Writes any remaining decompressed data to the underlying stream, and checks that the
+     * compressed data is complete.
+     *
+     * @throws IOException if the compressed data is truncated or corrupt
+     */
+    @Override
+    public void finish() throws IOException {
+      if (!inf.finished() && inf.needsInput()) {
+        // With nowrap, zlib may need an extra byte of input to detect the end of the data.
+        write(0);
+      }
+      super.finish();
+      if (!inf.finished()) {
+        throw new IOException("Compressed data ended unexpectedly");
+      }
+    }
+
+    @Override
+    public void close() {
+      inf.end();
+    }
+  }
+}
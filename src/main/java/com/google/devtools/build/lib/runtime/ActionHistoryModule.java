@@ -0,0 +1,96 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.actions.ActionResultReceivedEvent;
+import com.google.devtools.build.lib.buildtool.BuildRequest;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.exec.ActionHistory;
+import com.google.devtools.build.lib.exec.ExecutionOptions;
+import com.google.devtools.build.lib.exec.ExecutorBuilder;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.SilentCloseable;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+
+/**
+ * Records the executions of actions in an {@link ActionHistory} kept in the output base, and makes
+ * it available to strategies as an action context.
+ */
+public final class ActionHistoryModule extends BlazeModule {
+
+  private static final String ACTION_HISTORY_FILE = "action_history";
+
+  // The history outlives commands, so that it is only mapped once per output base.
+  private Path actionHistoryFile;
+  private ActionHistory actionHistory;
+
+  private boolean enabled;
+
+  @Override
+  public void executorInit(CommandEnvironment env, BuildRequest request, ExecutorBuilder builder) {
+    ExecutionOptions options = env.getOptions().getOptions(ExecutionOptions.class);
+    enabled = options != null && options.recordActionHistory;
+    if (!enabled) {
+      return;
+    }
+    Path file = env.getOutputBase().getRelative(ACTION_HISTORY_FILE);
+    if (actionHistory == null || !file.equals(actionHistoryFile)) {
+      actionHistoryFile = file;
+      actionHistory = openActionHistory(env, file);
+    }
+    if (actionHistory == null) {
+      enabled = false;
+      return;
+    }
+    env.getEventBus().register(this);
+    builder.addActionContext(actionHistory);
+    builder.addStrategyByContext(ActionHistory.class, "");
+  }
+
+  private static ActionHistory openActionHistory(CommandEnvironment env, Path file) {
+    try {
+      return ActionHistory.open(file);
+    } catch (IOException e) {
+      env.getReporter()
+          .handle(Event.warn("Discarding the action history: " + e.getMessage()));
+    }
+    try {
+      file.delete();
+      return ActionHistory.open(file);
+    } catch (IOException e) {
+      env.getReporter()
+          .handle(Event.warn("Action history disabled, cannot create it: " + e.getMessage()));
+      return null;
+    }
+  }
+
+  @Subscribe
+  @AllowConcurrentEvents
+  public void actionResultReceived(ActionResultReceivedEvent event) {
+    actionHistory.record(event.getAction(), event.getActionResult().spawnResults());
+  }
+
+  @Override
+  public void afterCommand() {
+    if (enabled) {
+      try (SilentCloseable c = Profiler.instance().profile("Save action history")) {
+        actionHistory.save();
+      }
+    }
+    enabled = false;
+  }
+}
@@ -64,6 +64,8 @@ public final class BlazeWorkspace {
   private final SkyframeExecutor skyframeExecutor;
   /** The action cache is loaded lazily on the first build command. */
   private ActionCache actionCache;
+  /** Whether {@link #actionCache} is kept in memory-mapped files. */
+  private boolean actionCacheMemoryMapped;
   /** The execution time range of the previous build command in this server, if any. */
   @Nullable private Range<Long> lastExecutionRange = null;
 
@@ -232,10 +234,28 @@ public final class BlazeWorkspace {
    * requests, so return value should not be cached.
    */
   public ActionCache getPersistentActionCache(Reporter reporter) throws IOException {
+    return getPersistentActionCache(reporter, actionCacheMemoryMapped);
+  }
+
+  /**
+   * Like {@link #getPersistentActionCache(Reporter)}, but recreates the action cache instance if
+   * it is not of the requested kind.
+   *
+   * @param memoryMapped whether the action cache should be kept in memory-mapped files
+   */
+  public ActionCache getPersistentActionCache(Reporter reporter, boolean memoryMapped)
+      throws IOException {
+    if (memoryMapped != actionCacheMemoryMapped) {
+      // The previous cache was saved at the end of the last build.
+      actionCache = null;
+      actionCacheMemoryMapped = memoryMapped;
+    }
     if (actionCache == null) {
       try (AutoProfiler p = profiledAndLogged("Loading action cache", ProfilerTask.INFO, logger)) {
         try {
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache =
+              new CompactPersistentActionCache(
+                  getCacheDirectory(), runtime.getClock(), actionCacheMemoryMapped);
         } catch (IOException e) {
           logger.log(Level.WARNING, "Failed to load action cache: " + e.getMessage(), e);
           LoggingUtil.logToRemote(
@@ -248,7 +268,9 @@ public final class BlazeWorkspace {
                       + getCacheDirectory()
                       + "/*.bad'. "
                       + "Bazel will now reset action cache data, causing a full rebuild"));
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache =
+              new CompactPersistentActionCache(
+                  getCacheDirectory(), runtime.getClock(), actionCacheMemoryMapped);
         }
       }
     }
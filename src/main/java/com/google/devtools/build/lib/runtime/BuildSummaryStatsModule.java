@@ -19,6 +19,7 @@ import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import com.google.devtools.build.lib.actions.ActionKeyContext;
 import com.google.devtools.build.lib.actions.ActionResultReceivedEvent;
+import com.google.devtools.build.lib.actions.ResourceManager.SchedulingPolicy;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildCompleteEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.ExecutionStartingEvent;
@@ -46,11 +47,18 @@ public class BuildSummaryStatsModule extends BlazeModule {
 
   private static final Logger logger = Logger.getLogger(BuildSummaryStatsModule.class.getName());
 
+  private static final String CRITICAL_PATH_ESTIMATES_FILE = "critical_path_estimates";
+
   private ActionKeyContext actionKeyContext;
   private CriticalPathComputer criticalPathComputer;
   private EventBus eventBus;
   private Reporter reporter;
   private boolean enabled;
+  private boolean prioritizeCriticalPath;
+
+  // Kept across commands, so that the estimates are only read from the output base once.
+  private Path criticalPathEstimatesFile;
+  private CriticalPathEstimates criticalPathEstimates;
 
   private boolean statsSummary;
   private long commandStartMillis;
@@ -79,7 +87,42 @@ public class BuildSummaryStatsModule extends BlazeModule {
 
   @Override
   public void executorInit(CommandEnvironment env, BuildRequest request, ExecutorBuilder builder) {
-    enabled = env.getOptions().getOptions(ExecutionOptions.class).enableCriticalPathProfiling;
+    ExecutionOptions options = env.getOptions().getOptions(ExecutionOptions.class);
+    enabled = options.enableCriticalPathProfiling;
+    prioritizeCriticalPath = enabled && options.prioritizeCriticalPath;
+    if (prioritizeCriticalPath) {
+      Path file = env.getOutputBase().getRelative(CRITICAL_PATH_ESTIMATES_FILE);
+      if (criticalPathEstimates == null || !file.equals(criticalPathEstimatesFile)) {
+        criticalPathEstimatesFile = file;
+        criticalPathEstimates = loadCriticalPathEstimates(file);
+      }
+      env.getLocalResourceManager().setSchedulingPolicy(criticalPathEstimates);
+    } else {
+      env.getLocalResourceManager().setSchedulingPolicy(SchedulingPolicy.FIFO);
+    }
+  }
+
+  private static CriticalPathEstimates loadCriticalPathEstimates(Path file) {
+    if (!file.exists()) {
+      return CriticalPathEstimates.EMPTY;
+    }
+    try {
+      return CriticalPathEstimates.load(file);
+    } catch (IOException e) {
+      logger.warning("Ignoring critical path estimates: " + e.getMessage());
+      return CriticalPathEstimates.EMPTY;
+    }
+  }
+
+  private void updateCriticalPathEstimates() {
+    try (SilentCloseable c = Profiler.instance().profile("Update critical path estimates")) {
+      criticalPathEstimates =
+          criticalPathEstimates.update(criticalPathComputer.getUniqueComponents());
+      criticalPathEstimates.save(criticalPathEstimatesFile);
+    } catch (IOException e) {
+      reporter.handle(
+          Event.warn("Error while saving critical path estimates: " + e.getMessage()));
+    }
   }
 
   @Subscribe
@@ -145,6 +188,9 @@ public class BuildSummaryStatsModule extends BlazeModule {
                     stat.prettyPrintAction());
           }
         }
+        if (prioritizeCriticalPath) {
+          updateCriticalPathEstimates();
+        }
       }
       if (profilePath != null) {
         // This leads to missing the afterCommand profiles of the other modules in the profile.
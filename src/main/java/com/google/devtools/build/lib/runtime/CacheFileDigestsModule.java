@@ -20,13 +20,22 @@ import com.google.devtools.build.lib.actions.cache.DigestUtils;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
-/** Enables the caching of file digests in {@link DigestUtils}. */
+/**
+ * Enables the caching of file digests in {@link DigestUtils}, optionally persisting the cache in
+ * the output base across server restarts.
+ */
 public class CacheFileDigestsModule extends BlazeModule {
 
   private static final Logger logger = Logger.getLogger(CacheFileDigestsModule.class.getName());
 
+  private static final String PERSISTENT_CACHE_FILE_NAME = "file_digests.blaze";
+
   /** Stats gathered at the beginning of a command, to compute deltas on completion. */
   private CacheStats stats;
 
@@ -36,6 +45,12 @@ public class CacheFileDigestsModule extends BlazeModule {
    */
   private Long lastKnownCacheSize;
 
+  /** Whether the persisted digests have been loaded into the current cache. */
+  private boolean persistentCacheLoaded;
+
+  /** File to save the cache to at the end of the current command, or null. */
+  @Nullable private Path persistentCacheFile;
+
   public CacheFileDigestsModule() {}
 
   /**
@@ -65,12 +80,27 @@ public class CacheFileDigestsModule extends BlazeModule {
       logger.info("Reconfiguring cache with size=" + options.cacheSizeForComputedFileDigests);
       DigestUtils.configureCache(options.cacheSizeForComputedFileDigests);
       lastKnownCacheSize = options.cacheSizeForComputedFileDigests;
+      persistentCacheLoaded = false;
     }
+    DigestUtils.setDigestXattrName(options.fileDigestXattrName);
 
     if (options.cacheSizeForComputedFileDigests == 0) {
       stats = null;
+      persistentCacheFile = null;
       logger.info("Disabled cache");
     } else {
+      persistentCacheFile =
+          options.persistComputedFileDigests
+              ? env.getBlazeWorkspace().getCacheDirectory().getChild(PERSISTENT_CACHE_FILE_NAME)
+              : null;
+      if (persistentCacheFile != null && !persistentCacheLoaded) {
+        try {
+          logger.info("Loaded " + DigestUtils.loadCache(persistentCacheFile) + " cached digests");
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Failed to load cached digests from " + persistentCacheFile, e);
+        }
+        persistentCacheLoaded = true;
+      }
       stats = DigestUtils.getCacheStats();
       logStats("Accumulated cache stats before command", stats);
     }
@@ -83,6 +113,14 @@ public class CacheFileDigestsModule extends BlazeModule {
       Preconditions.checkNotNull(newStats, "The cache is enabled so we must get some stats back");
       logStats("Accumulated cache stats after command", newStats);
       logStats("Cache stats for finished command", newStats.minus(stats));
+      // Only misses add digests to the cache.
+      if (persistentCacheFile != null && newStats.missCount() > stats.missCount()) {
+        try {
+          logger.info("Saved " + DigestUtils.saveCache(persistentCacheFile) + " cached digests");
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Failed to save cached digests to " + persistentCacheFile, e);
+        }
+      }
       stats = null; // Silence stats until next command that uses the executor.
     }
   }
@@ -23,6 +23,7 @@ import com.google.devtools.build.lib.analysis.AnalysisOptions;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
 import com.google.devtools.build.lib.analysis.config.CoreOptions;
+import com.google.devtools.build.lib.buildtool.BuildRequestOptions;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.packages.StarlarkSemanticsOptions;
@@ -491,7 +492,13 @@ public final class CommandEnvironment {
   }
 
   public ActionCache getPersistentActionCache() throws IOException {
-    return workspace.getPersistentActionCache(reporter);
+    BuildRequestOptions buildRequestOptions = options.getOptions(BuildRequestOptions.class);
+    if (buildRequestOptions == null) {
+      // Commands that do not build use whichever kind of action cache is loaded.
+      return workspace.getPersistentActionCache(reporter);
+    }
+    return workspace.getPersistentActionCache(
+        reporter, buildRequestOptions.memoryMappedActionCache);
   }
 
   /** Returns the top-down action cache to use, or null. */
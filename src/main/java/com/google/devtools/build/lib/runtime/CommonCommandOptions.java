@@ -31,6 +31,7 @@ import com.google.devtools.common.options.OptionMetadataTag;
 import com.google.devtools.common.options.OptionsBase;
 import com.google.devtools.common.options.OptionsParsingException;
 import com.google.devtools.common.options.TriState;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -312,6 +313,18 @@ public class CommonCommandOptions extends OptionsBase {
               + " too large.")
   public boolean enableJsonProfileDiet;
 
+  @Option(
+      name = "experimental_profile_flush_interval",
+      defaultValue = "0s",
+      documentationCategory = OptionDocumentationCategory.LOGGING,
+      effectTags = {OptionEffectTag.AFFECTS_OUTPUTS, OptionEffectTag.BAZEL_MONITORING},
+      help =
+          "If set to a positive duration, the JSON profile is flushed to its file at this "
+              + "interval, such that the profile of a running command can be followed. A "
+              + "compressed profile remains decompressible up to the last flush. By default, the "
+              + "profile is only complete once the command finishes.")
+  public Duration profileFlushInterval;
+
   @Option(
       name = "experimental_announce_profile_path",
       defaultValue = "false",
@@ -190,6 +190,11 @@ public class CriticalPathComputer {
                 Comparator.comparingLong(CriticalPathComponent::getElapsedTimeNanos)));
   }
 
+  /** Returns the components of all the actions of the build, each one once. */
+  ImmutableList<CriticalPathComponent> getUniqueComponents() {
+    return uniqueActions().collect(ImmutableList.toImmutableList());
+  }
+
   private Stream<CriticalPathComponent> uniqueActions() {
     return outputArtifactToComponent.entrySet().stream()
         .filter((e) -> e.getValue().isPrimaryOutput(e.getKey()))
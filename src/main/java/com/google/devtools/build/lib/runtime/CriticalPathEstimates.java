@@ -0,0 +1,193 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.actions.ActionExecutionMetadata;
+import com.google.devtools.build.lib.actions.ResourceManager.SchedulingPolicy;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates of the critical path that remains after each action, learned from the critical paths
+ * of previous builds, which are used to start the actions that most delay the end of the build
+ * first.
+ *
+ * <p>The remaining critical path of an action is its own duration plus the longest remaining
+ * critical path of the actions for which it was the last input to finish. Actions are identified by
+ * a fingerprint of the exec path of their primary output, which unlike their action key is stable
+ * across changes to their inputs. An estimate is only updated by builds in which the action ran at
+ * least one spawn, so that cache hits do not erase it.
+ */
+@Immutable
+final class CriticalPathEstimates implements SchedulingPolicy {
+
+  static final CriticalPathEstimates EMPTY = new CriticalPathEstimates(new long[0], new long[0]);
+
+  private static final int MAGIC = 0x43504531; // "CPE1"
+
+  /** Upper bound on the number of estimates, to bound the size of the file. */
+  @VisibleForTesting static final int MAX_ESTIMATES = 1 << 22;
+
+  // Sorted fingerprints of primary outputs, and the remaining critical paths in milliseconds.
+  private final long[] fingerprints;
+  private final long[] remainingMillis;
+
+  private CriticalPathEstimates(long[] fingerprints, long[] remainingMillis) {
+    this.fingerprints = fingerprints;
+    this.remainingMillis = remainingMillis;
+  }
+
+  /** Returns the estimated remaining critical path of the action in milliseconds, 0 if unknown. */
+  @Override
+  public long getPriority(ActionExecutionMetadata owner) {
+    return getRemainingMillis(owner.getPrimaryOutput().getExecPathString());
+  }
+
+  @VisibleForTesting
+  long getRemainingMillis(String primaryOutputExecPath) {
+    int index = Arrays.binarySearch(fingerprints, fingerprint(primaryOutputExecPath));
+    return index >= 0 ? remainingMillis[index] : 0;
+  }
+
+  int size() {
+    return fingerprints.length;
+  }
+
+  /** Returns these estimates updated with the critical path components of a build. */
+  CriticalPathEstimates update(Iterable<CriticalPathComponent> components) {
+    List<CriticalPathComponent> finished = new ArrayList<>();
+    for (CriticalPathComponent component : components) {
+      if (!component.isRunning()) {
+        finished.add(component);
+      }
+    }
+    // An action finishes after the actions it depends on, so visiting the components from the last
+    // to finish computes the remaining critical path of each action before that of its inputs.
+    finished.sort(
+        Comparator.comparingLong(CriticalPathEstimates::finishNanos)
+            .thenComparingInt(CriticalPathComponent::getId)
+            .reversed());
+    Map<CriticalPathComponent, Long> remainingAfter = new IdentityHashMap<>();
+    Map<String, Long> estimates = new HashMap<>();
+    for (CriticalPathComponent component : finished) {
+      long remaining =
+          component.getElapsedTimeNanos() + remainingAfter.getOrDefault(component, 0L);
+      CriticalPathComponent child = component.getChild();
+      if (child != null) {
+        remainingAfter.merge(child, remaining, Math::max);
+      }
+      if (component.getLongestPhaseSpawnRunnerName() != null) {
+        estimates.put(
+            component.getAction().getPrimaryOutput().getExecPathString(),
+            TimeUnit.NANOSECONDS.toMillis(remaining));
+      }
+    }
+    return merge(estimates);
+  }
+
+  private static long finishNanos(CriticalPathComponent component) {
+    return component.getStartTimeNanos() + component.getElapsedTimeNanos();
+  }
+
+  /**
+   * Returns these estimates with the given ones added or replaced. If there are more than {@link
+   * #MAX_ESTIMATES}, some of the previous estimates are dropped.
+   */
+  @VisibleForTesting
+  CriticalPathEstimates merge(Map<String, Long> newEstimates) {
+    if (newEstimates.isEmpty()) {
+      return this;
+    }
+    Map<Long, Long> merged = new HashMap<>();
+    for (Map.Entry<String, Long> entry : newEstimates.entrySet()) {
+      merged.put(fingerprint(entry.getKey()), entry.getValue());
+    }
+    for (int i = 0; i < fingerprints.length && merged.size() < MAX_ESTIMATES; i++) {
+      merged.putIfAbsent(fingerprints[i], remainingMillis[i]);
+    }
+    long[] newFingerprints = new long[merged.size()];
+    int i = 0;
+    for (long fingerprint : merged.keySet()) {
+      newFingerprints[i++] = fingerprint;
+    }
+    Arrays.sort(newFingerprints);
+    long[] newRemainingMillis = new long[newFingerprints.length];
+    for (i = 0; i < newFingerprints.length; i++) {
+      newRemainingMillis[i] = merged.get(newFingerprints[i]);
+    }
+    return new CriticalPathEstimates(newFingerprints, newRemainingMillis);
+  }
+
+  /**
+   * Reads estimates written by {@link #save}.
+   *
+   * @throws IOException if the file can't be read or has an unexpected format
+   */
+  static CriticalPathEstimates load(Path file) throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(file.getInputStream()))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Unexpected format of " + file);
+      }
+      int size = in.readInt();
+      if (size < 0 || size > MAX_ESTIMATES) {
+        throw new IOException("Unexpected number of estimates in " + file + ": " + size);
+      }
+      long[] fingerprints = new long[size];
+      long[] remainingMillis = new long[size];
+      for (int i = 0; i < size; i++) {
+        fingerprints[i] = in.readLong();
+        remainingMillis[i] = in.readLong();
+        if (i > 0 && fingerprints[i] <= fingerprints[i - 1]) {
+          throw new IOException("Estimates in " + file + " are not sorted");
+        }
+      }
+      return new CriticalPathEstimates(fingerprints, remainingMillis);
+    }
+  }
+
+  /** Writes the estimates to the given file, replacing it atomically. */
+  void save(Path file) throws IOException {
+    Path tmpFile = file.getParentDirectory().getChild(file.getBaseName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(tmpFile.getOutputStream()))) {
+      out.writeInt(MAGIC);
+      out.writeInt(fingerprints.length);
+      for (int i = 0; i < fingerprints.length; i++) {
+        out.writeLong(fingerprints[i]);
+        out.writeLong(remainingMillis[i]);
+      }
+    }
+    tmpFile.renameTo(file);
+  }
+
+  private static long fingerprint(String primaryOutputExecPath) {
+    return Hashing.murmur3_128().hashUnencodedChars(primaryOutputExecPath).asLong();
+  }
+}
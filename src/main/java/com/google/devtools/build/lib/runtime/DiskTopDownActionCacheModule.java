@@ -0,0 +1,169 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.buildtool.buildevent.ExecutionPhaseCompleteEvent;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.skyframe.DiskTopDownActionCache;
+import com.google.devtools.build.lib.skyframe.TopDownActionCache;
+import com.google.devtools.build.lib.util.AbruptExitException;
+import com.google.devtools.build.lib.util.ExitCode;
+import com.google.devtools.build.lib.util.OptionsUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionDocumentationCategory;
+import com.google.devtools.common.options.OptionEffectTag;
+import com.google.devtools.common.options.OptionsBase;
+import java.io.IOException;
+import java.util.Objects;
+import javax.annotation.Nullable;
+
+/** Provides a {@link DiskTopDownActionCache} when {@code --experimental_top_down_cache} is set. */
+public class DiskTopDownActionCacheModule extends BlazeModule {
+
+  /** Command line options controlling the on-disk top-down action cache. */
+  public static final class Options extends OptionsBase {
+    @Option(
+        name = "experimental_top_down_cache",
+        defaultValue = "null",
+        documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+        effectTags = {OptionEffectTag.EXECUTION},
+        converter = OptionsUtils.PathFragmentConverter.class,
+        help =
+            "A directory in which Bazel stores action outputs keyed by the transitive hash of the "
+                + "action and its inputs. When set, an action whose transitive hash is found "
+                + "there is not executed and its outputs are copied from the cache instead.")
+    public PathFragment topDownCache;
+
+    @Option(
+        name = "experimental_top_down_cache_max_size",
+        defaultValue = "0",
+        documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+        effectTags = {OptionEffectTag.EXECUTION},
+        help =
+            "The maximum size in bytes of the --experimental_top_down_cache directory. When it is "
+                + "exceeded, the least recently used entries are deleted in the background. 0 "
+                + "means no limit.")
+    public long topDownCacheMaxSize;
+
+    @Option(
+        name = "experimental_top_down_cache_write_threads",
+        defaultValue = "4",
+        documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+        effectTags = {OptionEffectTag.EXECUTION},
+        help = "The number of threads that store action outputs in the top-down cache.")
+    public int topDownCacheWriteThreads;
+  }
+
+  @Nullable private DiskTopDownActionCache cache;
+  @Nullable private Options lastOptions;
+  @Nullable private Reporter reporter;
+  private long hitsBeforeCommand;
+  private long missesBeforeCommand;
+  private long evictionsBeforeCommand;
+  private long linkedOutputsBeforeCommand;
+  private long copiedOutputsBeforeCommand;
+
+  @Override
+  public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
+    return command.builds() ? ImmutableList.of(Options.class) : ImmutableList.of();
+  }
+
+  @Override
+  public void beforeCommand(CommandEnvironment env) throws AbruptExitException {
+    Options options = env.getOptions().getOptions(Options.class);
+    if (options == null) {
+      return;
+    }
+    if (lastOptions == null
+        || !Objects.equals(options.topDownCache, lastOptions.topDownCache)
+        || options.topDownCacheMaxSize != lastOptions.topDownCacheMaxSize
+        || options.topDownCacheWriteThreads != lastOptions.topDownCacheWriteThreads) {
+      shutdownCache();
+      if (options.topDownCache != null) {
+        Path root = env.getWorkingDirectory().getRelative(options.topDownCache);
+        try {
+          cache =
+              new DiskTopDownActionCache(
+                  root, options.topDownCacheMaxSize, options.topDownCacheWriteThreads);
+        } catch (IOException e) {
+          throw new AbruptExitException(
+              "Failed to initialize top-down cache at " + root + ": " + e.getMessage(),
+              ExitCode.LOCAL_ENVIRONMENTAL_ERROR,
+              e);
+        }
+      }
+      lastOptions = options;
+    }
+    if (cache != null) {
+      reporter = env.getReporter();
+      hitsBeforeCommand = cache.getHitCount();
+      missesBeforeCommand = cache.getMissCount();
+      evictionsBeforeCommand = cache.getEvictionCount();
+      linkedOutputsBeforeCommand = cache.getLinkedOutputCount();
+      copiedOutputsBeforeCommand = cache.getCopiedOutputCount();
+      env.getEventBus().register(this);
+    }
+  }
+
+  @Override
+  public TopDownActionCache getTopDownActionCache() {
+    return cache;
+  }
+
+  /** Reports how the top-down cache did in this command. */
+  @Subscribe
+  public void executionPhaseComplete(ExecutionPhaseCompleteEvent event) {
+    if (cache == null || reporter == null) {
+      return;
+    }
+    reporter.handle(
+        Event.info(
+            String.format(
+                "Top-down cache: %d hits (%d outputs linked, %d copied), %d misses, %d files"
+                    + " evicted",
+                cache.getHitCount() - hitsBeforeCommand,
+                cache.getLinkedOutputCount() - linkedOutputsBeforeCommand,
+                cache.getCopiedOutputCount() - copiedOutputsBeforeCommand,
+                cache.getMissCount() - missesBeforeCommand,
+                cache.getEvictionCount() - evictionsBeforeCommand)));
+  }
+
+  @Override
+  public void afterCommand() {
+    reporter = null;
+  }
+
+  @Override
+  public void blazeShutdown() {
+    shutdownCache();
+  }
+
+  private void shutdownCache() {
+    if (cache == null) {
+      return;
+    }
+    try {
+      cache.shutdown();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    cache = null;
+    lastOptions = null;
+  }
+}
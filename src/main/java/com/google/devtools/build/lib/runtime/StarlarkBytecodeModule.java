@@ -0,0 +1,57 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.syntax.EvalUtils;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionDocumentationCategory;
+import com.google.devtools.common.options.OptionEffectTag;
+import com.google.devtools.common.options.OptionMetadataTag;
+import com.google.devtools.common.options.OptionsBase;
+
+/** A {@link BlazeModule} that enables the compilation of Starlark functions to bytecode. */
+public class StarlarkBytecodeModule extends BlazeModule {
+
+  /** Command line options controlling the execution of Starlark functions. */
+  public static final class Options extends OptionsBase {
+    @Option(
+        name = "experimental_starlark_bytecode",
+        defaultValue = "false",
+        documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+        effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+        metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+        help =
+            "If enabled, the bodies of Starlark functions are compiled to bytecode on their first "
+                + "call, which speeds up the evaluation of macros and rule implementations. "
+                + "Functions are still interpreted while the Starlark debugger is attached.")
+    public boolean starlarkBytecode;
+  }
+
+  @Override
+  public void beforeCommand(CommandEnvironment env) {
+    Options options = env.getOptions().getOptions(Options.class);
+    EvalUtils.setBytecodeCompilation(options.starlarkBytecode);
+  }
+
+  @Override
+  public void blazeShutdown() {
+    EvalUtils.setBytecodeCompilation(false);
+  }
+
+  @Override
+  public Iterable<Class<? extends OptionsBase>> getCommonCommandOptions() {
+    return ImmutableList.of(Options.class);
+  }
+}
@@ -30,6 +30,7 @@ import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.util.ProcessUtils;
 import com.google.devtools.build.lib.util.ShellEscaper;
+import com.google.devtools.build.lib.vfs.ParallelTreeDeleter;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionDocumentationCategory;
@@ -232,7 +233,7 @@ public final class CleanCommand implements BlazeCommand {
       // and links right before we exit. Once the lock file is gone there will
       // be a small possibility of a server race if a client is waiting, but
       // all significant files will be gone by then.
-      outputBase.deleteTreesBelow();
+      ParallelTreeDeleter.getInstance().deleteTreesBelow(outputBase);
       outputBase.deleteTree();
     } else if (expunge && async) {
       logger.info("Expunging asynchronously...");
@@ -247,7 +248,7 @@ public final class CleanCommand implements BlazeCommand {
         if (async) {
           asyncClean(env, execroot, "Output tree");
         } else {
-          execroot.deleteTreesBelow();
+          ParallelTreeDeleter.getInstance().deleteTreesBelow(execroot);
         }
       }
     }
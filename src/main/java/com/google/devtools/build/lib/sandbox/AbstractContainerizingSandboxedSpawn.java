@@ -19,11 +19,15 @@ import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.exec.TreeDeleter;
 import com.google.devtools.build.lib.sandbox.SandboxHelpers.SandboxInputs;
 import com.google.devtools.build.lib.sandbox.SandboxHelpers.SandboxOutputs;
+import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.FileSystemUtils.MoveResult;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -52,6 +56,8 @@ public abstract class AbstractContainerizingSandboxedSpawn implements SandboxedS
   private final Set<Path> writableDirs;
   private final TreeDeleter treeDeleter;
   private final Path statisticsPath;
+  @Nullable private final SandboxStash sandboxStash;
+  private final String mnemonic;
 
   public AbstractContainerizingSandboxedSpawn(
       Path sandboxPath,
@@ -63,6 +69,37 @@ public abstract class AbstractContainerizingSandboxedSpawn implements SandboxedS
       Set<Path> writableDirs,
       TreeDeleter treeDeleter,
       @Nullable Path statisticsPath) {
+    this(
+        sandboxPath,
+        sandboxExecRoot,
+        arguments,
+        environment,
+        inputs,
+        outputs,
+        writableDirs,
+        treeDeleter,
+        statisticsPath,
+        /* sandboxStash= */ null,
+        /* mnemonic= */ "");
+  }
+
+  /**
+   * Creates a spawn that reuses the execroots of earlier spawns with the same mnemonic from {@code
+   * sandboxStash}, if not null, and stashes its own when deleted. Only subclasses whose {@link
+   * #copyFile} creates a symlink may pass a stash, because that is how reused inputs are checked.
+   */
+  protected AbstractContainerizingSandboxedSpawn(
+      Path sandboxPath,
+      Path sandboxExecRoot,
+      List<String> arguments,
+      Map<String, String> environment,
+      SandboxInputs inputs,
+      SandboxOutputs outputs,
+      Set<Path> writableDirs,
+      TreeDeleter treeDeleter,
+      @Nullable Path statisticsPath,
+      @Nullable SandboxStash sandboxStash,
+      String mnemonic) {
     this.sandboxPath = sandboxPath;
     this.sandboxExecRoot = sandboxExecRoot;
     this.arguments = arguments;
@@ -72,6 +109,8 @@ public abstract class AbstractContainerizingSandboxedSpawn implements SandboxedS
     this.writableDirs = writableDirs;
     this.treeDeleter = treeDeleter;
     this.statisticsPath = statisticsPath;
+    this.sandboxStash = sandboxStash;
+    this.mnemonic = mnemonic;
   }
 
   @Override
@@ -97,8 +136,12 @@ public abstract class AbstractContainerizingSandboxedSpawn implements SandboxedS
 
   @Override
   public void createFileSystem() throws IOException {
-    createDirectories();
-    createInputs(inputs);
+    if (sandboxStash != null && sandboxStash.takeStashedSandbox(sandboxExecRoot, mnemonic)) {
+      updateStashedFileSystem();
+    } else {
+      createDirectories();
+      createInputs(inputs);
+    }
   }
 
   /**
@@ -114,6 +157,19 @@ public abstract class AbstractContainerizingSandboxedSpawn implements SandboxedS
    * once we start creating the symlinks for all inputs.
    */
   private void createDirectories() throws IOException {
+    for (Path path : getDirectoriesToCreate()) {
+      path.createDirectory();
+    }
+
+    for (Path dir : writableDirs) {
+      if (dir.startsWith(sandboxExecRoot)) {
+        dir.createDirectoryAndParents();
+      }
+    }
+  }
+
+  /** Returns the directories needed by the inputs and outputs, parents before their children. */
+  private LinkedHashSet<Path> getDirectoriesToCreate() {
     LinkedHashSet<Path> dirsToCreate = new LinkedHashSet<>();
 
     for (PathFragment path :
@@ -131,16 +187,72 @@ public abstract class AbstractContainerizingSandboxedSpawn implements SandboxedS
     for (PathFragment path : outputs.dirs()) {
       dirsToCreate.add(sandboxExecRoot.getRelative(path));
     }
+    return dirsToCreate;
+  }
 
-    for (Path path : dirsToCreate) {
-      path.createDirectory();
+  /**
+   * Turns the execroot of an earlier spawn, taken over from the stash, into the one of this spawn:
+   * keeps the directories and the input symlinks that this spawn needs as they are, deletes
+   * everything else, and creates what is missing.
+   */
+  private void updateStashedFileSystem() throws IOException {
+    LinkedHashSet<Path> dirsToCreate = getDirectoriesToCreate();
+    Set<Path> dirsToKeep = new HashSet<>(dirsToCreate);
+    for (Path dir : writableDirs) {
+      Path path = dir;
+      while (path.startsWith(sandboxExecRoot) && dirsToKeep.add(path)) {
+        path = path.getParentDirectory();
+      }
     }
+    Map<PathFragment, Path> filesToCreate = new HashMap<>(inputs.getFiles());
+    Map<PathFragment, PathFragment> symlinksToCreate = new HashMap<>(inputs.getSymlinks());
+    Set<Path> existingDirs = new HashSet<>();
+    existingDirs.add(sandboxExecRoot);
+    cleanExisting(sandboxExecRoot, dirsToKeep, existingDirs, filesToCreate, symlinksToCreate);
 
+    for (Path path : dirsToCreate) {
+      if (!existingDirs.contains(path)) {
+        path.createDirectory();
+      }
+    }
     for (Path dir : writableDirs) {
-      if (dir.startsWith(sandboxExecRoot)) {
+      if (dir.startsWith(sandboxExecRoot) && !existingDirs.contains(dir)) {
         dir.createDirectoryAndParents();
       }
     }
+    createInputs(new SandboxInputs(filesToCreate, symlinksToCreate));
+  }
+
+  /**
+   * Deletes the entries below {@code dir} that this spawn does not need, and removes the ones it
+   * can keep from the maps of inputs to create.
+   */
+  private void cleanExisting(
+      Path dir,
+      Set<Path> dirsToKeep,
+      Set<Path> existingDirs,
+      Map<PathFragment, Path> filesToCreate,
+      Map<PathFragment, PathFragment> symlinksToCreate)
+      throws IOException {
+    for (Dirent dirent : dir.readdir(Symlinks.NOFOLLOW)) {
+      Path path = dir.getChild(dirent.getName());
+      if (dirent.getType() == Dirent.Type.DIRECTORY && dirsToKeep.contains(path)) {
+        existingDirs.add(path);
+        cleanExisting(path, dirsToKeep, existingDirs, filesToCreate, symlinksToCreate);
+        continue;
+      }
+      if (dirent.getType() == Dirent.Type.SYMLINK) {
+        PathFragment key = path.relativeTo(sandboxExecRoot);
+        Path file = filesToCreate.get(key);
+        PathFragment target = file != null ? file.asFragment() : symlinksToCreate.get(key);
+        if (target != null && target.equals(path.readSymbolicLink())) {
+          filesToCreate.remove(key);
+          symlinksToCreate.remove(key);
+          continue;
+        }
+      }
+      path.deleteTree();
+    }
   }
 
   protected void createInputs(SandboxInputs inputs) throws IOException {
@@ -213,6 +325,9 @@ public abstract class AbstractContainerizingSandboxedSpawn implements SandboxedS
 
   @Override
   public void delete() {
+    if (sandboxStash != null) {
+      sandboxStash.stashSandbox(sandboxExecRoot, mnemonic);
+    }
     try {
       treeDeleter.deleteTree(sandboxPath);
     } catch (IOException e) {
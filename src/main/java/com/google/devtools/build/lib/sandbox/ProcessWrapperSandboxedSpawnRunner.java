@@ -25,6 +25,7 @@ import com.google.devtools.build.lib.vfs.Path;
 import java.io.IOException;
 import java.time.Duration;
 import java.util.Map;
+import javax.annotation.Nullable;
 
 /** Strategy that uses sandboxing to execute a process. */
 final class ProcessWrapperSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
@@ -39,6 +40,7 @@ final class ProcessWrapperSandboxedSpawnRunner extends AbstractSandboxSpawnRunne
   private final LocalEnvProvider localEnvProvider;
   private final Duration timeoutKillDelay;
   private final TreeDeleter treeDeleter;
+  @Nullable private final SandboxStash sandboxStash;
 
   /**
    * Creates a sandboxed spawn runner that uses the {@code process-wrapper} tool.
@@ -47,13 +49,16 @@ final class ProcessWrapperSandboxedSpawnRunner extends AbstractSandboxSpawnRunne
    * @param sandboxBase path to the sandbox base directory
    * @param productName the product name to use
    * @param timeoutKillDelay additional grace period before killing timing out commands
+   * @param treeDeleter deleter of the sandbox directories
+   * @param sandboxStash stash of execroots to reuse, or null to create each execroot from scratch
    */
   ProcessWrapperSandboxedSpawnRunner(
       CommandEnvironment cmdEnv,
       Path sandboxBase,
       String productName,
       Duration timeoutKillDelay,
-      TreeDeleter treeDeleter) {
+      TreeDeleter treeDeleter,
+      @Nullable SandboxStash sandboxStash) {
     super(cmdEnv);
     this.processWrapper = ProcessWrapperUtil.getProcessWrapper(cmdEnv);
     this.execRoot = cmdEnv.getExecRoot();
@@ -61,6 +66,7 @@ final class ProcessWrapperSandboxedSpawnRunner extends AbstractSandboxSpawnRunne
     this.sandboxBase = sandboxBase;
     this.timeoutKillDelay = timeoutKillDelay;
     this.treeDeleter = treeDeleter;
+    this.sandboxStash = sandboxStash;
   }
 
   @Override
@@ -109,7 +115,9 @@ final class ProcessWrapperSandboxedSpawnRunner extends AbstractSandboxSpawnRunne
         SandboxHelpers.getOutputs(spawn),
         getWritableDirs(sandboxExecRoot, environment),
         treeDeleter,
-        statisticsPath);
+        statisticsPath,
+        sandboxStash,
+        spawn.getMnemonic());
   }
 
   @Override
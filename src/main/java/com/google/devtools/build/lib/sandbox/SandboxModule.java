@@ -44,6 +44,7 @@ import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.ParallelTreeDeleter;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.common.options.OptionsBase;
@@ -97,6 +98,12 @@ public final class SandboxModule extends BlazeModule {
    */
   private boolean shouldCleanupSandboxBase;
 
+  /**
+   * Execroots of finished sandboxed spawns kept for reuse, if enabled. Kept across builds, like
+   * the stashed execroots on disk, and deleted on server shutdown.
+   */
+  @Nullable private SandboxStash sandboxStash;
+
   @Override
   public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
     return "build".equals(command.name())
@@ -215,15 +222,34 @@ public final class SandboxModule extends BlazeModule {
     // SpawnExecutionPolicy#getId returns unique base directories for each sandboxed action during
     // the life of a Bazel server instance so we don't need to worry about stale directories from
     // previous builds. However, on the very first build of an instance of the server, we must
-    // wipe old contents to avoid reusing stale directories.
-    if (firstBuild && sandboxBase.exists()) {
-      cmdEnv.getReporter().handle(Event.info("Deleting stale sandbox base " + sandboxBase));
-      sandboxBase.deleteTree();
+    // wipe old contents to avoid reusing stale directories. They are moved out of the way and
+    // deleted in the background, along with any trash left behind by earlier servers.
+    if (firstBuild) {
+      Path trashDir =
+          sandboxBase.getParentDirectory().getChild(sandboxBase.getBaseName() + "_trash");
+      ParallelTreeDeleter.getInstance().emptyTrashInBackground(trashDir);
+      if (sandboxBase.exists()) {
+        cmdEnv.getReporter().handle(Event.info("Deleting stale sandbox base " + sandboxBase));
+        ParallelTreeDeleter.getInstance().deleteTreeInBackground(sandboxBase, trashDir);
+      }
     }
     firstBuild = false;
 
     PathFragment sandboxfsPath = PathFragment.create(options.sandboxfsPath);
     sandboxBase.createDirectoryAndParents();
+
+    if (options.reuseSandboxDirectories) {
+      if (sandboxStash == null
+          || !sandboxStash.getStashBase().getParentDirectory().equals(sandboxBase)) {
+        sandboxStash = new SandboxStash(sandboxBase, options.stashesPerMnemonic);
+        sandboxStash.deleteStashes(treeDeleter);
+      } else {
+        sandboxStash.setMaxStashesPerMnemonic(options.stashesPerMnemonic);
+      }
+    } else if (sandboxStash != null) {
+      sandboxStash.deleteStashes(treeDeleter);
+      sandboxStash = null;
+    }
     if (options.useSandboxfs != TriState.NO) {
       mountPoint.createDirectory();
       Path logFile = sandboxBase.getRelative("sandboxfs.log");
@@ -273,7 +299,8 @@ public final class SandboxModule extends BlazeModule {
                   sandboxBase,
                   cmdEnv.getRuntime().getProductName(),
                   timeoutKillDelay,
-                  treeDeleter));
+                  treeDeleter,
+                  sandboxStash));
       spawnRunners.add(spawnRunner);
       builder.addActionContext(
           new ProcessWrapperSandboxedStrategy(cmdEnv.getExecRoot(), spawnRunner));
@@ -320,7 +347,8 @@ public final class SandboxModule extends BlazeModule {
                   timeoutKillDelay,
                   sandboxfsProcess,
                   options.sandboxfsMapSymlinkTargets,
-                  treeDeleter));
+                  treeDeleter,
+                  sandboxStash));
       spawnRunners.add(spawnRunner);
       builder.addActionContext(new LinuxSandboxedStrategy(cmdEnv.getExecRoot(), spawnRunner));
     }
@@ -521,6 +549,20 @@ public final class SandboxModule extends BlazeModule {
   private void commonShutdown() {
     tryUnmountSandboxfsOnShutdown();
 
+    if (sandboxStash != null) {
+      try {
+        if (treeDeleter != null) {
+          sandboxStash.deleteStashes(treeDeleter);
+        } else {
+          sandboxStash.getStashBase().deleteTree();
+        }
+      } catch (IOException e) {
+        // The next server deletes the leftover stashes when it creates its own.
+      } finally {
+        sandboxStash = null;
+      }
+    }
+
     // Try to clean up as much garbage as possible, if there happens to be any. This will delay
     // server termination but it's the nice thing to do. If the user gets impatient, they can always
     // kill us again.
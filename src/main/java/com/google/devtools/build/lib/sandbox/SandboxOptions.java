@@ -355,6 +355,41 @@ public class SandboxOptions extends OptionsBase {
               + " grows to the size specified by this flag when the server is idle.")
   public int asyncTreeDeleteIdleThreads;
 
+  @Option(
+      name = "experimental_reuse_sandbox_directories",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If set, the execroots of finished symlinked sandboxed actions are kept and reused by "
+              + "later actions with the same mnemonic, which then only need to create the inputs "
+              + "that differ. Every reused entry is checked against the inputs of the new action.")
+  public boolean reuseSandboxDirectories;
+
+  @Option(
+      name = "experimental_sandbox_stashes_per_mnemonic",
+      defaultValue = "HOST_CPUS",
+      converter = StashesPerMnemonicConverter.class,
+      documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "The maximum number of execroots kept per mnemonic with "
+              + "--experimental_reuse_sandbox_directories. More execroots than actions that run "
+              + "at the same time are never reused. Takes "
+              + ResourceConverter.FLAG_SYNTAX
+              + ".")
+  public int stashesPerMnemonic;
+
+  /** Converter for the number of execroots kept per mnemonic. */
+  public static final class StashesPerMnemonicConverter extends ResourceConverter {
+    public StashesPerMnemonicConverter() {
+      super(
+          () -> (int) Math.ceil(LocalHostCapacity.getLocalHostCapacity().getCpuUsage()),
+          1,
+          Integer.MAX_VALUE);
+    }
+  }
+
   /** Converter for the number of threads used for asynchronous tree deletion. */
   public static final class AsyncTreeDeletesConverter extends ResourceConverter {
     public AsyncTreeDeletesConverter() {
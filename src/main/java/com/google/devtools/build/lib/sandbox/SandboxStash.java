@@ -0,0 +1,154 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.exec.TreeDeleter;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.IOException;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Keeps the execroots of finished sandboxed spawns, per mnemonic, so that later spawns with the
+ * same mnemonic can take one over and only create the inputs that differ, instead of building the
+ * whole tree of symlinks again. Spawns with the same mnemonic tend to share most of their inputs,
+ * e.g. the headers of C++ compilations.
+ *
+ * <p>Stashed execroots are moved to {@code <sandbox base>/sandbox_stash/<mnemonic>/<id>} by
+ * renaming them, which is atomic, so each one is taken over by at most one spawn. Their contents
+ * are not trusted: a spawn that takes one over must check every entry against its own inputs.
+ *
+ * <p>Only a limited number of execroots is kept per mnemonic; more than the number of spawns that
+ * run at the same time are never taken over. Execroots beyond the limit are deleted by their
+ * spawns as usual.
+ */
+@ThreadSafe
+final class SandboxStash {
+
+  private static final Logger logger = Logger.getLogger(SandboxStash.class.getName());
+
+  private static final AtomicInteger stashId = new AtomicInteger();
+
+  private final Path stashBase;
+
+  /** The stashed execroots of each mnemonic, most recently stashed first. */
+  private final Map<String, Deque<Path>> stashes = new ConcurrentHashMap<>();
+
+  private volatile int maxStashesPerMnemonic;
+
+  SandboxStash(Path sandboxBase, int maxStashesPerMnemonic) {
+    this.stashBase = sandboxBase.getRelative("sandbox_stash");
+    setMaxStashesPerMnemonic(maxStashesPerMnemonic);
+  }
+
+  /**
+   * Sets how many execroots are kept per mnemonic. If the limit is lowered, the execroots beyond it
+   * are still taken over, but no new ones are stashed until there are fewer than the limit.
+   */
+  void setMaxStashesPerMnemonic(int maxStashesPerMnemonic) {
+    Preconditions.checkArgument(maxStashesPerMnemonic > 0, maxStashesPerMnemonic);
+    this.maxStashesPerMnemonic = maxStashesPerMnemonic;
+  }
+
+  /** Returns the directory holding the stashed execroots. */
+  Path getStashBase() {
+    return stashBase;
+  }
+
+  /**
+   * Forgets all stashed execroots and deletes the directory holding them. A new stash must do this
+   * before it is used: execroots that an earlier server left in the directory are not tracked, and
+   * their ids collide with new ones, which would make stashing fail.
+   *
+   * <p>The directory is renamed first, so that {@code treeDeleter} can delete it asynchronously
+   * while new execroots are stashed.
+   */
+  void deleteStashes(TreeDeleter treeDeleter) throws IOException {
+    stashes.clear();
+    if (!stashBase.exists(Symlinks.NOFOLLOW)) {
+      return;
+    }
+    Path staleStashBase =
+        stashBase
+            .getParentDirectory()
+            .getChild(
+                stashBase.getBaseName()
+                    + "_stale_"
+                    + System.currentTimeMillis()
+                    + "_"
+                    + stashId.incrementAndGet());
+    stashBase.renameTo(staleStashBase);
+    treeDeleter.deleteTree(staleStashBase);
+  }
+
+  /**
+   * Moves a stashed execroot of the given mnemonic to {@code sandboxExecRoot}, which must be an
+   * empty directory or not exist.
+   *
+   * @return true if an execroot was taken over, false if {@code sandboxExecRoot} is unchanged
+   */
+  boolean takeStashedSandbox(Path sandboxExecRoot, String mnemonic) {
+    Deque<Path> mnemonicStashes = stashes.get(mnemonic);
+    if (mnemonicStashes == null) {
+      return false;
+    }
+    Path stash;
+    while ((stash = mnemonicStashes.poll()) != null) {
+      try {
+        sandboxExecRoot.delete();
+        stash.renameTo(sandboxExecRoot);
+        return true;
+      } catch (IOException e) {
+        // The stash is gone, e.g. because the sandbox base was cleaned up. Try the next one.
+        logger.warning("Failed to reuse sandbox " + stash + ": " + e.getMessage());
+      }
+    }
+    try {
+      sandboxExecRoot.createDirectoryAndParents();
+    } catch (IOException e) {
+      // The spawn will fail to create its inputs and report the problem.
+    }
+    return false;
+  }
+
+  /**
+   * Moves the execroot of a finished spawn to the stash of its mnemonic.
+   *
+   * @return true if the execroot was stashed, false if it is unchanged and should be deleted
+   */
+  boolean stashSandbox(Path sandboxExecRoot, String mnemonic) {
+    Deque<Path> mnemonicStashes = stashes.get(mnemonic);
+    // Concurrent spawns may all see room for one more, so the limit is only approximate.
+    if (mnemonicStashes != null && mnemonicStashes.size() >= maxStashesPerMnemonic) {
+      return false;
+    }
+    Path stash = stashBase.getChild(mnemonic).getChild(Integer.toString(stashId.incrementAndGet()));
+    try {
+      stash.getParentDirectory().createDirectoryAndParents();
+      sandboxExecRoot.renameTo(stash);
+    } catch (IOException e) {
+      logger.warning("Failed to stash sandbox " + sandboxExecRoot + ": " + e.getMessage());
+      return false;
+    }
+    stashes.computeIfAbsent(mnemonic, k -> new ConcurrentLinkedDeque<>()).push(stash);
+    return true;
+  }
+}
@@ -52,6 +52,36 @@ public class SymlinkedSandboxedSpawn extends AbstractContainerizingSandboxedSpaw
         statisticsPath);
   }
 
+  /**
+   * Creates a spawn that takes over the execroot of an earlier spawn with the same mnemonic from
+   * {@code sandboxStash}, if not null, and only creates the symlinks that differ.
+   */
+  public SymlinkedSandboxedSpawn(
+      Path sandboxPath,
+      Path sandboxExecRoot,
+      List<String> arguments,
+      Map<String, String> environment,
+      SandboxInputs inputs,
+      SandboxOutputs outputs,
+      Set<Path> writableDirs,
+      TreeDeleter treeDeleter,
+      @Nullable Path statisticsPath,
+      @Nullable SandboxStash sandboxStash,
+      String mnemonic) {
+    super(
+        sandboxPath,
+        sandboxExecRoot,
+        arguments,
+        environment,
+        inputs,
+        outputs,
+        writableDirs,
+        treeDeleter,
+        statisticsPath,
+        sandboxStash,
+        mnemonic);
+  }
+
   @Override
   protected void copyFile(Path source, Path target) throws IOException {
     target.createSymbolicLink(source);
@@ -22,8 +22,13 @@ import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.actions.FileStateValue;
 import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.FileType;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigestAdapter;
 import com.google.devtools.build.lib.vfs.Root;
 import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.devtools.build.lib.vfs.UnixGlob;
+import com.google.devtools.build.lib.vfs.UnixGlob.FilesystemCalls;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import java.io.IOException;
@@ -54,6 +59,34 @@ public class DirtinessCheckerUtils {
         return null;
       }
     }
+
+    @Override
+    @Nullable
+    public SkyValue createNewValue(
+        SkyKey key, FilesystemCalls syscalls, @Nullable TimestampGranularityMonitor tsgm) {
+      RootedPath rootedPath = (RootedPath) key.argument();
+      try {
+        // A single stat, like FileStateValue.create(rootedPath, tsgm). Getting the type first
+        // would stat the file twice without a batch, and fail if it is deleted in between.
+        FileStatus stat = syscalls.statIfFound(rootedPath.asPath(), Symlinks.NOFOLLOW);
+        if (stat == null) {
+          return FileStateValue.NONEXISTENT_FILE_STATE_NODE;
+        }
+        return FileStateValue.createWithStatNoFollow(
+            rootedPath, FileStatusWithDigestAdapter.adapt(stat), tsgm);
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public DirtyResult check(
+        SkyKey key,
+        @Nullable SkyValue oldValue,
+        FilesystemCalls syscalls,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return compareToNewValue(oldValue, createNewValue(key, syscalls, tsgm));
+    }
   }
 
   static class DirectoryDirtinessChecker extends SkyValueDirtinessChecker {
@@ -72,6 +105,27 @@ public class DirtinessCheckerUtils {
         return null;
       }
     }
+
+    @Override
+    @Nullable
+    public SkyValue createNewValue(
+        SkyKey key, FilesystemCalls syscalls, @Nullable TimestampGranularityMonitor tsgm) {
+      RootedPath rootedPath = (RootedPath) key.argument();
+      try {
+        return DirectoryListingStateValue.create(syscalls.readdir(rootedPath.asPath()));
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public DirtyResult check(
+        SkyKey key,
+        @Nullable SkyValue oldValue,
+        FilesystemCalls syscalls,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return compareToNewValue(oldValue, createNewValue(key, syscalls, tsgm));
+    }
   }
 
   static class BasicFilesystemDirtinessChecker extends SkyValueDirtinessChecker {
@@ -90,6 +144,22 @@ public class DirtinessCheckerUtils {
     public SkyValue createNewValue(SkyKey key, @Nullable TimestampGranularityMonitor tsgm) {
       return checker.createNewValue(key, tsgm);
     }
+
+    @Override
+    @Nullable
+    public SkyValue createNewValue(
+        SkyKey key, FilesystemCalls syscalls, @Nullable TimestampGranularityMonitor tsgm) {
+      return checker.createNewValue(key, syscalls, tsgm);
+    }
+
+    @Override
+    public DirtyResult check(
+        SkyKey key,
+        @Nullable SkyValue oldValue,
+        FilesystemCalls syscalls,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return checker.check(key, oldValue, syscalls, tsgm);
+    }
   }
 
   static final class MissingDiffDirtinessChecker extends BasicFilesystemDirtinessChecker {
@@ -136,10 +206,26 @@ public class DirtinessCheckerUtils {
       throw new UnsupportedOperationException();
     }
 
+    @Nullable
+    @Override
+    public SkyValue createNewValue(
+        SkyKey key, FilesystemCalls syscalls, @Nullable TimestampGranularityMonitor tsgm) {
+      throw new UnsupportedOperationException();
+    }
+
     @Override
     public SkyValueDirtinessChecker.DirtyResult check(
         SkyKey skyKey, SkyValue oldValue, @Nullable TimestampGranularityMonitor tsgm) {
-      SkyValue newValue = super.createNewValue(skyKey, tsgm);
+      return check(skyKey, oldValue, UnixGlob.DEFAULT_SYSCALLS, tsgm);
+    }
+
+    @Override
+    public SkyValueDirtinessChecker.DirtyResult check(
+        SkyKey skyKey,
+        SkyValue oldValue,
+        FilesystemCalls syscalls,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      SkyValue newValue = super.createNewValue(skyKey, syscalls, tsgm);
       if (Objects.equal(newValue, oldValue)) {
         return SkyValueDirtinessChecker.DirtyResult.notDirty(oldValue);
       }
@@ -189,5 +275,22 @@ public class DirtinessCheckerUtils {
         @Nullable TimestampGranularityMonitor tsgm) {
       return Preconditions.checkNotNull(getChecker(key), key).check(key, oldValue, tsgm);
     }
+
+    @Override
+    @Nullable
+    public SkyValue createNewValue(
+        SkyKey key, FilesystemCalls syscalls, @Nullable TimestampGranularityMonitor tsgm) {
+      return Preconditions.checkNotNull(getChecker(key), key).createNewValue(key, syscalls, tsgm);
+    }
+
+    @Override
+    public DirtyResult check(
+        SkyKey key,
+        @Nullable SkyValue oldValue,
+        FilesystemCalls syscalls,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return Preconditions.checkNotNull(getChecker(key), key)
+          .check(key, oldValue, syscalls, tsgm);
+    }
   }
 }
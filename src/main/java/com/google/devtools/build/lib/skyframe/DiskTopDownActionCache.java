@@ -0,0 +1,512 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.GoogleLogger;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.FileArtifactValue;
+import com.google.devtools.build.lib.actions.FileContentsProxy;
+import com.google.devtools.build.lib.actions.FileStateType;
+import com.google.devtools.build.lib.actionsketch.ActionSketch;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link TopDownActionCache} backed by a directory on local disk.
+ *
+ * <p>The cache directory has two parts: {@code ac/} holds one entry per {@link ActionSketch},
+ * listing the exec paths, digests and sizes of the action's outputs, and {@code cas/} holds the
+ * output contents, addressed by digest. A hit materializes the outputs into the output tree, so a
+ * clean output base whose sketches match can skip whole subgraphs of actions. Large outputs are
+ * hard links to the read-only blobs, so that a hit doesn't copy them; small ones, and all outputs
+ * if the cache is on another file system, are copied.
+ *
+ * <p>Only actions whose outputs are all regular, locally present files are cached. Tree artifacts,
+ * filesets and actions that discover modules are never stored.
+ *
+ * <p>Entries are written asynchronously. Files are touched on every hit, and once the total size of
+ * the cache exceeds its limit a background pass deletes the least recently used files until the
+ * cache is back below {@link #LOW_WATERMARK} of the limit.
+ */
+@ThreadSafe
+public final class DiskTopDownActionCache implements TopDownActionCache {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final int ENTRY_MAGIC = 0x54444331; // "TDC1"
+
+  /** Fraction of the maximum size the cache is trimmed down to when it overflows. */
+  @VisibleForTesting static final double LOW_WATERMARK = 0.9;
+
+  /**
+   * Outputs at least this large are linked to their blobs rather than copied. Linking changes the
+   * ctime of every output linked to the same blob, which makes Bazel check them again, so small
+   * outputs, which are cheap to copy, are not linked.
+   */
+  @VisibleForTesting static final long MIN_LINKED_SIZE = 64 * 1024;
+
+  /**
+   * How old a blob's modification time must be for a hit to update it. It only needs to be precise
+   * enough for the eviction order, and touching a blob also changes the ctime of the outputs linked
+   * to it.
+   */
+  private static final long TOUCH_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private final Path root;
+  private final Path acRoot;
+  private final Path casRoot;
+  private final Path tmpRoot;
+  private final long maxSizeBytes;
+
+  private final ExecutorService writeExecutor;
+  private final ExecutorService evictionExecutor;
+
+  /** Approximate number of bytes on disk, or -1 if the directory has not been scanned yet. */
+  private final AtomicLong approximateSize = new AtomicLong(-1);
+
+  private final AtomicBoolean evictionScheduled = new AtomicBoolean(false);
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong linkedOutputs = new AtomicLong();
+  private final AtomicLong copiedOutputs = new AtomicLong();
+
+  /**
+   * @param root the directory holding the cache; created if it does not exist
+   * @param maxSizeBytes the size above which least recently used entries are evicted, or 0 for no
+   *     limit
+   * @param writeThreads the number of threads used to store action outputs in the background
+   */
+  public DiskTopDownActionCache(Path root, long maxSizeBytes, int writeThreads)
+      throws IOException {
+    this(
+        root,
+        maxSizeBytes,
+        Executors.newFixedThreadPool(
+            writeThreads,
+            new ThreadFactoryBuilder()
+                .setNameFormat("top-down-action-cache-writer-%d")
+                .setDaemon(true)
+                .build()),
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("top-down-action-cache-eviction")
+                .setDaemon(true)
+                .build()));
+  }
+
+  @VisibleForTesting
+  DiskTopDownActionCache(
+      Path root,
+      long maxSizeBytes,
+      ExecutorService writeExecutor,
+      ExecutorService evictionExecutor)
+      throws IOException {
+    Preconditions.checkArgument(maxSizeBytes >= 0, maxSizeBytes);
+    this.root = root;
+    this.acRoot = root.getChild("ac");
+    this.casRoot = root.getChild("cas");
+    this.tmpRoot = root.getChild("tmp");
+    this.maxSizeBytes = maxSizeBytes;
+    this.writeExecutor = writeExecutor;
+    this.evictionExecutor = evictionExecutor;
+    acRoot.createDirectoryAndParents();
+    casRoot.createDirectoryAndParents();
+    tmpRoot.createDirectoryAndParents();
+    // Leftovers from a previous server that died in the middle of a write.
+    tmpRoot.deleteTreesBelow();
+  }
+
+  public Path getRoot() {
+    return root;
+  }
+
+  @Nullable
+  @Override
+  public ActionExecutionValue get(ActionSketch sketch, Action action) {
+    Path entryPath = entryPath(sketch);
+    ImmutableList<OutputEntry> outputs;
+    try {
+      outputs = readEntry(entryPath);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Failed to read top-down cache entry %s", entryPath);
+      outputs = null;
+    }
+    if (outputs == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    Map<PathFragment, Artifact> artifactsByExecPath = new HashMap<>();
+    for (Artifact output : action.getOutputs()) {
+      artifactsByExecPath.put(output.getExecPath(), output);
+    }
+    if (artifactsByExecPath.size() != outputs.size()) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    ImmutableMap.Builder<Artifact, FileArtifactValue> artifactData =
+        ImmutableMap.builderWithExpectedSize(outputs.size());
+    try {
+      for (OutputEntry output : outputs) {
+        Artifact artifact = artifactsByExecPath.get(output.execPath);
+        if (artifact == null || artifact.isTreeArtifact()) {
+          misses.incrementAndGet();
+          return null;
+        }
+        artifactData.put(artifact, materialize(output, artifact.getPath()));
+      }
+      entryPath.setLastModifiedTime(-1L);
+    } catch (IOException e) {
+      // Most likely a blob was evicted underneath the entry. Treat it as a miss; the action will
+      // execute and overwrite the entry.
+      logger.atInfo().withCause(e).log("Failed to materialize outputs of %s", action);
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return ActionExecutionValue.create(
+        artifactData.build(),
+        /*treeArtifactData=*/ ImmutableMap.of(),
+        /*outputSymlinks=*/ null,
+        /*discoveredModules=*/ null,
+        /*actionDependsOnBuildId=*/ false);
+  }
+
+  @Override
+  public void put(ActionSketch sketch, ActionExecutionValue value) {
+    if (!value.getAllTreeArtifactValues().isEmpty()
+        || value.getOutputSymlinks() != null
+        || value.getDiscoveredModules() != null) {
+      return;
+    }
+    List<Map.Entry<Artifact, FileArtifactValue>> outputs = new ArrayList<>();
+    for (Map.Entry<Artifact, FileArtifactValue> entry : value.getAllFileValues().entrySet()) {
+      FileArtifactValue metadata = entry.getValue();
+      if (metadata.getType() != FileStateType.REGULAR_FILE
+          || metadata.getDigest() == null
+          || metadata.isRemote()) {
+        return;
+      }
+      outputs.add(entry);
+    }
+    if (outputs.isEmpty()) {
+      return;
+    }
+    writeExecutor.execute(() -> store(sketch, outputs));
+  }
+
+  private void store(ActionSketch sketch, List<Map.Entry<Artifact, FileArtifactValue>> outputs) {
+    try {
+      List<OutputEntry> entries = new ArrayList<>(outputs.size());
+      for (Map.Entry<Artifact, FileArtifactValue> output : outputs) {
+        Path source = output.getKey().getPath();
+        FileArtifactValue metadata = output.getValue();
+        if (!storeBlob(source, metadata.getDigest(), metadata.getSize())) {
+          // The output changed or disappeared since the action executed.
+          return;
+        }
+        entries.add(
+            new OutputEntry(
+                output.getKey().getExecPath(),
+                metadata.getDigest(),
+                metadata.getSize(),
+                source.isExecutable()));
+      }
+      writeEntry(entryPath(sketch), entries);
+    } catch (IOException e) {
+      logger.atInfo().withCause(e).log("Failed to store top-down cache entry");
+    }
+    maybeScheduleEviction();
+  }
+
+  /**
+   * Copies {@code source} into the CAS, verifying that its digest still matches. Returns false if
+   * it does not.
+   */
+  private boolean storeBlob(Path source, byte[] digest, long size) throws IOException {
+    Path target = blobPath(digest);
+    if (target.exists()) {
+      target.setLastModifiedTime(-1L);
+      return true;
+    }
+    Path temp = newTempPath();
+    try {
+      FileSystemUtils.copyFile(source, temp);
+      if (temp.getFileSize() != size || !Arrays.equals(temp.getDigest(), digest)) {
+        return false;
+      }
+      // The mode that Bazel gives outputs, which the outputs linked to the blob share.
+      temp.chmod(0555);
+      target.getParentDirectory().createDirectory();
+      temp.renameTo(target);
+      addSize(size);
+      return true;
+    } finally {
+      temp.delete();
+    }
+  }
+
+  private FileArtifactValue materialize(OutputEntry output, Path target) throws IOException {
+    Path blob = blobPath(output.digest);
+    FileStatus blobStat = blob.stat(Symlinks.NOFOLLOW);
+    if (blobStat.getSize() != output.size) {
+      throw new IOException("Size mismatch for cached blob " + blob);
+    }
+    if (System.currentTimeMillis() - blobStat.getLastModifiedTime() > TOUCH_INTERVAL_MILLIS) {
+      blob.setLastModifiedTime(-1L);
+    }
+    target.getParentDirectory().createDirectoryAndParents();
+    target.delete();
+    if (!output.executable || output.size < MIN_LINKED_SIZE || !tryLink(target, blob)) {
+      FileSystemUtils.copyFile(blob, target);
+      target.setExecutable(output.executable);
+      target.setWritable(false);
+      copiedOutputs.incrementAndGet();
+    }
+    FileStatus stat = target.stat(Symlinks.NOFOLLOW);
+    return FileArtifactValue.createForNormalFile(
+        output.digest, FileContentsProxy.create(stat), output.size, /*isShareable=*/ true);
+  }
+
+  /** Links {@code target} to {@code blob}, returning false if hard links are not supported. */
+  private boolean tryLink(Path target, Path blob) {
+    try {
+      blob.createHardLink(target);
+    } catch (IOException | UnsupportedOperationException e) {
+      // E.g. the cache is on another file system than the output base.
+      return false;
+    }
+    linkedOutputs.incrementAndGet();
+    return true;
+  }
+
+  @Nullable
+  private static ImmutableList<OutputEntry> readEntry(Path entryPath) throws IOException {
+    if (!entryPath.exists()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(entryPath.getInputStream())) {
+      if (in.readInt() != ENTRY_MAGIC) {
+        return null;
+      }
+      int count = in.readInt();
+      ImmutableList.Builder<OutputEntry> outputs = ImmutableList.builderWithExpectedSize(count);
+      for (int i = 0; i < count; i++) {
+        PathFragment execPath = PathFragment.create(in.readUTF());
+        byte[] digest = new byte[in.readUnsignedByte()];
+        in.readFully(digest);
+        long size = in.readLong();
+        boolean executable = in.readBoolean();
+        outputs.add(new OutputEntry(execPath, digest, size, executable));
+      }
+      return outputs.build();
+    }
+  }
+
+  private void writeEntry(Path entryPath, List<OutputEntry> outputs) throws IOException {
+    Path temp = newTempPath();
+    try {
+      try (OutputStream out = temp.getOutputStream();
+          DataOutputStream data = new DataOutputStream(out)) {
+        data.writeInt(ENTRY_MAGIC);
+        data.writeInt(outputs.size());
+        for (OutputEntry output : outputs) {
+          data.writeUTF(output.execPath.getPathString());
+          data.writeByte(output.digest.length);
+          data.write(output.digest);
+          data.writeLong(output.size);
+          data.writeBoolean(output.executable);
+        }
+      }
+      long size = temp.getFileSize();
+      entryPath.getParentDirectory().createDirectory();
+      temp.renameTo(entryPath);
+      addSize(size);
+    } finally {
+      temp.delete();
+    }
+  }
+
+  private Path entryPath(ActionSketch sketch) {
+    String key = BaseEncoding.base16().lowerCase().encode(sketch.toBytes().toByteArray());
+    return shard(acRoot, key);
+  }
+
+  private Path blobPath(byte[] digest) {
+    return shard(casRoot, BaseEncoding.base16().lowerCase().encode(digest));
+  }
+
+  private static Path shard(Path base, String key) {
+    return base.getChild(key.substring(0, 2)).getChild(key);
+  }
+
+  private Path newTempPath() {
+    return tmpRoot.getChild(UUID.randomUUID().toString());
+  }
+
+  private void addSize(long delta) {
+    approximateSize.getAndUpdate(current -> current < 0 ? current : current + delta);
+  }
+
+  private void maybeScheduleEviction() {
+    if (maxSizeBytes == 0) {
+      return;
+    }
+    long size = approximateSize.get();
+    if (size >= 0 && size <= maxSizeBytes) {
+      return;
+    }
+    if (evictionScheduled.compareAndSet(false, true)) {
+      evictionExecutor.execute(
+          () -> {
+            try {
+              collectGarbage();
+            } catch (IOException e) {
+              logger.atWarning().withCause(e).log("Top-down cache eviction failed");
+            } finally {
+              evictionScheduled.set(false);
+            }
+          });
+    }
+  }
+
+  /**
+   * Scans the cache directory and, if it is above the size limit, deletes the least recently used
+   * files until it is below {@link #LOW_WATERMARK} of the limit.
+   */
+  @VisibleForTesting
+  void collectGarbage() throws IOException {
+    List<CachedFile> files = new ArrayList<>();
+    long totalSize = 0;
+    for (Path base : ImmutableList.of(acRoot, casRoot)) {
+      for (Path shard : base.getDirectoryEntries()) {
+        for (Path file : shard.getDirectoryEntries()) {
+          FileStatus stat = file.statIfFound(Symlinks.NOFOLLOW);
+          if (stat == null) {
+            continue;
+          }
+          files.add(new CachedFile(file, stat.getSize(), stat.getLastModifiedTime()));
+          totalSize += stat.getSize();
+        }
+      }
+    }
+    if (maxSizeBytes > 0 && totalSize > maxSizeBytes) {
+      long target = (long) (maxSizeBytes * LOW_WATERMARK);
+      files.sort(Comparator.comparingLong(f -> f.lastAccessTime));
+      for (CachedFile file : files) {
+        if (totalSize <= target) {
+          break;
+        }
+        if (file.path.delete()) {
+          totalSize -= file.size;
+          evictions.incrementAndGet();
+        }
+      }
+    }
+    approximateSize.set(totalSize);
+  }
+
+  /** Returns the number of cache hits since this cache was created. */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /** Returns the number of cache misses since this cache was created. */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /** Returns the number of files evicted since this cache was created. */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /** Returns the number of outputs linked to their blobs since this cache was created. */
+  public long getLinkedOutputCount() {
+    return linkedOutputs.get();
+  }
+
+  /** Returns the number of outputs copied from their blobs since this cache was created. */
+  public long getCopiedOutputCount() {
+    return copiedOutputs.get();
+  }
+
+  /**
+   * Waits for pending writes and evictions to finish, then stops the background threads. The cache
+   * must not be used afterwards.
+   */
+  public void shutdown() throws InterruptedException {
+    writeExecutor.shutdown();
+    writeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+    evictionExecutor.shutdown();
+    evictionExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+  }
+
+  private static final class OutputEntry {
+    private final PathFragment execPath;
+    private final byte[] digest;
+    private final long size;
+    private final boolean executable;
+
+    OutputEntry(PathFragment execPath, byte[] digest, long size, boolean executable) {
+      this.execPath = execPath;
+      this.digest = digest;
+      this.size = size;
+      this.executable = executable;
+    }
+  }
+
+  private static final class CachedFile {
+    private final Path path;
+    private final long size;
+    private final long lastAccessTime;
+
+    CachedFile(Path path, long size, long lastAccessTime) {
+      this.path = path;
+      this.size = size;
+      this.lastAccessTime = lastAccessTime;
+    }
+  }
+}
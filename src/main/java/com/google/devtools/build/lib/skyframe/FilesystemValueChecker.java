@@ -27,6 +27,7 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.FileArtifactValue;
 import com.google.devtools.build.lib.actions.FileStateType;
+import com.google.devtools.build.lib.actions.FileStateValue;
 import com.google.devtools.build.lib.concurrent.ExecutorUtil;
 import com.google.devtools.build.lib.concurrent.Sharder;
 import com.google.devtools.build.lib.concurrent.ThrowableRecordingRunnableWrapper;
@@ -39,11 +40,17 @@ import com.google.devtools.build.lib.util.LoggingUtil;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.lib.vfs.BatchStat;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
+import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.ModifiedFileSet;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.devtools.build.lib.vfs.UnixGlob;
+import com.google.devtools.build.lib.vfs.UnixGlob.FilesystemCalls;
 import com.google.devtools.build.skyframe.Differencer;
 import com.google.devtools.build.skyframe.FunctionHermeticity;
 import com.google.devtools.build.skyframe.SkyFunctionName;
@@ -51,6 +58,7 @@ import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.WalkableGraph;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -76,6 +84,7 @@ import javax.annotation.Nullable;
 public class FilesystemValueChecker {
 
   private static final int DIRTINESS_CHECK_THREADS = 200;
+  private static final int DIRTINESS_CHECK_BATCH_SIZE = 256;
   private static final Logger logger = Logger.getLogger(FilesystemValueChecker.class.getName());
 
   private static final Predicate<SkyKey> ACTION_FILTER =
@@ -503,6 +512,7 @@ public class FilesystemValueChecker {
           }
         };
     try (AutoProfiler prof = AutoProfiler.create(elapsedTimeReceiver)) {
+      List<SkyKey> batch = new ArrayList<>(DIRTINESS_CHECK_BATCH_SIZE);
       for (final SkyKey key : keys) {
         numKeysScanned.incrementAndGet();
         if (!checker.applies(key)) {
@@ -512,26 +522,20 @@ public class FilesystemValueChecker {
             key.functionName().getHermeticity() == FunctionHermeticity.NONHERMETIC,
             "Only non-hermetic keys can be dirty roots: %s",
             key);
+        batch.add(key);
+        if (batch.size() == DIRTINESS_CHECK_BATCH_SIZE) {
+          executor.execute(
+              wrapper.wrap(
+                  checkBatch(
+                      batch, fetcher, checker, checkMissingValues, batchResult, numKeysChecked)));
+          batch = new ArrayList<>(DIRTINESS_CHECK_BATCH_SIZE);
+        }
+      }
+      if (!batch.isEmpty()) {
         executor.execute(
             wrapper.wrap(
-                () -> {
-                  SkyValue value;
-                  try {
-                    value = fetcher.get(key);
-                  } catch (InterruptedException e) {
-                    // Exit fast. Interrupt is handled below on the main thread.
-                    return;
-                  }
-                  if (!checkMissingValues && value == null) {
-                    return;
-                  }
-
-                  numKeysChecked.incrementAndGet();
-                  DirtyResult result = checker.check(key, value, tsgm);
-                  if (result.isDirty()) {
-                    batchResult.add(key, value, result.getNewValue());
-                  }
-                }));
+                checkBatch(
+                    batch, fetcher, checker, checkMissingValues, batchResult, numKeysChecked)));
       }
 
       boolean interrupted = ExecutorUtil.interruptibleShutdown(executor);
@@ -543,6 +547,126 @@ public class FilesystemValueChecker {
     return batchResult;
   }
 
+  /**
+   * Returns a job that checks a batch of keys. The file states and directory listings of the batch
+   * are read with one batched call per file system up front, which on native file systems does
+   * all the syscalls with a single crossing into native code.
+   */
+  private Runnable checkBatch(
+      List<SkyKey> batch,
+      ValueFetcher fetcher,
+      SkyValueDirtinessChecker checker,
+      boolean checkMissingValues,
+      BatchDirtyResult batchResult,
+      AtomicInteger numKeysChecked) {
+    return () -> {
+      List<SkyKey> keysToCheck = new ArrayList<>(batch.size());
+      List<SkyValue> values = new ArrayList<>(batch.size());
+      for (SkyKey key : batch) {
+        SkyValue value;
+        try {
+          value = fetcher.get(key);
+        } catch (InterruptedException e) {
+          // Exit fast. Interrupt is handled below on the main thread.
+          return;
+        }
+        if (!checkMissingValues && value == null) {
+          continue;
+        }
+        keysToCheck.add(key);
+        values.add(value);
+      }
+
+      FilesystemCalls syscalls = BatchedFilesystemCalls.prefetch(keysToCheck);
+      for (int i = 0; i < keysToCheck.size(); i++) {
+        SkyKey key = keysToCheck.get(i);
+        SkyValue value = values.get(i);
+        numKeysChecked.incrementAndGet();
+        DirtyResult result = checker.check(key, value, syscalls, tsgm);
+        if (result.isDirty()) {
+          batchResult.add(key, value, result.getNewValue());
+        }
+      }
+    };
+  }
+
+  /**
+   * {@link FilesystemCalls} that answer from the results of batched calls for the file states and
+   * directory listings of a batch of keys, and make the calls for anything else.
+   */
+  private static final class BatchedFilesystemCalls implements FilesystemCalls {
+    // Both maps may have null values, for files that do not exist.
+    private final Map<Path, FileStatus> statsNoFollow = new HashMap<>();
+    private final Map<Path, Collection<Dirent>> dirents = new HashMap<>();
+
+    static FilesystemCalls prefetch(List<SkyKey> keys) {
+      Map<FileSystem, List<Path>> filesToStat = new HashMap<>();
+      Map<FileSystem, List<Path>> directoriesToRead = new HashMap<>();
+      for (SkyKey key : keys) {
+        Map<FileSystem, List<Path>> paths;
+        if (key.functionName().equals(FileStateValue.FILE_STATE)) {
+          paths = filesToStat;
+        } else if (key.functionName().equals(SkyFunctions.DIRECTORY_LISTING_STATE)) {
+          paths = directoriesToRead;
+        } else {
+          continue;
+        }
+        Path path = ((RootedPath) key.argument()).asPath();
+        paths.computeIfAbsent(path.getFileSystem(), fs -> new ArrayList<>()).add(path);
+      }
+      if (filesToStat.isEmpty() && directoriesToRead.isEmpty()) {
+        return UnixGlob.DEFAULT_SYSCALLS;
+      }
+
+      BatchedFilesystemCalls syscalls = new BatchedFilesystemCalls();
+      for (Map.Entry<FileSystem, List<Path>> entry : filesToStat.entrySet()) {
+        List<Path> paths = entry.getValue();
+        try {
+          List<FileStatus> stats =
+              entry.getKey().statIfFoundBatch(paths, /*followSymlinks=*/ false);
+          for (int i = 0; i < paths.size(); i++) {
+            syscalls.statsNoFollow.put(paths.get(i), stats.get(i));
+          }
+        } catch (IOException e) {
+          // Leave the files of the batch to be stat'ed one by one, so that only the failing ones
+          // are dirty without a new value.
+        }
+      }
+      for (Map.Entry<FileSystem, List<Path>> entry : directoriesToRead.entrySet()) {
+        List<Path> paths = entry.getValue();
+        try {
+          List<Collection<Dirent>> listings =
+              entry.getKey().readdirBatch(paths, /*followSymlinks=*/ false);
+          for (int i = 0; i < paths.size(); i++) {
+            syscalls.dirents.put(paths.get(i), listings.get(i));
+          }
+        } catch (IOException e) {
+          // As above, e.g. if one of the directories was deleted.
+        }
+      }
+      return syscalls;
+    }
+
+    @Override
+    public Collection<Dirent> readdir(Path path) throws IOException {
+      Collection<Dirent> result = dirents.get(path);
+      return result != null ? result : UnixGlob.DEFAULT_SYSCALLS.readdir(path);
+    }
+
+    @Override
+    public FileStatus statIfFound(Path path, Symlinks symlinks) throws IOException {
+      if (symlinks == Symlinks.NOFOLLOW && statsNoFollow.containsKey(path)) {
+        return statsNoFollow.get(path);
+      }
+      return UnixGlob.DEFAULT_SYSCALLS.statIfFound(path, symlinks);
+    }
+
+    @Override
+    public Dirent.Type getType(Path path, Symlinks symlinks) throws IOException {
+      return UnixGlob.statusToDirentType(statIfFound(path, symlinks));
+    }
+  }
+
   /**
    * Result of a batch call to {@link SkyValueDirtinessChecker#check}. Partitions the dirty
    * values based on whether we have a new value available for them or not.
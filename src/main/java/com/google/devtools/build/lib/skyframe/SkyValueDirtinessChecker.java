@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.base.Preconditions;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.UnixGlob.FilesystemCalls;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import javax.annotation.Nullable;
@@ -37,12 +38,39 @@ public abstract class SkyValueDirtinessChecker {
   @Nullable
   public abstract SkyValue createNewValue(SkyKey key, @Nullable TimestampGranularityMonitor tsgm);
 
+  /**
+   * Like {@link #createNewValue(SkyKey, TimestampGranularityMonitor)}, but reads the file system
+   * through {@code syscalls}, which may already hold the results of batched calls.
+   */
+  @Nullable
+  public SkyValue createNewValue(
+      SkyKey key, FilesystemCalls syscalls, @Nullable TimestampGranularityMonitor tsgm) {
+    return createNewValue(key, tsgm);
+  }
+
   /**
    * If {@code applies(key)}, returns the result of checking whether this key's value is up to date.
    */
   public DirtyResult check(SkyKey key, @Nullable SkyValue oldValue,
       @Nullable TimestampGranularityMonitor tsgm) {
-    SkyValue newValue = createNewValue(key, tsgm);
+    return compareToNewValue(oldValue, createNewValue(key, tsgm));
+  }
+
+  /**
+   * Like {@link #check(SkyKey, SkyValue, TimestampGranularityMonitor)}, but reads the file system
+   * through {@code syscalls}, if the checker supports it.
+   */
+  public DirtyResult check(
+      SkyKey key,
+      @Nullable SkyValue oldValue,
+      FilesystemCalls syscalls,
+      @Nullable TimestampGranularityMonitor tsgm) {
+    return check(key, oldValue, tsgm);
+  }
+
+  /** Returns the result of a check that found {@code newValue}, or no value if it is null. */
+  protected static DirtyResult compareToNewValue(
+      @Nullable SkyValue oldValue, @Nullable SkyValue newValue) {
     if (newValue == null) {
       return DirtyResult.dirty(oldValue);
     }
@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.skyframe;
 
+import com.google.devtools.build.lib.actions.Action;
 import com.google.devtools.build.lib.actionsketch.ActionSketch;
 import javax.annotation.Nullable;
 
@@ -24,9 +25,12 @@ import javax.annotation.Nullable;
  */
 public interface TopDownActionCache {
 
-  /** Retrieves the cached value for the given action sketch, or null. */
+  /**
+   * Retrieves the cached value for the given action sketch, or null. Implementations that do not
+   * keep outputs in memory may use {@code action} to restore them into the output tree.
+   */
   @Nullable
-  ActionExecutionValue get(ActionSketch sketch);
+  ActionExecutionValue get(ActionSketch sketch, Action action);
 
   /** Puts the sketch into the top-down cache. May complete asynchronously. */
   void put(ActionSketch sketch, ActionExecutionValue value);
@@ -0,0 +1,495 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import com.google.devtools.build.lib.events.Location;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * The body of a {@link StarlarkFunction} compiled by {@link BytecodeCompiler}, and the interpreter
+ * that executes it.
+ *
+ * <p>The code is a flat array of opcodes, each followed by its operands. Instructions operate on an
+ * operand stack and on an array of local variable slots, the first of which hold the parameters.
+ * The iterators of active loops and comprehensions are kept on a separate stack so that their
+ * collections can be unlocked when the function returns or fails.
+ *
+ * <p>Each instruction position maps to the syntax node it was compiled from. When an instruction
+ * fails, the node and its enclosing nodes are added to the error as {@link Eval} would have, so
+ * errors and stack traces are indistinguishable from those of the tree-walking evaluator.
+ *
+ * <p>Compiled functions do not call the {@link Debugger}, and their local variables are not
+ * visible through {@link StarlarkThread}. Functions are therefore only executed from bytecode
+ * while no debugger is attached.
+ */
+final class Bytecode {
+
+  /**
+   * Whether calls to Starlark functions execute their compiled bodies. This field should be read,
+   * but not written, directly in order to avoid the overhead of a method call.
+   */
+  static boolean enabled;
+
+  // Opcodes. Operands are listed in order; the stack effect is given as [before] -> [after].
+
+  /** k: [] -> [constants[k]]. */
+  static final int CONST = 0;
+  /** slot: [] -> [locals[slot]]; fails if the variable is unassigned. */
+  static final int LOCAL = 1;
+  /** k: [] -> [module variable named constants[k]]. */
+  static final int GLOBAL = 2;
+  /** k: [] -> [predeclared variable named constants[k]]. */
+  static final int UNIVERSE = 3;
+  /** slot: [x] -> []; assigns x to locals[slot]. */
+  static final int STORE = 4;
+  /** from, to: [] -> []; copies a slot, including the unassigned state. */
+  static final int COPY = 5;
+  /** [x] -> []. */
+  static final int POP = 6;
+  /** [x, y] -> [x, y, x, y]. */
+  static final int DUP2 = 7;
+  /** [x, y, z] -> [y, z, x]. */
+  static final int ROT3 = 8;
+  /** op: [x] -> [op x]. */
+  static final int UNARY = 9;
+  /** op: [x, y] -> [x op y]. */
+  static final int BINARY = 10;
+  /** op: [x, y] -> [x op= y], which extends x in place if it is a list. */
+  static final int INPLACE = 11;
+  /** target: [] -> []. */
+  static final int JUMP = 12;
+  /** target: [x] -> []; jumps if x is false. */
+  static final int JUMP_IF_FALSE = 13;
+  /** target: [x] -> [x] and jumps if x is false, [x] -> [] otherwise. */
+  static final int JUMP_IF_FALSE_OR_POP = 14;
+  /** target: [x] -> [x] and jumps if x is true, [x] -> [] otherwise. */
+  static final int JUMP_IF_TRUE_OR_POP = 15;
+  /** k: [x] -> [x.name], where name is constants[k]. */
+  static final int DOT = 16;
+  /** [x, key] -> [x[key]]. */
+  static final int INDEX = 17;
+  /** [x, start, end, step] -> [x[start:end:step]]. */
+  static final int SLICE = 18;
+  /** n: [x1, ..., xn] -> [[x1, ..., xn]]. */
+  static final int LIST = 19;
+  /** n: [x1, ..., xn] -> [(x1, ..., xn)]. */
+  static final int TUPLE = 20;
+  /** [] -> [{}]. */
+  static final int NEW_DICT = 21;
+  /** [dict, k, v] -> [dict]; fails if k is already present. */
+  static final int DICT_PUT = 22;
+  /** [x] -> [x]; fails if x may not follow a * in a call. */
+  static final int CHECK_STAR = 23;
+  /**
+   * npos, nnamed, flags, k: [fn, positional..., named..., *args?, **kwargs?] -> [result], where
+   * constants[k] holds the names of the named arguments.
+   */
+  static final int CALL = 24;
+  /** [x, key, value] -> []; assigns x[key] = value. */
+  static final int STORE_INDEX = 25;
+  /** n: [x] -> [xn, ..., x1]. */
+  static final int UNPACK = 26;
+  /** [x] -> []; locks x and starts iterating over it. */
+  static final int ITER_PUSH = 27;
+  /** target: [] -> [next element]; jumps without pushing if there are no more elements. */
+  static final int ITER_NEXT = 28;
+  /** [] -> []; unlocks the collection of the innermost iteration and drops it. */
+  static final int ITER_POP = 29;
+  /** [] -> []; fails if the thread was interrupted. */
+  static final int CHECK_INTERRUPT = 30;
+  /** [] -> [accumulator of a list comprehension]. */
+  static final int NEW_LIST_ACC = 31;
+  /** index: [x] -> []; appends x to the list accumulator at stack[index]. */
+  static final int APPEND = 32;
+  /** index: [k, v] -> []; puts k: v into the dict at stack[index]. */
+  static final int DICT_ACC_PUT = 33;
+  /** [k] -> [k]; fails if k is not hashable. */
+  static final int CHECK_HASHABLE = 34;
+  /** [accumulator] -> [list]. */
+  static final int FINISH_LIST = 35;
+  /** [x] -> []; returns x. */
+  static final int RETURN = 36;
+
+  /** {@link #CALL} flag for a call with {@code *args}. */
+  static final int CALL_STAR = 1;
+  /** {@link #CALL} flag for a call with {@code **kwargs}. */
+  static final int CALL_STARSTAR = 2;
+
+  private static final TokenKind[] TOKENS = TokenKind.values();
+
+  private final int[] code;
+  // The syntax node each position of code was compiled from, as an index into nodes.
+  private final int[] nodeIds;
+  private final Object[] constants;
+  private final Node[] nodes;
+  // The index of the node enclosing each node, or -1.
+  private final int[] parents;
+  private final int nparams;
+  private final int nlocals;
+  private final int maxStack;
+  private final int maxIterators;
+
+  Bytecode(
+      int[] code,
+      int[] nodeIds,
+      Object[] constants,
+      Node[] nodes,
+      int[] parents,
+      int nparams,
+      int nlocals,
+      int maxStack,
+      int maxIterators) {
+    this.code = code;
+    this.nodeIds = nodeIds;
+    this.constants = constants;
+    this.nodes = nodes;
+    this.parents = parents;
+    this.nparams = nparams;
+    this.nlocals = nlocals;
+    this.maxStack = maxStack;
+    this.maxIterators = maxIterators;
+  }
+
+  private Location location(int pc) {
+    return nodes[nodeIds[pc]].getLocation();
+  }
+
+  /** Adds the node of the instruction at {@code pc} and its enclosing nodes to {@code ex}. */
+  private EvalException transform(int pc, EvalException ex) {
+    for (int id = nodeIds[pc]; id >= 0; id = parents[id]) {
+      ex = Eval.maybeTransformException(nodes[id], ex);
+    }
+    return ex;
+  }
+
+  /**
+   * Executes the function body in {@code thread}, whose innermost call frame must belong to the
+   * function, and returns the function's result.
+   *
+   * @param arguments the effective parameter values, as computed by {@link
+   *     Starlark#matchSignature}
+   */
+  @SuppressWarnings("unchecked")
+  Object exec(StarlarkThread thread, Object[] arguments)
+      throws EvalException, InterruptedException {
+    Object[] locals = new Object[nlocals];
+    System.arraycopy(arguments, 0, locals, 0, nparams);
+    Object[] stack = new Object[maxStack];
+    Object[] iterables = new Object[maxIterators];
+    Location[] iterableLocations = new Location[maxIterators];
+    Iterator<?>[] iterators = new Iterator<?>[maxIterators];
+    int sp = 0;
+    int it = 0;
+    int pc = 0;
+    int start = 0;
+    try {
+      while (true) {
+        start = pc;
+        switch (code[pc++]) {
+          case CONST:
+            stack[sp++] = constants[code[pc++]];
+            break;
+
+          case LOCAL:
+            {
+              Object x = locals[code[pc++]];
+              if (x == null) {
+                throw Eval.referencedBeforeAssignment((Identifier) nodes[nodeIds[start]]);
+              }
+              stack[sp++] = x;
+              break;
+            }
+
+          case GLOBAL:
+            {
+              Object x = thread.moduleLookup((String) constants[code[pc++]]);
+              if (x == null) {
+                throw Eval.referencedBeforeAssignment((Identifier) nodes[nodeIds[start]]);
+              }
+              stack[sp++] = x;
+              break;
+            }
+
+          case UNIVERSE:
+            {
+              Object x = thread.universeLookup((String) constants[code[pc++]]);
+              if (x == null) {
+                throw Eval.referencedBeforeAssignment((Identifier) nodes[nodeIds[start]]);
+              }
+              stack[sp++] = x;
+              break;
+            }
+
+          case STORE:
+            locals[code[pc++]] = stack[--sp];
+            break;
+
+          case COPY:
+            locals[code[pc + 1]] = locals[code[pc]];
+            pc += 2;
+            break;
+
+          case POP:
+            sp--;
+            break;
+
+          case DUP2:
+            stack[sp] = stack[sp - 2];
+            stack[sp + 1] = stack[sp - 1];
+            sp += 2;
+            break;
+
+          case ROT3:
+            {
+              Object x = stack[sp - 3];
+              stack[sp - 3] = stack[sp - 2];
+              stack[sp - 2] = stack[sp - 1];
+              stack[sp - 1] = x;
+              break;
+            }
+
+          case UNARY:
+            stack[sp - 1] =
+                EvalUtils.unaryOp(TOKENS[code[pc++]], stack[sp - 1], location(start));
+            break;
+
+          case BINARY:
+            {
+              Object y = stack[--sp];
+              stack[sp - 1] =
+                  EvalUtils.binaryOp(
+                      TOKENS[code[pc++]], stack[sp - 1], y, thread, location(start));
+              break;
+            }
+
+          case INPLACE:
+            {
+              Object y = stack[--sp];
+              stack[sp - 1] =
+                  Eval.inplaceBinaryOp(
+                      TOKENS[code[pc++]], stack[sp - 1], y, thread, location(start));
+              break;
+            }
+
+          case JUMP:
+            pc = code[pc];
+            break;
+
+          case JUMP_IF_FALSE:
+            pc = Starlark.truth(stack[--sp]) ? pc + 1 : code[pc];
+            break;
+
+          case JUMP_IF_FALSE_OR_POP:
+            if (Starlark.truth(stack[sp - 1])) {
+              sp--;
+              pc++;
+            } else {
+              pc = code[pc];
+            }
+            break;
+
+          case JUMP_IF_TRUE_OR_POP:
+            if (Starlark.truth(stack[sp - 1])) {
+              pc = code[pc];
+            } else {
+              sp--;
+              pc++;
+            }
+            break;
+
+          case DOT:
+            {
+              Object object = stack[sp - 1];
+              String name = (String) constants[code[pc++]];
+              Object result = EvalUtils.getAttr(thread, location(start), object, name);
+              if (result == null) {
+                throw EvalUtils.getMissingAttrException(object, name, thread.getSemantics());
+              }
+              stack[sp - 1] = result;
+              break;
+            }
+
+          case INDEX:
+            {
+              Object key = stack[--sp];
+              stack[sp - 1] = EvalUtils.index(stack[sp - 1], key, thread, location(start));
+              break;
+            }
+
+          case SLICE:
+            {
+              sp -= 3;
+              stack[sp - 1] =
+                  Eval.slice(
+                      stack[sp - 1],
+                      stack[sp],
+                      stack[sp + 1],
+                      stack[sp + 2],
+                      location(start),
+                      thread.mutability());
+              break;
+            }
+
+          case LIST:
+          case TUPLE:
+            {
+              int n = code[pc++];
+              Object[] array = new Object[n];
+              sp -= n;
+              System.arraycopy(stack, sp, array, 0, n);
+              stack[sp++] =
+                  code[start] == TUPLE
+                      ? Tuple.wrap(array)
+                      : StarlarkList.wrap(thread.mutability(), array);
+              break;
+            }
+
+          case NEW_DICT:
+            stack[sp++] = Dict.of(thread.mutability());
+            break;
+
+          case DICT_PUT:
+            sp -= 2;
+            Eval.putNewEntry(
+                (Dict<Object, Object>) stack[sp - 1], stack[sp], stack[sp + 1], location(start));
+            break;
+
+          case CHECK_STAR:
+            Eval.checkVarargs(stack[sp - 1], location(start));
+            break;
+
+          case CALL:
+            {
+              int npos = code[pc++];
+              int nnamed = code[pc++];
+              int flags = code[pc++];
+              String[] names = (String[]) constants[code[pc++]];
+              Object kwargs = (flags & CALL_STARSTAR) != 0 ? stack[--sp] : null;
+              Object varargs = (flags & CALL_STAR) != 0 ? stack[--sp] : null;
+              Object[] named = nnamed == 0 ? Eval.EMPTY : new Object[2 * nnamed];
+              for (int j = nnamed - 1; j >= 0; j--) {
+                named[2 * j] = names[j];
+                named[2 * j + 1] = stack[--sp];
+              }
+              Object[] positional = npos == 0 ? Eval.EMPTY : new Object[npos];
+              sp -= npos;
+              System.arraycopy(stack, sp, positional, 0, npos);
+              Object fn = stack[sp - 1];
+              Location loc = location(start);
+              if (varargs != null) {
+                positional = Eval.appendVarargs(positional, varargs, loc);
+              }
+              if (kwargs != null) {
+                named = Eval.appendKwargs(named, kwargs, loc);
+              }
+              stack[sp - 1] = Starlark.fastcall(thread, fn, loc, positional, named);
+              break;
+            }
+
+          case STORE_INDEX:
+            sp -= 3;
+            Eval.assignItem(stack[sp], stack[sp + 1], stack[sp + 2], location(start));
+            break;
+
+          case UNPACK:
+            {
+              int n = code[pc++];
+              Iterable<?> elements = Eval.checkUnpack(n, stack[--sp], location(start));
+              // Push the elements in reverse, so that the first one is assigned first.
+              sp += n;
+              int j = sp;
+              for (Object element : elements) {
+                stack[--j] = element;
+              }
+              break;
+            }
+
+          case ITER_PUSH:
+            {
+              Object x = stack[--sp];
+              Location loc = location(start);
+              Iterable<?> seq = Starlark.toIterable(x);
+              EvalUtils.lock(x, loc);
+              iterables[it] = x;
+              iterableLocations[it] = loc;
+              iterators[it++] = seq.iterator();
+              break;
+            }
+
+          case ITER_NEXT:
+            {
+              Iterator<?> iterator = iterators[it - 1];
+              if (iterator.hasNext()) {
+                stack[sp++] = iterator.next();
+                pc++;
+              } else {
+                pc = code[pc];
+              }
+              break;
+            }
+
+          case ITER_POP:
+            it--;
+            EvalUtils.unlock(iterables[it], iterableLocations[it]);
+            iterables[it] = null;
+            iterators[it] = null;
+            break;
+
+          case CHECK_INTERRUPT:
+            Eval.checkInterrupt();
+            break;
+
+          case NEW_LIST_ACC:
+            stack[sp++] = new ArrayList<>();
+            break;
+
+          case APPEND:
+            ((ArrayList<Object>) stack[code[pc++]]).add(stack[--sp]);
+            break;
+
+          case DICT_ACC_PUT:
+            sp -= 2;
+            ((Dict<Object, Object>) stack[code[pc++]])
+                .put(stack[sp], stack[sp + 1], location(start));
+            break;
+
+          case CHECK_HASHABLE:
+            EvalUtils.checkHashable(stack[sp - 1]);
+            break;
+
+          case FINISH_LIST:
+            stack[sp - 1] =
+                StarlarkList.copyOf(thread.mutability(), (ArrayList<Object>) stack[sp - 1]);
+            break;
+
+          case RETURN:
+            return stack[--sp];
+
+          default:
+            throw new IllegalStateException("unexpected opcode " + code[start]);
+        }
+      }
+    } catch (EvalException ex) {
+      throw transform(start, ex);
+    } finally {
+      // Unlock the collections of the loops that were exited by an error.
+      while (it > 0) {
+        it--;
+        EvalUtils.unlock(iterables[it], iterableLocations[it]);
+      }
+    }
+  }
+}
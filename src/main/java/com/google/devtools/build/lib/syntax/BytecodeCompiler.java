@@ -0,0 +1,645 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.devtools.build.lib.syntax.Bytecode.APPEND;
+import static com.google.devtools.build.lib.syntax.Bytecode.BINARY;
+import static com.google.devtools.build.lib.syntax.Bytecode.CALL;
+import static com.google.devtools.build.lib.syntax.Bytecode.CALL_STAR;
+import static com.google.devtools.build.lib.syntax.Bytecode.CALL_STARSTAR;
+import static com.google.devtools.build.lib.syntax.Bytecode.CHECK_HASHABLE;
+import static com.google.devtools.build.lib.syntax.Bytecode.CHECK_INTERRUPT;
+import static com.google.devtools.build.lib.syntax.Bytecode.CHECK_STAR;
+import static com.google.devtools.build.lib.syntax.Bytecode.CONST;
+import static com.google.devtools.build.lib.syntax.Bytecode.COPY;
+import static com.google.devtools.build.lib.syntax.Bytecode.DICT_ACC_PUT;
+import static com.google.devtools.build.lib.syntax.Bytecode.DICT_PUT;
+import static com.google.devtools.build.lib.syntax.Bytecode.DOT;
+import static com.google.devtools.build.lib.syntax.Bytecode.DUP2;
+import static com.google.devtools.build.lib.syntax.Bytecode.FINISH_LIST;
+import static com.google.devtools.build.lib.syntax.Bytecode.GLOBAL;
+import static com.google.devtools.build.lib.syntax.Bytecode.INDEX;
+import static com.google.devtools.build.lib.syntax.Bytecode.INPLACE;
+import static com.google.devtools.build.lib.syntax.Bytecode.ITER_NEXT;
+import static com.google.devtools.build.lib.syntax.Bytecode.ITER_POP;
+import static com.google.devtools.build.lib.syntax.Bytecode.ITER_PUSH;
+import static com.google.devtools.build.lib.syntax.Bytecode.JUMP;
+import static com.google.devtools.build.lib.syntax.Bytecode.JUMP_IF_FALSE;
+import static com.google.devtools.build.lib.syntax.Bytecode.JUMP_IF_FALSE_OR_POP;
+import static com.google.devtools.build.lib.syntax.Bytecode.JUMP_IF_TRUE_OR_POP;
+import static com.google.devtools.build.lib.syntax.Bytecode.LIST;
+import static com.google.devtools.build.lib.syntax.Bytecode.LOCAL;
+import static com.google.devtools.build.lib.syntax.Bytecode.NEW_DICT;
+import static com.google.devtools.build.lib.syntax.Bytecode.NEW_LIST_ACC;
+import static com.google.devtools.build.lib.syntax.Bytecode.POP;
+import static com.google.devtools.build.lib.syntax.Bytecode.RETURN;
+import static com.google.devtools.build.lib.syntax.Bytecode.ROT3;
+import static com.google.devtools.build.lib.syntax.Bytecode.SLICE;
+import static com.google.devtools.build.lib.syntax.Bytecode.STORE;
+import static com.google.devtools.build.lib.syntax.Bytecode.STORE_INDEX;
+import static com.google.devtools.build.lib.syntax.Bytecode.TUPLE;
+import static com.google.devtools.build.lib.syntax.Bytecode.UNARY;
+import static com.google.devtools.build.lib.syntax.Bytecode.UNIVERSE;
+import static com.google.devtools.build.lib.syntax.Bytecode.UNPACK;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Compiles the body of a {@link StarlarkFunction} to {@link Bytecode}.
+ *
+ * <p>Local variables are resolved to slots in a per-call array, and every instruction remembers
+ * the syntax node it was compiled from, so that errors carry the same locations and stack traces
+ * as those of the tree-walking evaluator in {@link Eval}.
+ *
+ * <p>The compiler relies on the scopes computed by {@link ValidationEnvironment}. Function bodies
+ * with unresolved identifiers, or with constructs whose evaluation order the compiler does not
+ * reproduce exactly (such as unpacking assignments to list elements), are not compiled and keep
+ * being evaluated by {@link Eval}.
+ */
+final class BytecodeCompiler {
+
+  /** Thrown for a construct the compiler does not support. */
+  private static final class UnsupportedException extends Exception {
+    UnsupportedException(Node node) {
+      super(node.getClass().getSimpleName(), null, false, false);
+    }
+  }
+
+  /** Pending jumps out of, and to the next iteration of, the innermost enclosing loop. */
+  private static final class Loop {
+    final List<Integer> breaks = new ArrayList<>();
+    final List<Integer> continues = new ArrayList<>();
+  }
+
+  private int[] code = new int[64];
+  private int[] nodeIds = new int[64];
+  private int size;
+
+  private final List<Object> constants = new ArrayList<>();
+  private final Map<Object, Integer> constantIndices = new HashMap<>();
+
+  private final List<Node> nodes = new ArrayList<>();
+  private final List<Integer> parents = new ArrayList<>();
+  private int currentNode = -1;
+
+  private final Map<String, Integer> slots = new HashMap<>();
+  private int nslots;
+
+  private int depth;
+  private int maxDepth;
+  private int iterDepth;
+  private int maxIterDepth;
+
+  private final List<Loop> loops = new ArrayList<>();
+
+  private BytecodeCompiler(List<String> parameterNames) {
+    for (String name : parameterNames) {
+      slots.put(name, nslots++);
+    }
+  }
+
+  /**
+   * Compiles the body of a function with the given parameters, or returns null if the body cannot
+   * be compiled.
+   */
+  @Nullable
+  static Bytecode compile(ImmutableList<String> parameterNames, List<Statement> statements) {
+    BytecodeCompiler compiler = new BytecodeCompiler(parameterNames);
+    try {
+      compiler.compileStatements(statements);
+    } catch (UnsupportedException e) {
+      return null;
+    }
+    compiler.emitConst(Starlark.NONE);
+    compiler.emit(RETURN, -1);
+    return compiler.build(parameterNames.size());
+  }
+
+  private Bytecode build(int nparams) {
+    int[] parentArray = new int[parents.size()];
+    for (int i = 0; i < parentArray.length; i++) {
+      parentArray[i] = parents.get(i);
+    }
+    return new Bytecode(
+        Arrays.copyOf(code, size),
+        Arrays.copyOf(nodeIds, size),
+        constants.toArray(),
+        nodes.toArray(new Node[0]),
+        parentArray,
+        nparams,
+        nslots,
+        maxDepth,
+        maxIterDepth);
+  }
+
+  // ---- emission ----
+
+  /** Makes {@code node} the current node, returning the previous one for {@link #exit}. */
+  private int enter(Node node) {
+    int previous = currentNode;
+    currentNode = nodes.size();
+    nodes.add(node);
+    parents.add(previous);
+    return previous;
+  }
+
+  private void exit(int previous) {
+    currentNode = previous;
+  }
+
+  private void ensureCapacity(int n) {
+    if (size + n > code.length) {
+      int newLength = Math.max(code.length * 2, size + n);
+      code = Arrays.copyOf(code, newLength);
+      nodeIds = Arrays.copyOf(nodeIds, newLength);
+    }
+  }
+
+  /**
+   * Appends an instruction attributed to the current node.
+   *
+   * @param stackEffect the net change in operand stack depth caused by the instruction
+   */
+  private void emit(int opcode, int stackEffect, int... operands) {
+    ensureCapacity(1 + operands.length);
+    nodeIds[size] = currentNode;
+    code[size++] = opcode;
+    for (int operand : operands) {
+      nodeIds[size] = currentNode;
+      code[size++] = operand;
+    }
+    depth += stackEffect;
+    Preconditions.checkState(depth >= 0);
+    maxDepth = Math.max(maxDepth, depth);
+  }
+
+  /** Emits a jump instruction with a placeholder target, and returns the target's position. */
+  private int emitJump(int opcode, int stackEffect) {
+    emit(opcode, stackEffect, -1);
+    return size - 1;
+  }
+
+  private void patch(int jump) {
+    code[jump] = size;
+  }
+
+  private void emitConst(Object value) {
+    emit(CONST, 1, constant(value));
+  }
+
+  private int constant(Object value) {
+    Integer index = constantIndices.get(value);
+    if (index == null) {
+      index = constants.size();
+      constants.add(value);
+      constantIndices.put(value, index);
+    }
+    return index;
+  }
+
+  private int slot(String name) {
+    Integer slot = slots.get(name);
+    if (slot == null) {
+      slot = nslots++;
+      slots.put(name, slot);
+    }
+    return slot;
+  }
+
+  // ---- statements ----
+
+  private void compileStatements(List<Statement> statements) throws UnsupportedException {
+    for (Statement statement : statements) {
+      compileStatement(statement);
+    }
+  }
+
+  private void compileStatement(Statement st) throws UnsupportedException {
+    int previous = enter(st);
+    switch (st.kind()) {
+      case ASSIGNMENT:
+        compileAssignment((AssignmentStatement) st);
+        break;
+      case EXPRESSION:
+        compileExpr(((ExpressionStatement) st).getExpression());
+        emit(POP, -1);
+        break;
+      case FLOW:
+        compileFlow((FlowStatement) st);
+        break;
+      case FOR:
+        compileFor((ForStatement) st);
+        break;
+      case IF:
+        compileIf((IfStatement) st);
+        break;
+      case RETURN:
+        Expression result = ((ReturnStatement) st).getReturnExpression();
+        if (result != null) {
+          compileExpr(result);
+        } else {
+          emitConst(Starlark.NONE);
+        }
+        // Unlock the collections of all enclosing loops.
+        for (int i = 0; i < iterDepth; i++) {
+          emit(ITER_POP, 0);
+        }
+        emit(RETURN, -1);
+        break;
+      case DEF:
+      case LOAD:
+        // Not permitted in function bodies.
+        throw new UnsupportedException(st);
+    }
+    exit(previous);
+  }
+
+  private void compileAssignment(AssignmentStatement node) throws UnsupportedException {
+    Expression lhs = node.getLHS();
+    if (!node.isAugmented()) {
+      compileExpr(node.getRHS());
+      compileAssign(lhs);
+      return;
+    }
+    int op = node.getOperator().ordinal();
+    if (lhs instanceof Identifier) {
+      compileExpr(lhs);
+      compileExpr(node.getRHS());
+      emit(INPLACE, -1, op);
+      compileAssign(lhs);
+    } else if (lhs instanceof IndexExpression) {
+      // object[index] op= y evaluates the object and key only once.
+      compileExpr(((IndexExpression) lhs).getObject());
+      compileExpr(((IndexExpression) lhs).getKey());
+      emit(DUP2, 2);
+      emit(INDEX, -1);
+      compileExpr(node.getRHS());
+      emit(INPLACE, -1, op);
+      emit(STORE_INDEX, -3);
+    } else {
+      throw new UnsupportedException(lhs);
+    }
+  }
+
+  /** Compiles an assignment of the value on top of the stack to {@code lhs}. */
+  private void compileAssign(Expression lhs) throws UnsupportedException {
+    if (lhs instanceof Identifier) {
+      Identifier id = (Identifier) lhs;
+      if (id.getScope() != ValidationEnvironment.Scope.Local) {
+        throw new UnsupportedException(lhs);
+      }
+      emit(STORE, -1, slot(id.getName()));
+    } else if (lhs instanceof IndexExpression) {
+      compileExpr(((IndexExpression) lhs).getObject());
+      compileExpr(((IndexExpression) lhs).getKey());
+      emit(ROT3, 0);
+      emit(STORE_INDEX, -3);
+    } else if (lhs instanceof ListExpression) {
+      // Eval assigns elements as it iterates over the value, which is only equivalent to unpacking
+      // the value first when no element assignment can observe the value.
+      if (!bindsOnlyIdentifiers(lhs)) {
+        throw new UnsupportedException(lhs);
+      }
+      List<Expression> elements = ((ListExpression) lhs).getElements();
+      emit(UNPACK, elements.size() - 1, elements.size());
+      for (Expression element : elements) {
+        compileAssign(element);
+      }
+    } else {
+      throw new UnsupportedException(lhs);
+    }
+  }
+
+  private static boolean bindsOnlyIdentifiers(Expression lhs) {
+    if (lhs instanceof Identifier) {
+      return true;
+    }
+    if (lhs instanceof ListExpression) {
+      for (Expression element : ((ListExpression) lhs).getElements()) {
+        if (!bindsOnlyIdentifiers(element)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private void compileFlow(FlowStatement node) throws UnsupportedException {
+    switch (node.getKind()) {
+      case PASS:
+        return;
+      case BREAK:
+        if (loops.isEmpty()) {
+          throw new UnsupportedException(node);
+        }
+        loops.get(loops.size() - 1).breaks.add(emitJump(JUMP, 0));
+        return;
+      case CONTINUE:
+        if (loops.isEmpty()) {
+          throw new UnsupportedException(node);
+        }
+        loops.get(loops.size() - 1).continues.add(emitJump(JUMP, 0));
+        return;
+      default:
+        throw new UnsupportedException(node);
+    }
+  }
+
+  private void compileFor(ForStatement node) throws UnsupportedException {
+    compileExpr(node.getCollection());
+    emit(ITER_PUSH, -1);
+    iterDepth++;
+    maxIterDepth = Math.max(maxIterDepth, iterDepth);
+
+    int head = size;
+    int exhausted = emitJump(ITER_NEXT, 1);
+    compileAssign(node.getLHS());
+
+    Loop loop = new Loop();
+    loops.add(loop);
+    compileStatements(node.getBlock());
+    loops.remove(loops.size() - 1);
+
+    for (int jump : loop.continues) {
+      patch(jump);
+    }
+    emit(CHECK_INTERRUPT, 0);
+    emit(JUMP, 0, head);
+
+    patch(exhausted);
+    for (int jump : loop.breaks) {
+      patch(jump);
+    }
+    emit(ITER_POP, 0);
+    iterDepth--;
+  }
+
+  private void compileIf(IfStatement node) throws UnsupportedException {
+    compileExpr(node.getCondition());
+    int skipThen = emitJump(JUMP_IF_FALSE, -1);
+    compileStatements(node.getThenBlock());
+    if (node.getElseBlock() == null) {
+      patch(skipThen);
+      return;
+    }
+    int skipElse = emitJump(JUMP, 0);
+    patch(skipThen);
+    compileStatements(node.getElseBlock());
+    patch(skipElse);
+  }
+
+  // ---- expressions ----
+
+  private void compileExpr(Expression expr) throws UnsupportedException {
+    int previous = enter(expr);
+    switch (expr.kind()) {
+      case BINARY_OPERATOR:
+        {
+          BinaryOperatorExpression binop = (BinaryOperatorExpression) expr;
+          compileExpr(binop.getX());
+          switch (binop.getOperator()) {
+            case AND:
+            case OR:
+              // Leave x on the stack if it decides the result, and replace it by y otherwise.
+              int end =
+                  emitJump(
+                      binop.getOperator() == TokenKind.AND
+                          ? JUMP_IF_FALSE_OR_POP
+                          : JUMP_IF_TRUE_OR_POP,
+                      -1);
+              compileExpr(binop.getY());
+              patch(end);
+              break;
+            default:
+              compileExpr(binop.getY());
+              emit(BINARY, -1, binop.getOperator().ordinal());
+          }
+          break;
+        }
+
+      case COMPREHENSION:
+        compileComprehension((Comprehension) expr);
+        break;
+
+      case CONDITIONAL:
+        {
+          ConditionalExpression cond = (ConditionalExpression) expr;
+          compileExpr(cond.getCondition());
+          int skipThen = emitJump(JUMP_IF_FALSE, -1);
+          compileExpr(cond.getThenCase());
+          int skipElse = emitJump(JUMP, -1);
+          patch(skipThen);
+          compileExpr(cond.getElseCase());
+          patch(skipElse);
+          break;
+        }
+
+      case DICT_EXPR:
+        emit(NEW_DICT, 1);
+        for (DictExpression.Entry entry : ((DictExpression) expr).getEntries()) {
+          compileExpr(entry.getKey());
+          compileExpr(entry.getValue());
+          emit(DICT_PUT, -2);
+        }
+        break;
+
+      case DOT:
+        {
+          DotExpression dot = (DotExpression) expr;
+          compileExpr(dot.getObject());
+          emit(DOT, 0, constant(dot.getField().getName()));
+          break;
+        }
+
+      case CALL:
+        compileCall((CallExpression) expr);
+        break;
+
+      case IDENTIFIER:
+        {
+          Identifier id = (Identifier) expr;
+          if (id.getScope() == null) {
+            throw new UnsupportedException(id);
+          }
+          switch (id.getScope()) {
+            case Local:
+              emit(LOCAL, 1, slot(id.getName()));
+              break;
+            case Module:
+              emit(GLOBAL, 1, constant(id.getName()));
+              break;
+            case Universe:
+              emit(UNIVERSE, 1, constant(id.getName()));
+              break;
+          }
+          break;
+        }
+
+      case INDEX:
+        compileExpr(((IndexExpression) expr).getObject());
+        compileExpr(((IndexExpression) expr).getKey());
+        emit(INDEX, -1);
+        break;
+
+      case INTEGER_LITERAL:
+        emitConst(((IntegerLiteral) expr).getValue());
+        break;
+
+      case LIST_EXPR:
+        {
+          ListExpression list = (ListExpression) expr;
+          int n = list.getElements().size();
+          for (Expression element : list.getElements()) {
+            compileExpr(element);
+          }
+          emit(list.isTuple() ? TUPLE : LIST, 1 - n, n);
+          break;
+        }
+
+      case SLICE:
+        {
+          SliceExpression slice = (SliceExpression) expr;
+          compileExpr(slice.getObject());
+          compileOptional(slice.getStart());
+          compileOptional(slice.getEnd());
+          compileOptional(slice.getStep());
+          emit(SLICE, -3);
+          break;
+        }
+
+      case STRING_LITERAL:
+        emitConst(((StringLiteral) expr).getValue());
+        break;
+
+      case UNARY_OPERATOR:
+        {
+          UnaryOperatorExpression unop = (UnaryOperatorExpression) expr;
+          compileExpr(unop.getX());
+          emit(UNARY, 0, unop.getOperator().ordinal());
+          break;
+        }
+    }
+    exit(previous);
+  }
+
+  private void compileOptional(@Nullable Expression expr) throws UnsupportedException {
+    if (expr == null) {
+      emitConst(Starlark.NONE);
+    } else {
+      compileExpr(expr);
+    }
+  }
+
+  private void compileCall(CallExpression call) throws UnsupportedException {
+    emit(CHECK_INTERRUPT, 0);
+    compileExpr(call.getFunction());
+
+    ImmutableList<Argument> arguments = call.getArguments();
+    int npos = call.getNumPositionalArguments();
+    List<String> names = new ArrayList<>();
+    int flags = 0;
+    for (int i = 0; i < arguments.size(); i++) {
+      Argument arg = arguments.get(i);
+      compileExpr(arg.getValue());
+      if (arg instanceof Argument.Keyword) {
+        names.add(arg.getName());
+      } else if (arg instanceof Argument.Star) {
+        // *args is checked before **kwargs is evaluated.
+        emit(CHECK_STAR, 0);
+        flags |= CALL_STAR;
+      } else if (arg instanceof Argument.StarStar) {
+        flags |= CALL_STARSTAR;
+      }
+    }
+    // Named argument arrays are not shared between calls, so they are not deduplicated.
+    int namesIndex = constants.size();
+    constants.add(names.toArray(new String[0]));
+    emit(CALL, -arguments.size(), npos, names.size(), flags, namesIndex);
+  }
+
+  private void compileComprehension(Comprehension comp) throws UnsupportedException {
+    // Save the variables bound by the comprehension, which are restored at the end.
+    List<int[]> saved = new ArrayList<>();
+    for (Comprehension.Clause clause : comp.getClauses()) {
+      if (clause instanceof Comprehension.For) {
+        for (Identifier id : Identifier.boundIdentifiers(((Comprehension.For) clause).getVars())) {
+          int[] copy = {slot(id.getName()), nslots++};
+          emit(COPY, 0, copy[0], copy[1]);
+          saved.add(copy);
+        }
+      }
+    }
+
+    int accumulator = depth;
+    emit(comp.isDict() ? NEW_DICT : NEW_LIST_ACC, 1);
+    compileClauses(comp, 0, accumulator);
+
+    for (int[] copy : saved) {
+      emit(COPY, 0, copy[1], copy[0]);
+    }
+    if (!comp.isDict()) {
+      emit(FINISH_LIST, 0);
+    }
+  }
+
+  private void compileClauses(Comprehension comp, int index, int accumulator)
+      throws UnsupportedException {
+    emit(CHECK_INTERRUPT, 0);
+
+    if (index == comp.getClauses().size()) {
+      if (comp.isDict()) {
+        DictExpression.Entry body = (DictExpression.Entry) comp.getBody();
+        compileExpr(body.getKey());
+        emit(CHECK_HASHABLE, 0);
+        compileExpr(body.getValue());
+        emit(DICT_ACC_PUT, -2, accumulator);
+      } else {
+        compileExpr((Expression) comp.getBody());
+        emit(APPEND, -1, accumulator);
+      }
+      return;
+    }
+
+    Comprehension.Clause clause = comp.getClauses().get(index);
+    if (clause instanceof Comprehension.For) {
+      Comprehension.For forClause = (Comprehension.For) clause;
+      compileExpr(forClause.getIterable());
+      emit(ITER_PUSH, -1);
+      iterDepth++;
+      maxIterDepth = Math.max(maxIterDepth, iterDepth);
+      int head = size;
+      int exhausted = emitJump(ITER_NEXT, 1);
+      compileAssign(forClause.getVars());
+      compileClauses(comp, index + 1, accumulator);
+      emit(JUMP, 0, head);
+      patch(exhausted);
+      emit(ITER_POP, 0);
+      iterDepth--;
+    } else {
+      compileExpr(((Comprehension.If) clause).getCondition());
+      int skip = emitJump(JUMP_IF_FALSE, -1);
+      compileClauses(comp, index + 1, accumulator);
+      patch(skip);
+    }
+  }
+}
@@ -47,6 +47,11 @@ final class Eval {
     }
   }
 
+  /** Reports whether a debugger is attached, in which case function bodies must not be compiled. */
+  static boolean isDebugging() {
+    return debugger.get() != null;
+  }
+
   static void execFile(StarlarkThread thread, StarlarkFile file)
       throws EvalException, InterruptedException {
     checkInterrupt();
@@ -306,7 +311,7 @@ final class Eval {
    * @throws EvalException if the object is not a list or dict
    */
   @SuppressWarnings("unchecked")
-  private static void assignItem(Object object, Object key, Object value, Location loc)
+  static void assignItem(Object object, Object key, Object value, Location loc)
       throws EvalException {
     if (object instanceof Dict) {
       Dict<Object, Object> dict = (Dict<Object, Object>) object;
@@ -336,12 +341,24 @@ final class Eval {
     // TODO(adonovan): lock/unlock rhs during iteration so that
     // assignments fail when the left side aliases the right,
     // which is a tricky case in Python assignment semantics.
+    Iterable<?> rhs = checkUnpack(lhs.size(), x, loc);
+    int i = 0;
+    for (Object item : rhs) {
+      assign(lhs.get(i), item, thread, loc);
+      i++;
+    }
+  }
+
+  /**
+   * Checks that {@code x} can be assigned to a list of {@code len} expressions and returns its
+   * elements.
+   */
+  static Iterable<?> checkUnpack(int len, Object x, Location loc) throws EvalException {
     int nrhs = Starlark.len(x);
     if (nrhs < 0) {
       throw new EvalException(loc, "type '" + EvalUtils.getDataTypeName(x) + "' is not iterable");
     }
     Iterable<?> rhs = Starlark.toIterable(x); // fails if x is a string
-    int len = lhs.size();
     if (len == 0) {
       throw new EvalException(
           loc, "lists or tuples on the left-hand side of assignments must have at least one item");
@@ -354,11 +371,7 @@ final class Eval {
                   + " evaluates to value of length %d",
               len, nrhs));
     }
-    int i = 0;
-    for (Object item : rhs) {
-      assign(lhs.get(i), item, thread, loc);
-      i++;
-    }
+    return rhs;
   }
 
   private void execAugmentedAssignment(AssignmentStatement stmt)
@@ -392,7 +405,7 @@ final class Eval {
     }
   }
 
-  private static Object inplaceBinaryOp(
+  static Object inplaceBinaryOp(
       TokenKind op, Object x, Object y, StarlarkThread thread, Location location)
       throws EvalException, InterruptedException {
     // list += iterable  behaves like  list.extend(iterable)
@@ -485,12 +498,7 @@ final class Eval {
           for (DictExpression.Entry entry : dictexpr.getEntries()) {
             Object k = eval(thread, entry.getKey());
             Object v = eval(thread, entry.getValue());
-            int before = dict.size();
-            dict.put(k, v, loc);
-            if (dict.size() == before) {
-              throw new EvalException(
-                  loc, "Duplicated key " + Starlark.repr(k) + " when creating dictionary");
-            }
+            putNewEntry(dict, k, v, loc);
           }
           return dict;
         }
@@ -553,38 +561,13 @@ final class Eval {
           // f(*args) -- varargs
           if (star != null) {
             Object value = eval(thread, star.getValue());
-            if (!(value instanceof StarlarkIterable)) {
-              throw new EvalException(
-                  call.getLocation(),
-                  "argument after * must be an iterable, not " + EvalUtils.getDataTypeName(value));
-            }
-            // TODO(adonovan): opt: if value.size is known, preallocate (and skip if empty).
-            ArrayList<Object> list = new ArrayList<>();
-            Collections.addAll(list, positional);
-            Iterables.addAll(list, ((Iterable<?>) value));
-            positional = list.toArray();
+            positional = appendVarargs(positional, value, call.getLocation());
           }
 
           // f(**kwargs)
           if (starstar != null) {
             Object value = eval(thread, starstar.getValue());
-            if (!(value instanceof Dict)) {
-              throw new EvalException(
-                  call.getLocation(),
-                  "argument after ** must be a dict, not " + EvalUtils.getDataTypeName(value));
-            }
-            Dict<?, ?> kwargs = (Dict<?, ?>) value;
-            int j = named.length;
-            named = Arrays.copyOf(named, j + 2 * kwargs.size());
-            for (Map.Entry<?, ?> e : kwargs.entrySet()) {
-              if (!(e.getKey() instanceof String)) {
-                throw new EvalException(
-                    call.getLocation(),
-                    "keywords must be strings, not " + EvalUtils.getDataTypeName(e.getKey()));
-              }
-              named[j++] = e.getKey();
-              named[j++] = e.getValue();
-            }
+            named = appendKwargs(named, value, call.getLocation());
           }
 
           return Starlark.fastcall(thread, fn, call.getLocation(), positional, named);
@@ -621,17 +604,7 @@ final class Eval {
               throw new IllegalStateException(id.getScope().toString());
           }
           if (result == null) {
-            // Since Scope was set, we know that the variable is defined in the scope.
-            // However, the assignment was not yet executed.
-            String error = ValidationEnvironment.getErrorForObsoleteThreadLocalVars(id.getName());
-            if (error == null) {
-              error =
-                  id.getScope().getQualifier()
-                      + " variable '"
-                      + name
-                      + "' is referenced before assignment.";
-            }
-            throw new EvalException(id.getLocation(), error);
+            throw referencedBeforeAssignment(id);
           }
           return result;
         }
@@ -665,37 +638,7 @@ final class Eval {
           Object start = slice.getStart() == null ? Starlark.NONE : eval(thread, slice.getStart());
           Object end = slice.getEnd() == null ? Starlark.NONE : eval(thread, slice.getEnd());
           Object step = slice.getStep() == null ? Starlark.NONE : eval(thread, slice.getStep());
-          Location loc = slice.getLocation();
-
-          // TODO(adonovan): move the rest into a public EvalUtils.slice() operator.
-
-          if (object instanceof Sequence) {
-            return ((Sequence<?>) object).getSlice(start, end, step, loc, thread.mutability());
-          }
-
-          if (object instanceof String) {
-            String string = (String) object;
-            List<Integer> indices =
-                EvalUtils.getSliceIndices(start, end, step, string.length(), loc);
-            // TODO(adonovan): opt: optimize for common case, step=1.
-            char[] result = new char[indices.size()];
-            char[] original = string.toCharArray();
-            int resultIndex = 0;
-            for (int originalIndex : indices) {
-              result[resultIndex] = original[originalIndex];
-              ++resultIndex;
-            }
-            return new String(result);
-          }
-
-          throw new EvalException(
-              loc,
-              String.format(
-                  "type '%s' has no operator [:](%s, %s, %s)",
-                  EvalUtils.getDataTypeName(object),
-                  EvalUtils.getDataTypeName(start),
-                  EvalUtils.getDataTypeName(end),
-                  EvalUtils.getDataTypeName(step)));
+          return slice(object, start, end, step, slice.getLocation(), thread.mutability());
         }
 
       case STRING_LITERAL:
@@ -711,6 +654,106 @@ final class Eval {
     throw new IllegalArgumentException("unexpected expression: " + expr.kind());
   }
 
+  /**
+   * Returns the error for a reference to the resolved variable {@code id} whose assignment has not
+   * yet been executed.
+   */
+  static EvalException referencedBeforeAssignment(Identifier id) {
+    String error = ValidationEnvironment.getErrorForObsoleteThreadLocalVars(id.getName());
+    if (error == null) {
+      error =
+          id.getScope().getQualifier()
+              + " variable '"
+              + id.getName()
+              + "' is referenced before assignment.";
+    }
+    return new EvalException(id.getLocation(), error);
+  }
+
+  /** Adds an entry to a dict being built by a dict expression, rejecting duplicate keys. */
+  static void putNewEntry(Dict<Object, Object> dict, Object k, Object v, Location loc)
+      throws EvalException {
+    int before = dict.size();
+    dict.put(k, v, loc);
+    if (dict.size() == before) {
+      throw new EvalException(
+          loc, "Duplicated key " + Starlark.repr(k) + " when creating dictionary");
+    }
+  }
+
+  /** Checks that {@code value} may follow a {@code *} in a call. */
+  static void checkVarargs(Object value, Location loc) throws EvalException {
+    if (!(value instanceof StarlarkIterable)) {
+      throw new EvalException(
+          loc, "argument after * must be an iterable, not " + EvalUtils.getDataTypeName(value));
+    }
+  }
+
+  /** Returns the positional arguments of a call followed by the elements of its {@code *args}. */
+  static Object[] appendVarargs(Object[] positional, Object value, Location loc)
+      throws EvalException {
+    checkVarargs(value, loc);
+    // TODO(adonovan): opt: if value.size is known, preallocate (and skip if empty).
+    ArrayList<Object> list = new ArrayList<>();
+    Collections.addAll(list, positional);
+    Iterables.addAll(list, ((Iterable<?>) value));
+    return list.toArray();
+  }
+
+  /** Returns the named arguments of a call followed by the entries of its {@code **kwargs}. */
+  static Object[] appendKwargs(Object[] named, Object value, Location loc) throws EvalException {
+    if (!(value instanceof Dict)) {
+      throw new EvalException(
+          loc, "argument after ** must be a dict, not " + EvalUtils.getDataTypeName(value));
+    }
+    Dict<?, ?> kwargs = (Dict<?, ?>) value;
+    int j = named.length;
+    named = Arrays.copyOf(named, j + 2 * kwargs.size());
+    for (Map.Entry<?, ?> e : kwargs.entrySet()) {
+      if (!(e.getKey() instanceof String)) {
+        throw new EvalException(
+            loc, "keywords must be strings, not " + EvalUtils.getDataTypeName(e.getKey()));
+      }
+      named[j++] = e.getKey();
+      named[j++] = e.getValue();
+    }
+    return named;
+  }
+
+  /** Evaluates {@code object[start:end:step]}, where missing operands are None. */
+  static Object slice(
+      Object object, Object start, Object end, Object step, Location loc, Mutability mu)
+      throws EvalException {
+    // TODO(adonovan): move the rest into a public EvalUtils.slice() operator.
+
+    if (object instanceof Sequence) {
+      return ((Sequence<?>) object).getSlice(start, end, step, loc, mu);
+    }
+
+    if (object instanceof String) {
+      String string = (String) object;
+      List<Integer> indices = EvalUtils.getSliceIndices(start, end, step, string.length(), loc);
+      // TODO(adonovan): opt: optimize for common case, step=1.
+      char[] result = new char[indices.size()];
+      char[] original = string.toCharArray();
+      int resultIndex = 0;
+      for (int originalIndex : indices) {
+        result[resultIndex] = original[originalIndex];
+        ++resultIndex;
+      }
+      return new String(result);
+    }
+
+    throw new EvalException(
+        loc,
+        String.format(
+            "type '%s' has no operator [:](%s, %s, %s)",
+            EvalUtils.getDataTypeName(object),
+            EvalUtils.getDataTypeName(start),
+            EvalUtils.getDataTypeName(end),
+            EvalUtils.getDataTypeName(step)));
+  }
+
   private static Object evalComprehension(StarlarkThread thread, Comprehension comp)
       throws EvalException, InterruptedException {
     final Dict<Object, Object> dict = comp.isDict() ? Dict.of(thread.mutability()) : null;
@@ -792,10 +835,10 @@ final class Eval {
     return comp.isDict() ? dict : StarlarkList.copyOf(thread.mutability(), list);
   }
 
-  private static final Object[] EMPTY = {};
+  static final Object[] EMPTY = {};
 
   /** Returns an exception which should be thrown instead of the original one. */
-  private static EvalException maybeTransformException(Node node, EvalException original) {
+  static EvalException maybeTransformException(Node node, EvalException original) {
     // If there is already a non-empty stack trace, we only add this node iff it describes a
     // new scope (e.g. CallExpression).
     if (original instanceof EvalExceptionWithStackTrace) {
@@ -813,7 +856,7 @@ final class Eval {
     }
   }
 
-  private static void checkInterrupt() throws InterruptedException {
+  static void checkInterrupt() throws InterruptedException {
     if (Thread.interrupted()) {
       throw new InterruptedException();
     }
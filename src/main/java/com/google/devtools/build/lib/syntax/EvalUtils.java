@@ -421,6 +421,15 @@ public final class EvalUtils {
     Eval.setDebugger(dbg);
   }
 
+  /**
+   * Enables or disables the compilation of Starlark function bodies to bytecode. Compiled functions
+   * behave exactly as interpreted ones, but run faster; they are interpreted while a debugger is
+   * attached.
+   */
+  public static void setBytecodeCompilation(boolean enabled) {
+    Bytecode.enabled = enabled;
+  }
+
   /** Returns the named field or method of value {@code x}, or null if not found. */
   static Object getAttr(StarlarkThread thread, Location loc, Object x, String name)
       throws EvalException, InterruptedException {
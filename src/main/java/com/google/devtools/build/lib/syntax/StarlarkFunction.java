@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.syntax;
 
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.events.Location;
+import javax.annotation.Nullable;
 
 /** A StarlarkFunction is the function value created by a Starlark {@code def} statement. */
 public final class StarlarkFunction extends BaseFunction {
@@ -26,6 +27,11 @@ public final class StarlarkFunction extends BaseFunction {
   private final Module module; // a function closes over its defining module
   private final Tuple<Object> defaultValues;
 
+  // The compiled body: a Bytecode, UNCOMPILABLE, or null until the first call that needs it.
+  private volatile Object compiled;
+
+  private static final Object UNCOMPILABLE = new Object();
+
   // TODO(adonovan): make this private. The CodecTests should go through interpreter to instantiate
   // such things.
   public StarlarkFunction(
@@ -89,6 +95,15 @@ public final class StarlarkFunction extends BaseFunction {
     Object[] arguments =
         Starlark.matchSignature(
             getSignature(), this, getDefaultValues(), thread.mutability(), positional, named);
+
+    if (Bytecode.enabled && !Callstack.enabled && !Eval.isDebugging()) {
+      Bytecode code = getBytecode();
+      if (code != null) {
+        Eval.checkInterrupt();
+        return code.exec(thread, arguments);
+      }
+    }
+
     ImmutableList<String> names = getSignature().getParameterNames();
     for (int i = 0; i < names.size(); ++i) {
       thread.update(names.get(i), arguments[i]);
@@ -97,6 +112,18 @@ public final class StarlarkFunction extends BaseFunction {
     return Eval.execStatements(thread, statements);
   }
 
+  /** Returns the compiled body of the function, or null if it cannot be compiled. */
+  @Nullable
+  private Bytecode getBytecode() {
+    Object code = compiled;
+    if (code == null) {
+      // Racing threads compile the body more than once, which is harmless.
+      code = BytecodeCompiler.compile(getSignature().getParameterNames(), statements);
+      compiled = code = code != null ? code : UNCOMPILABLE;
+    }
+    return code != UNCOMPILABLE ? (Bytecode) code : null;
+  }
+
   @Override
   public void repr(Printer printer) {
     Object label = module.getLabel();
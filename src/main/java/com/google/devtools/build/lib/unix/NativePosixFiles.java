@@ -128,6 +128,16 @@ public final class NativePosixFiles {
    */
   public static native ErrnoFileStatus errnoLstat(String path);
 
+  /**
+   * Like {@link #errnoStat} or {@link #errnoLstat} for each of {@code paths}, but crossing into
+   * native code only once.
+   *
+   * @param paths the files to stat.
+   * @param followSymlinks whether to stat(2) or lstat(2) the files.
+   * @return an ErrnoFileStatus instance for each path, in the same order.
+   */
+  public static native ErrnoFileStatus[] errnoStatBatch(String[] paths, boolean followSymlinks);
+
   /**
    * Native wrapper around POSIX utime(2) syscall.
    *
@@ -286,6 +296,19 @@ public final class NativePosixFiles {
   private static native Dirents readdir(String path, char typeCode)
       throws IOException;
 
+  /**
+   * Like {@link #readdir(String, ReadTypes)} for each of {@code paths}, but crossing into native
+   * code only once.
+   *
+   * @return a Dirents object for each path, in the same order, or null for the directories that
+   *   could not be read for any reason.
+   */
+  public static Dirents[] readdirBatch(String[] paths, ReadTypes readTypes) {
+    return readdirBatch(paths, readTypes.getCode());
+  }
+
+  private static native Dirents[] readdirBatch(String[] paths, char typeCode);
+
   /**
    * Native wrapper around POSIX rename(2) syscall.
    *
@@ -159,18 +159,56 @@ public class UnixFileSystem extends AbstractFileSystemWithCustomStat {
     try {
       Dirents unixDirents = NativePosixFiles.readdir(name,
           followSymlinks ? ReadTypes.FOLLOW : ReadTypes.NOFOLLOW);
-      Preconditions.checkState(unixDirents.hasTypes());
-      List<Dirent> dirents = Lists.newArrayListWithCapacity(unixDirents.size());
-      for (int i = 0; i < unixDirents.size(); i++) {
-        dirents.add(new Dirent(unixDirents.getName(i),
-            convertToDirentType(unixDirents.getType(i))));
-      }
-      return dirents;
+      return convertDirents(unixDirents);
     } finally {
       profiler.logSimpleTask(startTime, ProfilerTask.VFS_DIR, name);
     }
   }
 
+  private static List<Dirent> convertDirents(Dirents unixDirents) {
+    Preconditions.checkState(unixDirents.hasTypes());
+    List<Dirent> dirents = Lists.newArrayListWithCapacity(unixDirents.size());
+    for (int i = 0; i < unixDirents.size(); i++) {
+      dirents.add(new Dirent(unixDirents.getName(i),
+          convertToDirentType(unixDirents.getType(i))));
+    }
+    return dirents;
+  }
+
+  @Override
+  public List<Collection<Dirent>> readdirBatch(List<Path> paths, boolean followSymlinks)
+      throws IOException {
+    long startTime = Profiler.nanoTimeMaybe();
+    Dirents[] unixDirents;
+    try {
+      unixDirents = NativePosixFiles.readdirBatch(
+          getPathStrings(paths), followSymlinks ? ReadTypes.FOLLOW : ReadTypes.NOFOLLOW);
+    } finally {
+      profiler.logSimpleTask(
+          startTime, ProfilerTask.VFS_DIR, paths.size() + " directories in a batch");
+    }
+    List<Collection<Dirent>> result = Lists.newArrayListWithCapacity(paths.size());
+    for (int i = 0; i < unixDirents.length; i++) {
+      // Read the directory again to throw the proper exception. As with statIfFound, the error may
+      // have been transient, in which case this returns the entries.
+      result.add(
+          unixDirents[i] != null
+              ? convertDirents(unixDirents[i])
+              : readdir(paths.get(i), followSymlinks));
+    }
+    return result;
+  }
+
+  private String[] getPathStrings(List<Path> paths) {
+    String[] names = new String[paths.size()];
+    for (int i = 0; i < names.length; i++) {
+      Path path = paths.get(i);
+      Preconditions.checkArgument(path.getFileSystem() == this, path);
+      names[i] = path.getPathString();
+    }
+    return names;
+  }
+
   @Override
   protected FileStatus stat(Path path, boolean followSymlinks) throws IOException {
     return statInternal(path, followSymlinks);
@@ -241,6 +279,34 @@ public class UnixFileSystem extends AbstractFileSystemWithCustomStat {
     }
   }
 
+  @Override
+  public List<FileStatus> statIfFoundBatch(List<Path> paths, boolean followSymlinks)
+      throws IOException {
+    long startTime = Profiler.nanoTimeMaybe();
+    ErrnoFileStatus[] stats;
+    try {
+      stats = NativePosixFiles.errnoStatBatch(getPathStrings(paths), followSymlinks);
+    } finally {
+      profiler.logSimpleTask(startTime, ProfilerTask.VFS_STAT, paths.size() + " paths in a batch");
+    }
+    List<FileStatus> result = Lists.newArrayListWithCapacity(paths.size());
+    for (int i = 0; i < stats.length; i++) {
+      ErrnoFileStatus stat = stats[i];
+      if (!stat.hasError()) {
+        result.add(new UnixFileStatus(stat));
+        continue;
+      }
+      int errno = stat.getErrno();
+      if (errno == ErrnoFileStatus.ENOENT || errno == ErrnoFileStatus.ENOTDIR) {
+        result.add(null);
+        continue;
+      }
+      // As in statIfFound, stat again to throw the proper exception.
+      result.add(stat(paths.get(i), followSymlinks));
+    }
+    return result;
+  }
+
   @Override
   protected boolean isReadable(Path path) throws IOException {
     return (statInternal(path, true).getPermissions() & 0400) != 0;
@@ -0,0 +1,979 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import javax.annotation.Nullable;
+
+/**
+ * A persistent map from {@code int} keys to byte array values, stored as an append-only log in a
+ * memory-mapped file.
+ *
+ * <p>Unlike {@link PersistentMap}, values are not kept on the Java heap: the map only holds the
+ * offset of the latest record of every key, and values are copied out of the mapped file by {@link
+ * #get}. Updates are appended to the mapped file in place, so there is no separate journal, and
+ * {@link #save} only forces dirty pages to disk instead of rewriting the whole file.
+ *
+ * <p>{@link #save} also writes these offsets to a checkpoint file next to the log. Opening the map
+ * reads the checkpoint and only scans the records appended after it, so that the log itself is
+ * paged in on demand. Without a usable checkpoint, the whole log is scanned.
+ *
+ * <p>A map can optionally index its values, so that {@link #findKey} looks up the key of a value
+ * through a hash table of slots that refer to the records in the mapped file.
+ *
+ * <p>Records that were overwritten or removed stay in the log until it is compacted. {@link #save}
+ * starts a compaction on a background thread once less than half of the log is live. The
+ * compaction copies the live records into a new file while the map remains usable, and only blocks
+ * other operations while it copies the records that were appended in the meantime.
+ *
+ * <p>The log is split into fixed-size segments that are mapped separately, and a record never spans
+ * two segments. Every record carries a checksum, so that a log whose tail was not completely
+ * written to disk before a crash is cut after its last intact record when it is opened.
+ *
+ * <p>Like with {@link PersistentMap}, I/O failures during updates are deferred until the next call
+ * to {@link #save}. The file must be on the local file system, since it is accessed through {@link
+ * Path#getPathFile}.
+ */
+@ThreadSafe
+public final class MappedPersistentIntMap {
+
+  private static final Logger logger = Logger.getLogger(MappedPersistentIntMap.class.getName());
+
+  private static final long MAGIC = 0x20201015L;
+  /** Magic number, version and a random generation that tells a log apart from its predecessors. */
+  private static final int HEADER_SIZE = 24;
+  private static final long CHECKPOINT_MAGIC = 0x20201015_0000000cL;
+
+  private static final byte RECORD_MAGIC = (byte) 0xfe;
+  /** Marks the unused end of a segment; the log continues in the next segment. */
+  private static final byte PADDING_MAGIC = (byte) 0xfd;
+  /** Magic byte, key, value length and checksum. */
+  private static final int RECORD_HEADER_SIZE = 13;
+  /** Value length of a record that removes its key. */
+  private static final int TOMBSTONE = -1;
+
+  private static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+  /** Leftovers after the end of the log are zeroed in chunks of this size. */
+  private static final byte[] ZEROS = new byte[4096];
+  /** Logs smaller than this are never compacted. */
+  @VisibleForTesting static final long MIN_COMPACTION_SIZE = 1 << 20;
+
+  private final Path path;
+  private final Path checkpointPath;
+  private final long version;
+  private final int segmentSize;
+  private final boolean indexValues;
+  private final Executor compactionExecutor;
+
+  // All fields below are guarded by this.
+  private LogFile log;
+  private OffsetIndex index;
+  private boolean compactionInProgress;
+  /** The log and the end of it that the checkpoint file was last written for. */
+  @Nullable private LogFile checkpointedLog;
+  private long checkpointedEnd;
+  /**
+   * Keys that were removed from the index, but whose tombstone could not be appended to the log.
+   * They are retried by {@link #save}.
+   */
+  private final Set<Integer> pendingTombstones = new HashSet<>();
+
+  /**
+   * If non-null, contains the message from an {@code IOException} thrown by a previously failed
+   * update. This error is deferred until the next call to {@link #save}.
+   */
+  @Nullable private String deferredIOFailure;
+
+  /**
+   * Opens the map stored in {@code path}, or creates an empty one if the file does not exist.
+   *
+   * @param version the version tag. The map refuses to open a file written with a different tag.
+   * @throws IOException if the file cannot be read or was not written by a map of this version
+   */
+  public MappedPersistentIntMap(Path path, long version) throws IOException {
+    this(path, version, /*indexValues=*/ false);
+  }
+
+  /**
+   * Opens the map stored in {@code path}, or creates an empty one if the file does not exist.
+   *
+   * @param version the version tag. The map refuses to open a file written with a different tag.
+   * @param indexValues whether to index the values for {@link #findKey}
+   * @throws IOException if the file cannot be read or was not written by a map of this version
+   */
+  public MappedPersistentIntMap(Path path, long version, boolean indexValues) throws IOException {
+    this(
+        path,
+        version,
+        indexValues,
+        DEFAULT_SEGMENT_SIZE,
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("mapped-persistent-map-compaction")
+                .setDaemon(true)
+                .build()));
+  }
+
+  @VisibleForTesting
+  MappedPersistentIntMap(
+      Path path,
+      long version,
+      boolean indexValues,
+      int segmentSize,
+      Executor compactionExecutor)
+      throws IOException {
+    Preconditions.checkArgument(segmentSize > HEADER_SIZE + RECORD_HEADER_SIZE);
+    this.path = path;
+    this.checkpointPath = path.getParentDirectory().getChild(path.getBaseName() + ".checkpoint");
+    this.version = version;
+    this.indexValues = indexValues;
+    this.segmentSize = segmentSize;
+    this.compactionExecutor = compactionExecutor;
+    this.log = LogFile.open(path, version, segmentSize);
+    this.index = readCheckpoint();
+    long scanStart = HEADER_SIZE;
+    if (index != null) {
+      checkpointedLog = log;
+      scanStart = checkpointedEnd;
+    } else {
+      index = new OffsetIndex(indexValues);
+    }
+    long validEnd =
+        log.scan(
+            scanStart,
+            log.fileSize,
+            (key, offset, length) -> index.apply(log, key, offset, length));
+    if (log.truncateTo(validEnd)) {
+      logger.info(String.format("Discarded the incomplete tail of '%s' at %d", path, validEnd));
+    }
+    logger.info(
+        String.format(
+            "Loaded '%s' [%d entries, %d bytes, %d bytes scanned]",
+            path, index.size(), log.end, validEnd - scanStart));
+  }
+
+  /** Returns a copy of the value of {@code key}, or null if there is none. */
+  @Nullable
+  public synchronized byte[] get(int key) {
+    long offset = index.get(key);
+    return offset == 0 ? null : log.readValue(offset);
+  }
+
+  /**
+   * Returns the key whose value is equal to {@code value}, or null if there is none. If several
+   * keys have this value, returns any of them. Only supported if the map indexes its values.
+   */
+  @Nullable
+  public synchronized Integer findKey(byte[] value) {
+    Preconditions.checkState(indexValues, "values of %s are not indexed", path);
+    return index.findKey(log, value);
+  }
+
+  public synchronized void put(int key, byte[] value) {
+    Preconditions.checkNotNull(value);
+    try {
+      long offset = log.append(key, value);
+      index.apply(log, key, offset, value.length);
+      pendingTombstones.remove(key);
+    } catch (IOException e) {
+      deferredIOFailure = e.getMessage() + " during append";
+      // Do not return the old value, which the caller meant to replace, now or after reopening.
+      remove(key);
+    }
+  }
+
+  public synchronized void remove(int key) {
+    if (index.get(key) == 0) {
+      return;
+    }
+    index.apply(log, key, 0, TOMBSTONE);
+    appendTombstone(key);
+  }
+
+  private void appendTombstone(int key) {
+    try {
+      log.append(key, null);
+      pendingTombstones.remove(key);
+    } catch (IOException e) {
+      pendingTombstones.add(key);
+      deferredIOFailure = e.getMessage() + " during append";
+    }
+  }
+
+  public synchronized int size() {
+    return index.size();
+  }
+
+  public synchronized boolean isEmpty() {
+    return index.size() == 0;
+  }
+
+  /** Returns the keys of this map: the negative ones first, then the others in ascending order. */
+  public synchronized int[] keys() {
+    return index.keys();
+  }
+
+  /** Removes all entries and replaces the file with an empty one. */
+  public synchronized void clear() {
+    try {
+      log.close();
+      checkpointPath.delete();
+      log = LogFile.create(path, version, segmentSize);
+    } catch (IOException e) {
+      deferredIOFailure = e.getMessage() + " during clear";
+    }
+    index = new OffsetIndex(indexValues);
+    pendingTombstones.clear();
+  }
+
+  /**
+   * Forces all updates to disk, writes the checkpoint and, if enough of the log is garbage, starts
+   * compacting it in the background.
+   *
+   * @return the size of the log in bytes
+   * @throws IOException if there was an I/O error during this call, or any previous update since
+   *     the last save()
+   */
+  public synchronized long save() throws IOException {
+    for (int key : pendingTombstones.toArray(new Integer[0])) {
+      appendTombstone(key);
+    }
+    if (deferredIOFailure != null) {
+      try {
+        throw new IOException(deferredIOFailure);
+      } finally {
+        deferredIOFailure = null;
+      }
+    }
+    log.force();
+    if (log != checkpointedLog || log.end != checkpointedEnd) {
+      writeCheckpoint();
+      checkpointedLog = log;
+      checkpointedEnd = log.end;
+    }
+    if (!compactionInProgress && shouldCompact()) {
+      compactionInProgress = true;
+      compactionExecutor.execute(
+          () -> {
+            try {
+              compact();
+            } catch (IOException e) {
+              logger.log(Level.WARNING, "Failed to compact " + path, e);
+            } finally {
+              synchronized (this) {
+                compactionInProgress = false;
+              }
+            }
+          });
+    }
+    return log.end;
+  }
+
+  private boolean shouldCompact() {
+    long logSize = log.end - HEADER_SIZE;
+    return logSize >= MIN_COMPACTION_SIZE && index.liveBytes * 2 < logSize;
+  }
+
+  /**
+   * Writes the index of the forced log to the checkpoint file. The file is replaced atomically, so
+   * that it always describes a prefix of some version of the log.
+   */
+  private void writeCheckpoint() throws IOException {
+    Path tmpPath =
+        checkpointPath.getParentDirectory().getChild(checkpointPath.getBaseName() + ".tmp");
+    CRC32 crc = new CRC32();
+    try (DataOutputStream out =
+        new DataOutputStream(
+            new CheckedOutputStream(
+                new BufferedOutputStream(tmpPath.getOutputStream()), crc))) {
+      out.writeLong(CHECKPOINT_MAGIC);
+      out.writeLong(version);
+      out.writeLong(log.generation);
+      out.writeLong(log.end);
+      index.write(out);
+      out.writeInt((int) crc.getValue());
+    }
+    tmpPath.renameTo(checkpointPath);
+  }
+
+  /**
+   * Returns the index stored in the checkpoint file, or null if there is no checkpoint of the
+   * current log. The index covers the records up to {@link #checkpointedEnd}, which is set by this
+   * method.
+   */
+  @Nullable
+  private OffsetIndex readCheckpoint() {
+    if (!checkpointPath.exists()) {
+      return null;
+    }
+    CRC32 crc = new CRC32();
+    try (DataInputStream in =
+        new DataInputStream(
+            new CheckedInputStream(
+                new BufferedInputStream(checkpointPath.getInputStream()), crc))) {
+      if (in.readLong() != CHECKPOINT_MAGIC
+          || in.readLong() != version
+          || in.readLong() != log.generation) {
+        return null;
+      }
+      long end = in.readLong();
+      if (end < HEADER_SIZE || end > log.fileSize) {
+        return null;
+      }
+      OffsetIndex checkpointed = OffsetIndex.read(in, indexValues, end);
+      int expectedChecksum = (int) crc.getValue();
+      if (checkpointed == null || in.readInt() != expectedChecksum) {
+        return null;
+      }
+      checkpointedEnd = end;
+      return checkpointed;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Ignoring unreadable checkpoint " + checkpointPath, e);
+      return null;
+    }
+  }
+
+  /** Rewrites the log with only the latest record of every key. */
+  @VisibleForTesting
+  void compact() throws IOException {
+    LogFile oldLog;
+    OffsetIndex snapshot;
+    long snapshotEnd;
+    List<MappedByteBuffer> snapshotSegments;
+    synchronized (this) {
+      oldLog = log;
+      snapshot = index.copy();
+      snapshotEnd = log.end;
+      snapshotSegments = new ArrayList<>(log.segments);
+    }
+
+    Path compactedPath = path.getParentDirectory().getChild(path.getBaseName() + ".compact");
+    LogFile newLog = LogFile.create(compactedPath, version, segmentSize);
+    OffsetIndex newIndex = new OffsetIndex(indexValues);
+    try {
+      // The records before the snapshot end never change, so they can be read without the lock.
+      for (int key : snapshot.keys()) {
+        byte[] value = readValue(snapshotSegments, segmentSize, snapshot.get(key));
+        newIndex.apply(newLog, key, newLog.append(key, value), value.length);
+      }
+
+      synchronized (this) {
+        if (log != oldLog) {
+          // The map was cleared in the meantime.
+          newLog.close();
+          compactedPath.delete();
+          return;
+        }
+        oldLog.scan(
+            snapshotEnd,
+            oldLog.end,
+            (key, offset, length) -> {
+              if (length == TOMBSTONE) {
+                if (newIndex.get(key) != 0) {
+                  newLog.append(key, null);
+                  newIndex.apply(newLog, key, 0, TOMBSTONE);
+                }
+              } else {
+                newIndex.apply(newLog, key, newLog.append(key, oldLog.readValue(offset)), length);
+              }
+            });
+        // Keys whose tombstone is missing from the old log may have been copied from the snapshot.
+        for (int key : pendingTombstones) {
+          if (newIndex.get(key) != 0) {
+            newLog.append(key, null);
+            newIndex.apply(newLog, key, 0, TOMBSTONE);
+          }
+        }
+        newLog.force();
+        compactedPath.renameTo(path);
+        oldLog.close();
+        log = newLog;
+        index = newIndex;
+        pendingTombstones.clear();
+        logger.info(
+            String.format(
+                "Compacted '%s' from %d to %d bytes", path, snapshotEnd, newLog.end));
+      }
+    } catch (IOException e) {
+      newLog.close();
+      compactedPath.delete();
+      throw e;
+    }
+  }
+
+  private static int segmentIndex(long offset, int segmentSize) {
+    return (int) (offset / segmentSize);
+  }
+
+  private static int segmentOffset(long offset, int segmentSize) {
+    return (int) (offset % segmentSize);
+  }
+
+  private static int recordSize(int length) {
+    return RECORD_HEADER_SIZE + Math.max(length, 0);
+  }
+
+  private static byte[] readValue(List<MappedByteBuffer> segments, int segmentSize, long offset) {
+    ByteBuffer buffer = segments.get(segmentIndex(offset, segmentSize)).duplicate();
+    int start = segmentOffset(offset, segmentSize);
+    byte[] value = new byte[buffer.getInt(start + 5)];
+    buffer.position(start + RECORD_HEADER_SIZE);
+    buffer.get(value);
+    return value;
+  }
+
+  /** Checksum over the key, the length and the value of the record at {@code start}. */
+  private static int checksum(ByteBuffer segment, int start, int length) {
+    CRC32 crc = new CRC32();
+    ByteBuffer buffer = segment.duplicate();
+    buffer.limit(start + 9);
+    buffer.position(start + 1);
+    crc.update(buffer);
+    buffer.limit(start + recordSize(length));
+    buffer.position(start + RECORD_HEADER_SIZE);
+    crc.update(buffer);
+    return (int) crc.getValue();
+  }
+
+  @FunctionalInterface
+  private interface RecordConsumer {
+    void accept(int key, long offset, int length) throws IOException;
+  }
+
+  /** An open log file and its mapped segments. Not thread-safe. */
+  private static final class LogFile {
+    private final Path path;
+    private final FileChannel channel;
+    private final int segmentSize;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    /** The size of the file when it was opened. Mapping segments grows it to a segment boundary. */
+    private final long fileSize;
+    /** Random number chosen when the file is created, to tell apart checkpoints of other logs. */
+    private long generation;
+    /** Offset at which the next record is appended. */
+    private long end;
+    /** Index of the first segment with updates that have not been forced to disk. */
+    private int firstDirtySegment;
+
+    private LogFile(Path path, FileChannel channel, int segmentSize) throws IOException {
+      this.path = path;
+      this.channel = channel;
+      this.segmentSize = segmentSize;
+      this.fileSize = channel.size();
+    }
+
+    /** Creates a new empty log in {@code path}, replacing any existing file. */
+    static LogFile create(Path path, long version, int segmentSize) throws IOException {
+      FileSystemUtils.createDirectoryAndParents(path.getParentDirectory());
+      // Delete rather than truncate the old file, which may still be mapped.
+      path.delete();
+      return open(path, version, segmentSize);
+    }
+
+    static LogFile open(Path path, long version, int segmentSize) throws IOException {
+      FileSystemUtils.createDirectoryAndParents(path.getParentDirectory());
+      FileChannel channel =
+          FileChannel.open(
+              path.getPathFile().toPath(),
+              StandardOpenOption.CREATE,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+      try {
+        LogFile log = new LogFile(path, channel, segmentSize);
+        ByteBuffer header = log.segment(0);
+        if (log.fileSize == 0) {
+          log.generation = ThreadLocalRandom.current().nextLong();
+          header.putLong(0, MAGIC);
+          header.putLong(8, version);
+          header.putLong(16, log.generation);
+        } else if (log.fileSize < HEADER_SIZE
+            || header.getLong(0) != MAGIC
+            || header.getLong(8) != version) {
+          throw new IOException(path + " has an unexpected format");
+        } else {
+          log.generation = header.getLong(16);
+        }
+        log.end = HEADER_SIZE;
+        return log;
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    private MappedByteBuffer segment(int index) throws IOException {
+      while (segments.size() <= index) {
+        segments.add(
+            channel.map(
+                FileChannel.MapMode.READ_WRITE,
+                (long) segments.size() * segmentSize,
+                segmentSize));
+      }
+      return segments.get(index);
+    }
+
+    /**
+     * Passes the records between {@code from} and {@code to} to {@code consumer}.
+     *
+     * @return the offset after the last intact record
+     */
+    long scan(long from, long to, RecordConsumer consumer) throws IOException {
+      long offset = from;
+      while (offset + RECORD_HEADER_SIZE <= to) {
+        int start = segmentOffset(offset, segmentSize);
+        if (segmentSize - start < RECORD_HEADER_SIZE) {
+          offset += segmentSize - start;
+          continue;
+        }
+        ByteBuffer segment = segment(segmentIndex(offset, segmentSize));
+        byte magic = segment.get(start);
+        if (magic == PADDING_MAGIC) {
+          offset += segmentSize - start;
+          continue;
+        } else if (magic != RECORD_MAGIC) {
+          break;
+        }
+        int key = segment.getInt(start + 1);
+        int length = segment.getInt(start + 5);
+        // Check the length against the rest of the segment first, so that a corrupt length can't
+        // overflow the record size.
+        if (length < TOMBSTONE
+            || length > segmentSize - start - RECORD_HEADER_SIZE
+            || offset + recordSize(length) > to
+            || segment.getInt(start + 9) != checksum(segment, start, length)) {
+          break;
+        }
+        consumer.accept(key, offset, length);
+        offset += recordSize(length);
+      }
+      return offset;
+    }
+
+    /**
+     * Ends the log at {@code offset} and zeroes any bytes after it, so that records appended later
+     * are not followed by leftovers of an earlier crash.
+     *
+     * @return whether there were leftovers to zero
+     */
+    boolean truncateTo(long offset) throws IOException {
+      boolean zeroed = false;
+      long i = offset;
+      while (i < fileSize) {
+        int position = segmentOffset(i, segmentSize);
+        // Only fill chunks that contain leftovers. Most of the range is usually the unwritten and
+        // possibly sparse end of the last segment, whose pages should stay untouched.
+        int length =
+            (int)
+                Math.min(
+                    Math.min(ZEROS.length - i % ZEROS.length, segmentSize - position),
+                    fileSize - i);
+        ByteBuffer segment = segment(segmentIndex(i, segmentSize)).duplicate();
+        if (!isZero(segment, position, length)) {
+          segment.position(position);
+          segment.put(ZEROS, 0, length);
+          zeroed = true;
+        }
+        i += length;
+      }
+      end = offset;
+      return zeroed;
+    }
+
+    private static boolean isZero(ByteBuffer buffer, int from, int length) {
+      int to = from + length;
+      int i = from;
+      for (; i + Long.BYTES <= to; i += Long.BYTES) {
+        if (buffer.getLong(i) != 0) {
+          return false;
+        }
+      }
+      for (; i < to; i++) {
+        if (buffer.get(i) != 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Appends a record and returns its offset.
+     *
+     * @param value the new value of {@code key}, or null to remove it
+     */
+    long append(int key, @Nullable byte[] value) throws IOException {
+      int length = value == null ? TOMBSTONE : value.length;
+      int size = recordSize(length);
+      if (size > segmentSize) {
+        throw new IOException(
+            String.format("%d byte record does not fit into the segments of %s", size, path));
+      }
+      int start = segmentOffset(end, segmentSize);
+      if (segmentSize - start < size) {
+        segment(segmentIndex(end, segmentSize)).put(start, PADDING_MAGIC);
+        end += segmentSize - start;
+        start = 0;
+      }
+      MappedByteBuffer segment = segment(segmentIndex(end, segmentSize));
+      ByteBuffer buffer = segment.duplicate();
+      buffer.position(start);
+      buffer.put(RECORD_MAGIC).putInt(key).putInt(length).putInt(0);
+      if (value != null) {
+        buffer.put(value);
+      }
+      segment.putInt(start + 9, checksum(segment, start, length));
+      long offset = end;
+      end += size;
+      return offset;
+    }
+
+    int recordSizeAt(long offset) {
+      ByteBuffer segment = segments.get(segmentIndex(offset, segmentSize));
+      return recordSize(segment.getInt(segmentOffset(offset, segmentSize) + 5));
+    }
+
+    /** Returns the {@link Arrays#hashCode(byte[])} of the value of the record at {@code offset}. */
+    int valueHashAt(long offset) {
+      ByteBuffer segment = segments.get(segmentIndex(offset, segmentSize));
+      int start = segmentOffset(offset, segmentSize) + RECORD_HEADER_SIZE;
+      int end = start + segment.getInt(start - RECORD_HEADER_SIZE + 5);
+      int hash = 1;
+      for (int i = start; i < end; i++) {
+        hash = 31 * hash + segment.get(i);
+      }
+      return hash;
+    }
+
+    /** Returns whether the record at {@code offset} has the value {@code value}. */
+    boolean valueEquals(long offset, byte[] value) {
+      ByteBuffer segment = segments.get(segmentIndex(offset, segmentSize));
+      int start = segmentOffset(offset, segmentSize);
+      if (segment.getInt(start + 5) != value.length) {
+        return false;
+      }
+      start += RECORD_HEADER_SIZE;
+      for (int i = 0; i < value.length; i++) {
+        if (segment.get(start + i) != value[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    byte[] readValue(long offset) {
+      return MappedPersistentIntMap.readValue(segments, segmentSize, offset);
+    }
+
+    void force() {
+      for (int i = firstDirtySegment; i < segments.size(); i++) {
+        segments.get(i).force();
+      }
+      firstDirtySegment = segmentIndex(end, segmentSize);
+    }
+
+    void close() throws IOException {
+      // The mappings stay valid until they are garbage collected.
+      channel.close();
+    }
+  }
+
+  /**
+   * The offset of the latest record of every key. Non-negative keys are expected to be dense and
+   * are stored in an array; the few negative keys are stored in a map.
+   *
+   * <p>If values are indexed, the index also holds an open-addressing hash table of slots. Every
+   * slot packs the hash of a value with its key, so that a value is only compared against the
+   * mapped records of the keys whose values have the same hash.
+   */
+  private static final class OffsetIndex {
+    private static final long EMPTY_SLOT = -1L;
+
+    private long[] offsets = new long[1024];
+    private final Map<Integer, Long> negativeKeys = new HashMap<>();
+    private int size;
+    /** The total size of the records referenced by this index. */
+    private long liveBytes;
+    /** The value slots, or null if values are not indexed. The length is a power of two. */
+    @Nullable private long[] slots;
+
+    OffsetIndex(boolean indexValues) {
+      if (indexValues) {
+        slots = newSlots(1024);
+      }
+    }
+
+    /** Returns the offset of the record of {@code key}, or 0 if there is none. */
+    long get(int key) {
+      if (key < 0) {
+        return negativeKeys.getOrDefault(key, 0L);
+      }
+      return key < offsets.length ? offsets[key] : 0;
+    }
+
+    private long set(int key, long offset) {
+      long previous;
+      if (key < 0) {
+        Long boxed = offset == 0 ? negativeKeys.remove(key) : negativeKeys.put(key, offset);
+        previous = boxed == null ? 0 : boxed;
+      } else {
+        if (key >= offsets.length) {
+          if (offset == 0) {
+            return 0;
+          }
+          offsets = Arrays.copyOf(offsets, Math.max(key + 1, offsets.length * 2));
+        }
+        previous = offsets[key];
+        offsets[key] = offset;
+      }
+      if (previous == 0 && offset != 0) {
+        size++;
+      } else if (previous != 0 && offset == 0) {
+        size--;
+      }
+      return previous;
+    }
+
+    /** Applies a record of {@code log} at {@code offset}, with a value of {@code length} bytes. */
+    void apply(LogFile log, int key, long offset, int length) {
+      long previous = set(key, length == TOMBSTONE ? 0 : offset);
+      if (previous != 0) {
+        liveBytes -= log.recordSizeAt(previous);
+        if (slots != null) {
+          removeSlot(slot(log.valueHashAt(previous), key));
+        }
+      }
+      if (length != TOMBSTONE) {
+        liveBytes += recordSize(length);
+        if (slots != null) {
+          addSlot(slot(log.valueHashAt(offset), key));
+        }
+      }
+    }
+
+    /** Returns a key whose record in {@code log} has the value {@code value}, or null. */
+    @Nullable
+    Integer findKey(LogFile log, byte[] value) {
+      int hash = slotHash(Arrays.hashCode(value));
+      int mask = slots.length - 1;
+      for (int i = home(hash, mask); slots[i] != EMPTY_SLOT; i = (i + 1) & mask) {
+        if ((int) (slots[i] >>> 32) == hash) {
+          int key = (int) slots[i];
+          if (log.valueEquals(get(key), value)) {
+            return key;
+          }
+        }
+      }
+      return null;
+    }
+
+    /** Avoids the hash -1, so that no slot packs it with the key -1 into the empty slot. */
+    private static int slotHash(int hash) {
+      return hash == -1 ? -2 : hash;
+    }
+
+    private static long slot(int hash, int key) {
+      return ((long) slotHash(hash) << 32) | (key & 0xffffffffL);
+    }
+
+    private static int home(long slot, int mask) {
+      return home((int) (slot >>> 32), mask);
+    }
+
+    private static int home(int hash, int mask) {
+      int h = hash * 0x9e3779b9;
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static long[] newSlots(int length) {
+      long[] slots = new long[length];
+      Arrays.fill(slots, EMPTY_SLOT);
+      return slots;
+    }
+
+    private void addSlot(long slot) {
+      // Keep the table at most half full, which is the size of the index as every key has a slot.
+      if (size * 2 > slots.length) {
+        long[] old = slots;
+        slots = newSlots(old.length * 2);
+        for (long s : old) {
+          if (s != EMPTY_SLOT) {
+            insertSlot(s);
+          }
+        }
+      }
+      insertSlot(slot);
+    }
+
+    private void insertSlot(long slot) {
+      int mask = slots.length - 1;
+      int i = home(slot, mask);
+      while (slots[i] != EMPTY_SLOT) {
+        i = (i + 1) & mask;
+      }
+      slots[i] = slot;
+    }
+
+    private void removeSlot(long slot) {
+      int mask = slots.length - 1;
+      int i = home(slot, mask);
+      while (slots[i] != slot) {
+        Preconditions.checkState(slots[i] != EMPTY_SLOT);
+        i = (i + 1) & mask;
+      }
+      // Shift back the following slots of the probe sequence, so that lookups need no markers for
+      // removed slots.
+      for (int j = (i + 1) & mask; slots[j] != EMPTY_SLOT; j = (j + 1) & mask) {
+        int h = home(slots[j], mask);
+        if (((j - h) & mask) >= ((j - i) & mask)) {
+          slots[i] = slots[j];
+          i = j;
+        }
+      }
+      slots[i] = EMPTY_SLOT;
+    }
+
+    int size() {
+      return size;
+    }
+
+    int[] keys() {
+      int[] keys = new int[size];
+      int i = 0;
+      for (int key : negativeKeys.keySet()) {
+        keys[i++] = key;
+      }
+      for (int key = 0; key < offsets.length && i < size; key++) {
+        if (offsets[key] != 0) {
+          keys[i++] = key;
+        }
+      }
+      return keys;
+    }
+
+    OffsetIndex copy() {
+      OffsetIndex copy = new OffsetIndex(false);
+      copy.offsets = offsets.clone();
+      copy.negativeKeys.putAll(negativeKeys);
+      copy.size = size;
+      copy.liveBytes = liveBytes;
+      copy.slots = slots == null ? null : slots.clone();
+      return copy;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeBoolean(slots != null);
+      out.writeLong(liveBytes);
+      out.writeInt(size);
+      int limit = offsets.length;
+      while (limit > 0 && offsets[limit - 1] == 0) {
+        limit--;
+      }
+      out.writeInt(limit);
+      for (int key = 0; key < limit; key++) {
+        out.writeLong(offsets[key]);
+      }
+      out.writeInt(negativeKeys.size());
+      for (Map.Entry<Integer, Long> entry : negativeKeys.entrySet()) {
+        out.writeInt(entry.getKey());
+        out.writeLong(entry.getValue());
+      }
+      if (slots != null) {
+        out.writeInt(slots.length);
+        for (long slot : slots) {
+          out.writeLong(slot);
+        }
+      }
+    }
+
+    /**
+     * Reads an index written by {@link #write} for a log that ends at {@code end}, or returns null
+     * if it does not index values as requested.
+     */
+    @Nullable
+    static OffsetIndex read(DataInputStream in, boolean indexValues, long end) throws IOException {
+      if (in.readBoolean() != indexValues) {
+        return null;
+      }
+      OffsetIndex index = new OffsetIndex(false);
+      index.liveBytes = in.readLong();
+      index.size = in.readInt();
+      // Every key has a record of its own, which bounds the sizes to check before allocating.
+      long maxSize = end / RECORD_HEADER_SIZE;
+      int limit = in.readInt();
+      if (index.size < 0 || index.size > maxSize || limit < 0 || limit > (1 << 30)) {
+        throw new IOException("corrupt checkpoint");
+      }
+      index.offsets = new long[Math.max(limit, 1024)];
+      for (int key = 0; key < limit; key++) {
+        index.offsets[key] = readOffset(in, end);
+      }
+      int negativeKeyCount = in.readInt();
+      if (negativeKeyCount < 0 || negativeKeyCount > index.size) {
+        throw new IOException("corrupt checkpoint");
+      }
+      for (int i = 0; i < negativeKeyCount; i++) {
+        index.negativeKeys.put(in.readInt(), readOffset(in, end));
+      }
+      if (indexValues) {
+        int slotCount = in.readInt();
+        if (slotCount < 1024
+            || Integer.bitCount(slotCount) != 1
+            || slotCount > 4 * maxSize + 1024) {
+          throw new IOException("corrupt checkpoint");
+        }
+        index.slots = new long[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+          index.slots[i] = in.readLong();
+        }
+      }
+      return index;
+    }
+
+    private static long readOffset(DataInputStream in, long end) throws IOException {
+      long offset = in.readLong();
+      if (offset != 0 && (offset < HEADER_SIZE || offset >= end)) {
+        throw new IOException("corrupt checkpoint");
+      }
+      return offset;
+    }
+  }
+}
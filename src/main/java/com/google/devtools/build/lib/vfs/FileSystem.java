@@ -518,6 +518,24 @@ public abstract class FileSystem {
     }
   }
 
+  /**
+   * Like {@link #statIfFound} for each of {@code paths}, which must be on this file system. File
+   * systems that have to cross into native code for each stat may override this to stat all of
+   * them with a single crossing.
+   *
+   * @return the statuses of {@code paths} in the same order, with null for the paths that do not
+   *     exist
+   * @throws IOException if any of the paths could not be stat'ed for another reason
+   */
+  public List<FileStatus> statIfFoundBatch(List<Path> paths, boolean followSymlinks)
+      throws IOException {
+    List<FileStatus> statuses = Lists.newArrayListWithCapacity(paths.size());
+    for (Path path : paths) {
+      statuses.add(statIfFound(path, followSymlinks));
+    }
+    return statuses;
+  }
+
   /**
    * Returns true iff {@code path} denotes an existing directory. See
    * {@link Path#isDirectory(Symlinks)} for specification.
@@ -623,6 +641,23 @@ public abstract class FileSystem {
     return dirents;
   }
 
+  /**
+   * Like {@link #readdir} for each of {@code paths}, which must be on this file system. File
+   * systems that have to cross into native code for each directory may override this to read all
+   * of them with a single crossing.
+   *
+   * @return the entries of each directory, in the same order as {@code paths}
+   * @throws IOException if any of the directories could not be read
+   */
+  public List<Collection<Dirent>> readdirBatch(List<Path> paths, boolean followSymlinks)
+      throws IOException {
+    List<Collection<Dirent>> dirents = Lists.newArrayListWithCapacity(paths.size());
+    for (Path path : paths) {
+      dirents.add(readdir(path, followSymlinks));
+    }
+    return dirents;
+  }
+
   /**
    * Returns true iff the file represented by {@code path} is readable.
    *
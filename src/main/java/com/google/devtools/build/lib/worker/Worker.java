@@ -126,7 +126,7 @@ class Worker {
     process.getOutputStream().flush();
   }
 
-  WorkResponse getResponse() throws IOException {
+  WorkResponse getResponse() throws IOException, InterruptedException {
     recordingStream = new RecordingInputStream(process.getInputStream());
     recordingStream.startRecording(4096);
     // response can be null when the worker has already closed stdout at this point and thus
@@ -69,7 +69,8 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
               workerId,
               key.getExecRoot(),
               logFile,
-              WorkerMultiplexerManager.getInstance(key.hashCode()));
+              WorkerMultiplexerManager.getInstance(key.hashCode()),
+              workerOptions);
     } else {
       worker = new Worker(key, workerId, key.getExecRoot(), logFile);
     }
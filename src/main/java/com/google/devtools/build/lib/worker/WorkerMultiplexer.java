@@ -14,6 +14,7 @@
 
 package com.google.devtools.build.lib.worker;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.devtools.build.lib.shell.Subprocess;
 import com.google.devtools.build.lib.shell.SubprocessBuilder;
 import com.google.devtools.build.lib.vfs.Path;
@@ -95,6 +96,12 @@ public class WorkerMultiplexer extends Thread {
     }
   }
 
+  /** Makes {@link #createProcess} talk to the given process instead of starting one. */
+  @VisibleForTesting
+  synchronized void setProcessForTesting(Subprocess process) {
+    this.process = process;
+  }
+
   public synchronized void destroyMultiplexer() {
     if (this.process != null) {
       destroyProcess(this.process);
@@ -159,11 +166,31 @@ public class WorkerMultiplexer extends Thread {
     }
 
     semWorkerProcessResponse.acquire();
-    InputStream response = workerProcessResponse.get(workerId);
+    InputStream response = workerProcessResponse.remove(workerId);
     semWorkerProcessResponse.release();
     return response;
   }
 
+  /**
+   * Forgets the request sent by the WorkerProxy with the given ID, whose response will be
+   * discarded, and tells the worker process to stop working on it if {@code sendCancelRequest}.
+   * The WorkerProxy must not send further requests with the same ID.
+   */
+  public void cancelRequest(Integer workerId, boolean sendCancelRequest) throws IOException {
+    semResponseChecker.acquireUninterruptibly();
+    try {
+      responseChecker.remove(workerId);
+      semWorkerProcessResponse.acquireUninterruptibly();
+      workerProcessResponse.remove(workerId);
+      semWorkerProcessResponse.release();
+    } finally {
+      semResponseChecker.release();
+    }
+    if (sendCancelRequest && !process.finished()) {
+      putRequest(WorkRequest.newBuilder().setRequestId(workerId).setCancel(true).build());
+    }
+  }
+
   /** Reset the semaphore map before sending request to worker process. */
   public void resetResponseChecker(Integer workerId) throws InterruptedException {
     semResponseChecker.acquire();
@@ -190,13 +217,20 @@ public class WorkerMultiplexer extends Thread {
     ByteArrayOutputStream tempOs = new ByteArrayOutputStream();
     parsedResponse.writeDelimitedTo(tempOs);
 
-    semWorkerProcessResponse.acquire();
-    workerProcessResponse.put(workerId, new ByteArrayInputStream(tempOs.toByteArray()));
-    semWorkerProcessResponse.release();
-
     semResponseChecker.acquire();
-    responseChecker.get(workerId).release();
-    semResponseChecker.release();
+    try {
+      Semaphore waitForResponse = responseChecker.get(workerId);
+      if (waitForResponse == null) {
+        // The request was cancelled, nobody is waiting for this response.
+        return;
+      }
+      semWorkerProcessResponse.acquire();
+      workerProcessResponse.put(workerId, new ByteArrayInputStream(tempOs.toByteArray()));
+      semWorkerProcessResponse.release();
+      waitForResponse.release();
+    } finally {
+      semResponseChecker.release();
+    }
   }
 
   /** A multiplexer thread that listens to the WorkResponse from worker process. */
@@ -14,8 +14,11 @@
 
 package com.google.devtools.build.lib.worker;
 
+import com.google.common.base.Preconditions;
 import com.google.devtools.build.lib.actions.UserExecException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
 
@@ -62,8 +65,10 @@ public class WorkerMultiplexerManager {
     try {
       multiplexerInstance.get(workerHash).decreaseRefCount();
       if (multiplexerInstance.get(workerHash).getRefCount() == 0) {
-        multiplexerInstance.get(workerHash).getWorkerMultiplexer().interrupt();
-        multiplexerInstance.get(workerHash).getWorkerMultiplexer().destroyMultiplexer();
+        for (ProcessInfo process : multiplexerInstance.get(workerHash).processes) {
+          process.workerMultiplexer.interrupt();
+          process.workerMultiplexer.destroyMultiplexer();
+        }
         multiplexerInstance.remove(workerHash);
       }
     } catch (Exception e) {
@@ -78,6 +83,83 @@ public class WorkerMultiplexerManager {
     }
   }
 
+  /**
+   * Returns the WorkerMultiplexer that a WorkerProxy should send its next request to: the one with
+   * the fewest requests in flight, preferring the one that answered fastest lately. Starts another
+   * one if all of them are working on at least {@code scaleUpThreshold} requests, unless there
+   * are already {@code maxProcesses}. The caller must pass the returned multiplexer to {@link
+   * #releaseMultiplexer} once it has received the response or given up on it.
+   */
+  public static WorkerMultiplexer assignMultiplexer(
+      Integer workerHash, int maxProcesses, int scaleUpThreshold) {
+    semMultiplexer.acquireUninterruptibly();
+    try {
+      InstanceInfo instanceInfo =
+          Preconditions.checkNotNull(multiplexerInstance.get(workerHash), workerHash);
+      ProcessInfo best = null;
+      for (ProcessInfo process : instanceInfo.processes) {
+        if (best == null
+            || process.inFlightRequests < best.inFlightRequests
+            || (process.inFlightRequests == best.inFlightRequests
+                && process.averageLatencyNanos < best.averageLatencyNanos)) {
+          best = process;
+        }
+      }
+      if (best.inFlightRequests >= scaleUpThreshold
+          && instanceInfo.processes.size() < maxProcesses) {
+        best = new ProcessInfo(new WorkerMultiplexer());
+        instanceInfo.processes.add(best);
+      }
+      best.inFlightRequests++;
+      return best.workerMultiplexer;
+    } finally {
+      semMultiplexer.release();
+    }
+  }
+
+  /**
+   * Records that a request assigned by {@link #assignMultiplexer} finished after {@code
+   * latencyNanos}. Stops an additional process once it is idle and the remaining ones are at most
+   * half as busy as {@code scaleUpThreshold}, so that processes are not restarted as soon as the
+   * load fluctuates.
+   */
+  public static void releaseMultiplexer(
+      Integer workerHash,
+      WorkerMultiplexer workerMultiplexer,
+      long latencyNanos,
+      int scaleUpThreshold) {
+    semMultiplexer.acquireUninterruptibly();
+    try {
+      InstanceInfo instanceInfo = multiplexerInstance.get(workerHash);
+      if (instanceInfo == null) {
+        return;
+      }
+      int inFlightRequests = 0;
+      ProcessInfo released = null;
+      for (ProcessInfo process : instanceInfo.processes) {
+        if (process.workerMultiplexer == workerMultiplexer) {
+          released = process;
+          process.inFlightRequests--;
+          if (latencyNanos >= 0) {
+            process.recordLatency(latencyNanos);
+          }
+        }
+        inFlightRequests += process.inFlightRequests;
+      }
+      int remaining = instanceInfo.processes.size() - 1;
+      if (released != null
+          && released != instanceInfo.processes.get(0)
+          && released.inFlightRequests == 0
+          && inFlightRequests * 2 <= remaining * scaleUpThreshold) {
+        instanceInfo.processes.remove(released);
+        released.workerMultiplexer.interrupt();
+        released.workerMultiplexer.destroyMultiplexer();
+      }
+    } finally {
+      semMultiplexer.release();
+    }
+  }
+
   public static WorkerMultiplexer getMultiplexer(Integer workerHash) throws UserExecException {
     try {
       return multiplexerInstance.get(workerHash).getWorkerMultiplexer();
@@ -108,13 +190,30 @@ public class WorkerMultiplexerManager {
     return multiplexerInstance.keySet().size();
   }
 
-  /** Contains the WorkerMultiplexer instance and reference count */
+  /** Returns the number of processes started for the given worker. */
+  public static int getProcessCount(Integer workerHash) throws UserExecException {
+    try {
+      return multiplexerInstance.get(workerHash).processes.size();
+    } catch (NullPointerException e) {
+      throw new UserExecException(
+          ErrorMessage.builder()
+              .message("NullPointerException while accessing non-existent multiplexer instance.")
+              .exception(e)
+              .build()
+              .toString());
+    }
+  }
+
+  /**
+   * Contains the WorkerMultiplexer instances and reference count. The first WorkerMultiplexer is
+   * kept for as long as the instance; others are added and removed as the load changes.
+   */
   static class InstanceInfo {
-    private WorkerMultiplexer workerMultiplexer;
+    private final List<ProcessInfo> processes = new ArrayList<>();
     private Integer refCount;
 
     public InstanceInfo() {
-      this.workerMultiplexer = new WorkerMultiplexer();
+      this.processes.add(new ProcessInfo(new WorkerMultiplexer()));
       this.refCount = 0;
     }
 
@@ -127,11 +226,32 @@ public class WorkerMultiplexerManager {
     }
 
     public WorkerMultiplexer getWorkerMultiplexer() {
-      return workerMultiplexer;
+      return processes.get(0).workerMultiplexer;
     }
 
     public Integer getRefCount() {
       return refCount;
     }
   }
+
+  /** The load of one WorkerMultiplexer. Guarded by semMultiplexer. */
+  private static class ProcessInfo {
+    /** The weight of the latest sample in the average latency is 1 / 2^LATENCY_SHIFT. */
+    private static final int LATENCY_SHIFT = 3;
+
+    private final WorkerMultiplexer workerMultiplexer;
+    private int inFlightRequests;
+    private long averageLatencyNanos;
+
+    ProcessInfo(WorkerMultiplexer workerMultiplexer) {
+      this.workerMultiplexer = workerMultiplexer;
+    }
+
+    void recordLatency(long latencyNanos) {
+      averageLatencyNanos =
+          averageLatencyNanos == 0
+              ? latencyNanos
+              : averageLatencyNanos + ((latencyNanos - averageLatencyNanos) >> LATENCY_SHIFT);
+    }
+  }
 }
@@ -149,4 +149,37 @@ public class WorkerOptions extends OptionsBase {
   )
   public boolean workerSandboxing;
 
+  @Option(
+      name = "experimental_worker_max_multiplex_processes",
+      defaultValue = "1",
+      documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "How many processes may be started for each multiplex worker. Additional processes are "
+              + "started when all of them are busy (see "
+              + "--experimental_worker_multiplex_scale_up_threshold), and stopped again when the "
+              + "load decreases.")
+  public int workerMaxMultiplexProcesses;
+
+  @Option(
+      name = "experimental_worker_multiplex_scale_up_threshold",
+      defaultValue = "4",
+      documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "The number of requests that each process of a multiplex worker must be working on "
+              + "before another process is started.")
+  public int workerMultiplexScaleUpThreshold;
+
+  @Option(
+      name = "experimental_worker_cancellation",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If enabled, a WorkRequest with the cancel field set is sent to multiplex workers for "
+              + "requests that Bazel is no longer interested in, e.g. when dynamic execution "
+              + "picked the remote result. Only enable this if all multiplex workers understand "
+              + "cancel requests.")
+  public boolean workerCancellation;
 }
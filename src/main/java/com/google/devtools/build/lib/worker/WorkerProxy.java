@@ -26,20 +26,43 @@ import java.io.InputStream;
 import java.util.Set;
 import java.util.logging.Logger;
 
-/** A proxy that talks to the multiplexer */
+/**
+ * A proxy that talks to the multiplexer. Each request is sent to one of the multiplexers of the
+ * worker, chosen by {@link WorkerMultiplexerManager#assignMultiplexer}.
+ */
 final class WorkerProxy extends Worker {
   private static final Logger logger = Logger.getLogger(WorkerProxy.class.getName());
+  /**
+   * The first multiplexer of the worker, which lives as long as the worker. Additional
+   * multiplexers may be destroyed as soon as they are released.
+   */
+  private final WorkerMultiplexer primaryMultiplexer;
+  /** The multiplexer of the current request, or {@link #primaryMultiplexer} between requests. */
   private WorkerMultiplexer workerMultiplexer;
   private String recordingStreamMessage;
 
+  private final int maxProcesses;
+  private final int scaleUpThreshold;
+  private final boolean sendCancelRequests;
+
+  /** Whether workerMultiplexer was assigned for a request that has not finished yet. */
+  private boolean assigned;
+
+  private long requestStartNanos;
+
   WorkerProxy(
       WorkerKey workerKey,
       int workerId,
       Path workDir,
       Path logFile,
-      WorkerMultiplexer workerMultiplexer) {
+      WorkerMultiplexer workerMultiplexer,
+      WorkerOptions workerOptions) {
     super(workerKey, workerId, workDir, logFile);
+    this.primaryMultiplexer = workerMultiplexer;
     this.workerMultiplexer = workerMultiplexer;
+    this.maxProcesses = Math.max(1, workerOptions.workerMaxMultiplexProcesses);
+    this.scaleUpThreshold = Math.max(1, workerOptions.workerMultiplexScaleUpThreshold);
+    this.sendCancelRequests = workerOptions.workerCancellation;
   }
 
   @Override
@@ -56,12 +79,28 @@ final class WorkerProxy extends Worker {
   public void prepareExecution(
       SandboxInputs inputFiles, SandboxOutputs outputs, Set<PathFragment> workerFiles)
       throws IOException {
+    releaseMultiplexer(-1);
+    workerMultiplexer =
+        WorkerMultiplexerManager.assignMultiplexer(
+            workerKey.hashCode(), maxProcesses, scaleUpThreshold);
+    assigned = true;
     createProcess();
   }
 
+  private void releaseMultiplexer(long latencyNanos) {
+    if (assigned) {
+      assigned = false;
+      WorkerMultiplexerManager.releaseMultiplexer(
+          workerKey.hashCode(), workerMultiplexer, latencyNanos, scaleUpThreshold);
+      // The released multiplexer may have been destroyed, and would no longer be alive.
+      workerMultiplexer = primaryMultiplexer;
+    }
+  }
+
   @Override
   synchronized void destroy() throws IOException {
     super.destroy();
+    releaseMultiplexer(-1);
     try {
       WorkerMultiplexerManager.removeInstance(workerKey.hashCode());
     } catch (InterruptedException e) {
@@ -78,6 +117,7 @@ final class WorkerProxy extends Worker {
   void putRequest(WorkRequest request) throws IOException {
     try {
       workerMultiplexer.resetResponseChecker(workerId);
+      requestStartNanos = System.nanoTime();
       workerMultiplexer.putRequest(request);
     } catch (InterruptedException e) {
       /**
@@ -91,33 +131,37 @@ final class WorkerProxy extends Worker {
     }
   }
 
-  /** Wait for WorkResponse from multiplexer. */
+  /**
+   * Wait for WorkResponse from multiplexer. If interrupted, e.g. because dynamic execution picked
+   * the remote result, cancels the request, so this proxy must not be reused.
+   */
   @Override
-  WorkResponse getResponse() throws IOException {
+  WorkResponse getResponse() throws IOException, InterruptedException {
     try {
       InputStream inputStream = workerMultiplexer.getResponse(workerId);
+      releaseMultiplexer(System.nanoTime() - requestStartNanos);
       if (inputStream == null) {
+        // response can be null when the worker has already closed stdout at this point and thus
+        // the InputStream is at EOF.
         return null;
       }
       return WorkResponse.parseDelimitedFrom(inputStream);
     } catch (IOException e) {
+      releaseMultiplexer(-1);
       recordingStreamMessage = e.toString();
       throw new IOException(
           "IOException was caught while waiting for worker response. "
               + "It could because the worker returned unparseable response.");
     } catch (InterruptedException e) {
-      /**
-       * We can't throw InterruptedException to WorkerSpawnRunner because of the principle of
-       * override. InterruptedException will happen when Bazel is waiting for semaphore but user
-       * terminates the process, so we do nothing here.
-       */
-      logger.warning(
-          "InterruptedException was caught while waiting for work response. "
-              + "It could because the multiplexer was interrupted.");
+      try {
+        workerMultiplexer.cancelRequest(workerId, sendCancelRequests);
+      } catch (IOException e1) {
+        logger.warning("IOException while cancelling a worker request: " + e1.getMessage());
+      } finally {
+        releaseMultiplexer(-1);
+      }
+      throw e;
     }
-    // response can be null when the worker has already closed stdout at this point and thus
-    // the InputStream is at EOF.
-    return null;
   }
 
   @Override
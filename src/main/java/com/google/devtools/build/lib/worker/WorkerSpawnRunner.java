@@ -365,6 +365,16 @@ final class WorkerSpawnRunner implements SpawnRunner {
 
         try {
           response = worker.getResponse();
+        } catch (InterruptedException e) {
+          // The worker may still send the response, so it can't be used for other requests.
+          try {
+            workers.invalidateObject(key, worker);
+          } catch (IOException e1) {
+            // The interruption is more important.
+          } finally {
+            worker = null;
+          }
+          throw e;
         } catch (IOException e) {
           // If protobuf couldn't parse the response, try to print whatever the failing worker wrote
           // to stdout - it's probably a stack trace or some kind of error message that will help
@@ -0,0 +1,79 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * An {@link InMemoryNodeEntry} that knows the id of its key in the graph's {@link KeyIdTable}, and
+ * stores large sets of reverse deps as {@link CompactSkyKeyList}s of key ids.
+ */
+final class CompactInMemoryNodeEntry extends InMemoryNodeEntry {
+  final int keyId;
+  private final KeyIdTable keyIds;
+
+  CompactInMemoryNodeEntry(int keyId, KeyIdTable keyIds) {
+    this.keyId = keyId;
+    this.keyIds = keyIds;
+  }
+
+  @Override
+  KeyIdTable getKeyIdTableForReverseDepsUtil() {
+    return keyIds;
+  }
+
+  @Override
+  public synchronized void removeReverseDep(SkyKey reverseDep) {
+    super.removeReverseDep(reverseDep);
+    recordRemovalIfCompact();
+  }
+
+  @Override
+  public synchronized void removeInProgressReverseDep(SkyKey reverseDep) {
+    super.removeInProgressReverseDep(reverseDep);
+    recordRemovalIfCompact();
+  }
+
+  private void recordRemovalIfCompact() {
+    // Other lists are only compacted once their delayed removals have been applied.
+    if (getReverseDepsRawForReverseDepsUtil() instanceof CompactSkyKeyList) {
+      keyIds.recordRemovedReverseDep(this);
+    }
+  }
+
+  /**
+   * Applies the delayed reverse dep operations of this node if it is done. Returns the keys of the
+   * operations that are still delayed because the node is not done, or null if there are none.
+   */
+  @Nullable
+  synchronized Iterable<SkyKey> consolidateReverseDepsIfDone() {
+    List<Object> delayed = getReverseDepsDataToConsolidateForReverseDepsUtil();
+    if (delayed == null) {
+      return null;
+    }
+    if (isDone()) {
+      ReverseDepsUtility.consolidateData(this);
+      return null;
+    }
+    return ImmutableList.copyOf(Lists.transform(delayed, KeyToConsolidate::key));
+  }
+
+  @Override
+  public synchronized InMemoryNodeEntry cloneNodeEntry() {
+    return cloneNodeEntry(new CompactInMemoryNodeEntry(keyId, keyIds));
+  }
+}
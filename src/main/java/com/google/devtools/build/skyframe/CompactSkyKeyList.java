@@ -0,0 +1,224 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import javax.annotation.Nullable;
+
+/**
+ * A list of graph keys that stores the {@link KeyIdTable} ids of the keys, sorted and encoded as
+ * varint deltas, instead of references to them. Node ids are dense, so a long list of reverse deps
+ * mostly takes one or two bytes per element instead of a reference and the slack of an {@link
+ * java.util.ArrayList}.
+ *
+ * <p>Keys that are not nodes of the graph have no id, and are kept as references after the ids.
+ *
+ * <p>Keys are iterated in the order of their ids, not in insertion order. Appended keys go to an
+ * unsorted tail, which is merged into the encoded ids once it reaches an eighth of their number, so
+ * that adding keys one at a time takes amortized constant time. Random access takes linear time,
+ * and elements can only be removed by building a new list.
+ *
+ * <p>Not thread-safe. {@link InMemoryNodeEntry} guards its reverse deps with its own lock.
+ */
+final class CompactSkyKeyList extends AbstractList<SkyKey> {
+  private static final int MIN_TAIL_CAPACITY = 8;
+  private static final byte[] EMPTY = new byte[0];
+
+  private final KeyIdTable keyIds;
+  private byte[] encoded = EMPTY;
+  private int encodedSize;
+  private int[] tail;
+  private int tailSize;
+  @Nullable private List<SkyKey> keysWithoutIds;
+
+  CompactSkyKeyList(KeyIdTable keyIds, Collection<SkyKey> keys) {
+    this.keyIds = keyIds;
+    int[] ids = new int[keys.size()];
+    int i = 0;
+    for (SkyKey key : keys) {
+      int id = keyIds.idOf(key);
+      if (id == KeyIdTable.NO_ID) {
+        addKeyWithoutId(key);
+      } else {
+        ids[i++] = id;
+      }
+    }
+    if (i < ids.length) {
+      ids = Arrays.copyOf(ids, i);
+    }
+    Arrays.sort(ids);
+    encode(ids);
+  }
+
+  @Override
+  public int size() {
+    return idCount() + (keysWithoutIds == null ? 0 : keysWithoutIds.size());
+  }
+
+  private int idCount() {
+    return encodedSize + tailSize;
+  }
+
+  @Override
+  public boolean add(SkyKey key) {
+    int id = keyIds.idOf(key);
+    if (id == KeyIdTable.NO_ID) {
+      addKeyWithoutId(key);
+      modCount++;
+      return true;
+    }
+    if (tail == null) {
+      tail = new int[MIN_TAIL_CAPACITY];
+    } else if (tailSize == tail.length) {
+      tail = Arrays.copyOf(tail, 2 * tailSize);
+    }
+    tail[tailSize++] = id;
+    if (tailSize >= Math.max(MIN_TAIL_CAPACITY, encodedSize / 8)) {
+      mergeTail();
+    }
+    modCount++;
+    return true;
+  }
+
+  @Override
+  public SkyKey get(int index) {
+    Preconditions.checkElementIndex(index, size());
+    Iterator<SkyKey> it = iterator();
+    for (int i = 0; i < index; i++) {
+      it.next();
+    }
+    return it.next();
+  }
+
+  @Override
+  public Iterator<SkyKey> iterator() {
+    return new IdIterator();
+  }
+
+  private void addKeyWithoutId(SkyKey key) {
+    if (keysWithoutIds == null) {
+      keysWithoutIds = new ArrayList<>(1);
+    }
+    keysWithoutIds.add(key);
+  }
+
+  /** Returns the number of bytes used by the encoded ids, excluding the unmerged tail. */
+  @VisibleForTesting
+  int encodedBytes() {
+    return encoded.length;
+  }
+
+  private void mergeTail() {
+    int[] ids = new int[idCount()];
+    IdIterator it = new IdIterator();
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = it.nextId();
+    }
+    // The encoded ids are already sorted, so only the tail needs sorting before a merge.
+    Arrays.sort(ids, encodedSize, ids.length);
+    int[] merged = new int[ids.length];
+    int left = 0;
+    int right = encodedSize;
+    for (int i = 0; i < merged.length; i++) {
+      if (right == ids.length || (left < encodedSize && ids[left] <= ids[right])) {
+        merged[i] = ids[left++];
+      } else {
+        merged[i] = ids[right++];
+      }
+    }
+    tail = null;
+    tailSize = 0;
+    encode(merged);
+  }
+
+  private void encode(int[] sortedIds) {
+    int length = 0;
+    int previous = 0;
+    for (int id : sortedIds) {
+      length += varIntSize(id - previous);
+      previous = id;
+    }
+    byte[] bytes = new byte[length];
+    int position = 0;
+    previous = 0;
+    for (int id : sortedIds) {
+      int delta = id - previous;
+      previous = id;
+      while ((delta & ~0x7f) != 0) {
+        bytes[position++] = (byte) ((delta & 0x7f) | 0x80);
+        delta >>>= 7;
+      }
+      bytes[position++] = (byte) delta;
+    }
+    encoded = bytes;
+    encodedSize = sortedIds.length;
+  }
+
+  private static int varIntSize(int value) {
+    int size = 1;
+    while ((value & ~0x7f) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  /** Iterates over the encoded ids, followed by the ids of the tail and the keys without ids. */
+  private final class IdIterator implements Iterator<SkyKey> {
+    private int index = 0;
+    private int position = 0;
+    private int id = 0;
+
+    @Override
+    public boolean hasNext() {
+      return index < size();
+    }
+
+    @Override
+    public SkyKey next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      if (index >= idCount()) {
+        return keysWithoutIds.get(index++ - idCount());
+      }
+      return keyIds.keyOf(nextId());
+    }
+
+    int nextId() {
+      if (index >= encodedSize) {
+        return tail[index++ - encodedSize];
+      }
+      int delta = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = encoded[position++];
+        delta |= (b & 0x7f) << shift;
+        shift += 7;
+      } while (b < 0);
+      index++;
+      id += delta;
+      return id;
+    }
+  }
+}
@@ -46,4 +46,10 @@ public interface InMemoryGraph extends ProcessableGraph {
   Map<SkyKey, ? extends NodeEntry> getAllValues();
 
   Map<SkyKey, ? extends NodeEntry> getAllValuesMutable();
+
+  /**
+   * Called after nodes were deleted, while no other thread modifies the graph, so that it can
+   * reclaim what it keeps for the deleted nodes.
+   */
+  default void cleanUpAfterDeletions() {}
 }
@@ -35,8 +35,18 @@ import javax.annotation.Nullable;
  */
 public class InMemoryGraphImpl implements InMemoryGraph {
 
+  /**
+   * Whether nodes store large sets of reverse deps as compact arrays of key ids. Uses a system
+   * property, which can be set with --host_jvm_args, because switching representations requires a
+   * new graph, and changing --host_jvm_args restarts the server.
+   */
+  private static final boolean COMPACT_REVERSE_DEPS =
+      Boolean.parseBoolean(
+          System.getProperty("skyframe.InMemoryGraph.CompactReverseDeps", "false"));
+
   protected final ConcurrentMap<SkyKey, NodeEntry> nodeMap = new ConcurrentHashMap<>(1024);
   private final boolean keepEdges;
+  @Nullable private final KeyIdTable keyIds;
 
   @VisibleForTesting
   public InMemoryGraphImpl() {
@@ -44,12 +54,28 @@ public class InMemoryGraphImpl implements InMemoryGraph {
   }
 
   public InMemoryGraphImpl(boolean keepEdges) {
+    this(keepEdges, COMPACT_REVERSE_DEPS);
+  }
+
+  @VisibleForTesting
+  InMemoryGraphImpl(boolean keepEdges, boolean compactReverseDeps) {
     this.keepEdges = keepEdges;
+    this.keyIds = keepEdges && compactReverseDeps ? new KeyIdTable(nodeMap::get) : null;
   }
 
   @Override
   public void remove(SkyKey skyKey) {
-    nodeMap.remove(skyKey);
+    NodeEntry entry = nodeMap.remove(skyKey);
+    if (keyIds != null && entry instanceof CompactInMemoryNodeEntry) {
+      keyIds.release(((CompactInMemoryNodeEntry) entry).keyId);
+    }
+  }
+
+  @Override
+  public void cleanUpAfterDeletions() {
+    if (keyIds != null) {
+      keyIds.reclaimRemovedIds();
+    }
   }
 
   @Override
@@ -73,7 +99,12 @@ public class InMemoryGraphImpl implements InMemoryGraph {
   }
 
   protected NodeEntry newNodeEntry(SkyKey key) {
-    return keepEdges ? new InMemoryNodeEntry() : new EdgelessInMemoryNodeEntry();
+    if (!keepEdges) {
+      return new EdgelessInMemoryNodeEntry();
+    }
+    return keyIds != null
+        ? new CompactInMemoryNodeEntry(keyIds.assign(key), keyIds)
+        : new InMemoryNodeEntry();
   }
 
   /**
@@ -274,6 +274,7 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
 
   private void performInvalidation() throws InterruptedException {
     EagerInvalidator.delete(graph, valuesToDelete, progressReceiver, deleterState, keepEdges);
+    graph.cleanUpAfterDeletions();
     // Note that clearing the valuesToDelete would not do an internal resizing. Therefore, if any
     // build has a large set of dirty values, subsequent operations (even clearing) will be slower.
     // Instead, just start afresh with a new LinkedHashSet.
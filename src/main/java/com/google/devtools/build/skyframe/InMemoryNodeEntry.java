@@ -384,6 +384,15 @@ public class InMemoryNodeEntry implements NodeEntry {
     this.reverseDepsDataToConsolidate = dataToConsolidate;
   }
 
+  /**
+   * Returns the table of key ids with which {@link ReverseDepsUtility} stores large sets of reverse
+   * deps compactly, or null if reverse deps are stored as lists of keys.
+   */
+  @Nullable
+  KeyIdTable getKeyIdTableForReverseDepsUtil() {
+    return null;
+  }
+
   synchronized Object getReverseDepsRawForReverseDepsUtil() {
     return this.reverseDeps;
   }
@@ -0,0 +1,179 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Assigns dense int ids to the keys of an {@link InMemoryGraphImpl}, so that edges can be stored as
+ * compact arrays of ids instead of arrays of references. See {@link CompactSkyKeyList}.
+ *
+ * <p>The id of a key is stored in its {@link CompactInMemoryNodeEntry}, so mapping a key to its id
+ * is a lookup in the graph, and the table itself only maps ids back to keys. Only nodes of the
+ * graph have ids.
+ *
+ * <p>The id of a removed node is reused once no reverse deps refer to it anymore. Deleting a node
+ * removes it from the reverse deps of its deps, but these removals are delayed, so they may still
+ * have to look up the key of the removed node by its id. The ids of removed nodes are therefore
+ * only reclaimed by {@link #reclaimRemovedIds}, which applies the delayed removals first.
+ */
+@ThreadSafe
+final class KeyIdTable {
+  /** Returned by {@link #idOf} for keys that are not nodes of the graph. */
+  static final int NO_ID = -1;
+
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+  private final Function<SkyKey, NodeEntry> graphLookup;
+  private final AtomicInteger nextId = new AtomicInteger();
+  private volatile SkyKey[][] chunks = new SkyKey[16][];
+
+  /** Nodes whose compact reverse deps may still contain the ids of removed nodes. */
+  private final Set<CompactInMemoryNodeEntry> entriesWithRemovedReverseDeps =
+      Sets.newConcurrentHashSet();
+
+  // Guarded by this. freeIdCount is volatile so that assign() can skip the lock if there are none.
+  private int[] freeIds = new int[0];
+  private volatile int freeIdCount;
+  private int[] removedIds = new int[0];
+  private int removedIdCount;
+
+  KeyIdTable(Function<SkyKey, NodeEntry> graphLookup) {
+    this.graphLookup = graphLookup;
+  }
+
+  /** Assigns an id to {@code key}, which is about to become a node of the graph. */
+  int assign(SkyKey key) {
+    int id = takeFreeId();
+    if (id == NO_ID) {
+      id = nextId.getAndIncrement();
+      Preconditions.checkState(id >= 0, "Out of key ids: %s", key);
+    }
+    chunk(id >>> CHUNK_BITS)[id & (CHUNK_SIZE - 1)] = key;
+    return id;
+  }
+
+  /** Returns the id of {@code key}, or {@link #NO_ID} if it is not a node of the graph. */
+  int idOf(SkyKey key) {
+    NodeEntry entry = graphLookup.apply(key);
+    if (entry instanceof CompactInMemoryNodeEntry) {
+      return ((CompactInMemoryNodeEntry) entry).keyId;
+    }
+    return NO_ID;
+  }
+
+  /** Returns the key with the given id. */
+  SkyKey keyOf(int id) {
+    return chunks[id >>> CHUNK_BITS][id & (CHUNK_SIZE - 1)];
+  }
+
+  /** Records that the node with {@code id} was removed from the graph. */
+  synchronized void release(int id) {
+    if (removedIdCount == removedIds.length) {
+      removedIds = Arrays.copyOf(removedIds, Math.max(16, 2 * removedIdCount));
+    }
+    removedIds[removedIdCount++] = id;
+  }
+
+  /** Records that {@code entry} removed a reverse dep from its compact reverse deps. */
+  void recordRemovedReverseDep(CompactInMemoryNodeEntry entry) {
+    entriesWithRemovedReverseDeps.add(entry);
+  }
+
+  /**
+   * Makes the ids of removed nodes available to {@link #assign}. Must only be called while nodes
+   * are neither created nor removed, e.g. after deleting nodes and before the next evaluation.
+   *
+   * <p>Done nodes apply their delayed reverse dep operations here. Nodes that are not done apply
+   * them once they finish building, so the ids of the keys they still refer to are kept until a
+   * later call.
+   */
+  synchronized void reclaimRemovedIds() {
+    Set<SkyKey> pendingKeys = new HashSet<>();
+    for (Iterator<CompactInMemoryNodeEntry> it = entriesWithRemovedReverseDeps.iterator();
+        it.hasNext(); ) {
+      CompactInMemoryNodeEntry entry = it.next();
+      if (!isNodeOfGraph(entry)) {
+        it.remove();
+        continue;
+      }
+      Iterable<SkyKey> delayed = entry.consolidateReverseDepsIfDone();
+      if (delayed == null) {
+        it.remove();
+      } else {
+        delayed.forEach(pendingKeys::add);
+      }
+    }
+
+    int kept = 0;
+    for (int i = 0; i < removedIdCount; i++) {
+      int id = removedIds[i];
+      if (pendingKeys.contains(keyOf(id))) {
+        removedIds[kept++] = id;
+        continue;
+      }
+      chunks[id >>> CHUNK_BITS][id & (CHUNK_SIZE - 1)] = null;
+      if (freeIdCount == freeIds.length) {
+        freeIds = Arrays.copyOf(freeIds, Math.max(16, 2 * freeIdCount));
+      }
+      freeIds[freeIdCount++] = id;
+    }
+    removedIdCount = kept;
+    if (kept == 0) {
+      removedIds = new int[0];
+    }
+  }
+
+  private boolean isNodeOfGraph(CompactInMemoryNodeEntry entry) {
+    SkyKey key = keyOf(entry.keyId);
+    return key != null && graphLookup.apply(key) == entry;
+  }
+
+  private int takeFreeId() {
+    if (freeIdCount == 0) {
+      return NO_ID;
+    }
+    synchronized (this) {
+      return freeIdCount == 0 ? NO_ID : freeIds[--freeIdCount];
+    }
+  }
+
+  private SkyKey[] chunk(int index) {
+    SkyKey[][] current = chunks;
+    if (index < current.length && current[index] != null) {
+      return current[index];
+    }
+    synchronized (this) {
+      current = chunks;
+      if (index < current.length && current[index] != null) {
+        return current[index];
+      }
+      // Never modify a published array of chunks, so that unsynchronized readers see either no
+      // chunk or a fully allocated one.
+      SkyKey[][] next = Arrays.copyOf(current, Math.max(current.length, 2 * index));
+      next[index] = new SkyKey[CHUNK_SIZE];
+      chunks = next;
+      return next[index];
+    }
+  }
+}
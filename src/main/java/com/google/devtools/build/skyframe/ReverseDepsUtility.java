@@ -56,6 +56,12 @@ abstract class ReverseDepsUtility {
 
   @VisibleForTesting static final int MAYBE_CHECK_THRESHOLD = 10;
 
+  /**
+   * The number of reverse deps from which they are stored as a {@link CompactSkyKeyList} if the
+   * entry has a {@link KeyIdTable}. Smaller lists are not worth the overhead of the compact list.
+   */
+  @VisibleForTesting static final int COMPACT_LIST_THRESHOLD = 16;
+
   /**
    * We can store one type of operation bare in order to save memory. For done nodes, most
    * operations are CHECKS.
@@ -146,17 +152,42 @@ abstract class ReverseDepsUtility {
     if (newSize == 1) {
       entry.setSingleReverseDepForReverseDepsUtil(Iterables.getOnlyElement(newReverseDeps));
     } else if (reverseDepsSize == 0) {
-      entry.setReverseDepsForReverseDepsUtil(Lists.newArrayList(newReverseDeps));
+      entry.setReverseDepsForReverseDepsUtil(newReverseDepsList(entry, newReverseDeps));
     } else if (reverseDepsSize == 1) {
       List<SkyKey> newList = Lists.newArrayListWithExpectedSize(newSize);
       newList.add((SkyKey) reverseDeps);
       newList.addAll(newReverseDeps);
-      entry.setReverseDepsForReverseDepsUtil(newList);
+      entry.setReverseDepsForReverseDepsUtil(newReverseDepsList(entry, newList));
+    } else if (shouldCompact(entry, (List<SkyKey>) reverseDeps, newSize)) {
+      List<SkyKey> newList = Lists.newArrayListWithExpectedSize(newSize);
+      newList.addAll((List<SkyKey>) reverseDeps);
+      newList.addAll(newReverseDeps);
+      entry.setReverseDepsForReverseDepsUtil(newReverseDepsList(entry, newList));
     } else {
       ((List<SkyKey>) reverseDeps).addAll(newReverseDeps);
     }
   }
 
+  /**
+   * Returns a mutable list of {@code reverseDeps}, which is compact if the entry has a {@link
+   * KeyIdTable} and there are enough reverse deps.
+   */
+  private static List<SkyKey> newReverseDepsList(
+      InMemoryNodeEntry entry, Collection<SkyKey> reverseDeps) {
+    KeyIdTable keyIds = entry.getKeyIdTableForReverseDepsUtil();
+    if (keyIds != null && reverseDeps.size() >= COMPACT_LIST_THRESHOLD) {
+      return new CompactSkyKeyList(keyIds, reverseDeps);
+    }
+    return new ArrayList<>(reverseDeps);
+  }
+
+  private static boolean shouldCompact(
+      InMemoryNodeEntry entry, List<SkyKey> reverseDeps, int newSize) {
+    return newSize >= COMPACT_LIST_THRESHOLD
+        && !(reverseDeps instanceof CompactSkyKeyList)
+        && entry.getKeyIdTableForReverseDepsUtil() != null;
+  }
+
   static void checkReverseDep(InMemoryNodeEntry entry, SkyKey reverseDep) {
     maybeDelayReverseDepOp(entry, ImmutableList.of(reverseDep), Op.CHECK);
   }
@@ -292,7 +323,7 @@ abstract class ReverseDepsUtility {
   }
 
   @SuppressWarnings("unchecked") // Casts to SkyKey and List.
-  private static void consolidateData(InMemoryNodeEntry entry) {
+  static void consolidateData(InMemoryNodeEntry entry) {
     List<Object> dataToConsolidate = entry.getReverseDepsDataToConsolidateForReverseDepsUtil();
     if (dataToConsolidate == null) {
       return;
@@ -394,7 +425,7 @@ abstract class ReverseDepsUtility {
     } else if (reverseDepsAsSet.size() == 1) {
       entry.setSingleReverseDepForReverseDepsUtil(Iterables.getOnlyElement(reverseDepsAsSet));
     } else {
-      entry.setReverseDepsForReverseDepsUtil(new ArrayList<>(reverseDepsAsSet));
+      entry.setReverseDepsForReverseDepsUtil(newReverseDepsList(entry, reverseDepsAsSet));
     }
   }
 
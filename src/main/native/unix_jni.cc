@@ -396,6 +396,38 @@ Java_com_google_devtools_build_lib_unix_NativePosixFiles_errnoLstat(JNIEnv *env,
   return StatCommon(env, path, portable_lstat, false);
 }
 
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
+ * Method:    errnoStatBatch
+ * Signature: ([Ljava/lang/String;Z)[Lcom/google/devtools/build/lib/unix/ErrnoFileStatus;
+ */
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_errnoStatBatch(
+    JNIEnv *env, jclass clazz, jobjectArray paths, jboolean follow_symlinks) {
+  jclass errno_file_status_class =
+      env->FindClass("com/google/devtools/build/lib/unix/ErrnoFileStatus");
+  CHECK(errno_file_status_class != NULL);
+  jsize len = env->GetArrayLength(paths);
+  jobjectArray result =
+      env->NewObjectArray(len, errno_file_status_class, NULL);
+  env->DeleteLocalRef(errno_file_status_class);
+  if (result == NULL) {
+    return NULL;  // async exception!
+  }
+  for (jsize ii = 0; ii < len; ++ii) {
+    jstring path = static_cast<jstring>(env->GetObjectArrayElement(paths, ii));
+    jobject status = StatCommon(
+        env, path, follow_symlinks ? portable_stat : portable_lstat, false);
+    env->DeleteLocalRef(path);
+    if (status == NULL) {
+      return NULL;  // RuntimeException or OutOfMemoryError posted.
+    }
+    env->SetObjectArrayElement(result, ii, status);
+    env->DeleteLocalRef(status);
+  }
+  return result;
+}
+
 /*
  * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
  * Method:    utime
@@ -597,27 +629,22 @@ static char GetDirentType(struct dirent *entry,
   }
 }
 
-/*
- * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
- * Method:    readdir
- * Signature: (Ljava/lang/String;Z)Lcom/google/devtools/build/lib/unix/Dirents;
- * Throws:    java.io.IOException
- */
-extern "C" JNIEXPORT jobject JNICALL
-Java_com_google_devtools_build_lib_unix_NativePosixFiles_readdir(JNIEnv *env,
-                                                    jclass clazz,
-                                                    jstring path,
-                                                    jchar read_types) {
+// Reads the directory at path. If should_throw is false, returns NULL without
+// posting an IOException if the directory cannot be read.
+static jobject ReaddirCommon(JNIEnv *env,
+                             jstring path,
+                             jchar read_types,
+                             bool should_throw) {
   const char *path_chars = GetStringLatin1Chars(env, path);
   DIR *dirh;
   while ((dirh = ::opendir(path_chars)) == NULL && errno == EINTR) { }
   if (dirh == NULL) {
     // EACCES EMFILE ENFILE ENOENT ENOTDIR -> IOException
     // ENOMEM                              -> OutOfMemoryError
-    PostFileException(env, errno, path_chars);
-  }
-  ReleaseStringLatin1Chars(path_chars);
-  if (dirh == NULL) {
+    if (should_throw) {
+      PostFileException(env, errno, path_chars);
+    }
+    ReleaseStringLatin1Chars(path_chars);
     return NULL;
   }
   int fd = dirfd(dirh);
@@ -636,8 +663,11 @@ Java_com_google_devtools_build_lib_unix_NativePosixFiles_readdir(JNIEnv *env,
       if (errno == EINTR) continue;  // interrupted by a signal
       if (errno == EIO) continue;  // glibc returns this on transient errors
       // Otherwise, this is a real error we should report.
-      PostFileException(env, errno, path_chars);
+      if (should_throw) {
+        PostFileException(env, errno, path_chars);
+      }
       ::closedir(dirh);
+      ReleaseStringLatin1Chars(path_chars);
       return NULL;
     }
     // Omit . and .. from results.
@@ -652,9 +682,13 @@ Java_com_google_devtools_build_lib_unix_NativePosixFiles_readdir(JNIEnv *env,
   }
 
   if (::closedir(dirh) < 0 && errno != EINTR) {
-    PostFileException(env, errno, path_chars);
+    if (should_throw) {
+      PostFileException(env, errno, path_chars);
+    }
+    ReleaseStringLatin1Chars(path_chars);
     return NULL;
   }
+  ReleaseStringLatin1Chars(path_chars);
 
   size_t len = entries.size();
   jclass jlStringClass = env->GetObjectClass(path);
@@ -669,6 +703,7 @@ Java_com_google_devtools_build_lib_unix_NativePosixFiles_readdir(JNIEnv *env,
       return NULL;  // async exception!
     }
     env->SetObjectArrayElement(names_obj, ii, s);
+    env->DeleteLocalRef(s);
   }
 
   jbyteArray types_obj = NULL;
@@ -681,7 +716,60 @@ Java_com_google_devtools_build_lib_unix_NativePosixFiles_readdir(JNIEnv *env,
     }
   }
 
-  return NewDirents(env, names_obj, types_obj);
+  jobject dirents = NewDirents(env, names_obj, types_obj);
+  env->DeleteLocalRef(jlStringClass);
+  env->DeleteLocalRef(names_obj);
+  if (types_obj != NULL) {
+    env->DeleteLocalRef(types_obj);
+  }
+  return dirents;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
+ * Method:    readdir
+ * Signature: (Ljava/lang/String;C)Lcom/google/devtools/build/lib/unix/Dirents;
+ * Throws:    java.io.IOException
+ */
+extern "C" JNIEXPORT jobject JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_readdir(JNIEnv *env,
+                                                    jclass clazz,
+                                                    jstring path,
+                                                    jchar read_types) {
+  return ReaddirCommon(env, path, read_types, true);
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
+ * Method:    readdirBatch
+ * Signature: ([Ljava/lang/String;C)[Lcom/google/devtools/build/lib/unix/Dirents;
+ */
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_readdirBatch(
+    JNIEnv *env, jclass clazz, jobjectArray paths, jchar read_types) {
+  jclass dirents_class =
+      env->FindClass("com/google/devtools/build/lib/unix/NativePosixFiles$Dirents");
+  CHECK(dirents_class != NULL);
+  jsize len = env->GetArrayLength(paths);
+  jobjectArray result = env->NewObjectArray(len, dirents_class, NULL);
+  env->DeleteLocalRef(dirents_class);
+  if (result == NULL) {
+    return NULL;  // async exception!
+  }
+  for (jsize ii = 0; ii < len; ++ii) {
+    jstring path = static_cast<jstring>(env->GetObjectArrayElement(paths, ii));
+    jobject dirents = ReaddirCommon(env, path, read_types, false);
+    env->DeleteLocalRef(path);
+    if (env->ExceptionCheck()) {
+      return NULL;
+    }
+    // A directory that cannot be read is left null.
+    if (dirents != NULL) {
+      env->SetObjectArrayElement(result, ii, dirents);
+      env->DeleteLocalRef(dirents);
+    }
+  }
+  return result;
 }
 
 /*
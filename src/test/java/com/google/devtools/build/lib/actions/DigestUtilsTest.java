@@ -14,9 +14,12 @@
 package com.google.devtools.build.lib.actions;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
 import com.google.common.base.Strings;
 import com.google.common.cache.CacheStats;
+import com.google.common.io.BaseEncoding;
 import com.google.devtools.build.lib.actions.cache.DigestUtils;
 import com.google.devtools.build.lib.clock.BlazeClock;
 import com.google.devtools.build.lib.testutil.TestThread;
@@ -210,4 +213,113 @@ public class DigestUtilsTest {
 
     assertThat(digest3).isEqualTo(digest1);
   }
+
+  /** Returns a file system that counts the digests it computes and never has fast digests. */
+  private static FileSystem countingFileSystem(AtomicInteger getDigestCounter) {
+    return new InMemoryFileSystem(BlazeClock.instance()) {
+      @Override
+      protected byte[] getFastDigest(Path path) {
+        return null;
+      }
+
+      @Override
+      protected byte[] getDigest(Path path) throws IOException {
+        getDigestCounter.incrementAndGet();
+        return super.getDigest(path);
+      }
+    };
+  }
+
+  @Test
+  public void testPersistedCacheIsReloaded() throws Exception {
+    AtomicInteger getDigestCounter = new AtomicInteger(0);
+    FileSystem fs = countingFileSystem(getDigestCounter);
+    Path file1 = fs.getPath("/1.txt");
+    Path file2 = fs.getPath("/2.txt");
+    Path cacheFile = fs.getPath("/cache/digests");
+    FileSystemUtils.writeContentAsLatin1(file1, "some contents");
+    FileSystemUtils.writeContentAsLatin1(file2, "some other contents");
+    cacheFile.getParentDirectory().createDirectoryAndParents();
+
+    DigestUtils.configureCache(10);
+    byte[] digest1 = DigestUtils.getDigestOrFail(file1, file1.getFileSize());
+    DigestUtils.getDigestOrFail(file2, file2.getFileSize());
+    assertThat(DigestUtils.saveCache(cacheFile)).isEqualTo(2);
+    assertThat(getDigestCounter.get()).isEqualTo(2);
+
+    // Simulate a server restart, during which the second file changes.
+    DigestUtils.configureCache(10);
+    FileSystemUtils.writeContentAsLatin1(file2, "changed contents");
+    assertThat(DigestUtils.loadCache(cacheFile)).isEqualTo(2);
+
+    assertThat(DigestUtils.getDigestOrFail(file1, file1.getFileSize())).isEqualTo(digest1);
+    assertThat(getDigestCounter.get()).isEqualTo(2);
+    DigestUtils.getDigestOrFail(file2, file2.getFileSize());
+    assertThat(getDigestCounter.get()).isEqualTo(3);
+    new CacheStatsChecker().evictionCount(0).hitCount(1).missCount(1).check();
+  }
+
+  @Test
+  public void testLoadCacheIgnoresMissingFileAndRejectsGarbage() throws Exception {
+    FileSystem fs = countingFileSystem(new AtomicInteger(0));
+    Path cacheFile = fs.getPath("/digests");
+    DigestUtils.configureCache(10);
+
+    assertThat(DigestUtils.loadCache(cacheFile)).isEqualTo(0);
+
+    FileSystemUtils.writeContentAsLatin1(cacheFile, "not a digest cache");
+    assertThrows(IOException.class, () -> DigestUtils.loadCache(cacheFile));
+  }
+
+  @Test
+  public void testDigestIsReadFromXattr() throws Exception {
+    AtomicInteger getDigestCounter = new AtomicInteger(0);
+    byte[] expected = DigestHashFunction.SHA256.getHashFunction().hashInt(42).asBytes();
+    FileSystem fs =
+        new InMemoryFileSystem(BlazeClock.instance(), DigestHashFunction.SHA256) {
+          @Override
+          protected byte[] getFastDigest(Path path) {
+            return null;
+          }
+
+          @Override
+          protected byte[] getDigest(Path path) throws IOException {
+            getDigestCounter.incrementAndGet();
+            return super.getDigest(path);
+          }
+
+          @Override
+          public byte[] getxattr(Path path, String name, boolean followSymlinks) {
+            switch (path.getBaseName()) {
+              case "raw":
+                return name.equals("user.digest") ? expected : null;
+              case "hex":
+                return BaseEncoding.base16().lowerCase().encode(expected).getBytes(ISO_8859_1);
+              default:
+                return "malformed".getBytes(ISO_8859_1);
+            }
+          }
+        };
+    Path raw = fs.getPath("/raw");
+    Path hex = fs.getPath("/hex");
+    Path malformed = fs.getPath("/malformed");
+    for (Path path : Arrays.asList(raw, hex, malformed)) {
+      FileSystemUtils.writeContentAsLatin1(path, "contents");
+    }
+
+    // The xattr is only consulted when a name is configured.
+    DigestUtils.getDigestOrFail(raw, raw.getFileSize());
+    assertThat(getDigestCounter.get()).isEqualTo(1);
+
+    DigestUtils.setDigestXattrName("user.digest");
+    try {
+      assertThat(DigestUtils.getDigestOrFail(raw, raw.getFileSize())).isEqualTo(expected);
+      assertThat(DigestUtils.getDigestOrFail(hex, hex.getFileSize())).isEqualTo(expected);
+      assertThat(getDigestCounter.get()).isEqualTo(1);
+      DigestUtils.getDigestOrFail(malformed, malformed.getFileSize());
+      assertThat(getDigestCounter.get()).isEqualTo(2);
+    } finally {
+      DigestUtils.setDigestXattrName(null);
+    }
+  }
 }
@@ -389,6 +389,45 @@ public class ResourceManagerTest {
     assertThat(rm.inUse()).isFalse();
   }
 
+  @Test
+  public void testWaitingRequestsAreOfferedResourcesByPriority() throws Exception {
+    ActionExecutionMetadata lowPriorityOwner = new ResourceOwnerStub();
+    ActionExecutionMetadata highPriorityOwner = new ResourceOwnerStub();
+    rm.setSchedulingPolicy(owner -> owner == highPriorityOwner ? 10 : 1);
+
+    TestThread lowPriorityThread =
+        new TestThread(
+            () -> {
+              rm.acquireResources(lowPriorityOwner, ResourceSet.create(0, 1, 0));
+              validate(3);
+              release(0, 1, 0);
+            });
+    TestThread highPriorityThread =
+        new TestThread(
+            () -> {
+              rm.acquireResources(highPriorityOwner, ResourceSet.create(0, 1, 0));
+              validate(2);
+              release(0, 1, 0);
+            });
+
+    acquire(0, 1, 0);
+    lowPriorityThread.start();
+    while (rm.getWaitCount() < 1) {
+      Thread.yield();
+    }
+    highPriorityThread.start();
+    while (rm.getWaitCount() < 2) {
+      Thread.yield();
+    }
+    validate(1);
+
+    // The high priority request is granted first even though it was made last.
+    release(0, 1, 0);
+    lowPriorityThread.joinAndAssertState(10000);
+    highPriorityThread.joinAndAssertState(10000);
+    assertThat(rm.inUse()).isFalse();
+  }
+
   private static class ResourceOwnerStub implements ActionExecutionMetadata {
 
     @Override
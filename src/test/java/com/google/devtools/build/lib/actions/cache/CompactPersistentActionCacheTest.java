@@ -20,6 +20,9 @@ import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.actions.FileArtifactValue;
 import com.google.devtools.build.lib.testutil.ManualClock;
 import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
@@ -137,6 +140,28 @@ public class CompactPersistentActionCacheTest {
     assertFullSave();
   }
 
+  @Test
+  public void testMemoryMappedCacheSurvivesReload() throws Exception {
+    // Memory-mapped caches need files on the local file system.
+    Path mappedRoot =
+        new JavaIoFileSystem(DigestHashFunction.SHA256)
+            .getPath(TestUtils.makeTempDir().getAbsolutePath());
+    CompactPersistentActionCache mappedCache =
+        new CompactPersistentActionCache(mappedRoot, clock, /*memoryMapped=*/ true);
+    putKey("key", mappedCache, true);
+    putKey("removed", mappedCache, false);
+    mappedCache.remove("removed");
+    mappedCache.save();
+    assertThat(CompactPersistentActionCache.mappedCacheFile(mappedRoot).exists()).isTrue();
+    assertThat(CompactPersistentActionCache.cacheFile(mappedRoot).exists()).isFalse();
+
+    CompactPersistentActionCache newcache =
+        new CompactPersistentActionCache(mappedRoot, clock, /*memoryMapped=*/ true);
+    assertKeyEquals(mappedCache, newcache, "key");
+    assertThat(newcache.get("removed")).isNull();
+    assertThat(newcache.toString()).startsWith("Action cache (1 records):\n");
+  }
+
   // Regression test to check that CompactActionCacheEntry.toString does not mutate the object.
   // Mutations may result in IllegalStateException.
   @Test
@@ -20,7 +20,10 @@ import com.google.devtools.build.lib.clock.Clock;
 import com.google.devtools.build.lib.testutil.Scratch;
 import com.google.devtools.build.lib.testutil.TestThread;
 import com.google.devtools.build.lib.testutil.TestThread.TestRunnable;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
 import com.google.devtools.build.lib.vfs.Path;
 import java.io.EOFException;
 import java.io.IOException;
@@ -342,6 +345,28 @@ public class PersistentStringIndexerTest {
     assertThat(e).hasMessageThat().contains("Corrupted filename index has duplicate entry");
   }
 
+  @Test
+  public void testMappedIndexerSurvivesReload() throws Exception {
+    // The mapped file must be on the local file system.
+    JavaIoFileSystem fs = new JavaIoFileSystem(DigestHashFunction.SHA256);
+    Path mappedPath = fs.getPath(TestUtils.makeTempDir().getAbsolutePath()).getChild("test.mmap");
+    psi = PersistentStringIndexer.newMappedStringIndexer(mappedPath);
+    setupTestContent();
+    psi.save();
+
+    psi = PersistentStringIndexer.newMappedStringIndexer(mappedPath);
+    assertSize(9);
+    assertContent();
+    assertIndex(2, "abcdefmno");
+    assertIndex(9, "xyzqwerty");
+    assertThat(psi.getIndex("unknown")).isEqualTo(-1);
+    assertThat(psi.getStringForIndex(10)).isNull();
+
+    psi.clear();
+    assertSize(0);
+    assertThat(psi.getIndex("abcdefmno")).isEqualTo(-1);
+  }
+
   @Test
   public void testDeferredIOFailure() throws Exception {
     assertThat(dataPath.exists()).isFalse();
@@ -17,8 +17,8 @@ package com.google.devtools.build.lib.bazel.repository;
 import static com.google.devtools.build.lib.bazel.repository.TestArchiveDescriptor.INNER_FOLDER_NAME;
 import static com.google.devtools.build.lib.bazel.repository.TestArchiveDescriptor.ROOT_FOLDER_NAME;
 
+import com.google.devtools.build.lib.bazel.repository.DecompressorValue.StreamingDecompressor;
 import com.google.devtools.build.lib.vfs.Path;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.zip.GZIPInputStream;
@@ -64,13 +64,34 @@ public class CompressedTarFunctionTest {
     archiveDescriptor.assertOutputFiles(outputDir, INNER_FOLDER_NAME);
   }
 
+  /**
+   * Test decompressing a tar.gz file with hard link file and symbolic link file inside while it is
+   * read from a stream, which writes files in parallel
+   */
+  @Test
+  public void testDecompressStreamWithPrefix() throws Exception {
+    DecompressorDescriptor descriptor =
+        archiveDescriptor
+            .createDescriptorBuilder()
+            .setPrefix(ROOT_FOLDER_NAME)
+            .setDecompressor(TarGzFunction.INSTANCE)
+            .build();
+    Path outputDir;
+    try (InputStream archiveStream = descriptor.archivePath().getInputStream()) {
+      outputDir =
+          ((StreamingDecompressor) TarGzFunction.INSTANCE).decompress(descriptor, archiveStream);
+    }
+
+    archiveDescriptor.assertOutputFiles(outputDir, INNER_FOLDER_NAME);
+  }
+
   private Path decompress(DecompressorDescriptor.Builder descriptorBuilder) throws Exception {
     descriptorBuilder.setDecompressor(TarGzFunction.INSTANCE);
     return new CompressedTarFunction() {
       @Override
-      protected InputStream getDecompressorStream(DecompressorDescriptor descriptor)
+      protected InputStream getDecompressorStream(InputStream compressedStream)
           throws IOException {
-        return new GZIPInputStream(new FileInputStream(descriptor.archivePath().getPathFile()));
+        return new GZIPInputStream(compressedStream);
       }
     }.decompress(descriptorBuilder.build());
   }
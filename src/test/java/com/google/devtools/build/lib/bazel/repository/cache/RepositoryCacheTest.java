@@ -17,6 +17,7 @@ package com.google.devtools.build.lib.bazel.repository.cache;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.KeyType;
 import com.google.devtools.build.lib.testutil.Scratch;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
@@ -97,6 +98,24 @@ public class RepositoryCacheTest {
         .isEqualTo(FileSystemUtils.readContent(cacheValue, Charset.defaultCharset()));
   }
 
+  /** Test that a value written before its key was known is moved into the cache. */
+  @Test
+  public void testPutTemporaryFile() throws Exception {
+    Path tmpFile = repositoryCache.newTemporaryFile(KeyType.SHA256);
+    FileSystemUtils.writeContent(tmpFile, Charset.defaultCharset(), "contents");
+
+    repositoryCache.putTemporaryFile(downloadedFileSha256, tmpFile, KeyType.SHA256, "id");
+
+    Path cacheEntry =
+        KeyType.SHA256.getCachePath(contentAddressableCachePath).getChild(downloadedFileSha256);
+    Path cacheValue = cacheEntry.getChild(RepositoryCache.DEFAULT_CACHE_FILENAME);
+    assertThat(FileSystemUtils.readContent(cacheValue, Charset.defaultCharset()))
+        .isEqualTo("contents");
+    assertThat(tmpFile.exists()).isFalse();
+    assertThat(repositoryCache.hasCanonicalId(downloadedFileSha256, KeyType.SHA256, "id"))
+        .isTrue();
+  }
+
   /**
    * Test that the put method is idempotent, i.e. two successive put calls should not affect the
    * final state in the cache.
@@ -204,4 +223,71 @@ public class RepositoryCacheTest {
     Path lookupNoId = repositoryCache.get(downloadedFileSha256, targetPath, KeyType.SHA256);
     assertThat(lookupNoId).isEqualTo(targetPath);
   }
+
+  @Test
+  public void testCounters() throws Exception {
+    Path targetPath = scratch.dir("/external").getChild(downloadedFile.getBaseName());
+    assertThat(repositoryCache.get(downloadedFileSha256, targetPath, KeyType.SHA256)).isNull();
+    repositoryCache.put(downloadedFileSha256, downloadedFile, KeyType.SHA256, "fooid");
+    assertThat(repositoryCache.get(downloadedFileSha256, targetPath, KeyType.SHA256, "barid"))
+        .isNull();
+    assertThat(repositoryCache.get(downloadedFileSha256, targetPath, KeyType.SHA256, "fooid"))
+        .isEqualTo(targetPath);
+
+    assertThat(repositoryCache.getHitCount()).isEqualTo(1);
+    assertThat(repositoryCache.getMissCount()).isEqualTo(2);
+    assertThat(repositoryCache.getEvictionCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedEntries() throws Exception {
+    repositoryCache = new RepositoryCache(MoreExecutors.newDirectExecutorService());
+    repositoryCache.setRepositoryCachePath(repositoryCachePath);
+    repositoryCache.setMaxSize(20);
+    Path targetPath = scratch.dir("/external").getChild("target");
+
+    String first =
+        repositoryCache.put(
+            scratch.file("first", Charset.defaultCharset(), "first---"), KeyType.SHA256);
+    String second =
+        repositoryCache.put(
+            scratch.file("second", Charset.defaultCharset(), "second--"), KeyType.SHA256);
+    getCacheValue(first).setLastModifiedTime(1000);
+    getCacheValue(second).setLastModifiedTime(2000);
+    // Makes the first entry the most recently used one.
+    repositoryCache.get(first, targetPath, KeyType.SHA256);
+    String third =
+        repositoryCache.put(
+            scratch.file("third", Charset.defaultCharset(), "third---"), KeyType.SHA256);
+
+    assertThat(repositoryCache.exists(first, KeyType.SHA256)).isTrue();
+    assertThat(repositoryCache.exists(second, KeyType.SHA256)).isFalse();
+    assertThat(repositoryCache.exists(third, KeyType.SHA256)).isTrue();
+    assertThat(repositoryCache.getEvictionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testDeletesStaleTemporaryFiles() throws Exception {
+    repositoryCache = new RepositoryCache(MoreExecutors.newDirectExecutorService());
+    Path keyTypeDir = KeyType.SHA256.getCachePath(contentAddressableCachePath);
+    Path stale =
+        scratch.file(keyTypeDir.getRelative(RepositoryCache.TMP_PREFIX + "crashed").toString());
+    stale.setLastModifiedTime(
+        System.currentTimeMillis() - RepositoryCache.STALE_TEMP_FILE_AGE.toMillis() - 1000);
+    Path recent =
+        scratch.file(keyTypeDir.getRelative(RepositoryCache.TMP_PREFIX + "in-flight").toString());
+
+    // The size of the cache is not limited, but it is still scanned for temporary files.
+    repositoryCache.setRepositoryCachePath(repositoryCachePath);
+
+    assertThat(stale.exists()).isFalse();
+    assertThat(recent.exists()).isTrue();
+  }
+
+  private Path getCacheValue(String cacheKey) {
+    return KeyType.SHA256
+        .getCachePath(contentAddressableCachePath)
+        .getChild(cacheKey)
+        .getChild(RepositoryCache.DEFAULT_CACHE_FILENAME);
+  }
 }
@@ -16,13 +16,21 @@ package com.google.devtools.build.lib.bazel.repository.downloader;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.devtools.build.lib.bazel.repository.downloader.DownloaderTestUtils.sendLines;
 import static com.google.devtools.build.lib.bazel.repository.downloader.HttpParser.readHttpRequest;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache;
+import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.KeyType;
+import com.google.devtools.build.lib.bazel.repository.downloader.HttpDownloader.StreamConsumerException;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.vfs.DigestHashFunction;
 import com.google.devtools.build.lib.vfs.DigestHashFunction.DefaultHashFunctionNotSetException;
@@ -325,6 +333,140 @@ public class HttpDownloaderTest {
     }
   }
 
+  @Test
+  public void downloadStreaming_passesContentsToConsumer() throws Exception {
+    try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName(null))) {
+      @SuppressWarnings("unused")
+      Future<?> possiblyIgnoredError =
+          executor.submit(
+              () -> {
+                try (Socket socket = server.accept()) {
+                  readHttpRequest(socket.getInputStream());
+                  sendLines(
+                      socket,
+                      "HTTP/1.1 200 OK",
+                      "Date: Fri, 31 Dec 1999 23:59:59 GMT",
+                      "Connection: close",
+                      "Content-Type: text/plain",
+                      "Content-Length: 5",
+                      "",
+                      "hello");
+                }
+                return null;
+              });
+
+      byte[] consumed = new byte[2];
+      Checksum checksum =
+          httpDownloader.downloadStreaming(
+              Collections.singletonList(
+                  new URL(String.format("http://localhost:%d/foo", server.getLocalPort()))),
+              Collections.emptyMap(),
+              "testCanonicalId",
+              eventHandler,
+              Collections.emptyMap(),
+              in -> ByteStreams.readFully(in, consumed));
+
+      assertThat(new String(consumed, UTF_8)).isEqualTo("he");
+      // The checksum covers the bytes that the consumer didn't read, too.
+      assertThat(checksum.toString())
+          .isEqualTo("2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824");
+    }
+  }
+
+  @Test
+  public void downloadStreaming_consumerFails_doesNotTryNextUrl() throws Exception {
+    try (ServerSocket server1 = new ServerSocket(0, 1, InetAddress.getByName(null));
+        ServerSocket server2 = new ServerSocket(0, 1, InetAddress.getByName(null))) {
+      @SuppressWarnings("unused")
+      Future<?> possiblyIgnoredError =
+          executor.submit(
+              () -> {
+                try (Socket socket = server1.accept()) {
+                  readHttpRequest(socket.getInputStream());
+                  sendLines(
+                      socket,
+                      "HTTP/1.1 200 OK",
+                      "Date: Fri, 31 Dec 1999 23:59:59 GMT",
+                      "Connection: close",
+                      "Content-Type: text/plain",
+                      "Content-Length: 5",
+                      "",
+                      "hello");
+                }
+                return null;
+              });
+
+      IOException failure = new IOException("not an archive");
+      StreamConsumerException e =
+          assertThrows(
+              StreamConsumerException.class,
+              () ->
+                  httpDownloader.downloadStreaming(
+                      ImmutableList.of(
+                          new URL(String.format("http://localhost:%d/foo", server1.getLocalPort())),
+                          new URL(
+                              String.format("http://localhost:%d/foo", server2.getLocalPort()))),
+                      Collections.emptyMap(),
+                      "testCanonicalId",
+                      eventHandler,
+                      Collections.emptyMap(),
+                      in -> {
+                        throw failure;
+                      }));
+      assertThat(e).hasCauseThat().isSameInstanceAs(failure);
+    }
+  }
+
+  @Test
+  public void downloadStreaming_putsSkippedBytesIntoRepositoryCache() throws Exception {
+    try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName(null))) {
+      @SuppressWarnings("unused")
+      Future<?> possiblyIgnoredError =
+          executor.submit(
+              () -> {
+                try (Socket socket = server.accept()) {
+                  readHttpRequest(socket.getInputStream());
+                  sendLines(
+                      socket,
+                      "HTTP/1.1 200 OK",
+                      "Date: Fri, 31 Dec 1999 23:59:59 GMT",
+                      "Connection: close",
+                      "Content-Type: text/plain",
+                      "Content-Length: 5",
+                      "",
+                      "hello");
+                }
+                return null;
+              });
+      Path cacheFile = fs.getPath(workingDir.getRoot().getAbsolutePath()).getRelative("tmp-1");
+      when(repositoryCache.isEnabled()).thenReturn(true);
+      when(repositoryCache.newTemporaryFile(KeyType.SHA256)).thenReturn(cacheFile);
+      String sha256 = "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824";
+      doAnswer(
+              invocation -> {
+                // The complete file is put into the cache, although the consumer skipped it.
+                assertThat(readFile(cacheFile)).isEqualTo("hello".getBytes(UTF_8));
+                return null;
+              })
+          .when(repositoryCache)
+          .putTemporaryFile(sha256, cacheFile, KeyType.SHA256, "testCanonicalId");
+
+      Checksum checksum =
+          httpDownloader.downloadStreaming(
+              Collections.singletonList(
+                  new URL(String.format("http://localhost:%d/foo", server.getLocalPort()))),
+              Collections.emptyMap(),
+              "testCanonicalId",
+              eventHandler,
+              Collections.emptyMap(),
+              in -> ByteStreams.skipFully(in, 3));
+
+      assertThat(checksum.toString()).isEqualTo(sha256);
+      verify(repositoryCache)
+          .putTemporaryFile(sha256, cacheFile, KeyType.SHA256, "testCanonicalId");
+    }
+  }
+
   private static byte[] readFile(Path path) throws IOException {
     final byte[] data = new byte[(int) path.getFileSize()];
 
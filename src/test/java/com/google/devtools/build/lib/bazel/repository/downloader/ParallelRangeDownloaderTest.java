@@ -0,0 +1,236 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.repository.downloader;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.bazel.repository.downloader.DownloaderTestUtils.sendLines;
+import static com.google.devtools.build.lib.bazel.repository.downloader.HttpParser.readHttpRequest;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Optional;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.KeyType;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
+import com.google.devtools.build.lib.util.Sleeper;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.DigestHashFunction.DefaultHashFunctionNotSetException;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ParallelRangeDownloader}. */
+@RunWith(JUnit4.class)
+public class ParallelRangeDownloaderTest {
+
+  private static final String CONTENT = "0123456789abcdefghijklmnopqrstuvwxyz";
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+  @Rule public final TemporaryFolder workingDir = new TemporaryFolder();
+
+  @Rule public final Timeout timeout = new Timeout(30, SECONDS);
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final ProxyHelper proxyHelper = mock(ProxyHelper.class);
+  private final ExtendedEventHandler eventHandler = mock(ExtendedEventHandler.class);
+  private final HttpConnector connector =
+      new HttpConnector(Locale.US, eventHandler, proxyHelper, mock(Sleeper.class), 0.1f);
+  private final ParallelRangeDownloader downloader =
+      new ParallelRangeDownloader(
+          connector, eventHandler, /*maxSegments=*/ 3, /*minSegmentBytes=*/ 10);
+  private final List<String> requestedRanges = new CopyOnWriteArrayList<>();
+  private final JavaIoFileSystem fs;
+
+  public ParallelRangeDownloaderTest() throws DefaultHashFunctionNotSetException {
+    try {
+      DigestHashFunction.setDefault(DigestHashFunction.SHA256);
+    } catch (DigestHashFunction.DefaultAlreadySetException e) {
+      // Do nothing.
+    }
+    fs = new JavaIoFileSystem();
+  }
+
+  @Before
+  public void before() throws Exception {
+    when(proxyHelper.createProxyIfNeeded(any(URL.class))).thenReturn(Proxy.NO_PROXY);
+  }
+
+  @After
+  public void after() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void download_writesAllSegments() throws Exception {
+    try (ServerSocket server = new ServerSocket(0, 10, InetAddress.getByName(null))) {
+      serveRanges(server, /*supportsRanges=*/ true);
+      Path destination = fs.getPath(workingDir.getRoot().getAbsolutePath()).getChild("out");
+
+      assertThat(
+              downloader.download(
+                  urlOf(server),
+                  Collections.emptyMap(),
+                  Optional.of(checksumOf(CONTENT)),
+                  destination))
+          .isTrue();
+
+      assertThat(FileSystemUtils.readContent(destination, UTF_8)).isEqualTo(CONTENT);
+      assertThat(requestedRanges)
+          .containsExactly("bytes=0-0", "bytes=0-11", "bytes=12-23", "bytes=24-35");
+    }
+  }
+
+  @Test
+  public void download_checksumMismatch_throws() throws Exception {
+    try (ServerSocket server = new ServerSocket(0, 10, InetAddress.getByName(null))) {
+      serveRanges(server, /*supportsRanges=*/ true);
+      Path destination = fs.getPath(workingDir.getRoot().getAbsolutePath()).getChild("out");
+
+      assertThrows(
+          UnrecoverableHttpException.class,
+          () ->
+              downloader.download(
+                  urlOf(server),
+                  Collections.emptyMap(),
+                  Optional.of(checksumOf("something else")),
+                  destination));
+    }
+  }
+
+  @Test
+  public void download_serverWithoutRangeSupport_returnsFalse() throws Exception {
+    try (ServerSocket server = new ServerSocket(0, 10, InetAddress.getByName(null))) {
+      serveRanges(server, /*supportsRanges=*/ false);
+      Path destination = fs.getPath(workingDir.getRoot().getAbsolutePath()).getChild("out");
+
+      assertThat(
+              downloader.download(
+                  urlOf(server), Collections.emptyMap(), Optional.absent(), destination))
+          .isFalse();
+
+      assertThat(destination.exists()).isFalse();
+      assertThat(requestedRanges).containsExactly("bytes=0-0");
+    }
+  }
+
+  @Test
+  public void download_smallFile_returnsFalse() throws Exception {
+    ParallelRangeDownloader downloader =
+        new ParallelRangeDownloader(
+            connector, eventHandler, /*maxSegments=*/ 3, /*minSegmentBytes=*/ 100);
+    try (ServerSocket server = new ServerSocket(0, 10, InetAddress.getByName(null))) {
+      serveRanges(server, /*supportsRanges=*/ true);
+      Path destination = fs.getPath(workingDir.getRoot().getAbsolutePath()).getChild("out");
+
+      assertThat(
+              downloader.download(
+                  urlOf(server), Collections.emptyMap(), Optional.absent(), destination))
+          .isFalse();
+
+      assertThat(destination.exists()).isFalse();
+    }
+  }
+
+  private static URL urlOf(ServerSocket server) throws IOException {
+    return new URL(String.format("http://localhost:%d/foo", server.getLocalPort()));
+  }
+
+  private static Checksum checksumOf(String content) {
+    return Checksum.fromString(
+        KeyType.SHA256, Hashing.sha256().hashString(content, UTF_8).toString());
+  }
+
+  /** Answers every request to {@code server} on its own thread. */
+  private void serveRanges(ServerSocket server, boolean supportsRanges) {
+    @SuppressWarnings("unused")
+    Future<?> possiblyIgnoredError =
+        executor.submit(
+            () -> {
+              while (!executor.isShutdown()) {
+                Socket socket = server.accept();
+                @SuppressWarnings("unused")
+                Future<?> possiblyIgnoredError2 =
+                    executor.submit(
+                        () -> {
+                          try (Socket s = socket) {
+                            respond(s, supportsRanges);
+                          }
+                          return null;
+                        });
+              }
+              return null;
+            });
+  }
+
+  private void respond(Socket socket, boolean supportsRanges) throws IOException {
+    Map<String, String> headers = new HashMap<>();
+    readHttpRequest(socket.getInputStream(), headers);
+    String range = headers.get("range");
+    requestedRanges.add(range);
+    Matcher matcher = RANGE.matcher(range);
+    if (!supportsRanges || !matcher.matches()) {
+      sendLines(
+          socket,
+          "HTTP/1.1 200 OK",
+          "Connection: close",
+          "Content-Type: text/plain",
+          "Content-Length: " + CONTENT.length(),
+          "",
+          CONTENT);
+      return;
+    }
+    int start = Integer.parseInt(matcher.group(1));
+    int end = Integer.parseInt(matcher.group(2));
+    String body = CONTENT.substring(start, end + 1);
+    sendLines(
+        socket,
+        "HTTP/1.1 206 Partial Content",
+        "Connection: close",
+        "Content-Type: text/plain",
+        String.format("Content-Range: bytes %d-%d/%d", start, end, CONTENT.length()),
+        "Content-Length: " + body.getBytes(ISO_8859_1).length,
+        "",
+        body);
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.repository.downloader;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ReadAheadInputStream}. */
+@RunWith(JUnit4.class)
+public class ReadAheadInputStreamTest {
+
+  @Rule public final Timeout globalTimeout = new Timeout(10000);
+
+  @Test
+  public void read_returnsAllBytesOfDelegate() throws Exception {
+    byte[] data = new byte[1024 * 1024 + 17];
+    new Random(42).nextBytes(data);
+    try (ReadAheadInputStream in =
+        new ReadAheadInputStream(new ByteArrayInputStream(data), 2, "read-ahead")) {
+      assertThat(in.read()).isEqualTo(data[0] & 0xff);
+      byte[] rest = ByteStreams.toByteArray(in);
+      assertThat(rest.length).isEqualTo(data.length - 1);
+      assertThat(rest[0]).isEqualTo(data[1]);
+      assertThat(rest[rest.length - 1]).isEqualTo(data[data.length - 1]);
+      assertThat(in.read()).isEqualTo(-1);
+      assertThat(in.getFailure()).isNull();
+    }
+  }
+
+  @Test
+  public void read_delegateFails_throwsAfterBytesBeforeFailure() throws Exception {
+    IOException failure = new IOException("connection reset");
+    InputStream delegate =
+        new SequenceInputStream(
+            new ByteArrayInputStream(new byte[] {1, 2, 3}),
+            new InputStream() {
+              @Override
+              public int read() throws IOException {
+                throw failure;
+              }
+            });
+    try (ReadAheadInputStream in = new ReadAheadInputStream(delegate, 2, "read-ahead")) {
+      byte[] buffer = new byte[3];
+      ByteStreams.readFully(in, buffer);
+      assertThat(buffer).isEqualTo(new byte[] {1, 2, 3});
+      assertThat(assertThrows(IOException.class, () -> in.read())).isSameInstanceAs(failure);
+      assertThat(in.getFailure()).isSameInstanceAs(failure);
+    }
+  }
+
+  @Test
+  public void close_stopsReadingAhead() throws Exception {
+    InputStream endless =
+        new InputStream() {
+          @Override
+          public int read() {
+            return 0;
+          }
+        };
+    ReadAheadInputStream in = new ReadAheadInputStream(endless, 2, "read-ahead");
+    assertThat(in.read()).isEqualTo(0);
+    in.close();
+  }
+}
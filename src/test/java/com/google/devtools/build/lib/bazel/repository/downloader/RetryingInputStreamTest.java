@@ -108,6 +108,23 @@ public class RetryingInputStreamTest {
     verify(newDelegate).read();
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  public void readTimesOutInRange_resumesWithinRange() throws Exception {
+    RetryingInputStream rangeStream = new RetryingInputStream(delegate, reconnector, 10, 19);
+    when(delegate.read()).thenReturn(1).thenThrow(new SocketTimeoutException());
+    when(reconnector.connect(any(Throwable.class), any(ImmutableMap.class))).thenReturn(connection);
+    when(connection.getInputStream()).thenReturn(newDelegate);
+    when(newDelegate.read()).thenReturn(2);
+    when(connection.getHeaderField("Content-Range")).thenReturn("bytes 11-19/42");
+    assertThat(rangeStream.read()).isEqualTo(1);
+    assertThat(rangeStream.read()).isEqualTo(2);
+    verify(reconnector).connect(any(Throwable.class), eq(ImmutableMap.of("Range", "bytes=11-19")));
+    verify(delegate, times(2)).read();
+    verify(delegate).close();
+    verify(newDelegate).read();
+  }
+
   @Test
   @SuppressWarnings("unchecked")
   public void failureWhenNoBytesAreRead_doesntUseRange() throws Exception {
@@ -22,6 +22,7 @@ import static org.mockito.Mockito.when;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Bytes;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
@@ -52,6 +53,7 @@ import java.time.Duration;
 import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.locks.LockSupport;
 import org.junit.After;
@@ -375,6 +377,78 @@ public class BinaryFormatFileTransportTest {
     verify(uploader).shutdown();
   }
 
+  @Test
+  public void testSendBlocksWhileTooManyEventsArePending() throws Exception {
+    BuildEventStreamProtos.BuildEvent started =
+        BuildEventStreamProtos.BuildEvent.newBuilder()
+            .setStarted(BuildStarted.newBuilder().setCommand("build"))
+            .build();
+    BuildEventStreamProtos.BuildEvent progress =
+        BuildEventStreamProtos.BuildEvent.newBuilder().setProgress(Progress.newBuilder()).build();
+    SettableFuture<BuildEventStreamProtos.BuildEvent> startedFuture = SettableFuture.create();
+
+    File output = tmp.newFile();
+    BufferedOutputStream outputStream =
+        new BufferedOutputStream(Files.newOutputStream(Paths.get(output.getAbsolutePath())));
+    FileTransport.SequentialWriter writer =
+        new FileTransport.SequentialWriter(
+            outputStream,
+            event -> event.toByteArray(),
+            new LocalFilesArtifactUploader(),
+            Executors.newSingleThreadScheduledExecutor(),
+            /*maxPendingWrites=*/ 1);
+    writer.enqueue(startedFuture);
+    Thread sender = new Thread(() -> writer.enqueue(Futures.immediateFuture(progress)));
+    sender.start();
+
+    // The first event is still pending, so there is no room for the second one.
+    sender.join(Duration.ofMillis(500).toMillis());
+    assertThat(sender.isAlive()).isTrue();
+
+    startedFuture.set(started);
+    sender.join();
+    writer.close().get();
+
+    assertThat(Files.readAllBytes(output.toPath()))
+        .isEqualTo(Bytes.concat(started.toByteArray(), progress.toByteArray()));
+    assertThat(writer.getMetrics().getMaxPendingEvents()).isAtLeast(1);
+    assertThat(writer.getMetrics().getBlockedTimeMillis()).isAtLeast(500);
+  }
+
+  @Test
+  public void testEventSentWhileInterruptedDoesNotAddPermits() throws Exception {
+    BuildEventStreamProtos.BuildEvent started =
+        BuildEventStreamProtos.BuildEvent.newBuilder()
+            .setStarted(BuildStarted.newBuilder().setCommand("build"))
+            .build();
+    BuildEventStreamProtos.BuildEvent progress =
+        BuildEventStreamProtos.BuildEvent.newBuilder().setProgress(Progress.newBuilder()).build();
+
+    File output = tmp.newFile();
+    BufferedOutputStream outputStream =
+        new BufferedOutputStream(Files.newOutputStream(Paths.get(output.getAbsolutePath())));
+    FileTransport.SequentialWriter writer =
+        new FileTransport.SequentialWriter(
+            outputStream,
+            event -> event.toByteArray(),
+            new LocalFilesArtifactUploader(),
+            Executors.newSingleThreadScheduledExecutor(),
+            /*maxPendingWrites=*/ 1);
+    writer.enqueue(Futures.immediateFuture(started));
+    // The second event is queued without a permit.
+    Thread.currentThread().interrupt();
+    try {
+      writer.enqueue(Futures.immediateFuture(progress));
+    } finally {
+      assertThat(Thread.interrupted()).isTrue();
+    }
+    writer.close().get();
+
+    assertThat(Files.readAllBytes(output.toPath()))
+        .isEqualTo(Bytes.concat(started.toByteArray(), progress.toByteArray()));
+    assertThat(writer.availablePendingWritePermits()).isEqualTo(1);
+  }
+
   private static class WithLocalFilesEvent implements BuildEvent {
 
     int id;
@@ -0,0 +1,79 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.buildeventstream.transports;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests {@link ChunkedGzipOutputStream}. */
+@RunWith(JUnit4.class)
+public class ChunkedGzipOutputStreamTest {
+
+  @Test
+  public void testFlushedChunksAreReadableAsOneStream() throws Exception {
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    ChunkedGzipOutputStream out = new ChunkedGzipOutputStream(file);
+    out.write("first ".getBytes(UTF_8));
+    out.flush();
+    // A flush without new data does not add an empty chunk.
+    int sizeAfterFirstChunk = file.size();
+    out.flush();
+    assertThat(file.size()).isEqualTo(sizeAfterFirstChunk);
+    out.write("second".getBytes(UTF_8));
+    out.close();
+
+    assertThat(new String(gunzip(file.toByteArray()), UTF_8)).isEqualTo("first second");
+  }
+
+  @Test
+  public void testFlushedDataIsReadableBeforeClose() throws Exception {
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    ChunkedGzipOutputStream out = new ChunkedGzipOutputStream(file);
+    out.write("flushed".getBytes(UTF_8));
+    out.flush();
+    out.write("not flushed".getBytes(UTF_8));
+
+    assertThat(new String(gunzip(file.toByteArray()), UTF_8)).isEqualTo("flushed");
+  }
+
+  @Test
+  public void testLargeWritesAreSplitIntoChunks() throws Exception {
+    byte[] data = new byte[3 * 1024 * 1024 + 5];
+    new Random(42).nextBytes(data);
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    try (ChunkedGzipOutputStream out = new ChunkedGzipOutputStream(file)) {
+      out.write(data[0]);
+      out.write(data, 1, data.length - 1);
+    }
+
+    assertThat(gunzip(file.toByteArray())).isEqualTo(data);
+  }
+
+  private static byte[] gunzip(byte[] compressed) throws IOException {
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+}
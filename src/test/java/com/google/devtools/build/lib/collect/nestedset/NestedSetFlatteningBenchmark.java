@@ -0,0 +1,87 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.devtools.build.lib.testutil.Microbenchmark;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Microbenchmarks for flattening {@link NestedSet}s shaped like the transitive headers of C++
+ * compilation contexts, with and without the flattening cache. Run with {@code bazel run}; see
+ * {@link Microbenchmark}.
+ */
+public final class NestedSetFlatteningBenchmark {
+
+  private final List<NestedSet<String>> headerSets;
+
+  /** @param depth number of libraries in the dependency chain */
+  private NestedSetFlatteningBenchmark(int depth) {
+    // Each library has a few headers of its own, depends on the previous library and on a shared
+    // utility library, like a long chain of cc_library targets.
+    NestedSet<String> util =
+        NestedSetBuilder.<String>stableOrder().add("util/a.h").add("util/b.h").build();
+    NestedSet<String> previous = util;
+    headerSets = new ArrayList<>(depth);
+    for (int i = 0; i < depth; i++) {
+      NestedSet<String> headers =
+          NestedSetBuilder.<String>stableOrder()
+              .add("lib" + i + "/lib.h")
+              .add("lib" + i + "/internal.h")
+              .addTransitive(previous)
+              .addTransitive(util)
+              .build();
+      headerSets.add(headers);
+      previous = headers;
+    }
+  }
+
+  /** Flattens the headers of every library, as compiling each of them does. */
+  int flattenAll(int reps) {
+    int dummy = 0;
+    for (int i = 0; i < reps; i++) {
+      for (NestedSet<String> headers : headerSets) {
+        dummy += headers.toList().size();
+      }
+    }
+    return dummy;
+  }
+
+  /** Flattens the headers of the last library only, as linking a binary does. */
+  int flattenDeepest(int reps) {
+    int dummy = 0;
+    NestedSet<String> deepest = headerSets.get(headerSets.size() - 1);
+    for (int i = 0; i < reps; i++) {
+      dummy += deepest.toList().size();
+    }
+    return dummy;
+  }
+
+  public static void main(String[] args) throws Exception {
+    for (int depth : new int[] {10, 100, 1000}) {
+      for (long flatteningCacheSize : new long[] {0, 10_000_000}) {
+        NestedSet.setFlatteningCacheSize(flatteningCacheSize);
+        try {
+          NestedSetFlatteningBenchmark benchmark = new NestedSetFlatteningBenchmark(depth);
+          String params =
+              String.format("depth=%d flatteningCacheSize=%d", depth, flatteningCacheSize);
+          Microbenchmark.time("flattenAll " + params, benchmark::flattenAll);
+          Microbenchmark.time("flattenDeepest " + params, benchmark::flattenDeepest);
+        } finally {
+          NestedSet.setFlatteningCacheSize(0);
+        }
+      }
+    }
+  }
+}
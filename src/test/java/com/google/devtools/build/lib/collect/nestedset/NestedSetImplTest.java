@@ -16,6 +16,8 @@ package com.google.devtools.build.lib.collect.nestedset;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
 
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.testing.EqualsTester;
 import com.google.common.util.concurrent.Futures;
@@ -272,4 +274,35 @@ public class NestedSetImplTest {
 
     assertThat(interruptPropagated.get()).isTrue();
   }
+
+  @Test
+  public void flatteningCacheReturnsSameList() {
+    NestedSetBuilder<Integer> small = NestedSetBuilder.stableOrder();
+    NestedSetBuilder<Integer> large = NestedSetBuilder.stableOrder();
+    for (int i = 0; i < 100; i++) {
+      small.addTransitive(NestedSetBuilder.<Integer>stableOrder().add(i % 10).add(-1).build());
+      large.addTransitive(NestedSetBuilder.<Integer>stableOrder().add(i).add(-1).build());
+    }
+    NestedSet<Integer> smallSet = small.build();
+    NestedSet<Integer> largeSet = large.build();
+
+    NestedSet.setFlatteningCacheSize(1000);
+    try {
+      ImmutableList<Integer> first = largeSet.toList();
+      smallSet.toList();
+      smallSet.toList();
+
+      assertThat(largeSet.toList()).isSameInstanceAs(first);
+      assertThat(first).hasSize(101);
+      CacheStats stats = NestedSet.getFlatteningCacheStats();
+      assertThat(stats.hitCount()).isEqualTo(1);
+      // The small set is looked up before its size is known, but never added.
+      assertThat(stats.missCount()).isEqualTo(2);
+    } finally {
+      NestedSet.setFlatteningCacheSize(0);
+    }
+    assertThat(NestedSet.getFlatteningCacheStats()).isNull();
+    assertThat(largeSet.toList()).isNotSameInstanceAs(first);
+    assertThat(largeSet.toList()).containsExactlyElementsIn(first).inOrder();
+  }
 }
@@ -0,0 +1,125 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.devtools.build.lib.testutil.Microbenchmark;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Microbenchmarks comparing {@link ShardedInterner} with Guava's interners when many threads
+ * intern mostly already interned elements, as loading and analysis threads do with labels and keys.
+ * Run with {@code bazel run}; see {@link Microbenchmark}.
+ */
+public final class InternerBenchmark {
+
+  /** The implementations being compared. */
+  public enum Implementation {
+    GUAVA_WEAK {
+      @Override
+      Interner<String> create(int concurrencyLevel) {
+        return Interners.newBuilder().weak().concurrencyLevel(concurrencyLevel).build();
+      }
+    },
+    SHARDED_WEAK {
+      @Override
+      Interner<String> create(int concurrencyLevel) {
+        return ShardedInterner.newWeakInterner(concurrencyLevel);
+      }
+    },
+    GUAVA_STRONG {
+      @Override
+      Interner<String> create(int concurrencyLevel) {
+        return Interners.newBuilder().strong().concurrencyLevel(concurrencyLevel).build();
+      }
+    },
+    SHARDED_STRONG {
+      @Override
+      Interner<String> create(int concurrencyLevel) {
+        return ShardedInterner.newStrongInterner(concurrencyLevel);
+      }
+    };
+
+    abstract Interner<String> create(int concurrencyLevel);
+  }
+
+  private static final int DISTINCT_ELEMENTS = 100_000;
+  private static final int INTERNS_PER_THREAD = 100_000;
+
+  private final Implementation implementation;
+  private final int threads;
+  /** Percentage of interned elements that are new to the interner. */
+  private final int newPercentage;
+
+  private final ExecutorService executor;
+  private final String[] samples = new String[DISTINCT_ELEMENTS];
+  private Interner<String> interner;
+
+  private InternerBenchmark(Implementation implementation, int threads, int newPercentage) {
+    this.implementation = implementation;
+    this.threads = threads;
+    this.newPercentage = newPercentage;
+    executor = Executors.newFixedThreadPool(threads);
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = "//package/" + (i % 100) + ":target" + i;
+    }
+  }
+
+  void intern(int reps) throws InterruptedException {
+    for (int rep = 0; rep < reps; rep++) {
+      interner = implementation.create(threads);
+      int known = DISTINCT_ELEMENTS * (100 - newPercentage) / 100;
+      for (int i = 0; i < known; i++) {
+        interner.intern(samples[i]);
+      }
+      CountDownLatch done = new CountDownLatch(threads);
+      for (int t = 0; t < threads; t++) {
+        int offset = t * 7919;
+        executor.execute(
+            () -> {
+              for (int i = 0; i < INTERNS_PER_THREAD; i++) {
+                // Copies, so that equality and not identity finds the interned element.
+                String sample = new String(samples[(offset + i) % samples.length]);
+                interner.intern(sample);
+              }
+              done.countDown();
+            });
+      }
+      done.await();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    for (Implementation implementation : Implementation.values()) {
+      for (int threads : new int[] {8, 32, 128}) {
+        for (int newPercentage : new int[] {5, 50}) {
+          InternerBenchmark benchmark =
+              new InternerBenchmark(implementation, threads, newPercentage);
+          try {
+            Microbenchmark.time(
+                String.format(
+                    "intern implementation=%s threads=%d newPercentage=%d",
+                    implementation, threads, newPercentage),
+                benchmark::intern);
+          } finally {
+            benchmark.executor.shutdownNow();
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,116 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.testing.GcFinalization;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ShardedInterner}. */
+@RunWith(JUnit4.class)
+public class ShardedInternerTest {
+
+  @Test
+  public void internReturnsFirstEqualInstance() {
+    for (ShardedInterner<String> interner :
+        ImmutableList.of(
+            ShardedInterner.<String>newStrongInterner(4),
+            ShardedInterner.<String>newWeakInterner(4))) {
+      String first = new String("foo");
+      String second = new String("foo");
+
+      assertThat(interner.intern(first)).isSameInstanceAs(first);
+      assertThat(interner.intern(second)).isSameInstanceAs(first);
+      assertThat(interner.intern(new String("bar"))).isNotSameInstanceAs(first);
+    }
+  }
+
+  @Test
+  public void keepsElementsWhileGrowing() {
+    ShardedInterner<String> interner = ShardedInterner.newStrongInterner(1);
+    List<String> firsts = new ArrayList<>();
+    for (int i = 0; i < 10000; i++) {
+      String element = Integer.toString(i);
+      firsts.add(element);
+      assertThat(interner.intern(element)).isSameInstanceAs(element);
+    }
+
+    for (int i = 0; i < 10000; i++) {
+      assertThat(interner.intern(new String(Integer.toString(i)))).isSameInstanceAs(firsts.get(i));
+    }
+  }
+
+  @Test
+  public void weakInternerDropsUnreachableElements() {
+    ShardedInterner<String> interner = ShardedInterner.newWeakInterner(1);
+    String kept = new String("kept");
+    interner.intern(kept);
+    WeakReference<String> dropped = new WeakReference<>(interner.intern(new String("dropped")));
+
+    GcFinalization.awaitClear(dropped);
+    // Adding elements frees the slots of collected ones, and must not lose the others.
+    for (int i = 0; i < 1000; i++) {
+      interner.intern(Integer.toString(i));
+    }
+
+    String replacement = new String("dropped");
+    assertThat(interner.intern(replacement)).isSameInstanceAs(replacement);
+    assertThat(interner.intern(new String("kept"))).isSameInstanceAs(kept);
+  }
+
+  @Test
+  public void concurrentInterningAgreesOnOneInstance() throws Exception {
+    ShardedInterner<String> interner = ShardedInterner.newWeakInterner(8);
+    int numThreads = 16;
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<List<String>>> futures = new ArrayList<>();
+    for (int t = 0; t < numThreads; t++) {
+      futures.add(
+          executor.submit(
+              () -> {
+                start.await();
+                List<String> interned = new ArrayList<>();
+                for (int i = 0; i < 5000; i++) {
+                  interned.add(interner.intern(new String(Integer.toString(i))));
+                }
+                return interned;
+              }));
+    }
+    start.countDown();
+
+    ConcurrentHashMap<String, String> canonical = new ConcurrentHashMap<>();
+    for (Future<List<String>> future : futures) {
+      for (String interned : future.get()) {
+        assertThat(canonical.computeIfAbsent(interned, k -> interned)).isSameInstanceAs(interned);
+      }
+    }
+    assertThat(canonical).hasSize(5000);
+    executor.shutdown();
+    assertThat(executor.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+  }
+}
@@ -0,0 +1,156 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.actions.ActionExecutionMetadata;
+import com.google.devtools.build.lib.actions.ArtifactRoot;
+import com.google.devtools.build.lib.actions.SpawnMetrics;
+import com.google.devtools.build.lib.actions.SpawnResult;
+import com.google.devtools.build.lib.actions.SpawnResult.Status;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Root;
+import java.io.IOException;
+import java.time.Duration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+/** Tests for {@link ActionHistory}. */
+@RunWith(JUnit4.class)
+public class ActionHistoryTest {
+
+  private Path dir;
+  private Path historyFile;
+
+  @Before
+  public final void createDirectory() throws Exception {
+    JavaIoFileSystem fs = new JavaIoFileSystem(DigestHashFunction.SHA256);
+    dir = fs.getPath(TestUtils.makeTempDir().getAbsolutePath());
+    historyFile = dir.getChild("action_history");
+  }
+
+  private ActionExecutionMetadata action(String mnemonic, String primaryOutput) {
+    ActionExecutionMetadata action = Mockito.mock(ActionExecutionMetadata.class);
+    when(action.getMnemonic()).thenReturn(mnemonic);
+    when(action.getPrimaryOutput())
+        .thenReturn(
+            ActionsTestUtil.createArtifact(
+                ArtifactRoot.asSourceRoot(Root.fromPath(dir)), primaryOutput));
+    return action;
+  }
+
+  private static SpawnResult result(String runner, long wallMillis, long cpuMillis) {
+    return new SpawnResult.Builder()
+        .setStatus(Status.SUCCESS)
+        .setRunnerName(runner)
+        .setWallTime(Duration.ofMillis(wallMillis))
+        .setUserTime(Duration.ofMillis(cpuMillis))
+        .setSpawnMetrics(new SpawnMetrics.Builder().setMemoryEstimateBytes(1 << 20).build())
+        .build();
+  }
+
+  private static SpawnResult cacheHit() {
+    return new SpawnResult.Builder()
+        .setStatus(Status.SUCCESS)
+        .setRunnerName("remote cache hit")
+        .setCacheHit(true)
+        .build();
+  }
+
+  @Test
+  public void testRecordAndGet() throws Exception {
+    ActionHistory history = ActionHistory.open(historyFile);
+    ActionExecutionMetadata compile = action("Javac", "lib.jar");
+
+    assertThat(history.get(compile)).isNull();
+    history.record(compile, ImmutableList.of(result("local", 1000, 800)));
+    history.record(compile, ImmutableList.of(result("remote", 400, 300), cacheHit()));
+
+    ActionHistory.Entry entry = history.get(compile);
+    assertThat(entry.getRuns()).isEqualTo(2);
+    assertThat(entry.getCacheHits()).isEqualTo(1);
+    assertThat(entry.getLocalWallTime()).hasValue(Duration.ofMillis(1000));
+    assertThat(entry.getRemoteWallTime()).hasValue(Duration.ofMillis(400));
+    // The moving average gives a weight of 1/4 to the latest sample.
+    assertThat(entry.getCpuTime()).hasValue(Duration.ofMillis(675));
+    assertThat(entry.getMemoryBytes()).isEqualTo(1 << 20);
+    assertThat(history.get(action("Javac", "other.jar"))).isNull();
+    assertThat(history.get(action("Turbine", "lib.jar"))).isNull();
+  }
+
+  @Test
+  public void testMnemonicAggregatesActions() throws Exception {
+    ActionHistory history = ActionHistory.open(historyFile);
+
+    history.record(action("Javac", "a.jar"), ImmutableList.of(result("local", 100, 100)));
+    history.record(action("Javac", "b.jar"), ImmutableList.of(result("local", 100, 100)));
+    history.record(action("GenRule", "c.txt"), ImmutableList.of(cacheHit()));
+
+    assertThat(history.getForMnemonic("Javac").getRuns()).isEqualTo(2);
+    assertThat(history.getForMnemonic("GenRule").getRuns()).isEqualTo(0);
+    assertThat(history.getForMnemonic("GenRule").getCacheHits()).isEqualTo(1);
+    assertThat(history.getForMnemonic("CppCompile")).isNull();
+    assertThat(history.size()).isEqualTo(5);
+  }
+
+  @Test
+  public void testGrowsAndStopsAtMaxCapacity() throws Exception {
+    ActionHistory history = ActionHistory.open(historyFile, ActionHistory.INITIAL_CAPACITY * 4);
+
+    for (int i = 0; i < ActionHistory.INITIAL_CAPACITY * 4; i++) {
+      history.record(action("Javac", i + ".jar"), ImmutableList.of(result("local", i + 1, 0)));
+    }
+
+    assertThat(history.size()).isEqualTo(ActionHistory.INITIAL_CAPACITY * 3);
+    assertThat(history.get(action("Javac", "0.jar")).getLocalWallTime())
+        .hasValue(Duration.ofMillis(1));
+    assertThat(history.getForMnemonic("Javac").getRuns())
+        .isEqualTo(ActionHistory.INITIAL_CAPACITY * 4);
+    assertThat(dir.getChild("action_history.tmp").exists()).isFalse();
+  }
+
+  @Test
+  public void testEntriesSurviveReopening() throws Exception {
+    ActionHistory history = ActionHistory.open(historyFile);
+    for (int i = 0; i < ActionHistory.INITIAL_CAPACITY; i++) {
+      history.record(action("Javac", i + ".jar"), ImmutableList.of(result("remote", i + 1, 0)));
+    }
+    history.save();
+
+    ActionHistory reopened = ActionHistory.open(historyFile);
+
+    assertThat(reopened.size()).isEqualTo(history.size());
+    assertThat(reopened.get(action("Javac", "41.jar")).getRemoteWallTime())
+        .hasValue(Duration.ofMillis(42));
+  }
+
+  @Test
+  public void testOpenRejectsOtherFiles() throws Exception {
+    FileSystemUtils.writeIsoLatin1(historyFile, "not an action history, but long enough");
+
+    assertThrows(IOException.class, () -> ActionHistory.open(historyFile));
+  }
+}
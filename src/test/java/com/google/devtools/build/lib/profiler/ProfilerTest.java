@@ -39,6 +39,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
@@ -696,6 +697,81 @@ public class ProfilerTest {
     return outputStream;
   }
 
+  @Test
+  public void testJsonProfileIsFlushedPeriodically() throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    profiler.start(
+        getAllProfilerTasks(),
+        outputStream,
+        JSON_TRACE_FILE_FORMAT,
+        "basic test",
+        "dummy_output_base",
+        UUID.randomUUID(),
+        false,
+        BlazeClock.instance(),
+        BlazeClock.instance().nanoTime(),
+        /* enabledCpuUsageProfiling= */ false,
+        /* slimProfile= */ false,
+        /* enableActionCountProfile= */ false,
+        /* flushInterval= */ Duration.ofMillis(10));
+    profiler.logSimpleTaskDuration(
+        Profiler.nanoTimeMaybe(), Duration.ofSeconds(1), ProfilerTask.INFO, "flushed task");
+
+    long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+    while (!outputStream.toString().contains("flushed task")) {
+      assertThat(System.nanoTime()).isLessThan(deadline);
+      Thread.sleep(10);
+    }
+    // The profile is readable up to the last complete event while profiling continues.
+    assertThat(outputStream.toString()).doesNotContain("]");
+    profiler.stop();
+    assertThat(outputStream.toString().trim()).endsWith("}");
+  }
+
+  @Test
+  public void testJsonProfileDropsTasksWhenWriterCannotKeepUp() throws Exception {
+    CountDownLatch writable = new CountDownLatch(1);
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    OutputStream blockingOutputStream =
+        new OutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            try {
+              writable.await();
+            } catch (InterruptedException e) {
+              throw new IOException(e);
+            }
+            outputStream.write(b, off, len);
+          }
+        };
+    profiler.start(
+        getAllProfilerTasks(),
+        blockingOutputStream,
+        JSON_TRACE_FILE_FORMAT,
+        "basic test",
+        "dummy_output_base",
+        UUID.randomUUID(),
+        false,
+        BlazeClock.instance(),
+        BlazeClock.instance().nanoTime(),
+        /* enabledCpuUsageProfiling= */ false,
+        /* slimProfile= */ false,
+        /* enableActionCountProfile= */ false);
+    long curTime = Profiler.nanoTimeMaybe();
+    for (int i = 0; i < Profiler.MAX_QUEUED_TASKS + 100_000; i++) {
+      profiler.logSimpleTaskDuration(curTime, Duration.ofMillis(1), ProfilerTask.INFO, "foo");
+    }
+    writable.countDown();
+    profiler.stop();
+
+    assertThat(outputStream.toString()).containsMatch("\"name\":\"dropped [0-9]+ events\"");
+  }
+
   @Test
   public void testSlimProfileSize() throws Exception {
     ByteArrayOutputStream fatOutputStream = getJsonProfileOutputStream(/* slimProfile= */ false);
@@ -0,0 +1,128 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.SettableFuture;
+import io.grpc.Context;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link BlobBatcher}. */
+@RunWith(JUnit4.class)
+public class BlobBatcherTest {
+
+  private final List<List<Integer>> sent = new ArrayList<>();
+  private final List<Context> sentContexts = new ArrayList<>();
+  private final List<SettableFuture<Void>> rpcs = new ArrayList<>();
+
+  /** Returns a batcher of requests whose size is their value, with batches of at most 10. */
+  private BlobBatcher<Integer> newBatcher() {
+    return new BlobBatcher<>(
+        /* maxBatchSize= */ 10,
+        Integer::longValue,
+        (batch) -> {
+          SettableFuture<Void> rpc = SettableFuture.create();
+          sent.add(batch);
+          sentContexts.add(Context.current());
+          rpcs.add(rpc);
+          return rpc;
+        });
+  }
+
+  @Test
+  public void isolatedRequestsAreSentImmediately() {
+    BlobBatcher<Integer> batcher = newBatcher();
+    batcher.add(1);
+    rpcs.get(0).set(null);
+    batcher.add(2);
+    rpcs.get(1).set(null);
+
+    assertThat(sent).containsExactly(ImmutableList.of(1), ImmutableList.of(2)).inOrder();
+  }
+
+  @Test
+  public void requestsAreCoalescedWhileBatchIsInFlight() {
+    BlobBatcher<Integer> batcher = newBatcher();
+    batcher.add(1);
+    batcher.add(2);
+    batcher.add(3);
+    assertThat(sent).containsExactly(ImmutableList.of(1));
+
+    rpcs.get(0).set(null);
+    assertThat(sent).containsExactly(ImmutableList.of(1), ImmutableList.of(2, 3)).inOrder();
+
+    // Nothing was pending when the second batch completed.
+    rpcs.get(1).set(null);
+    assertThat(sent).hasSize(2);
+  }
+
+  @Test
+  public void fullBatchesAreSentWithoutWaiting() {
+    BlobBatcher<Integer> batcher = newBatcher();
+    batcher.add(1);
+    batcher.add(6);
+    batcher.add(4);
+    batcher.add(5);
+    batcher.add(20);
+    batcher.add(2);
+
+    // Every request that does not fit next to the pending ones sends them.
+    assertThat(sent)
+        .containsExactly(
+            ImmutableList.of(1), ImmutableList.of(6, 4), ImmutableList.of(5), ImmutableList.of(20))
+        .inOrder();
+
+    rpcs.get(3).set(null);
+    assertThat(sent.get(4)).containsExactly(2);
+  }
+
+  @Test
+  public void failedBatchesAlsoReleasePendingRequests() {
+    BlobBatcher<Integer> batcher = newBatcher();
+    batcher.add(1);
+    batcher.add(2);
+    rpcs.get(0).setException(new RuntimeException("failed"));
+
+    assertThat(sent).containsExactly(ImmutableList.of(1), ImmutableList.of(2)).inOrder();
+  }
+
+  @Test
+  public void batchesAreSentInTheContextOfTheirRequests() {
+    Context.Key<String> key = Context.key("action");
+    Context first = Context.current().withValue(key, "first");
+    Context second = Context.current().withValue(key, "second");
+    BlobBatcher<Integer> batcher = newBatcher();
+
+    first.run(() -> batcher.add(1));
+    first.run(() -> batcher.add(2));
+    second.run(() -> batcher.add(3));
+    second.run(() -> batcher.add(4));
+    assertThat(sent).containsExactly(ImmutableList.of(1), ImmutableList.of(3)).inOrder();
+
+    rpcs.get(1).set(null);
+    rpcs.get(0).set(null);
+    assertThat(sent)
+        .containsExactly(
+            ImmutableList.of(1), ImmutableList.of(3), ImmutableList.of(4), ImmutableList.of(2))
+        .inOrder();
+    assertThat(key.get(sentContexts.get(2))).isEqualTo("second");
+    assertThat(key.get(sentContexts.get(3))).isEqualTo("first");
+  }
+}
@@ -17,11 +17,14 @@ import static com.google.common.truth.Truth.assertThat;
 import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
 
 import com.google.devtools.build.lib.remote.Chunker.Chunk;
+import com.google.devtools.build.lib.remote.util.Compression;
+import com.google.devtools.build.lib.remote.util.Compression.DecompressingOutputStream;
 import com.google.protobuf.ByteString;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicReference;
@@ -159,6 +162,69 @@ public class ChunkerTest {
     assertThat(next.getData()).hasSize(8);
   }
 
+  @Test
+  public void compressedChunksContainCompressedData() throws IOException {
+    byte[] data = new byte[10000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i % 7);
+    }
+    Chunker chunker =
+        Chunker.builder().setInput(data).setChunkSize(10).setCompressed(true).build();
+    assertThat(chunker.isCompressed()).isTrue();
+    assertThat(chunker.getSize()).isEqualTo(data.length);
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    while (chunker.hasNext()) {
+      Chunk next = chunker.next();
+      assertThat(next.getOffset()).isEqualTo(compressed.size());
+      assertThat(next.getData().size()).isAtMost(10);
+      next.getData().writeTo(compressed);
+    }
+
+    assertThat(compressed.size()).isLessThan(data.length);
+    assertThat(compressed.size())
+        .isEqualTo(Compression.compressedSize(new ByteArrayInputStream(data)));
+    assertThat(decompress(compressed.toByteArray())).isEqualTo(data);
+  }
+
+  @Test
+  public void compressedChunkerSeek() throws IOException {
+    byte[] data = new byte[1000];
+    new Random(42).nextBytes(data);
+    Chunker chunker =
+        Chunker.builder().setInput(data).setChunkSize(100).setCompressed(true).build();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    while (chunker.hasNext()) {
+      chunker.next().getData().writeTo(compressed);
+    }
+
+    chunker.seek(150);
+    Chunk next = chunker.next();
+    assertThat(next.getOffset()).isEqualTo(150);
+    assertThat(next.getData().toByteArray())
+        .isEqualTo(Arrays.copyOfRange(compressed.toByteArray(), 150, 250));
+  }
+
+  @Test
+  public void compressedEmptyData() throws IOException {
+    Chunker chunker = Chunker.builder().setInput(new byte[0]).setCompressed(true).build();
+
+    assertThat(chunker.hasNext()).isTrue();
+    Chunk next = chunker.next();
+    assertThat(next.getOffset()).isEqualTo(0);
+    assertThat(chunker.hasNext()).isFalse();
+    assertThat(decompress(next.getData().toByteArray())).isEmpty();
+  }
+
+  private static byte[] decompress(byte[] compressed) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (DecompressingOutputStream decompressor = Compression.decompress(out)) {
+      decompressor.write(compressed);
+      decompressor.finish();
+    }
+    return out.toByteArray();
+  }
+
   private void assertNextEquals(Chunker chunker, byte... data) throws IOException {
     assertThat(chunker.hasNext()).isTrue();
     ByteString next = chunker.next().getData();
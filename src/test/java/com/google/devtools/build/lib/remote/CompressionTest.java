@@ -0,0 +1,80 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteStreams;
+import com.google.devtools.build.lib.remote.util.Compression;
+import com.google.devtools.build.lib.remote.util.Compression.DecompressingOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link Compression}. */
+@RunWith(JUnit4.class)
+public class CompressionTest {
+
+  private static byte[] compress(byte[] data) throws IOException {
+    return ByteStreams.toByteArray(Compression.compress(new ByteArrayInputStream(data)));
+  }
+
+  @Test
+  public void testRoundTripInPieces() throws Exception {
+    byte[] data = "hello hello hello hello world".getBytes(UTF_8);
+    byte[] compressed = compress(data);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (DecompressingOutputStream decompressor = Compression.decompress(out)) {
+      for (byte b : compressed) {
+        decompressor.write(b);
+      }
+      decompressor.finish();
+    }
+
+    assertThat(out.toByteArray()).isEqualTo(data);
+  }
+
+  @Test
+  public void testTruncatedDataIsDetected() throws Exception {
+    byte[] data = new byte[1000];
+    Arrays.fill(data, (byte) 'x');
+    byte[] compressed = compress(data);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (DecompressingOutputStream decompressor = Compression.decompress(out)) {
+      decompressor.write(compressed, 0, compressed.length - 2);
+      assertThrows(IOException.class, decompressor::finish);
+    }
+  }
+
+  @Test
+  public void testResourceNames() {
+    assertThat(Compression.readResourceName("", "abc", 3))
+        .isEqualTo("compressed-blobs/deflate/abc/3");
+    assertThat(Compression.readResourceName("instance", "abc", 3))
+        .isEqualTo("instance/compressed-blobs/deflate/abc/3");
+    assertThat(Compression.isCompressedResourceName("instance/compressed-blobs/deflate/abc/3"))
+        .isTrue();
+    assertThat(Compression.isCompressedResourceName("uploads/1234/compressed-blobs/deflate/abc/3"))
+        .isTrue();
+    assertThat(Compression.isCompressedResourceName("instance/blobs/abc/3")).isFalse();
+  }
+}
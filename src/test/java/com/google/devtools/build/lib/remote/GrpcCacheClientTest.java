@@ -26,6 +26,10 @@ import static org.mockito.Mockito.when;
 import build.bazel.remote.execution.v2.Action;
 import build.bazel.remote.execution.v2.ActionCacheGrpc.ActionCacheImplBase;
 import build.bazel.remote.execution.v2.ActionResult;
+import build.bazel.remote.execution.v2.BatchReadBlobsRequest;
+import build.bazel.remote.execution.v2.BatchReadBlobsResponse;
+import build.bazel.remote.execution.v2.BatchUpdateBlobsRequest;
+import build.bazel.remote.execution.v2.BatchUpdateBlobsResponse;
 import build.bazel.remote.execution.v2.Command;
 import build.bazel.remote.execution.v2.ContentAddressableStorageGrpc.ContentAddressableStorageImplBase;
 import build.bazel.remote.execution.v2.Digest;
@@ -46,6 +50,7 @@ import com.google.bytestream.ByteStreamProto.ReadRequest;
 import com.google.bytestream.ByteStreamProto.ReadResponse;
 import com.google.bytestream.ByteStreamProto.WriteRequest;
 import com.google.bytestream.ByteStreamProto.WriteResponse;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedMap;
@@ -59,9 +64,11 @@ import com.google.devtools.build.lib.authandtls.GoogleAuthUtils;
 import com.google.devtools.build.lib.clock.JavaClock;
 import com.google.devtools.build.lib.remote.RemoteRetrier.ExponentialBackoff;
 import com.google.devtools.build.lib.remote.Retrier.Backoff;
+import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient.ActionKey;
 import com.google.devtools.build.lib.remote.merkletree.MerkleTree;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
+import com.google.devtools.build.lib.remote.util.Compression;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.remote.util.StringActionInput;
 import com.google.devtools.build.lib.remote.util.TestUtils;
@@ -98,7 +105,9 @@ import io.grpc.util.MutableHandlerRegistry;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -201,6 +210,12 @@ public class GrpcCacheClientTest {
 
   private GrpcCacheClient newClient(RemoteOptions remoteOptions, Supplier<Backoff> backoffSupplier)
       throws IOException {
+    return newClient(remoteOptions, backoffSupplier, /* maxBatchTotalSize= */ 0);
+  }
+
+  private GrpcCacheClient newClient(
+      RemoteOptions remoteOptions, Supplier<Backoff> backoffSupplier, long maxBatchTotalSize)
+      throws IOException {
     AuthAndTLSOptions authTlsOptions = Options.getDefaults(AuthAndTLSOptions.class);
     authTlsOptions.useGoogleDefaultCredentials = true;
     authTlsOptions.googleCredentials = "/exec/root/creds.json";
@@ -235,7 +250,14 @@ public class GrpcCacheClientTest {
             remoteOptions.remoteTimeout,
             retrier);
     return new GrpcCacheClient(
-        channel.retain(), creds, remoteOptions, retrier, DIGEST_UTIL, uploader);
+        channel.retain(), creds, remoteOptions, retrier, DIGEST_UTIL, uploader, maxBatchTotalSize);
+  }
+
+  private GrpcCacheClient newBatchingClient(long maxBatchTotalSize) throws IOException {
+    RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
+    remoteOptions.remoteCacheBatching = true;
+    return newClient(
+        remoteOptions, () -> new ExponentialBackoff(remoteOptions), maxBatchTotalSize);
   }
 
   private static byte[] downloadBlob(GrpcCacheClient cacheClient, Digest digest)
@@ -308,6 +330,119 @@ public class GrpcCacheClientTest {
     client.ensureInputsPresent(merkleTree, ImmutableMap.of());
   }
 
+  /** A CAS that only implements the batch RPCs. */
+  private static class FakeBatchCas extends ContentAddressableStorageImplBase {
+    private final Map<Digest, ByteString> blobs = new HashMap<>();
+    private final AtomicInteger batchCalls = new AtomicInteger();
+
+    @Override
+    public void batchUpdateBlobs(
+        BatchUpdateBlobsRequest request,
+        StreamObserver<BatchUpdateBlobsResponse> responseObserver) {
+      batchCalls.incrementAndGet();
+      BatchUpdateBlobsResponse.Builder response = BatchUpdateBlobsResponse.newBuilder();
+      for (BatchUpdateBlobsRequest.Request r : request.getRequestsList()) {
+        blobs.put(r.getDigest(), r.getData());
+        response.addResponsesBuilder().setDigest(r.getDigest());
+      }
+      responseObserver.onNext(response.build());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void batchReadBlobs(
+        BatchReadBlobsRequest request, StreamObserver<BatchReadBlobsResponse> responseObserver) {
+      batchCalls.incrementAndGet();
+      BatchReadBlobsResponse.Builder response = BatchReadBlobsResponse.newBuilder();
+      for (Digest digest : request.getDigestsList()) {
+        BatchReadBlobsResponse.Response.Builder r = response.addResponsesBuilder();
+        r.setDigest(digest);
+        if (blobs.containsKey(digest)) {
+          r.setData(blobs.get(digest));
+        } else {
+          r.getStatusBuilder().setCode(Status.Code.NOT_FOUND.value());
+        }
+      }
+      responseObserver.onNext(response.build());
+      responseObserver.onCompleted();
+    }
+  }
+
+  @Test
+  public void testSmallBlobsUseBatchRpcs() throws Exception {
+    GrpcCacheClient client = newBatchingClient(/* maxBatchTotalSize= */ 1024);
+    FakeBatchCas cas = new FakeBatchCas();
+    serviceRegistry.addService(cas);
+    Digest fooDigest = DIGEST_UTIL.computeAsUtf8("foo");
+    Digest barDigest = DIGEST_UTIL.computeAsUtf8("bar");
+    Path file = fs.getPath("/exec/root/bar");
+    FileSystemUtils.writeContentAsLatin1(file, "bar");
+
+    getFromFuture(client.uploadBlob(fooDigest, ByteString.copyFromUtf8("foo")));
+    getFromFuture(client.uploadFile(barDigest, file));
+
+    assertThat(new String(downloadBlob(client, fooDigest), UTF_8)).isEqualTo("foo");
+    assertThat(new String(downloadBlob(client, barDigest), UTF_8)).isEqualTo("bar");
+    Digest missingDigest = DIGEST_UTIL.computeAsUtf8("missing");
+    assertThrows(CacheNotFoundException.class, () -> downloadBlob(client, missingDigest));
+    assertThat(cas.batchCalls.get()).isEqualTo(5);
+  }
+
+  @Test
+  public void testBatchRpcsVerifyDownloads() throws Exception {
+    GrpcCacheClient client = newBatchingClient(/* maxBatchTotalSize= */ 1024);
+    FakeBatchCas cas = new FakeBatchCas();
+    serviceRegistry.addService(cas);
+    Digest digest = DIGEST_UTIL.computeAsUtf8("foo");
+    cas.blobs.put(digest, ByteString.copyFromUtf8("bar"));
+
+    IOException e = assertThrows(IOException.class, () -> downloadBlob(client, digest));
+    assertThat(e).hasMessageThat().contains(digest.getHash());
+  }
+
+  @Test
+  public void testLargeBlobsUseByteStream() throws Exception {
+    GrpcCacheClient client = newBatchingClient(/* maxBatchTotalSize= */ 100);
+    FakeBatchCas cas = new FakeBatchCas();
+    serviceRegistry.addService(cas);
+    String contents = Strings.repeat("x", 100);
+    Digest digest = DIGEST_UTIL.computeAsUtf8(contents);
+    serviceRegistry.addService(
+        new ByteStreamImplBase() {
+          @Override
+          public void read(ReadRequest request, StreamObserver<ReadResponse> responseObserver) {
+            responseObserver.onNext(
+                ReadResponse.newBuilder().setData(ByteString.copyFromUtf8(contents)).build());
+            responseObserver.onCompleted();
+          }
+        });
+
+    assertThat(new String(downloadBlob(client, digest), UTF_8)).isEqualTo(contents);
+    assertThat(cas.batchCalls.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testFallsBackToByteStreamIfBatchRpcsAreUnimplemented() throws Exception {
+    GrpcCacheClient client = newBatchingClient(/* maxBatchTotalSize= */ 1024);
+    serviceRegistry.addService(new ContentAddressableStorageImplBase() {});
+    AtomicInteger reads = new AtomicInteger();
+    serviceRegistry.addService(
+        new ByteStreamImplBase() {
+          @Override
+          public void read(ReadRequest request, StreamObserver<ReadResponse> responseObserver) {
+            reads.incrementAndGet();
+            responseObserver.onNext(
+                ReadResponse.newBuilder().setData(ByteString.copyFromUtf8("abc")).build());
+            responseObserver.onCompleted();
+          }
+        });
+    Digest digest = DIGEST_UTIL.computeAsUtf8("abc");
+
+    assertThat(new String(downloadBlob(client, digest), UTF_8)).isEqualTo("abc");
+    assertThat(new String(downloadBlob(client, digest), UTF_8)).isEqualTo("abc");
+    assertThat(reads.get()).isEqualTo(2);
+  }
+
   @Test
   public void testDownloadEmptyBlob() throws Exception {
     GrpcCacheClient client = newClient();
@@ -354,6 +489,129 @@ public class GrpcCacheClientTest {
     assertThat(new String(downloadBlob(client, digest), UTF_8)).isEqualTo("abcdefg");
   }
 
+  private static ByteString compress(String data) throws IOException {
+    return ByteString.readFrom(Compression.compress(ByteString.copyFromUtf8(data).newInput()));
+  }
+
+  @Test
+  public void testCompressedDownload() throws Exception {
+    RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
+    remoteOptions.cacheCompression = true;
+    GrpcCacheClient client = newClient(remoteOptions);
+    Digest digest = DIGEST_UTIL.computeAsUtf8("abcdefgabcdefg");
+    ByteString compressed = compress("abcdefgabcdefg");
+    serviceRegistry.addService(
+        new ByteStreamImplBase() {
+          @Override
+          public void read(ReadRequest request, StreamObserver<ReadResponse> responseObserver) {
+            assertThat(request.getResourceName())
+                .isEqualTo("compressed-blobs/deflate/" + digest.getHash() + "/14");
+            responseObserver.onNext(
+                ReadResponse.newBuilder().setData(compressed.substring(0, 3)).build());
+            responseObserver.onNext(
+                ReadResponse.newBuilder().setData(compressed.substring(3)).build());
+            responseObserver.onCompleted();
+          }
+        });
+    assertThat(new String(downloadBlob(client, digest), UTF_8)).isEqualTo("abcdefgabcdefg");
+  }
+
+  @Test
+  public void testTruncatedCompressedDownloadFails() throws Exception {
+    RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
+    remoteOptions.cacheCompression = true;
+    remoteOptions.remoteVerifyDownloads = false;
+    GrpcCacheClient client = newClient(remoteOptions);
+    Digest digest = DIGEST_UTIL.computeAsUtf8("abcdefgabcdefg");
+    ByteString compressed = compress("abcdefgabcdefg");
+    serviceRegistry.addService(
+        new ByteStreamImplBase() {
+          @Override
+          public void read(ReadRequest request, StreamObserver<ReadResponse> responseObserver) {
+            responseObserver.onNext(
+                ReadResponse.newBuilder()
+                    .setData(compressed.substring(0, compressed.size() - 2))
+                    .build());
+            responseObserver.onCompleted();
+          }
+        });
+    assertThrows(IOException.class, () -> downloadBlob(client, digest));
+  }
+
+  @Test
+  public void testFallsBackToUncompressedDownloadIfUnsupported() throws Exception {
+    RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
+    remoteOptions.cacheCompression = true;
+    GrpcCacheClient client = newClient(remoteOptions);
+    Digest digest = DIGEST_UTIL.computeAsUtf8("abcdefg");
+    AtomicInteger compressedReads = new AtomicInteger();
+    serviceRegistry.addService(
+        new ByteStreamImplBase() {
+          @Override
+          public void read(ReadRequest request, StreamObserver<ReadResponse> responseObserver) {
+            if (request.getResourceName().startsWith("compressed-blobs/")) {
+              compressedReads.incrementAndGet();
+              responseObserver.onError(Status.UNIMPLEMENTED.asRuntimeException());
+              return;
+            }
+            responseObserver.onNext(
+                ReadResponse.newBuilder().setData(ByteString.copyFromUtf8("abcdefg")).build());
+            responseObserver.onCompleted();
+          }
+        });
+    assertThat(new String(downloadBlob(client, digest), UTF_8)).isEqualTo("abcdefg");
+    assertThat(new String(downloadBlob(client, digest), UTF_8)).isEqualTo("abcdefg");
+    // Compression is only attempted once.
+    assertThat(compressedReads.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testCompressedUpload() throws Exception {
+    RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
+    remoteOptions.cacheCompression = true;
+    GrpcCacheClient client = newClient(remoteOptions);
+    ByteString data = ByteString.copyFromUtf8(Strings.repeat("abcdefg", 100));
+    Digest digest = DIGEST_UTIL.compute(data.toByteArray());
+    ByteArrayOutputStream received = new ByteArrayOutputStream();
+    serviceRegistry.addService(
+        new ByteStreamImplBase() {
+          @Override
+          public StreamObserver<WriteRequest> write(
+              StreamObserver<WriteResponse> responseObserver) {
+            return new StreamObserver<WriteRequest>() {
+              @Override
+              public void onNext(WriteRequest request) {
+                if (!request.getResourceName().isEmpty()) {
+                  assertThat(request.getResourceName())
+                      .matches("uploads/.*/compressed-blobs/deflate/" + digest.getHash() + "/700");
+                }
+                assertThat(request.getWriteOffset()).isEqualTo(received.size());
+                byte[] bytes = request.getData().toByteArray();
+                received.write(bytes, 0, bytes.length);
+              }
+
+              @Override
+              public void onCompleted() {
+                responseObserver.onNext(
+                    WriteResponse.newBuilder().setCommittedSize(received.size()).build());
+                responseObserver.onCompleted();
+              }
+
+              @Override
+              public void onError(Throwable t) {
+                fail("An error occurred: " + t);
+              }
+            };
+          }
+        });
+
+    getFromFuture(client.uploadBlob(digest, data));
+
+    assertThat(received.size()).isLessThan(data.size());
+    assertThat(ByteString.copyFrom(received.toByteArray()))
+        .isEqualTo(compress(data.toStringUtf8()));
+  }
+
   @Test
   public void testDownloadAllResults() throws Exception {
     RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
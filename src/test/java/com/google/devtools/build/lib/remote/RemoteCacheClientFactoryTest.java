@@ -60,7 +60,11 @@ public class RemoteCacheClientFactoryTest {
 
     RemoteCacheClient blobStore =
         RemoteCacheClientFactory.create(
-            remoteOptions, /* creds= */ null, workingDirectory, digestUtil);
+            remoteOptions,
+            /* creds= */ null,
+            workingDirectory,
+            digestUtil,
+            /* diskCacheGarbageCollector= */ null);
 
     assertThat(blobStore).isInstanceOf(DiskAndRemoteCacheClient.class);
   }
@@ -73,7 +77,11 @@ public class RemoteCacheClientFactoryTest {
 
     RemoteCacheClient blobStore =
         RemoteCacheClientFactory.create(
-            remoteOptions, /* creds= */ null, workingDirectory, digestUtil);
+            remoteOptions,
+            /* creds= */ null,
+            workingDirectory,
+            digestUtil,
+            /* diskCacheGarbageCollector= */ null);
 
     assertThat(blobStore).isInstanceOf(DiskAndRemoteCacheClient.class);
     assertThat(workingDirectory.exists()).isTrue();
@@ -89,7 +97,11 @@ public class RemoteCacheClientFactoryTest {
         NullPointerException.class,
         () ->
             RemoteCacheClientFactory.create(
-                remoteOptions, /* creds= */ null, /* workingDirectory= */ null, digestUtil));
+                remoteOptions,
+                /* creds= */ null,
+                /* workingDirectory= */ null,
+                digestUtil,
+                /* diskCacheGarbageCollector= */ null));
   }
 
   @Test
@@ -99,7 +111,11 @@ public class RemoteCacheClientFactoryTest {
 
     RemoteCacheClient blobStore =
         RemoteCacheClientFactory.create(
-            remoteOptions, /* creds= */ null, workingDirectory, digestUtil);
+            remoteOptions,
+            /* creds= */ null,
+            workingDirectory,
+            digestUtil,
+            /* diskCacheGarbageCollector= */ null);
 
     assertThat(blobStore).isInstanceOf(HttpCacheClient.class);
   }
@@ -114,7 +130,11 @@ public class RemoteCacheClientFactoryTest {
                 RuntimeException.class,
                 () ->
                     RemoteCacheClientFactory.create(
-                        remoteOptions, /* creds= */ null, workingDirectory, digestUtil)))
+                        remoteOptions,
+                        /* creds= */ null,
+                        workingDirectory,
+                        digestUtil,
+                        /* diskCacheGarbageCollector= */ null)))
         .hasMessageThat()
         .contains("Remote cache proxy unsupported: bad-proxy");
   }
@@ -125,7 +145,11 @@ public class RemoteCacheClientFactoryTest {
 
     RemoteCacheClient blobStore =
         RemoteCacheClientFactory.create(
-            remoteOptions, /* creds= */ null, workingDirectory, digestUtil);
+            remoteOptions,
+            /* creds= */ null,
+            workingDirectory,
+            digestUtil,
+            /* diskCacheGarbageCollector= */ null);
 
     assertThat(blobStore).isInstanceOf(HttpCacheClient.class);
   }
@@ -136,7 +160,11 @@ public class RemoteCacheClientFactoryTest {
 
     RemoteCacheClient blobStore =
         RemoteCacheClientFactory.create(
-            remoteOptions, /* creds= */ null, workingDirectory, digestUtil);
+            remoteOptions,
+            /* creds= */ null,
+            workingDirectory,
+            digestUtil,
+            /* diskCacheGarbageCollector= */ null);
 
     assertThat(blobStore).isInstanceOf(DiskCacheClient.class);
   }
@@ -0,0 +1,141 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import com.google.devtools.build.lib.remote.util.Utils;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DiskCacheGarbageCollector}. */
+@RunWith(JUnit4.class)
+public class DiskCacheGarbageCollectorTest {
+
+  private final ManualClock clock = new ManualClock();
+  private final DigestUtil digestUtil = new DigestUtil(DigestHashFunction.SHA256);
+  private Path root;
+
+  @Before
+  public void setUp() throws Exception {
+    InMemoryFileSystem fs = new InMemoryFileSystem(clock, DigestHashFunction.SHA256);
+    root = fs.getPath("/disk_cache");
+    root.createDirectoryAndParents();
+  }
+
+  private DiskCacheGarbageCollector newCollector(long maxSizeBytes) {
+    return new DiskCacheGarbageCollector(
+        root, maxSizeBytes, MoreExecutors.newDirectExecutorService(), clock);
+  }
+
+  private Digest upload(DiskCacheClient client, String contents) throws Exception {
+    Digest digest = digestUtil.computeAsUtf8(contents);
+    Utils.getFromFuture(client.uploadBlob(digest, ByteString.copyFromUtf8(contents)));
+    clock.advanceMillis(1000);
+    return digest;
+  }
+
+  private static boolean isCached(DiskCacheClient client, Digest digest) throws Exception {
+    try {
+      Utils.getFromFuture(client.downloadBlob(digest, new ByteArrayOutputStream()));
+      return true;
+    } catch (CacheNotFoundException e) {
+      return false;
+    }
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedEntries() throws Exception {
+    DiskCacheGarbageCollector collector = newCollector(/* maxSizeBytes= */ 25);
+    DiskCacheClient client =
+        new DiskCacheClient(root, /* verifyDownloads= */ true, digestUtil, collector);
+
+    Digest first = upload(client, "0123456789");
+    Digest second = upload(client, "abcdefghij");
+    // Reading the first entry makes the second one the least recently used.
+    assertThat(isCached(client, first)).isTrue();
+    clock.advanceMillis(1000);
+    Digest third = upload(client, "ABCDEFGHIJ");
+
+    assertThat(isCached(client, first)).isTrue();
+    assertThat(isCached(client, second)).isFalse();
+    assertThat(isCached(client, third)).isTrue();
+
+    DiskCacheGarbageCollector.Stats stats = collector.getStats();
+    assertThat(stats.getEvictedEntries()).isEqualTo(1);
+    assertThat(stats.getEvictedBytes()).isEqualTo(10);
+    assertThat(stats.getSizeBytes()).isEqualTo(20);
+    assertThat(stats.getHits()).isEqualTo(3);
+    assertThat(stats.getMisses()).isEqualTo(1);
+  }
+
+  @Test
+  public void trimsExistingCacheOnCreation() throws Exception {
+    DiskCacheClient client = new DiskCacheClient(root, /* verifyDownloads= */ true, digestUtil);
+    for (int i = 0; i < 10; i++) {
+      upload(client, "entry-" + i);
+    }
+
+    DiskCacheGarbageCollector collector = newCollector(/* maxSizeBytes= */ 40);
+
+    // 10 entries of 7 bytes each are trimmed to at most 90% of 40 bytes.
+    assertThat(collector.getStats().getSizeBytes()).isEqualTo(35);
+    assertThat(collector.getStats().getEvictedEntries()).isEqualTo(5);
+  }
+
+  @Test
+  public void ignoresTemporaryFiles() throws Exception {
+    Path temp = root.getChild("tmp-in-flight");
+    FileSystemUtils.writeContentAsLatin1(temp, "a partially written entry");
+
+    DiskCacheGarbageCollector collector = newCollector(/* maxSizeBytes= */ 1);
+
+    assertThat(temp.exists()).isTrue();
+    assertThat(collector.getStats().getEvictedEntries()).isEqualTo(0);
+  }
+
+  @Test
+  public void deletesStaleTemporaryFiles() throws Exception {
+    Path stale = root.getChild("tmp-crashed");
+    FileSystemUtils.writeContentAsLatin1(stale, "left behind by a crashed writer");
+    clock.advanceMillis(DiskCacheGarbageCollector.STALE_TEMP_FILE_AGE.toMillis() + 1);
+    Path recent = root.getChild("tmp-in-flight");
+    FileSystemUtils.writeContentAsLatin1(recent, "a partially written entry");
+
+    DiskCacheGarbageCollector collector = newCollector(/* maxSizeBytes= */ 1000);
+
+    assertThat(stale.exists()).isFalse();
+    assertThat(recent.exists()).isTrue();
+    assertThat(collector.getStats().getEvictedEntries()).isEqualTo(0);
+  }
+
+  @Test
+  public void rejectsNonPositiveLimit() {
+    assertThrows(IllegalArgumentException.class, () -> newCollector(/* maxSizeBytes= */ 0));
+  }
+}
@@ -253,6 +253,7 @@ public class HttpCacheClientTest {
       ServerChannel serverChannel,
       int timeoutSeconds,
       boolean remoteVerifyDownloads,
+      boolean compressed,
       @Nullable final Credentials creds)
       throws Exception {
     SocketAddress socketAddress = serverChannel.localAddress();
@@ -265,6 +266,7 @@ public class HttpCacheClientTest {
           timeoutSeconds,
           /* remoteMaxConnections= */ 0,
           remoteVerifyDownloads,
+          compressed,
           ImmutableList.of(),
           DIGEST_UTIL,
           creds);
@@ -276,6 +278,7 @@ public class HttpCacheClientTest {
           timeoutSeconds,
           /* remoteMaxConnections= */ 0,
           remoteVerifyDownloads,
+          compressed,
           ImmutableList.of(),
           DIGEST_UTIL,
           creds);
@@ -285,6 +288,16 @@ public class HttpCacheClientTest {
     }
   }
 
+  private HttpCacheClient createHttpBlobStore(
+      ServerChannel serverChannel,
+      int timeoutSeconds,
+      boolean remoteVerifyDownloads,
+      @Nullable final Credentials creds)
+      throws Exception {
+    return createHttpBlobStore(
+        serverChannel, timeoutSeconds, remoteVerifyDownloads, /* compressed= */ false, creds);
+  }
+
   private HttpCacheClient createHttpBlobStore(
       ServerChannel serverChannel, int timeoutSeconds, @Nullable final Credentials creds)
       throws Exception {
@@ -324,6 +337,47 @@ public class HttpCacheClientTest {
     }
   }
 
+  @Test
+  public void testCompressedUploadAndDownload() throws Exception {
+    ServerChannel server = null;
+    try {
+      ConcurrentHashMap<String, byte[]> cacheContents = new ConcurrentHashMap<>();
+      server = testServer.start(new HttpCacheServerHandler(cacheContents));
+
+      HttpCacheClient blobStore =
+          createHttpBlobStore(
+              server,
+              /* timeoutSeconds= */ 1,
+              /* remoteVerifyDownloads= */ true,
+              /* compressed= */ true,
+              /* creds= */ null);
+
+      byte[] bytes = new byte[10000];
+      Arrays.fill(bytes, (byte) 'x');
+      ByteString data = ByteString.copyFrom(bytes);
+      Digest digest = DIGEST_UTIL.compute(bytes);
+      blobStore.uploadBlob(digest, data).get();
+
+      String cacheKey = "/cas.deflate/" + digest.getHash();
+      assertThat(cacheContents.keySet()).containsExactly(cacheKey);
+      assertThat(cacheContents.get(cacheKey).length).isLessThan(bytes.length);
+
+      try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+        getFromFuture(blobStore.downloadBlob(digest, out));
+        assertThat(out.toByteArray()).isEqualTo(bytes);
+      }
+
+      // Truncated compressed data is detected.
+      byte[] compressed = cacheContents.get(cacheKey);
+      cacheContents.put(cacheKey, Arrays.copyOf(compressed, compressed.length / 2));
+      try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+        assertThrows(IOException.class, () -> getFromFuture(blobStore.downloadBlob(digest, out)));
+      }
+    } finally {
+      testServer.stop(server);
+    }
+  }
+
   @Test(expected = ConnectException.class, timeout = 30000)
   public void connectTimeout() throws Exception {
     ServerChannel server = testServer.start(new ChannelInboundHandlerAdapter() {});
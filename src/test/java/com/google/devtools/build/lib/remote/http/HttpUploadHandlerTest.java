@@ -31,6 +31,7 @@ import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
 import java.io.ByteArrayInputStream;
 import java.net.URI;
@@ -88,6 +89,36 @@ public class HttpUploadHandlerTest extends AbstractHttpHandlerTest {
     assertThat(ch.isOpen()).isTrue();
   }
 
+  @Test
+  public void uploadOfUnknownLengthIsChunked() throws Exception {
+    EmbeddedChannel ch = new EmbeddedChannel(new HttpUploadHandler(null, ImmutableList.of()));
+    ByteArrayInputStream data = new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5});
+    ChannelPromise writePromise = ch.newPromise();
+    ch.writeOneOutbound(
+        new UploadCommand(
+            CACHE_URI,
+            /* casUpload= */ true,
+            "abcdef",
+            data,
+            UploadCommand.UNKNOWN_CONTENT_LENGTH,
+            /* compressed= */ true),
+        writePromise);
+
+    HttpRequest request = ch.readOutbound();
+    assertThat(HttpUtil.isTransferEncodingChunked(request)).isTrue();
+    assertThat(HttpUtil.isContentLengthSet(request)).isFalse();
+
+    HttpChunkedInput content = ch.readOutbound();
+    assertThat(content.readChunk(ByteBufAllocator.DEFAULT).content().readableBytes()).isEqualTo(5);
+
+    FullHttpResponse response =
+        new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+    ch.writeInbound(response);
+
+    assertThat(writePromise.isSuccess()).isTrue();
+  }
+
   /** Test that the handler correctly supports http error codes i.e. 404 (NOT FOUND). */
   @Test
   public void httpErrorsAreSupported() {
@@ -0,0 +1,114 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.memory;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MemoryBlobCache}. */
+@RunWith(JUnit4.class)
+public class MemoryBlobCacheTest {
+
+  private static final int BLOB_SIZE = 1024;
+
+  @Test
+  public void get_returnsPutBlob() {
+    MemoryBlobCache cache = new MemoryBlobCache(100 * BLOB_SIZE, BLOB_SIZE, /* offHeap= */ false);
+    ByteString data = blob(1);
+
+    assertThat(cache.get(digest(1))).isNull();
+    cache.put(digest(1), data);
+
+    assertThat(cache.get(digest(1))).isEqualTo(data);
+    MemoryBlobCache.Stats stats = cache.getStats();
+    assertThat(stats.getHits()).isEqualTo(1);
+    assertThat(stats.getMisses()).isEqualTo(1);
+    assertThat(stats.getSizeBytes()).isEqualTo(BLOB_SIZE);
+  }
+
+  @Test
+  public void put_largeBlob_isNotCached() {
+    MemoryBlobCache cache =
+        new MemoryBlobCache(100 * BLOB_SIZE, BLOB_SIZE - 1, /* offHeap= */ false);
+
+    cache.put(digest(1), blob(1));
+
+    assertThat(cache.get(digest(1))).isNull();
+    assertThat(cache.getStats().getSizeBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void put_staysWithinMaxSize() {
+    MemoryBlobCache cache = new MemoryBlobCache(10 * BLOB_SIZE, BLOB_SIZE, /* offHeap= */ false);
+
+    for (int i = 0; i < 100; i++) {
+      cache.get(digest(i));
+      cache.put(digest(i), blob(i));
+    }
+
+    MemoryBlobCache.Stats stats = cache.getStats();
+    assertThat(stats.getSizeBytes()).isAtMost(10L * BLOB_SIZE);
+    assertThat(stats.getEvictedEntries()).isAtLeast(90L);
+    assertThat(stats.getEvictedBytes()).isEqualTo(stats.getEvictedEntries() * BLOB_SIZE);
+  }
+
+  @Test
+  public void frequentlyRequestedBlobs_surviveOneOffBlobs() {
+    MemoryBlobCache cache = new MemoryBlobCache(20 * BLOB_SIZE, BLOB_SIZE, /* offHeap= */ false);
+    for (int i = 0; i < 10; i++) {
+      cache.get(digest(i));
+      cache.put(digest(i), blob(i));
+      for (int j = 0; j < 3; j++) {
+        cache.get(digest(i));
+      }
+    }
+
+    // Blobs that are requested once, like the outputs of most actions, don't displace them.
+    for (int i = 100; i < 1000; i++) {
+      cache.get(digest(i));
+      cache.put(digest(i), blob(i));
+    }
+
+    for (int i = 0; i < 10; i++) {
+      assertThat(cache.get(digest(i))).isEqualTo(blob(i));
+    }
+  }
+
+  @Test
+  public void offHeap_keepsBlobsInDirectBuffers() {
+    MemoryBlobCache cache = new MemoryBlobCache(100 * BLOB_SIZE, BLOB_SIZE, /* offHeap= */ true);
+
+    cache.put(digest(1), blob(1));
+
+    ByteString cached = cache.get(digest(1));
+    assertThat(cached).isEqualTo(blob(1));
+    assertThat(cached.asReadOnlyByteBuffer().isDirect()).isTrue();
+  }
+
+  private static Digest digest(int i) {
+    return Digest.newBuilder().setHash(String.format("%064x", i)).setSizeBytes(BLOB_SIZE).build();
+  }
+
+  private static ByteString blob(int i) {
+    byte[] data = new byte[BLOB_SIZE];
+    data[0] = (byte) i;
+    data[1] = (byte) (i >> 8);
+    return ByteString.copyFrom(data);
+  }
+}
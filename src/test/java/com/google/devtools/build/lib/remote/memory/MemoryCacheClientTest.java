@@ -0,0 +1,98 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.memory;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.remote.util.InMemoryCacheClient;
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutionException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MemoryCacheClient}. */
+@RunWith(JUnit4.class)
+public class MemoryCacheClientTest {
+
+  private static final byte[] CONTENT = "hello".getBytes(UTF_8);
+  private static final Digest DIGEST =
+      Digest.newBuilder().setHash("2cf24dba").setSizeBytes(CONTENT.length).build();
+
+  @Test
+  public void downloadBlob_secondDownloadIsServedFromMemory() throws Exception {
+    InMemoryCacheClient remote = new InMemoryCacheClient(ImmutableMap.of(DIGEST, CONTENT));
+    MemoryCacheClient client =
+        new MemoryCacheClient(new MemoryBlobCache(1024, 1024, /* offHeap= */ false), remote);
+
+    assertThat(download(client, DIGEST)).isEqualTo(CONTENT);
+    assertThat(download(client, DIGEST)).isEqualTo(CONTENT);
+
+    assertThat(remote.getNumSuccessfulDownloads()).isEqualTo(1);
+  }
+
+  @Test
+  public void downloadBlob_largeBlobIsAlwaysDownloaded() throws Exception {
+    InMemoryCacheClient remote = new InMemoryCacheClient(ImmutableMap.of(DIGEST, CONTENT));
+    MemoryCacheClient client =
+        new MemoryCacheClient(
+            new MemoryBlobCache(1024, CONTENT.length - 1, /* offHeap= */ false), remote);
+
+    assertThat(download(client, DIGEST)).isEqualTo(CONTENT);
+    assertThat(download(client, DIGEST)).isEqualTo(CONTENT);
+
+    assertThat(remote.getNumSuccessfulDownloads()).isEqualTo(2);
+  }
+
+  @Test
+  public void downloadBlob_countsLookupsInRemoteCache() throws Exception {
+    InMemoryCacheClient remote = new InMemoryCacheClient(ImmutableMap.of(DIGEST, CONTENT));
+    MemoryCacheClient client =
+        new MemoryCacheClient(new MemoryBlobCache(1024, 1024, /* offHeap= */ false), remote);
+    Digest missing = Digest.newBuilder().setHash("12345678").setSizeBytes(3).build();
+
+    download(client, DIGEST);
+    download(client, DIGEST);
+    assertThrows(
+        ExecutionException.class,
+        () -> client.downloadBlob(missing, new ByteArrayOutputStream()).get());
+
+    // The second download of DIGEST is served from memory.
+    assertThat(client.getDelegateHits()).isEqualTo(1);
+    assertThat(client.getDelegateMisses()).isEqualTo(1);
+  }
+
+  @Test
+  public void uploadBlob_isServedFromMemory() throws Exception {
+    InMemoryCacheClient remote = new InMemoryCacheClient();
+    MemoryCacheClient client =
+        new MemoryCacheClient(new MemoryBlobCache(1024, 1024, /* offHeap= */ false), remote);
+
+    client.uploadBlob(DIGEST, ByteString.copyFrom(CONTENT)).get();
+
+    assertThat(download(client, DIGEST)).isEqualTo(CONTENT);
+    assertThat(remote.getNumSuccessfulDownloads()).isEqualTo(0);
+  }
+
+  private static byte[] download(MemoryCacheClient client, Digest digest) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    client.downloadBlob(digest, out).get();
+    return out.toByteArray();
+  }
+}
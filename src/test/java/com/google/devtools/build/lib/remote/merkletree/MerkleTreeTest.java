@@ -20,13 +20,19 @@ import build.bazel.remote.execution.v2.Directory;
 import build.bazel.remote.execution.v2.DirectoryNode;
 import build.bazel.remote.execution.v2.FileNode;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.Artifact.ArtifactExpander;
 import com.google.devtools.build.lib.actions.ArtifactRoot;
 import com.google.devtools.build.lib.actions.FileArtifactValue;
+import com.google.devtools.build.lib.actions.MetadataProvider;
 import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
 import com.google.devtools.build.lib.clock.JavaClock;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.remote.util.StaticMetadataProvider;
 import com.google.devtools.build.lib.vfs.DigestHashFunction;
@@ -137,6 +143,72 @@ public class MerkleTreeTest {
     assertThat(allDigests).asList().containsAllIn(inputDigests);
   }
 
+  @Test
+  public void mergeMerkleTrees() throws IOException {
+    SortedMap<PathFragment, ActionInput> allInputs = new TreeMap<>();
+    SortedMap<PathFragment, ActionInput> someInputs = new TreeMap<>();
+    SortedMap<PathFragment, ActionInput> otherInputs = new TreeMap<>();
+    Map<ActionInput, FileArtifactValue> metadata = new HashMap<>();
+    addFile("srcs/foo.cc", "foo", someInputs, metadata);
+    addFile("srcs/fizz/buzz.cc", "buzz", someInputs, metadata);
+    addFile("srcs/bar.cc", "bar", otherInputs, metadata);
+    addFile("srcs/fizz/fizzbuzz.cc", "fizzbuzz", otherInputs, metadata);
+    allInputs.putAll(someInputs);
+    allInputs.putAll(otherInputs);
+    MetadataProvider metadataProvider = new StaticMetadataProvider(metadata);
+
+    MerkleTree merged =
+        MerkleTree.merge(
+            ImmutableList.of(
+                MerkleTree.build(someInputs, metadataProvider, execRoot, digestUtil),
+                MerkleTree.build(otherInputs, metadataProvider, execRoot, digestUtil)),
+            digestUtil);
+
+    MerkleTree expected = MerkleTree.build(allInputs, metadataProvider, execRoot, digestUtil);
+    assertThat(merged.getRootDigest()).isEqualTo(expected.getRootDigest());
+    // The directories of the trees that were merged are not part of the result.
+    assertThat(merged.getAllDigests()).containsExactlyElementsIn(expected.getAllDigests());
+  }
+
+  @Test
+  public void buildMerkleTreeOfNestedSetWithCache() throws IOException {
+    SortedMap<PathFragment, ActionInput> sortedInputs = new TreeMap<>();
+    Map<ActionInput, FileArtifactValue> metadata = new HashMap<>();
+    Artifact foo = addFile("srcs/foo.cc", "foo", sortedInputs, metadata);
+    Artifact buzz = addFile("srcs/fizz/buzz.cc", "buzz", sortedInputs, metadata);
+    Artifact bar = addFile("srcs/bar.cc", "bar", sortedInputs, metadata);
+    MetadataProvider metadataProvider = new StaticMetadataProvider(metadata);
+    ArtifactExpander artifactExpander =
+        (artifact, output) -> {
+          throw new IllegalStateException(artifact.toString());
+        };
+    NestedSet<ActionInput> shared =
+        NestedSetBuilder.<ActionInput>stableOrder().add(foo).add(buzz).build();
+    NestedSet<ActionInput> inputs =
+        NestedSetBuilder.<ActionInput>stableOrder().addTransitive(shared).add(bar).build();
+    MerkleTreeCache cache = new MerkleTreeCache(/* maxSubtrees= */ 100);
+
+    MerkleTree tree =
+        cache.getOrBuild(inputs, artifactExpander, metadataProvider, execRoot, digestUtil);
+
+    MerkleTree expected = MerkleTree.build(sortedInputs, metadataProvider, execRoot, digestUtil);
+    assertThat(tree.getRootDigest()).isEqualTo(expected.getRootDigest());
+    assertThat(tree.getAllDigests()).containsExactlyElementsIn(expected.getAllDigests());
+
+    // Both sets are cached now, including the one that was only visited as a transitive member, so
+    // no metadata is looked up again.
+    MetadataProvider noMetadata = new StaticMetadataProvider(ImmutableMap.of());
+    assertThat(cache.getOrBuild(inputs, artifactExpander, noMetadata, execRoot, digestUtil))
+        .isSameInstanceAs(tree);
+    MerkleTree sharedTree =
+        cache.getOrBuild(shared, artifactExpander, noMetadata, execRoot, digestUtil);
+    SortedMap<PathFragment, ActionInput> sharedInputs = new TreeMap<>(sortedInputs);
+    sharedInputs.remove(bar.getExecPath());
+    assertThat(sharedTree.getRootDigest())
+        .isEqualTo(
+            MerkleTree.build(sharedInputs, metadataProvider, execRoot, digestUtil).getRootDigest());
+  }
+
   private Artifact addFile(
       String path,
       String content,
@@ -0,0 +1,125 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ArtifactRoot;
+import com.google.devtools.build.lib.actions.SpawnMetrics;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+/** Tests for {@link CriticalPathEstimates}. */
+@RunWith(JUnit4.class)
+public class CriticalPathEstimatesTest {
+
+  private final Path root = new InMemoryFileSystem().getPath("/root");
+  private int nextId = 0;
+
+  private CriticalPathComponent component(
+      String primaryOutput, long startSeconds, long finishSeconds, boolean executed) {
+    Action action = Mockito.mock(Action.class);
+    when(action.getPrimaryOutput())
+        .thenReturn(
+            ActionsTestUtil.createArtifact(
+                ArtifactRoot.asSourceRoot(Root.fromPath(root)), primaryOutput));
+    CriticalPathComponent component =
+        new CriticalPathComponent(nextId++, action, TimeUnit.SECONDS.toNanos(startSeconds));
+    if (executed) {
+      component.addSpawnResult(
+          SpawnMetrics.forLocalExecution(Duration.ofSeconds(finishSeconds - startSeconds)), "local");
+    }
+    component.finishActionExecution(
+        TimeUnit.SECONDS.toNanos(startSeconds), TimeUnit.SECONDS.toNanos(finishSeconds));
+    return component;
+  }
+
+  @Test
+  public void remainingCriticalPathFollowsDependents() {
+    CriticalPathComponent compile = component("compile", 0, 10, true);
+    CriticalPathComponent generate = component("generate", 0, 5, true);
+    CriticalPathComponent link = component("link", 10, 40, true);
+    CriticalPathComponent test = component("test", 40, 50, true);
+    CriticalPathComponent lint = component("lint", 5, 6, true);
+    link.addDepInfo(generate, TimeUnit.SECONDS.toNanos(40));
+    link.addDepInfo(compile, TimeUnit.SECONDS.toNanos(40));
+    test.addDepInfo(link, TimeUnit.SECONDS.toNanos(50));
+    lint.addDepInfo(generate, TimeUnit.SECONDS.toNanos(6));
+
+    CriticalPathEstimates estimates =
+        CriticalPathEstimates.EMPTY.update(ImmutableList.of(lint, test, compile, generate, link));
+
+    assertThat(estimates.getRemainingMillis("test")).isEqualTo(10_000);
+    assertThat(estimates.getRemainingMillis("link")).isEqualTo(40_000);
+    assertThat(estimates.getRemainingMillis("compile")).isEqualTo(50_000);
+    // The link was waiting for the compile, not the generator, so only the lint follows it.
+    assertThat(estimates.getRemainingMillis("generate")).isEqualTo(6_000);
+    assertThat(estimates.getRemainingMillis("lint")).isEqualTo(1_000);
+    assertThat(estimates.getRemainingMillis("unknown")).isEqualTo(0);
+  }
+
+  @Test
+  public void cachedActionsKeepTheirEstimates() {
+    CriticalPathEstimates estimates =
+        CriticalPathEstimates.EMPTY.merge(ImmutableMap.of("compile", 50_000L, "test", 10_000L));
+    CriticalPathComponent compile = component("compile", 0, 0, false);
+    CriticalPathComponent test = component("test", 0, 20, true);
+    test.addDepInfo(compile, TimeUnit.SECONDS.toNanos(20));
+
+    estimates = estimates.update(ImmutableList.of(compile, test));
+
+    assertThat(estimates.getRemainingMillis("compile")).isEqualTo(50_000);
+    assertThat(estimates.getRemainingMillis("test")).isEqualTo(20_000);
+  }
+
+  @Test
+  public void saveAndLoad() throws Exception {
+    root.createDirectoryAndParents();
+    Path file = root.getChild("estimates");
+    CriticalPathEstimates estimates =
+        CriticalPathEstimates.EMPTY.merge(ImmutableMap.of("a", 1L, "b", 2L, "c", 3L));
+
+    estimates.save(file);
+    CriticalPathEstimates loaded = CriticalPathEstimates.load(file);
+
+    assertThat(loaded.size()).isEqualTo(3);
+    assertThat(loaded.getRemainingMillis("a")).isEqualTo(1);
+    assertThat(loaded.getRemainingMillis("b")).isEqualTo(2);
+    assertThat(loaded.getRemainingMillis("c")).isEqualTo(3);
+  }
+
+  @Test
+  public void loadRejectsCorruptFile() throws Exception {
+    root.createDirectoryAndParents();
+    Path file = root.getChild("estimates");
+    FileSystemUtils.writeIsoLatin1(file, "not estimates");
+
+    assertThrows(IOException.class, () -> CriticalPathEstimates.load(file));
+  }
+}
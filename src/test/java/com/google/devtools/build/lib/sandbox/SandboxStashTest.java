@@ -0,0 +1,98 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SandboxStash}. */
+@RunWith(JUnit4.class)
+public class SandboxStashTest {
+  private Path sandboxBase;
+
+  @Before
+  public final void setupSandboxBase() throws IOException {
+    FileSystem fileSystem = new InMemoryFileSystem();
+    sandboxBase = fileSystem.getPath(TestUtils.tmpDir()).getRelative("sandbox");
+    sandboxBase.createDirectoryAndParents();
+  }
+
+  @Test
+  public void stashAndTakeOver() throws IOException {
+    SandboxStash stash = new SandboxStash(sandboxBase, /* maxStashesPerMnemonic= */ 10);
+    Path execRoot = createExecRoot("1");
+
+    assertThat(stash.stashSandbox(execRoot, "Genrule")).isTrue();
+    Path newExecRoot = sandboxBase.getRelative("2/execroot");
+    newExecRoot.getParentDirectory().createDirectory();
+    assertThat(stash.takeStashedSandbox(newExecRoot, "Genrule")).isTrue();
+
+    assertThat(newExecRoot.getRelative("input").exists()).isTrue();
+    Path otherExecRoot = sandboxBase.getRelative("3/execroot");
+    assertThat(stash.takeStashedSandbox(otherExecRoot, "Genrule")).isFalse();
+    assertThat(otherExecRoot.isDirectory()).isTrue();
+  }
+
+  @Test
+  public void deleteStashes_removesStashesOfEarlierServers() throws IOException {
+    // Stashes left behind by an earlier server, whose ids restarted at 1.
+    SandboxStash earlier = new SandboxStash(sandboxBase, /* maxStashesPerMnemonic= */ 10);
+    for (int i = 0; i < 3; i++) {
+      earlier.stashSandbox(createExecRoot("earlier" + i), "Genrule");
+    }
+
+    SandboxStash stash = new SandboxStash(sandboxBase, /* maxStashesPerMnemonic= */ 10);
+    stash.deleteStashes(new SynchronousTreeDeleter());
+
+    assertThat(sandboxBase.getDirectoryEntries()).doesNotContain(stash.getStashBase());
+    assertThat(stash.stashSandbox(createExecRoot("1"), "Genrule")).isTrue();
+    assertThat(stash.getStashBase().getRelative("Genrule").getDirectoryEntries()).hasSize(1);
+  }
+
+  @Test
+  public void stashSandbox_keepsAtMostMaxStashesPerMnemonic() throws IOException {
+    SandboxStash stash = new SandboxStash(sandboxBase, /* maxStashesPerMnemonic= */ 2);
+
+    assertThat(stash.stashSandbox(createExecRoot("1"), "Genrule")).isTrue();
+    assertThat(stash.stashSandbox(createExecRoot("2"), "Genrule")).isTrue();
+    Path third = createExecRoot("3");
+    assertThat(stash.stashSandbox(third, "Genrule")).isFalse();
+    assertThat(third.exists()).isTrue();
+    // Other mnemonics have their own limit.
+    assertThat(stash.stashSandbox(createExecRoot("4"), "CppCompile")).isTrue();
+
+    // Taking a stash over makes room for another one.
+    Path newExecRoot = sandboxBase.getRelative("5/execroot");
+    newExecRoot.getParentDirectory().createDirectory();
+    assertThat(stash.takeStashedSandbox(newExecRoot, "Genrule")).isTrue();
+    assertThat(stash.stashSandbox(third, "Genrule")).isTrue();
+  }
+
+  private Path createExecRoot(String id) throws IOException {
+    Path execRoot = sandboxBase.getRelative(id).getRelative("execroot");
+    execRoot.createDirectoryAndParents();
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("input"), "content");
+    return execRoot;
+  }
+}
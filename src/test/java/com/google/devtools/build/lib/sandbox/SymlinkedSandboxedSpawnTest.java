@@ -112,4 +112,73 @@ public class SymlinkedSandboxedSpawnTest {
 
     assertThat(outputsDir.getRelative("very/output.txt").isFile(Symlinks.NOFOLLOW)).isTrue();
   }
+
+  @Test
+  public void reuseStashedSandbox() throws Exception {
+    Path helloTxt = workspaceDir.getRelative("hello.txt");
+    FileSystemUtils.createEmptyFile(helloTxt);
+    Path otherTxt = workspaceDir.getRelative("other.txt");
+    FileSystemUtils.createEmptyFile(otherTxt);
+    SandboxStash stash = new SandboxStash(sandboxDir, /* maxStashesPerMnemonic= */ 10);
+
+    SymlinkedSandboxedSpawn first =
+        new SymlinkedSandboxedSpawn(
+            sandboxDir.getRelative("1"),
+            sandboxDir.getRelative("1/execroot"),
+            ImmutableList.of("/bin/true"),
+            ImmutableMap.of(),
+            new SandboxInputs(
+                ImmutableMap.of(
+                    PathFragment.create("kept/input.txt"), helloTxt,
+                    PathFragment.create("changed/input.txt"), helloTxt,
+                    PathFragment.create("removed/input.txt"), helloTxt),
+                ImmutableMap.of()),
+            SandboxOutputs.create(
+                ImmutableSet.of(PathFragment.create("very/output.txt")), ImmutableSet.of()),
+            ImmutableSet.of(),
+            new SynchronousTreeDeleter(),
+            /* statisticsPath= */ null,
+            stash,
+            "Mnemonic");
+    first.createFileSystem();
+    Path keptInput = sandboxDir.getRelative("1/execroot/kept/input.txt");
+    FileSystemUtils.createEmptyFile(sandboxDir.getRelative("1/execroot/very/stale.txt"));
+    first.delete();
+    assertThat(sandboxDir.getRelative("1").exists()).isFalse();
+
+    Path secondExecRoot = sandboxDir.getRelative("2/execroot");
+    secondExecRoot.createDirectoryAndParents();
+    SymlinkedSandboxedSpawn second =
+        new SymlinkedSandboxedSpawn(
+            sandboxDir.getRelative("2"),
+            secondExecRoot,
+            ImmutableList.of("/bin/true"),
+            ImmutableMap.of(),
+            new SandboxInputs(
+                ImmutableMap.of(
+                    PathFragment.create("kept/input.txt"), helloTxt,
+                    PathFragment.create("changed/input.txt"), otherTxt,
+                    PathFragment.create("added/input.txt"), helloTxt),
+                ImmutableMap.of()),
+            SandboxOutputs.create(
+                ImmutableSet.of(PathFragment.create("very/output.txt")), ImmutableSet.of()),
+            ImmutableSet.of(secondExecRoot.getRelative("wow/writable")),
+            new SynchronousTreeDeleter(),
+            /* statisticsPath= */ null,
+            stash,
+            "Mnemonic");
+    second.createFileSystem();
+
+    assertThat(keptInput.exists(Symlinks.NOFOLLOW)).isFalse();
+    assertThat(secondExecRoot.getRelative("kept/input.txt").readSymbolicLink())
+        .isEqualTo(helloTxt.asFragment());
+    assertThat(secondExecRoot.getRelative("changed/input.txt").readSymbolicLink())
+        .isEqualTo(otherTxt.asFragment());
+    assertThat(secondExecRoot.getRelative("added/input.txt").readSymbolicLink())
+        .isEqualTo(helloTxt.asFragment());
+    assertThat(secondExecRoot.getRelative("removed").exists()).isFalse();
+    assertThat(secondExecRoot.getRelative("very").isDirectory()).isTrue();
+    assertThat(secondExecRoot.getRelative("very/stale.txt").exists()).isFalse();
+    assertThat(secondExecRoot.getRelative("wow/writable").isDirectory()).isTrue();
+  }
 }
@@ -0,0 +1,137 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.util.TestAction;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.Order;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DiskTopDownActionCache}. */
+@RunWith(JUnit4.class)
+public class DiskTopDownActionCacheTest extends TimestampBuilderTestCase {
+
+  private DiskTopDownActionCache cache;
+
+  @Override
+  protected TopDownActionCache initTopDownActionCache() {
+    try {
+      cache =
+          new DiskTopDownActionCache(
+              scratch.resolve("/top_down_cache"),
+              /*maxSizeBytes=*/ 0,
+              MoreExecutors.newDirectExecutorService(),
+              MoreExecutors.newDirectExecutorService());
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return cache;
+  }
+
+  @Test
+  public void testOutputsAreRestoredFromDisk() throws Exception {
+    Artifact hello = createDerivedArtifact("hello");
+    Button button = createActionButton(emptyNestedSet, ImmutableSet.of(hello));
+
+    button.pressed = false;
+    buildArtifacts(amnesiacBuilder(), hello);
+    assertThat(button.pressed).isTrue();
+    assertThat(cache.getMissCount()).isEqualTo(1);
+
+    hello.getPath().delete();
+    button.pressed = false;
+    buildArtifacts(amnesiacBuilder(), hello);
+    assertThat(button.pressed).isFalse();
+    assertThat(hello.getPath().exists()).isTrue();
+    assertThat(cache.getHitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testLargeOutputsAreLinked() throws Exception {
+    Artifact large = createDerivedArtifact("large");
+    byte[] content = new byte[(int) DiskTopDownActionCache.MIN_LINKED_SIZE];
+    Arrays.fill(content, (byte) 'x');
+    registerAction(
+        new TestAction(
+            () -> {
+              FileSystemUtils.writeContent(large.getPath(), content);
+              large.getPath().setExecutable(true);
+              return null;
+            },
+            emptyNestedSet,
+            ImmutableSet.of(large)));
+
+    buildArtifacts(amnesiacBuilder(), large);
+    large.getPath().delete();
+    buildArtifacts(amnesiacBuilder(), large);
+
+    assertThat(cache.getHitCount()).isEqualTo(1);
+    assertThat(cache.getLinkedOutputCount()).isEqualTo(1);
+    assertThat(cache.getCopiedOutputCount()).isEqualTo(0);
+    assertThat(FileSystemUtils.readContent(large.getPath())).isEqualTo(content);
+    assertThat(large.getPath().isWritable()).isFalse();
+  }
+
+  @Test
+  public void testChangedSourceMisses() throws Exception {
+    Artifact source = createSourceArtifact("source");
+    source.getPath().getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeContentAsLatin1(source.getPath(), "content1");
+    Artifact hello = createDerivedArtifact("hello");
+    Button button =
+        createActionButton(
+            NestedSetBuilder.create(Order.STABLE_ORDER, source), ImmutableSet.of(hello));
+
+    buildArtifacts(amnesiacBuilder(), hello);
+    assertThat(button.pressed).isTrue();
+
+    FileSystemUtils.writeContentAsLatin1(source.getPath(), "content2");
+    button.pressed = false;
+    buildArtifacts(amnesiacBuilder(), hello);
+    assertThat(button.pressed).isTrue();
+  }
+
+  @Test
+  public void testEvictedEntryMisses() throws Exception {
+    Artifact hello = createDerivedArtifact("hello");
+    Button button = createActionButton(emptyNestedSet, ImmutableSet.of(hello));
+
+    buildArtifacts(amnesiacBuilder(), hello);
+    assertThat(button.pressed).isTrue();
+
+    // A cache limited to a single byte is pushed over the limit by any entry.
+    DiskTopDownActionCache limitedCache =
+        new DiskTopDownActionCache(
+            cache.getRoot(),
+            /*maxSizeBytes=*/ 1,
+            MoreExecutors.newDirectExecutorService(),
+            MoreExecutors.newDirectExecutorService());
+    limitedCache.collectGarbage();
+    assertThat(limitedCache.getEvictionCount()).isGreaterThan(0L);
+
+    button.pressed = false;
+    buildArtifacts(amnesiacBuilder(), hello);
+    assertThat(button.pressed).isTrue();
+  }
+}
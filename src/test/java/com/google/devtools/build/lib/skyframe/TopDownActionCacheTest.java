@@ -18,6 +18,7 @@ import static com.google.common.truth.Truth.assertThat;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.actions.Action;
 import com.google.devtools.build.lib.actions.ActionKeyContext;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.util.TestAction;
@@ -177,7 +178,7 @@ public class TopDownActionCacheTest extends TimestampBuilderTestCase {
 
     @Nullable
     @Override
-    public ActionExecutionValue get(ActionSketch sketch) {
+    public ActionExecutionValue get(ActionSketch sketch, Action action) {
       return cache.getIfPresent(sketch);
     }
 
@@ -0,0 +1,172 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.syntax.util.EvaluationTestCase;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link BytecodeCompiler} and {@link Bytecode}, which check that compiled functions
+ * behave exactly as interpreted ones.
+ */
+@RunWith(JUnit4.class)
+public class BytecodeTest extends EvaluationTestCase {
+
+  @After
+  public void disableCompilation() {
+    EvalUtils.setBytecodeCompilation(false);
+  }
+
+  /** Executes the program and returns the repr of its {@code result} variable. */
+  private String run(boolean compiled, String... lines) throws Exception {
+    EvalUtils.setBytecodeCompilation(compiled);
+    thread = newStarlarkThread();
+    exec(lines);
+    return Starlark.repr(lookup("result"));
+  }
+
+  /** Executes the program, which must fail, and returns the printed error. */
+  private String runError(boolean compiled, String... lines) throws Exception {
+    EvalUtils.setBytecodeCompilation(compiled);
+    thread = newStarlarkThread();
+    try {
+      exec(lines);
+    } catch (EvalException e) {
+      return e.print();
+    }
+    fail("expected an error");
+    return null;
+  }
+
+  private void assertSameResult(String... lines) throws Exception {
+    String expected = run(/*compiled=*/ false, lines);
+    assertThat(run(/*compiled=*/ true, lines)).isEqualTo(expected);
+  }
+
+  private void assertSameError(String... lines) throws Exception {
+    String expected = runError(/*compiled=*/ false, lines);
+    assertThat(runError(/*compiled=*/ true, lines)).isEqualTo(expected);
+  }
+
+  private boolean isCompilable(String name) throws Exception {
+    StarlarkFunction fn = (StarlarkFunction) lookup(name);
+    return BytecodeCompiler.compile(fn.getSignature().getParameterNames(), fn.getStatements())
+        != null;
+  }
+
+  @Test
+  public void testControlFlow() throws Exception {
+    assertSameResult(
+        "def f(n):",
+        "  total = 0",
+        "  for i in range(n):",
+        "    if i % 2 == 0:",
+        "      continue",
+        "    elif i > 7:",
+        "      break",
+        "    total += i",
+        "  return total",
+        "result = [f(n) for n in range(12)]");
+  }
+
+  @Test
+  public void testComprehensionsRestoreShadowedVariables() throws Exception {
+    assertSameResult(
+        "def f(x):",
+        "  y = [x * 2 for x in range(3) if x != 1]",
+        "  d = {k: v for k, v in [(1, 'a'), (2, 'b')]}",
+        "  return (x, y, d, [[i, j] for i in range(3) for j in range(i)])",
+        "result = f('outer')");
+  }
+
+  @Test
+  public void testCallsAndExpressions() throws Exception {
+    assertSameResult(
+        "def g(a, b = 2, *args, **kwargs):",
+        "  return [a, b, args, sorted(kwargs.items())]",
+        "def f():",
+        "  d = {'x': [1]}",
+        "  d['x'] += [2]",
+        "  s = 'abcdef'",
+        "  a, [b, c] = 1, (2, 3)",
+        "  return [g(1), g(1, 3, 4, 5, k = 6), g(*[7, 8], **{'z': 9}), d, s[1:5:2], s[::-1],",
+        "          0 or 'x', 1 and 2, 'y' if not d else 'n', 'a,b'.split(','), -a, b, c]",
+        "result = f()");
+  }
+
+  @Test
+  public void testReturnFromLoopUnlocksCollection() throws Exception {
+    assertSameResult(
+        "def f(l):",
+        "  for x in l:",
+        "    for y in l:",
+        "      return x",
+        "def g(l):",
+        "  f(l)",
+        "  l.append(3)",
+        "  return l",
+        "result = g([1, 2])");
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    assertSameError(
+        "def f():",
+        "  if False:",
+        "    x = 1",
+        "  return x",
+        "f()");
+    assertSameError(
+        "def g(x):",
+        "  return x + 1",
+        "def f():",
+        "  return [g(y) for y in [1, 'a']]",
+        "f()");
+    assertSameError(
+        "def f():",
+        "  l = [1, 2]",
+        "  for x in l:",
+        "    l.append(x)",
+        "f()");
+    assertSameError(
+        "def f():",
+        "  return {[]: 1}",
+        "f()");
+    assertSameError(
+        "def f():",
+        "  return len(*1)",
+        "f()");
+  }
+
+  @Test
+  public void testUnsupportedFunctionsAreInterpreted() throws Exception {
+    String[] program = {
+      "def f(l):",
+      "  l[0], x = 1, 2",
+      "  return [l, x]",
+      "def g():",
+      "  return 1",
+      "result = f([0])",
+    };
+    assertSameResult(program);
+    assertThat(isCompilable("f")).isFalse();
+    assertThat(isCompilable("g")).isTrue();
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.testutil.Microbenchmark;
+
+/**
+ * Microbenchmarks comparing macro-like Starlark functions executed from {@link Bytecode} to the
+ * same functions evaluated by the syntax tree walker. Run with {@code bazel run}; see {@link
+ * Microbenchmark}.
+ */
+public final class StarlarkFunctionBenchmark {
+
+  // Typical shapes of BUILD macros: argument defaulting and merging, name mangling, and building
+  // lists of attribute dicts with comprehensions.
+  private static final String[] MACROS = {
+    "def _label(pkg, name):",
+    "  if name.startswith(':'):",
+    "    return '//' + pkg + name",
+    "  return '//%s:%s' % (pkg, name)",
+    "",
+    "def _merge(base, extra):",
+    "  result = dict(base)",
+    "  for k, v in extra.items():",
+    "    if k in result and type(v) == 'list':",
+    "      result[k] = result[k] + v",
+    "    else:",
+    "      result[k] = v",
+    "  return result",
+    "",
+    "def library(name, srcs = [], deps = [], copts = [], visibility = None, **kwargs):",
+    "  hdrs = [s for s in srcs if s.endswith('.h')]",
+    "  srcs = [s for s in srcs if not s.endswith('.h')]",
+    "  attrs = _merge({'copts': ['-Wall'], 'linkstatic': True}, kwargs)",
+    "  attrs['copts'] += copts",
+    "  targets = []",
+    "  for i, src in enumerate(srcs):",
+    "    base = src.rsplit('.', 1)[0].replace('/', '_')",
+    "    targets.append(dict(",
+    "        name = '%s_%s_%d' % (name, base, i),",
+    "        srcs = [src] + hdrs,",
+    "        deps = [_label('pkg', d) for d in deps],",
+    "        visibility = visibility or ['//visibility:private'],",
+    "        **attrs))",
+    "  return targets",
+  };
+
+  private final StarlarkThread thread;
+  private final Object library;
+  private final ImmutableList<Object> args;
+  private final ImmutableMap<String, Object> kwargs;
+
+  private StarlarkFunctionBenchmark() throws Exception {
+    thread =
+        StarlarkThread.builder(Mutability.create("benchmark"))
+            .useDefaultSemantics()
+            .setGlobals(Module.createForBuiltins(Starlark.UNIVERSE))
+            .build();
+    EvalUtils.exec(ParserInput.fromLines(MACROS), thread);
+    library = thread.moduleLookup("library");
+    args = ImmutableList.of("lib");
+    kwargs =
+        ImmutableMap.of(
+            "srcs",
+            StarlarkList.immutableCopyOf(
+                ImmutableList.of("a/b.cc", "a/b.h", "c/d.cc", "e.cc", "f.h", "g/h/i.cc")),
+            "deps",
+            StarlarkList.immutableCopyOf(ImmutableList.of(":x", "y", ":z")),
+            "copts",
+            StarlarkList.immutableCopyOf(ImmutableList.of("-O2")),
+            "testonly",
+            true);
+  }
+
+  void callMacro(int reps) throws Exception {
+    for (int i = 0; i < reps; i++) {
+      Starlark.call(thread, library, Location.BUILTIN, args, kwargs);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    for (boolean compiled : new boolean[] {false, true}) {
+      EvalUtils.setBytecodeCompilation(compiled);
+      try {
+        StarlarkFunctionBenchmark benchmark = new StarlarkFunctionBenchmark();
+        Microbenchmark.time("callMacro compiled=" + compiled, benchmark::callMacro);
+      } finally {
+        EvalUtils.setBytecodeCompilation(false);
+      }
+    }
+  }
+}
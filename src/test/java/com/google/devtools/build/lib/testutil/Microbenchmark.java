@@ -0,0 +1,116 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.testutil;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A minimal harness for microbenchmarks that run as plain {@code java_binary} targets, e.g. {@code
+ * bazel run //src/test/java/com/google/devtools/build/skyframe:ParallelEvaluatorBenchmark}.
+ *
+ * <p>A benchmark is a method that runs the measured code {@code reps} times. {@link #time} warms it
+ * up, picks a number of reps that takes at least {@link #MIN_TRIAL_NANOS}, and prints the median
+ * time per rep over {@link #TRIALS} trials. Benchmarks that compute a result should return it, so
+ * that the JIT cannot drop the work.
+ */
+public final class Microbenchmark {
+  private static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(2);
+  private static final long MIN_TRIAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+  private static final int TRIALS = 5;
+
+  // Results of benchmarks end up here, so that they are not dead code.
+  private static volatile long sink;
+
+  /** Runs the measured code {@code reps} times. */
+  @FunctionalInterface
+  public interface Benchmark {
+    void run(int reps) throws Exception;
+  }
+
+  /** Runs the measured code {@code reps} times and returns a result derived from it. */
+  @FunctionalInterface
+  public interface IntBenchmark {
+    int run(int reps) throws Exception;
+  }
+
+  private Microbenchmark() {}
+
+  public static void time(String name, IntBenchmark benchmark) throws Exception {
+    time(name, (Benchmark) reps -> sink += benchmark.run(reps));
+  }
+
+  /** Measures {@code benchmark} and prints its time per rep. */
+  public static void time(String name, Benchmark benchmark) throws Exception {
+    int reps = 1;
+    long warmupStart = System.nanoTime();
+    while (true) {
+      long start = System.nanoTime();
+      benchmark.run(reps);
+      long elapsed = System.nanoTime() - start;
+      if (elapsed < MIN_TRIAL_NANOS && reps < Integer.MAX_VALUE / 2) {
+        reps *= 2;
+      } else if (System.nanoTime() - warmupStart >= WARMUP_NANOS) {
+        break;
+      }
+    }
+
+    double[] nanosPerRep = new double[TRIALS];
+    for (int i = 0; i < TRIALS; i++) {
+      long start = System.nanoTime();
+      benchmark.run(reps);
+      nanosPerRep[i] = (double) (System.nanoTime() - start) / reps;
+    }
+    Arrays.sort(nanosPerRep);
+    System.out.printf(
+        "%-72s %,14.1f ns/rep (%,.1f - %,.1f, %d reps)%n",
+        name, nanosPerRep[TRIALS / 2], nanosPerRep[0], nanosPerRep[TRIALS - 1], reps);
+  }
+
+  /**
+   * Prints the heap retained by the object that {@code build} returns, divided by {@code units},
+   * e.g. the number of nodes of a graph. This is the difference in used heap, after garbage
+   * collection, between holding the object and dropping it. The measurement relies on {@link
+   * System#gc} and is only accurate to a few megabytes, so {@code build} should retain tens of
+   * megabytes or more.
+   */
+  public static void measureRetainedHeap(String name, Callable<?> build, long units)
+      throws Exception {
+    AtomicReference<Object> retained = new AtomicReference<>(build.call());
+    long withResult = usedHeapAfterGc();
+    retained.set(null);
+    long withoutResult = usedHeapAfterGc();
+    System.out.printf(
+        "%-72s %,14.1f bytes/unit (%,d units)%n",
+        name, (double) (withResult - withoutResult) / units, units);
+  }
+
+  private static long usedHeapAfterGc() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    // A single System.gc() may leave garbage behind, so repeat until the heap stops shrinking.
+    for (int i = 0; i < 10; i++) {
+      System.gc();
+      Thread.sleep(20);
+      long current = runtime.totalMemory() - runtime.freeMemory();
+      if (current >= used) {
+        break;
+      }
+      used = current;
+    }
+    return used;
+  }
+}
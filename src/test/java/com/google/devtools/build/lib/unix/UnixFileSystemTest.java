@@ -16,13 +16,18 @@ package com.google.devtools.build.lib.unix;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
 
+import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.SymlinkAwareFileSystemTest;
 import com.google.devtools.build.lib.vfs.Symlinks;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
 import org.junit.Test;
 
 /** Tests for the {@link com.google.devtools.build.lib.unix.UnixFileSystem} class. */
@@ -70,4 +75,57 @@ public class UnixFileSystemTest extends SymlinkAwareFileSystemTest {
     assertThat(fifo.stat().isFile()).isTrue();
     assertThat(fifo.stat().isSpecialFile()).isTrue();
   }
+
+  @Test
+  public void testStatIfFoundBatch() throws Exception {
+    Path file = absolutize("file");
+    Path dir = absolutize("dir");
+    Path link = absolutize("link");
+    Path missing = absolutize("missing");
+    FileSystemUtils.writeContentAsLatin1(file, "contents");
+    dir.createDirectory();
+    link.createSymbolicLink(file);
+
+    List<FileStatus> stats =
+        testFS.statIfFoundBatch(
+            ImmutableList.of(file, dir, link, missing, file.getChild("child")),
+            /*followSymlinks=*/ false);
+
+    assertThat(stats).hasSize(5);
+    assertThat(stats.get(0).isFile()).isTrue();
+    assertThat(stats.get(0).getSize()).isEqualTo(8);
+    assertThat(stats.get(1).isDirectory()).isTrue();
+    assertThat(stats.get(2).isSymbolicLink()).isTrue();
+    assertThat(stats.get(3)).isNull();
+    assertThat(stats.get(4)).isNull();
+    assertThat(
+            testFS
+                .statIfFoundBatch(ImmutableList.of(link), /*followSymlinks=*/ true)
+                .get(0)
+                .isFile())
+        .isTrue();
+  }
+
+  @Test
+  public void testReaddirBatch() throws Exception {
+    Path dir1 = absolutize("dir1");
+    Path dir2 = absolutize("dir2");
+    dir1.createDirectory();
+    dir2.createDirectory();
+    FileSystemUtils.createEmptyFile(dir1.getChild("file"));
+    dir1.getChild("subdir").createDirectory();
+
+    List<Collection<Dirent>> dirents =
+        testFS.readdirBatch(ImmutableList.of(dir1, dir2), /*followSymlinks=*/ false);
+
+    assertThat(dirents.get(0))
+        .containsExactly(
+            new Dirent("file", Dirent.Type.FILE), new Dirent("subdir", Dirent.Type.DIRECTORY));
+    assertThat(dirents.get(1)).isEmpty();
+    assertThrows(
+        IOException.class,
+        () ->
+            testFS.readdirBatch(
+                ImmutableList.of(dir1, absolutize("missing")), /*followSymlinks=*/ false));
+  }
 }
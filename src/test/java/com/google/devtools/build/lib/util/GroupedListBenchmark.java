@@ -0,0 +1,96 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util;
+
+import com.google.devtools.build.lib.testutil.Microbenchmark;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Microbenchmarks for building, compressing and decoding {@link GroupedList}s shaped like the
+ * direct deps of Skyframe nodes. Run with {@code bazel run}; see {@link Microbenchmark}.
+ */
+public final class GroupedListBenchmark {
+
+  private final List<List<String>> groups;
+  private final @GroupedList.Compressed Object compressed;
+
+  private GroupedListBenchmark(int numGroups, int groupSize) {
+    groups = new ArrayList<>(numGroups);
+    for (int i = 0; i < numGroups; i++) {
+      List<String> group = new ArrayList<>(groupSize);
+      for (int j = 0; j < groupSize; j++) {
+        group.add("dep" + i + "_" + j);
+      }
+      groups.add(group);
+    }
+    compressed = build().compress();
+  }
+
+  private GroupedList<String> build() {
+    GroupedList<String> list = new GroupedList<>();
+    for (List<String> group : groups) {
+      GroupedListHelper<String> helper = new GroupedListHelper<>();
+      helper.startGroup();
+      for (String element : group) {
+        helper.add(element);
+      }
+      helper.endGroup();
+      list.append(helper);
+    }
+    return list;
+  }
+
+  int appendAndCompress(int reps) {
+    int dummy = 0;
+    for (int i = 0; i < reps; i++) {
+      dummy += System.identityHashCode(build().compress());
+    }
+    return dummy;
+  }
+
+  int decodeGroups(int reps) {
+    int dummy = 0;
+    for (int i = 0; i < reps; i++) {
+      for (List<String> group : GroupedList.<String>create(compressed)) {
+        dummy += group.size();
+      }
+    }
+    return dummy;
+  }
+
+  int iterateCompressedElements(int reps) {
+    int dummy = 0;
+    for (int i = 0; i < reps; i++) {
+      for (String element : GroupedList.<String>compressedToIterable(compressed)) {
+        dummy += element.length();
+      }
+    }
+    return dummy;
+  }
+
+  public static void main(String[] args) throws Exception {
+    for (int numGroups : new int[] {1, 10, 1000}) {
+      for (int groupSize : new int[] {1, 5}) {
+        GroupedListBenchmark benchmark = new GroupedListBenchmark(numGroups, groupSize);
+        String params = String.format("numGroups=%d groupSize=%d", numGroups, groupSize);
+        Microbenchmark.time("appendAndCompress " + params, benchmark::appendAndCompress);
+        Microbenchmark.time("decodeGroups " + params, benchmark::decodeGroups);
+        Microbenchmark.time(
+            "iterateCompressedElements " + params, benchmark::iterateCompressedElements);
+      }
+    }
+  }
+}
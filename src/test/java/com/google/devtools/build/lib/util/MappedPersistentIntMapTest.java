@@ -0,0 +1,328 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link MappedPersistentIntMap}. */
+@RunWith(JUnit4.class)
+public class MappedPersistentIntMapTest {
+
+  private static final long VERSION = 0x1;
+
+  private Path mapFile;
+
+  @Before
+  public final void createFile() throws Exception {
+    JavaIoFileSystem fs = new JavaIoFileSystem(DigestHashFunction.SHA256);
+    mapFile = fs.getPath(TestUtils.makeTempDir().getAbsolutePath()).getChild("map.mmap");
+  }
+
+  private MappedPersistentIntMap openMap(int segmentSize) throws IOException {
+    return new MappedPersistentIntMap(
+        mapFile, VERSION, /*indexValues=*/ false, segmentSize, MoreExecutors.directExecutor());
+  }
+
+  private MappedPersistentIntMap openIndexedMap(int segmentSize) throws IOException {
+    return new MappedPersistentIntMap(
+        mapFile, VERSION, /*indexValues=*/ true, segmentSize, MoreExecutors.directExecutor());
+  }
+
+  private Path checkpointFile() {
+    return mapFile.getParentDirectory().getChild(mapFile.getBaseName() + ".checkpoint");
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(UTF_8);
+  }
+
+  @Test
+  public void testPutGetRemove() throws Exception {
+    MappedPersistentIntMap map = openMap(/*segmentSize=*/ 256);
+    assertThat(map.isEmpty()).isTrue();
+
+    map.put(1, bytes("foo"));
+    map.put(2, bytes("bar"));
+    map.put(1, bytes("baz"));
+    map.remove(2);
+    map.remove(3);
+
+    assertThat(map.get(1)).isEqualTo(bytes("baz"));
+    assertThat(map.get(2)).isNull();
+    assertThat(map.get(3)).isNull();
+    assertThat(map.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void testEntriesSurviveReopening() throws Exception {
+    MappedPersistentIntMap map = openMap(/*segmentSize=*/ 256);
+    map.put(-10, bytes("negative"));
+    map.put(0, bytes(""));
+    map.put(5000, bytes("large key"));
+    map.put(7, bytes("removed"));
+    map.remove(7);
+    map.save();
+
+    MappedPersistentIntMap reopened = openMap(/*segmentSize=*/ 256);
+    assertThat(reopened.get(-10)).isEqualTo(bytes("negative"));
+    assertThat(reopened.get(0)).isEqualTo(bytes(""));
+    assertThat(reopened.get(5000)).isEqualTo(bytes("large key"));
+    assertThat(reopened.get(7)).isNull();
+    assertThat(reopened.keys()).asList().containsExactly(-10, 0, 5000).inOrder();
+  }
+
+  @Test
+  public void testRecordsFillMultipleSegments() throws Exception {
+    MappedPersistentIntMap map = openMap(/*segmentSize=*/ 256);
+    byte[] value = new byte[100];
+    for (int i = 0; i < 50; i++) {
+      Arrays.fill(value, (byte) i);
+      map.put(i, value);
+    }
+    map.save();
+
+    MappedPersistentIntMap reopened = openMap(/*segmentSize=*/ 256);
+    assertThat(reopened.size()).isEqualTo(50);
+    for (int i = 0; i < 50; i++) {
+      Arrays.fill(value, (byte) i);
+      assertThat(reopened.get(i)).isEqualTo(value);
+    }
+  }
+
+  @Test
+  public void testRecordLargerThanSegmentIsReportedOnSave() throws Exception {
+    MappedPersistentIntMap map = openMap(/*segmentSize=*/ 256);
+    map.put(1, bytes("small"));
+    map.put(1, new byte[1000]);
+
+    assertThat(map.get(1)).isNull();
+    assertThrows(IOException.class, map::save);
+    // The failure is only reported once.
+    map.save();
+  }
+
+  @Test
+  public void testFailedPutRemovesOldValueFromLog() throws Exception {
+    MappedPersistentIntMap map = openMap(/*segmentSize=*/ 256);
+    map.put(1, bytes("small"));
+    map.save();
+    map.put(1, new byte[1000]);
+    assertThrows(IOException.class, map::save);
+
+    MappedPersistentIntMap reopened = openMap(/*segmentSize=*/ 256);
+    assertThat(reopened.get(1)).isNull();
+    assertThat(reopened.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void testReopeningOnlyScansRecordsAfterCheckpoint() throws Exception {
+    MappedPersistentIntMap map = openMap(/*segmentSize=*/ 256);
+    map.put(1, bytes("first"));
+    map.save();
+    map.put(2, bytes("second"));
+
+    // Corrupt the checksum of the first record, which is covered by the checkpoint.
+    try (RandomAccessFile file = new RandomAccessFile(mapFile.getPathFile(), "rw")) {
+      file.seek(24 + 9);
+      file.writeInt(0);
+    }
+
+    MappedPersistentIntMap reopened = openMap(/*segmentSize=*/ 256);
+    assertThat(reopened.keys()).asList().containsExactly(1, 2).inOrder();
+    assertThat(reopened.get(1)).isEqualTo(bytes("first"));
+
+    // Without the checkpoint, the whole log is scanned again.
+    checkpointFile().delete();
+    assertThat(openMap(/*segmentSize=*/ 256).isEmpty()).isTrue();
+  }
+
+  @Test
+  public void testCheckpointOfReplacedLogIsIgnored() throws Exception {
+    MappedPersistentIntMap map = openMap(/*segmentSize=*/ 256);
+    map.put(1, bytes("first"));
+    map.save();
+    byte[] checkpoint = FileSystemUtils.readContent(checkpointFile());
+    map.clear();
+    map.put(2, bytes("second"));
+    map.save();
+    FileSystemUtils.writeContent(checkpointFile(), checkpoint);
+
+    MappedPersistentIntMap reopened = openMap(/*segmentSize=*/ 256);
+    assertThat(reopened.keys()).asList().containsExactly(2);
+  }
+
+  @Test
+  public void testFindKey() throws Exception {
+    MappedPersistentIntMap map = openIndexedMap(/*segmentSize=*/ 4096);
+    for (int i = -10; i < 5000; i++) {
+      map.put(i, bytes("value" + i));
+    }
+    map.put(7, bytes("other"));
+    map.remove(8);
+
+    assertThat(map.findKey(bytes("value-10"))).isEqualTo(-10);
+    assertThat(map.findKey(bytes("value4999"))).isEqualTo(4999);
+    assertThat(map.findKey(bytes("value7"))).isNull();
+    assertThat(map.findKey(bytes("other"))).isEqualTo(7);
+    assertThat(map.findKey(bytes("value8"))).isNull();
+    assertThat(map.findKey(bytes("value"))).isNull();
+    map.save();
+
+    MappedPersistentIntMap reopened = openIndexedMap(/*segmentSize=*/ 4096);
+    reopened.put(9, bytes("new"));
+    assertThat(reopened.findKey(bytes("value42"))).isEqualTo(42);
+    assertThat(reopened.findKey(bytes("other"))).isEqualTo(7);
+    assertThat(reopened.findKey(bytes("value9"))).isNull();
+    assertThat(reopened.findKey(bytes("new"))).isEqualTo(9);
+
+    checkpointFile().delete();
+    MappedPersistentIntMap rescanned = openIndexedMap(/*segmentSize=*/ 4096);
+    assertThat(rescanned.findKey(bytes("value42"))).isEqualTo(42);
+    assertThat(rescanned.findKey(bytes("new"))).isEqualTo(9);
+    assertThat(rescanned.findKey(bytes("value8"))).isNull();
+  }
+
+  @Test
+  public void testFindKeyAfterCompaction() throws Exception {
+    MappedPersistentIntMap map = openIndexedMap(/*segmentSize=*/ 64 << 10);
+    byte[] value = new byte[1000];
+    for (int round = 0; round < 3000; round++) {
+      int key = round % 10;
+      Arrays.fill(value, (byte) round);
+      map.put(key, value);
+    }
+
+    assertThat(map.save()).isLessThan(20 * 1024L);
+    Arrays.fill(value, (byte) 2999);
+    assertThat(map.findKey(value)).isEqualTo(9);
+    Arrays.fill(value, (byte) 0);
+    assertThat(map.findKey(value)).isNull();
+  }
+
+  @Test
+  public void testFindKeyRequiresIndexedValues() throws Exception {
+    MappedPersistentIntMap map = openMap(/*segmentSize=*/ 256);
+    assertThrows(IllegalStateException.class, () -> map.findKey(bytes("foo")));
+  }
+
+  @Test
+  public void testIncompleteTailIsDiscarded() throws Exception {
+    MappedPersistentIntMap map = openMap(/*segmentSize=*/ 256);
+    map.put(1, bytes("first"));
+    map.save();
+    map.put(2, bytes("second"));
+
+    // Corrupt the last byte of the second record, as if it had not been written completely.
+    long secondRecordEnd = 24 + (13 + "first".length()) + (13 + "second".length());
+    try (RandomAccessFile file = new RandomAccessFile(mapFile.getPathFile(), "rw")) {
+      file.seek(secondRecordEnd - 1);
+      file.write('X');
+    }
+
+    MappedPersistentIntMap reopened = openMap(/*segmentSize=*/ 256);
+    assertThat(reopened.get(1)).isEqualTo(bytes("first"));
+    assertThat(reopened.get(2)).isNull();
+
+    reopened.put(3, bytes("third"));
+    reopened.save();
+    MappedPersistentIntMap reopenedAgain = openMap(/*segmentSize=*/ 256);
+    assertThat(reopenedAgain.keys()).asList().containsExactly(1, 3).inOrder();
+    assertThat(reopenedAgain.get(3)).isEqualTo(bytes("third"));
+  }
+
+  @Test
+  public void testRecordWithHugeLengthIsDiscarded() throws Exception {
+    MappedPersistentIntMap map = openMap(/*segmentSize=*/ 256);
+    map.put(1, bytes("first"));
+    map.save();
+    map.put(2, bytes("second"));
+
+    // Overwrite the value length of the second record with a length that overflows its size.
+    long secondRecordStart = 24 + (13 + "first".length());
+    try (RandomAccessFile file = new RandomAccessFile(mapFile.getPathFile(), "rw")) {
+      file.seek(secondRecordStart + 5);
+      file.writeInt(Integer.MAX_VALUE - 5);
+    }
+
+    MappedPersistentIntMap reopened = openMap(/*segmentSize=*/ 256);
+    assertThat(reopened.keys()).asList().containsExactly(1);
+  }
+
+  @Test
+  public void testSaveCompactsMostlyGarbageLog() throws Exception {
+    MappedPersistentIntMap map = openMap(/*segmentSize=*/ 64 << 10);
+    byte[] value = new byte[1000];
+    long logSize = 0;
+    for (int round = 0; logSize < 2 * MappedPersistentIntMap.MIN_COMPACTION_SIZE; round++) {
+      for (int key = 0; key < 10; key++) {
+        Arrays.fill(value, (byte) (round + key));
+        map.put(key, value);
+        logSize += value.length;
+      }
+    }
+
+    // The compaction runs synchronously in the test, so save() reports the compacted size.
+    assertThat(map.save()).isLessThan(20 * 1024L);
+
+    MappedPersistentIntMap reopened = openMap(/*segmentSize=*/ 64 << 10);
+    assertThat(reopened.size()).isEqualTo(10);
+    for (int key = 0; key < 10; key++) {
+      assertThat(reopened.get(key)).isEqualTo(map.get(key));
+    }
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    MappedPersistentIntMap map = openMap(/*segmentSize=*/ 256);
+    map.put(1, bytes("foo"));
+    map.save();
+    map.clear();
+    map.put(2, bytes("bar"));
+    map.save();
+
+    MappedPersistentIntMap reopened = openMap(/*segmentSize=*/ 256);
+    assertThat(reopened.get(1)).isNull();
+    assertThat(reopened.get(2)).isEqualTo(bytes("bar"));
+  }
+
+  @Test
+  public void testRejectsOtherVersion() throws Exception {
+    openMap(/*segmentSize=*/ 256).save();
+    assertThrows(
+        IOException.class,
+        () ->
+            new MappedPersistentIntMap(
+                mapFile,
+                VERSION + 1,
+                /*indexValues=*/ false,
+                /*segmentSize=*/ 256,
+                MoreExecutors.directExecutor()));
+  }
+}
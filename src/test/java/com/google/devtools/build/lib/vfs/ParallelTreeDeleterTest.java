@@ -0,0 +1,158 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ParallelTreeDeleter}. */
+@RunWith(JUnit4.class)
+public class ParallelTreeDeleterTest {
+
+  private ForkJoinPool pool;
+  private ForkJoinPool backgroundPool;
+  private ParallelTreeDeleter deleter;
+  private FileSystem fileSystem;
+
+  @Before
+  public final void createDeleter() {
+    pool = new ForkJoinPool(4);
+    backgroundPool = new ForkJoinPool(1);
+    deleter = new ParallelTreeDeleter(pool, backgroundPool);
+    fileSystem = new InMemoryFileSystem(new ManualClock(), DigestHashFunction.SHA256);
+  }
+
+  @After
+  public final void shutDownPool() throws Exception {
+    pool.shutdown();
+    backgroundPool.shutdown();
+    assertThat(pool.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+    assertThat(backgroundPool.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+  }
+
+  /** Creates a tree with {@code width} subdirectories per directory, down to {@code depth}. */
+  private static void createTree(Path dir, int depth, int width) throws IOException {
+    dir.createDirectoryAndParents();
+    FileSystemUtils.createEmptyFile(dir.getChild("file"));
+    if (depth == 0) {
+      return;
+    }
+    for (int i = 0; i < width; i++) {
+      createTree(dir.getChild("dir" + i), depth - 1, width);
+    }
+  }
+
+  @Test
+  public void deleteTree_deletesEverything() throws Exception {
+    Path root = fileSystem.getPath("/root");
+    createTree(root, 4, 3);
+    Path outside = fileSystem.getPath("/outside");
+    createTree(outside, 1, 1);
+    root.getRelative("dir0/link").createSymbolicLink(outside);
+    Path unwritable = root.getRelative("dir1/dir2");
+    unwritable.setWritable(false);
+    Path unreadable = root.getRelative("dir2");
+    unreadable.setReadable(false);
+
+    deleter.deleteTree(root);
+
+    assertThat(root.exists(Symlinks.NOFOLLOW)).isFalse();
+    assertThat(outside.getRelative("dir0/file").exists()).isTrue();
+  }
+
+  @Test
+  public void deleteTreesBelow_keepsDirectory() throws Exception {
+    Path root = fileSystem.getPath("/root");
+    createTree(root, 2, 5);
+
+    deleter.deleteTreesBelow(root);
+
+    assertThat(root.isDirectory()).isTrue();
+    assertThat(root.getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void deleteTree_handlesFilesAndMissingPaths() throws Exception {
+    Path file = fileSystem.getPath("/file");
+    FileSystemUtils.createEmptyFile(file);
+
+    deleter.deleteTree(file);
+    deleter.deleteTree(fileSystem.getPath("/missing"));
+    deleter.deleteTreesBelow(fileSystem.getPath("/missing"));
+
+    assertThat(file.exists()).isFalse();
+  }
+
+  @Test
+  public void deleteTreeInBackground_freesPathRightAway() throws Exception {
+    Path root = fileSystem.getPath("/base/root");
+    createTree(root, 3, 3);
+    Path trash = fileSystem.getPath("/base/trash");
+
+    deleter.deleteTreeInBackground(root, trash).get();
+
+    assertThat(root.exists(Symlinks.NOFOLLOW)).isFalse();
+    assertThat(trash.getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void emptyTrashInBackground_deletesLeftovers() throws Exception {
+    Path trash = fileSystem.getPath("/base/trash");
+    createTree(trash.getChild("old_1"), 2, 2);
+    createTree(trash.getChild("old_2"), 2, 2);
+
+    deleter.emptyTrashInBackground(trash).get();
+    deleter.emptyTrashInBackground(fileSystem.getPath("/missing")).get();
+
+    assertThat(trash.getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void deleteTree_doesNotWaitForBackgroundDeletion() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    // Occupies the only thread of the background pool.
+    Future<?> blocker =
+        backgroundPool.submit(
+            () -> {
+              release.await();
+              return null;
+            });
+    Path trash = fileSystem.getPath("/base/trash");
+    createTree(trash.getChild("old"), 2, 2);
+    Future<?> background = deleter.emptyTrashInBackground(trash);
+    Path root = fileSystem.getPath("/base/root");
+    createTree(root, 3, 3);
+
+    deleter.deleteTree(root);
+
+    assertThat(root.exists(Symlinks.NOFOLLOW)).isFalse();
+    assertThat(background.isDone()).isFalse();
+    release.countDown();
+    blocker.get();
+    background.get();
+    assertThat(trash.getDirectoryEntries()).isEmpty();
+  }
+}
@@ -73,4 +73,35 @@ public class WorkerMultiplexerManagerTest {
 
     assertThat(WorkerMultiplexerManager.getInstanceCount()).isEqualTo(0);
   }
+
+  @Test
+  public void processesScaleWithLoadTest() throws Exception {
+    Integer workerHash = "scaling".hashCode();
+    WorkerMultiplexer primary = WorkerMultiplexerManager.getInstance(workerHash);
+
+    // Two requests fit in the first process, the third one starts another process.
+    assertThat(WorkerMultiplexerManager.assignMultiplexer(workerHash, 2, 2)).isEqualTo(primary);
+    assertThat(WorkerMultiplexerManager.assignMultiplexer(workerHash, 2, 2)).isEqualTo(primary);
+    WorkerMultiplexer second = WorkerMultiplexerManager.assignMultiplexer(workerHash, 2, 2);
+    assertThat(second).isNotEqualTo(primary);
+    assertThat(WorkerMultiplexerManager.getProcessCount(workerHash)).isEqualTo(2);
+
+    // Requests go to the least loaded process, and no more than two processes are started.
+    assertThat(WorkerMultiplexerManager.assignMultiplexer(workerHash, 2, 2)).isEqualTo(second);
+    WorkerMultiplexerManager.assignMultiplexer(workerHash, 2, 2);
+    assertThat(WorkerMultiplexerManager.getProcessCount(workerHash)).isEqualTo(2);
+
+    // The second process is stopped once it is idle and the first one can take the load.
+    WorkerMultiplexerManager.releaseMultiplexer(workerHash, second, 1000, 2);
+    WorkerMultiplexerManager.releaseMultiplexer(workerHash, second, 1000, 2);
+    assertThat(WorkerMultiplexerManager.getProcessCount(workerHash)).isEqualTo(2);
+    WorkerMultiplexerManager.releaseMultiplexer(workerHash, primary, 1000, 2);
+    WorkerMultiplexerManager.releaseMultiplexer(workerHash, primary, 1000, 2);
+    assertThat(WorkerMultiplexerManager.assignMultiplexer(workerHash, 2, 2)).isEqualTo(second);
+    WorkerMultiplexerManager.releaseMultiplexer(workerHash, second, 1000, 2);
+    assertThat(WorkerMultiplexerManager.getProcessCount(workerHash)).isEqualTo(1);
+    assertThat(WorkerMultiplexerManager.getMultiplexer(workerHash)).isEqualTo(primary);
+
+    WorkerMultiplexerManager.removeInstance(workerHash);
+  }
 }
@@ -0,0 +1,225 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.shell.Subprocess;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link WorkerMultiplexer} together with the {@link WorkerProxy}s that use it. */
+@RunWith(JUnit4.class)
+public class WorkerMultiplexerTest {
+
+  private final FileSystem fs = new InMemoryFileSystem();
+  private WorkerKey workerKey;
+  private Path workDir;
+  private Path logFile;
+
+  @Before
+  public void setUp() {
+    workDir = fs.getPath("/outputbase/execroot/workspace");
+    logFile = fs.getPath("/outputbase/bazel-workers/multiplex-worker.log");
+    workerKey =
+        new WorkerKey(
+            /* args= */ ImmutableList.of("worker"),
+            /* env= */ ImmutableMap.of(),
+            /* execRoot= */ workDir,
+            /* mnemonic= */ "dummy",
+            /* workerFilesCombinedHash= */ HashCode.fromInt(0),
+            /* workerFilesWithHashes= */ ImmutableSortedMap.of(),
+            /* mustBeSandboxed= */ false,
+            /* proxied= */ true);
+  }
+
+  @Test
+  public void interruptedProxyCancelsItsRequest() throws Exception {
+    FakeWorkerProcess process = new FakeWorkerProcess();
+    WorkerMultiplexer multiplexer = new WorkerMultiplexer();
+    multiplexer.setProcessForTesting(process);
+    WorkerOptions options = new WorkerOptions();
+    options.workerCancellation = true;
+    WorkerProxy cancelled = new WorkerProxy(workerKey, 1, workDir, logFile, multiplexer, options);
+    WorkerProxy other = new WorkerProxy(workerKey, 2, workDir, logFile, multiplexer, options);
+    try {
+      cancelled.createProcess();
+      WorkRequest request = WorkRequest.newBuilder().setRequestId(1).build();
+      cancelled.putRequest(request);
+
+      AtomicBoolean wasInterrupted = new AtomicBoolean();
+      Thread waiting =
+          new Thread(
+              () -> {
+                try {
+                  cancelled.getResponse();
+                } catch (InterruptedException e) {
+                  wasInterrupted.set(true);
+                } catch (IOException e) {
+                  throw new IllegalStateException(e);
+                }
+              });
+      waiting.start();
+      waiting.interrupt();
+      waiting.join();
+      assertThat(wasInterrupted.get()).isTrue();
+
+      // The multiplexer forgot the request and drops the response that arrives after all, while
+      // it keeps serving the other proxies.
+      WorkRequest otherRequest = WorkRequest.newBuilder().setRequestId(2).build();
+      other.putRequest(otherRequest);
+      WorkResponse lateResponse =
+          WorkResponse.newBuilder().setRequestId(1).setOutput("too late").build();
+      WorkResponse otherResponse =
+          WorkResponse.newBuilder().setRequestId(2).setOutput("done").build();
+      process.respond(lateResponse);
+      process.respond(otherResponse);
+
+      assertThat(other.getResponse()).isEqualTo(otherResponse);
+      assertThat(multiplexer.getResponse(1)).isNull();
+      assertThat(process.getRequests())
+          .containsExactly(
+              request,
+              WorkRequest.newBuilder().setRequestId(1).setCancel(true).build(),
+              otherRequest)
+          .inOrder();
+    } finally {
+      multiplexer.destroyMultiplexer();
+      multiplexer.join();
+    }
+  }
+
+  @Test
+  public void interruptedProxyDoesNotSendCancelRequestUnlessEnabled() throws Exception {
+    FakeWorkerProcess process = new FakeWorkerProcess();
+    WorkerMultiplexer multiplexer = new WorkerMultiplexer();
+    multiplexer.setProcessForTesting(process);
+    WorkerProxy proxy =
+        new WorkerProxy(workerKey, 1, workDir, logFile, multiplexer, new WorkerOptions());
+    try {
+      proxy.createProcess();
+      WorkRequest request = WorkRequest.newBuilder().setRequestId(1).build();
+      proxy.putRequest(request);
+
+      Thread.currentThread().interrupt();
+      assertThrows(InterruptedException.class, proxy::getResponse);
+
+      assertThat(multiplexer.getResponse(1)).isNull();
+      assertThat(process.getRequests()).containsExactly(request);
+    } finally {
+      multiplexer.destroyMultiplexer();
+      multiplexer.join();
+    }
+  }
+
+  /** A worker process that answers with whatever the test passes to {@link #respond}. */
+  private static final class FakeWorkerProcess implements Subprocess {
+    private final ByteArrayOutputStream stdin = new ByteArrayOutputStream();
+    private final PipedOutputStream responses = new PipedOutputStream();
+    private final PipedInputStream stdout;
+    private boolean finished;
+
+    FakeWorkerProcess() throws IOException {
+      stdout = new PipedInputStream(responses);
+    }
+
+    void respond(WorkResponse response) throws IOException {
+      response.writeDelimitedTo(responses);
+      responses.flush();
+    }
+
+    synchronized List<WorkRequest> getRequests() throws IOException {
+      InputStream in = new ByteArrayInputStream(stdin.toByteArray());
+      List<WorkRequest> requests = new ArrayList<>();
+      WorkRequest request;
+      while ((request = WorkRequest.parseDelimitedFrom(in)) != null) {
+        requests.add(request);
+      }
+      return requests;
+    }
+
+    @Override
+    public synchronized boolean destroy() {
+      if (!finished) {
+        finished = true;
+        try {
+          // Lets the multiplexer thread see the end of the output and stop.
+          responses.close();
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int exitValue() {
+      return 0;
+    }
+
+    @Override
+    public synchronized boolean finished() {
+      return finished;
+    }
+
+    @Override
+    public boolean timedout() {
+      return false;
+    }
+
+    @Override
+    public void waitFor() {}
+
+    @Override
+    public OutputStream getOutputStream() {
+      return stdin;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return stdout;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public void close() {}
+  }
+}
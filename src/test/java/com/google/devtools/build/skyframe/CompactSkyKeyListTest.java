@@ -0,0 +1,140 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CompactSkyKeyList} and {@link KeyIdTable}. */
+@RunWith(JUnit4.class)
+public class CompactSkyKeyListTest {
+  private final List<SkyKey> keys = new ArrayList<>();
+  private InMemoryGraphImpl graph;
+  private KeyIdTable keyIds;
+
+  @Before
+  public void createGraph() {
+    graph = new InMemoryGraphImpl(/*keepEdges=*/ true, /*compactReverseDeps=*/ true);
+    for (int i = 0; i < 10_000; i++) {
+      keys.add(GraphTester.toSkyKey("key" + i));
+    }
+    graph.createIfAbsentBatch(null, Reason.OTHER, keys);
+    keyIds =
+        ((InMemoryNodeEntry) graph.get(null, Reason.OTHER, keys.get(0)))
+            .getKeyIdTableForReverseDepsUtil();
+  }
+
+  @Test
+  public void graphKeysHaveTheirIds() {
+    for (SkyKey key : keys) {
+      assertThat(keyIds.keyOf(keyIds.idOf(key))).isSameInstanceAs(key);
+    }
+  }
+
+  @Test
+  public void keysNotInGraphHaveNoIds() {
+    SkyKey key = GraphTester.toSkyKey("not in graph");
+    SkyKey otherKey = GraphTester.toSkyKey("also not in graph");
+    assertThat(keyIds.idOf(key)).isEqualTo(KeyIdTable.NO_ID);
+
+    List<SkyKey> withKey = new ArrayList<>(keys.subList(0, 100));
+    withKey.add(key);
+    CompactSkyKeyList list = new CompactSkyKeyList(keyIds, withKey);
+    list.add(otherKey);
+
+    withKey.add(otherKey);
+    assertThat(list).containsExactlyElementsIn(withKey).inOrder();
+  }
+
+  @Test
+  public void idsOfRemovedNodesAreReusedAfterCleanUp() {
+    int id = keyIds.idOf(keys.get(0));
+    graph.remove(keys.get(0));
+
+    SkyKey createdBeforeCleanUp = GraphTester.toSkyKey("before clean up");
+    graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(createdBeforeCleanUp));
+    assertThat(keyIds.idOf(createdBeforeCleanUp)).isNotEqualTo(id);
+    assertThat(keyIds.keyOf(id)).isSameInstanceAs(keys.get(0));
+
+    graph.cleanUpAfterDeletions();
+    SkyKey createdAfterCleanUp = GraphTester.toSkyKey("after clean up");
+    graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(createdAfterCleanUp));
+    assertThat(keyIds.idOf(createdAfterCleanUp)).isEqualTo(id);
+    assertThat(keyIds.keyOf(id)).isSameInstanceAs(createdAfterCleanUp);
+  }
+
+  @Test
+  public void cleanUpAppliesDelayedRemovalsBeforeReusingIds() throws Exception {
+    SkyKey parentKey = GraphTester.toSkyKey("parent");
+    NodeEntry parent =
+        graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(parentKey)).get(parentKey);
+    parent.addReverseDepAndCheckIfDone(null);
+    parent.markRebuilding();
+    List<SkyKey> rdeps = keys.subList(0, 100);
+    for (SkyKey rdep : rdeps) {
+      parent.addReverseDepAndCheckIfDone(rdep);
+    }
+    parent.setValue(new GraphTester.StringValue("value"), IntVersion.of(0L));
+
+    // Deleting a node first removes it from the reverse deps of its deps, which is delayed.
+    parent.removeReverseDep(rdeps.get(0));
+    graph.remove(rdeps.get(0));
+    graph.cleanUpAfterDeletions();
+    SkyKey newKey = GraphTester.toSkyKey("new");
+    graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(newKey));
+
+    assertThat(parent.getReverseDepsForDoneEntry())
+        .containsExactlyElementsIn(rdeps.subList(1, rdeps.size()));
+  }
+
+  @Test
+  public void addKeysOneByOne() {
+    List<SkyKey> shuffled = new ArrayList<>(keys);
+    Collections.shuffle(shuffled);
+    CompactSkyKeyList list = new CompactSkyKeyList(keyIds, ImmutableList.of());
+    for (int i = 0; i < shuffled.size(); i++) {
+      list.add(shuffled.get(i));
+      assertThat(list).hasSize(i + 1);
+    }
+    assertThat(list).containsExactlyElementsIn(keys);
+    assertThat(list.get(1234)).isEqualTo(ImmutableList.copyOf(list).get(1234));
+  }
+
+  @Test
+  public void keysAreIteratedInIdOrder() {
+    List<SkyKey> reversed = new ArrayList<>(keys);
+    Collections.reverse(reversed);
+    assertThat(new CompactSkyKeyList(keyIds, reversed)).containsExactlyElementsIn(keys).inOrder();
+  }
+
+  @Test
+  public void denseIdsTakeOneBytePerKey() {
+    List<SkyKey> everyTenth = new ArrayList<>();
+    for (int i = 0; i < keys.size(); i += 10) {
+      everyTenth.add(keys.get(i));
+    }
+    CompactSkyKeyList list = new CompactSkyKeyList(keyIds, everyTenth);
+    assertThat(list).containsExactlyElementsIn(everyTenth).inOrder();
+    assertThat(list.encodedBytes()).isEqualTo(everyTenth.size());
+  }
+}
@@ -77,4 +77,9 @@ class DeterministicInMemoryGraph extends DeterministicHelper.DeterministicProces
   public Map<SkyKey, ? extends NodeEntry> getAllValuesMutable() {
     return ((InMemoryGraph) delegate).getAllValuesMutable();
   }
+
+  @Override
+  public void cleanUpAfterDeletions() {
+    ((InMemoryGraph) delegate).cleanUpAfterDeletions();
+  }
 }
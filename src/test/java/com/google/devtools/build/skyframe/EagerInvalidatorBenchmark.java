@@ -0,0 +1,95 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.testutil.Microbenchmark;
+import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DirtyingInvalidationState;
+import com.google.devtools.build.skyframe.ParallelEvaluatorBenchmark.GraphFunction;
+import com.google.devtools.build.skyframe.ParallelEvaluatorBenchmark.Shape;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Microbenchmarks for {@link EagerInvalidator} and {@link InvalidatingNodeVisitor} dirtying a
+ * fraction of the nodes of an evaluated synthetic graph.
+ *
+ * <p>Every rep has to re-evaluate the graph to make it clean again, so {@link #invalidate} also
+ * measures the incremental build that follows. {@link #reevaluate} measures the evaluation of the
+ * clean graph at a new version, which is the fixed part of that cost. Run with {@code bazel run};
+ * see {@link Microbenchmark}.
+ */
+public final class EagerInvalidatorBenchmark {
+
+  private final GraphFunction function;
+  private final InMemoryGraph graph = new InMemoryGraphImpl();
+  private final List<SkyKey> dirtied = new ArrayList<>();
+  private final List<Integer> dirtiedNodes = new ArrayList<>();
+  private IntVersion version = IntVersion.of(0);
+
+  private EagerInvalidatorBenchmark(Shape shape, int size, int dirtyPercent) throws Exception {
+    function = new GraphFunction(shape, size);
+    evaluate();
+
+    Random random = new Random(42);
+    int count = Math.max(1, size * dirtyPercent / 100);
+    for (int i = 0; i < count; i++) {
+      int node = random.nextInt(size);
+      dirtied.add(function.keys[node]);
+      dirtiedNodes.add(node);
+    }
+  }
+
+  private void evaluate() throws InterruptedException {
+    ParallelEvaluatorBenchmark.newEvaluator(graph, version, function, /*threads=*/ 200)
+        .eval(ImmutableList.of(function.root()));
+    version = version.next();
+  }
+
+  private void changeDirtiedNodes() {
+    for (int node : dirtiedNodes) {
+      function.stamps[node]++;
+    }
+  }
+
+  void invalidate(int reps) throws Exception {
+    for (int i = 0; i < reps; i++) {
+      changeDirtiedNodes();
+      EagerInvalidator.invalidate(
+          graph, dirtied, new DirtyTrackingProgressReceiver(null), new DirtyingInvalidationState());
+      evaluate();
+    }
+  }
+
+  void reevaluate(int reps) throws Exception {
+    for (int i = 0; i < reps; i++) {
+      evaluate();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int size = 10000;
+    for (Shape shape : Shape.values()) {
+      for (int dirtyPercent : new int[] {1, 10}) {
+        EagerInvalidatorBenchmark benchmark =
+            new EagerInvalidatorBenchmark(shape, size, dirtyPercent);
+        String params =
+            String.format("shape=%s size=%d dirtyPercent=%d", shape, size, dirtyPercent);
+        Microbenchmark.time("invalidate " + params, benchmark::invalidate);
+        Microbenchmark.time("reevaluate " + params, benchmark::reevaluate);
+      }
+    }
+  }
+}
@@ -0,0 +1,132 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.devtools.build.lib.testutil.Microbenchmark;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+import com.google.devtools.build.skyframe.ParallelEvaluatorBenchmark.NodeKey;
+import com.google.devtools.build.skyframe.ParallelEvaluatorBenchmark.NodeValue;
+import com.google.devtools.build.skyframe.ThinNodeEntry.DirtyType;
+import java.util.List;
+
+/**
+ * Microbenchmarks for the dependency and reverse dependency bookkeeping of {@link
+ * InMemoryNodeEntry}, following the sequence of calls made by {@link ParallelEvaluator}. Run with
+ * {@code bazel run}; see {@link Microbenchmark}.
+ */
+public final class InMemoryNodeEntryBenchmark {
+  private static final IntVersion VERSION = IntVersion.of(0L);
+  private static final NodeValue VALUE = new NodeValue(0);
+
+  private final SkyKey[] deps;
+  private final SkyKey[] rdeps;
+
+  private InMemoryNodeEntryBenchmark(int numDeps, int numRdeps) {
+    deps = new SkyKey[numDeps];
+    for (int i = 0; i < numDeps; i++) {
+      deps[i] = new NodeKey(i);
+    }
+    rdeps = new SkyKey[numRdeps];
+    for (int i = 0; i < numRdeps; i++) {
+      rdeps[i] = new NodeKey(numDeps + i);
+    }
+  }
+
+  private void addDeps(InMemoryNodeEntry entry) {
+    GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+    helper.startGroup();
+    for (SkyKey dep : deps) {
+      helper.add(dep);
+    }
+    helper.endGroup();
+    entry.addTemporaryDirectDeps(helper);
+  }
+
+  private InMemoryNodeEntry buildEntry() throws InterruptedException {
+    InMemoryNodeEntry entry = new InMemoryNodeEntry();
+    entry.addReverseDepAndCheckIfDone(rdeps[0]);
+    entry.markRebuilding();
+    addDeps(entry);
+    for (SkyKey dep : deps) {
+      entry.signalDep(VERSION, dep);
+    }
+    // The remaining parents request the node while it is being evaluated.
+    for (int i = 1; i < rdeps.length; i++) {
+      entry.addReverseDepAndCheckIfDone(rdeps[i]);
+    }
+    entry.setValue(VALUE, VERSION);
+    return entry;
+  }
+
+  int evaluate(int reps) throws Exception {
+    int dummy = 0;
+    for (int i = 0; i < reps; i++) {
+      dummy += buildEntry().getNumDirectDeps();
+    }
+    return dummy;
+  }
+
+  int addAndRemoveReverseDepsOfDoneEntry(int reps) throws Exception {
+    int dummy = 0;
+    for (int i = 0; i < reps; i++) {
+      InMemoryNodeEntry entry = new InMemoryNodeEntry();
+      entry.addReverseDepAndCheckIfDone(null);
+      entry.markRebuilding();
+      entry.setValue(VALUE, VERSION);
+      for (SkyKey rdep : rdeps) {
+        entry.addReverseDepAndCheckIfDone(rdep);
+      }
+      dummy += entry.getReverseDepsForDoneEntry().size();
+      for (SkyKey rdep : rdeps) {
+        entry.removeReverseDep(rdep);
+      }
+      dummy += entry.getReverseDepsForDoneEntry().size();
+    }
+    return dummy;
+  }
+
+  int dirtyAndPrune(int reps) throws Exception {
+    int dummy = 0;
+    for (int i = 0; i < reps; i++) {
+      InMemoryNodeEntry entry = buildEntry();
+      entry.markDirty(DirtyType.DIRTY);
+      for (SkyKey rdep : rdeps) {
+        entry.checkIfDoneForDirtyReverseDep(rdep);
+      }
+      while (entry.getDirtyState() == NodeEntry.DirtyState.CHECK_DEPENDENCIES) {
+        List<SkyKey> group = entry.getNextDirtyDirectDeps();
+        entry.addTemporaryDirectDepsGroupToDirtyEntry(group);
+        for (SkyKey dep : group) {
+          entry.signalDep(VERSION, dep);
+        }
+      }
+      dummy += entry.markClean().getRdepsToSignal().size();
+    }
+    return dummy;
+  }
+
+  public static void main(String[] args) throws Exception {
+    for (int numDeps : new int[] {1, 10, 100}) {
+      for (int numRdeps : new int[] {1, 10, 1000}) {
+        InMemoryNodeEntryBenchmark benchmark = new InMemoryNodeEntryBenchmark(numDeps, numRdeps);
+        String params = String.format("numDeps=%d numRdeps=%d", numDeps, numRdeps);
+        Microbenchmark.time("evaluate " + params, benchmark::evaluate);
+        Microbenchmark.time(
+            "addAndRemoveReverseDepsOfDoneEntry " + params,
+            benchmark::addAndRemoveReverseDepsOfDoneEntry);
+        Microbenchmark.time("dirtyAndPrune " + params, benchmark::dirtyAndPrune);
+      }
+    }
+  }
+}
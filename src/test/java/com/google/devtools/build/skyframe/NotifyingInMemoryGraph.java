@@ -72,4 +72,9 @@ class NotifyingInMemoryGraph extends NotifyingHelper.NotifyingProcessableGraph
   public Map<SkyKey, ? extends NodeEntry> getAllValuesMutable() {
     return ((InMemoryGraph) delegate).getAllValuesMutable();
   }
+
+  @Override
+  public void cleanUpAfterDeletions() {
+    ((InMemoryGraph) delegate).cleanUpAfterDeletions();
+  }
 }
@@ -0,0 +1,225 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.EventBus;
+import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
+import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.testutil.Microbenchmark;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Microbenchmarks for {@link ParallelEvaluator} on synthetic graphs of different shapes, both for
+ * clean builds and for null builds over an already evaluated graph. Run with {@code bazel run}; see
+ * {@link Microbenchmark}.
+ */
+public final class ParallelEvaluatorBenchmark {
+
+  // Non-hermetic, like file system nodes, so that any node may be invalidated as changed.
+  static final SkyFunctionName NODE = SkyFunctionName.createNonHermetic("BENCHMARK_NODE");
+
+  /** The shape of a synthetic graph whose node {@code 0} is the root. */
+  enum Shape {
+    /** The root depends directly on every other node. */
+    WIDE {
+      @Override
+      List<Integer> deps(int node, int size) {
+        if (node != 0) {
+          return ImmutableList.of();
+        }
+        List<Integer> deps = new ArrayList<>(size - 1);
+        for (int i = 1; i < size; i++) {
+          deps.add(i);
+        }
+        return deps;
+      }
+    },
+    /** Every node depends on the next one, forming a single chain. */
+    DEEP {
+      @Override
+      List<Integer> deps(int node, int size) {
+        return node + 1 < size ? ImmutableList.of(node + 1) : ImmutableList.of();
+      }
+    },
+    /**
+     * Nodes are arranged in square layers, and every node depends on two adjacent nodes of the next
+     * layer, so that most nodes are reached through several paths.
+     */
+    DIAMOND {
+      @Override
+      List<Integer> deps(int node, int size) {
+        int width = (int) Math.max(2, Math.sqrt(size));
+        if (node == 0) {
+          List<Integer> deps = new ArrayList<>(width);
+          for (int i = 1; i <= width && i < size; i++) {
+            deps.add(i);
+          }
+          return deps;
+        }
+        int layerStart = node - (node - 1) % width;
+        int next = layerStart + width;
+        if (next >= size) {
+          return ImmutableList.of();
+        }
+        int column = (node - 1) % width;
+        int first = next + column;
+        int second = next + (column + 1) % width;
+        if (second >= size) {
+          return first < size ? ImmutableList.of(first) : ImmutableList.of();
+        }
+        return first < size ? ImmutableList.of(first, second) : ImmutableList.of(second);
+      }
+    };
+
+    abstract List<Integer> deps(int node, int size);
+  }
+
+  /** Key of a node of a synthetic graph. */
+  static final class NodeKey extends AbstractSkyKey<Integer> {
+    NodeKey(int node) {
+      super(node);
+    }
+
+    @Override
+    public SkyFunctionName functionName() {
+      return NODE;
+    }
+  }
+
+  /** Value of a node of a synthetic graph. */
+  static final class NodeValue implements SkyValue {
+    private final long value;
+
+    NodeValue(long value) {
+      this.value = value;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof NodeValue && ((NodeValue) obj).value == value;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(value);
+    }
+  }
+
+  /**
+   * Evaluates the nodes of a synthetic graph. The value of a node is its index plus its entry of
+   * {@link #stamps}, which lets benchmarks change the value of selected nodes between builds.
+   */
+  static final class GraphFunction implements SkyFunction {
+    final Shape shape;
+    final int size;
+    final NodeKey[] keys;
+    final long[] stamps;
+
+    GraphFunction(Shape shape, int size) {
+      this.shape = shape;
+      this.size = size;
+      this.keys = new NodeKey[size];
+      for (int i = 0; i < size; i++) {
+        keys[i] = new NodeKey(i);
+      }
+      this.stamps = new long[size];
+    }
+
+    NodeKey root() {
+      return keys[0];
+    }
+
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) throws InterruptedException {
+      int node = (Integer) skyKey.argument();
+      List<Integer> deps = shape.deps(node, size);
+      if (!deps.isEmpty()) {
+        List<SkyKey> depKeys = new ArrayList<>(deps.size());
+        for (int dep : deps) {
+          depKeys.add(keys[dep]);
+        }
+        env.getValues(depKeys);
+        if (env.valuesMissing()) {
+          return null;
+        }
+      }
+      return new NodeValue(node + stamps[node]);
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  }
+
+  static ParallelEvaluator newEvaluator(
+      InMemoryGraph graph, Version version, SkyFunction function, int threads) {
+    return new ParallelEvaluator(
+        graph,
+        version,
+        ImmutableMap.of(NODE, function),
+        new Reporter(new EventBus()),
+        new MemoizingEvaluator.EmittedEventState(),
+        InMemoryMemoizingEvaluator.DEFAULT_STORED_EVENT_FILTER,
+        ErrorInfoManager.UseChildErrorInfoIfNecessary.INSTANCE,
+        /*keepGoing=*/ false,
+        new DirtyTrackingProgressReceiver(null),
+        GraphInconsistencyReceiver.THROWING,
+        () -> AbstractQueueVisitor.createExecutorService(threads, "benchmark-pool"),
+        new SimpleCycleDetector(),
+        EvaluationVersionBehavior.MAX_CHILD_VERSIONS);
+  }
+
+  private final int threads;
+  private final GraphFunction function;
+  private final InMemoryGraph evaluatedGraph = new InMemoryGraphImpl();
+
+  private ParallelEvaluatorBenchmark(Shape shape, int size, int threads) throws Exception {
+    this.threads = threads;
+    this.function = new GraphFunction(shape, size);
+    newEvaluator(evaluatedGraph, IntVersion.of(0), function, threads)
+        .eval(ImmutableList.of(function.root()));
+  }
+
+  void cleanBuild(int reps) throws Exception {
+    for (int i = 0; i < reps; i++) {
+      newEvaluator(new InMemoryGraphImpl(), IntVersion.of(0), function, threads)
+          .eval(ImmutableList.of(function.root()));
+    }
+  }
+
+  void nullBuild(int reps) throws Exception {
+    for (int i = 0; i < reps; i++) {
+      newEvaluator(evaluatedGraph, IntVersion.of(0), function, threads)
+          .eval(ImmutableList.of(function.root()));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    for (Shape shape : Shape.values()) {
+      for (int size : new int[] {1000, 10000}) {
+        for (int threads : new int[] {1, 200}) {
+          ParallelEvaluatorBenchmark benchmark =
+              new ParallelEvaluatorBenchmark(shape, size, threads);
+          String params = String.format("shape=%s size=%d threads=%d", shape, size, threads);
+          Microbenchmark.time("cleanBuild " + params, benchmark::cleanBuild);
+          Microbenchmark.time("nullBuild " + params, benchmark::nullBuild);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.devtools.build.lib.testutil.Microbenchmark;
+import com.google.devtools.build.skyframe.ParallelEvaluatorBenchmark.NodeKey;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the heap used by the reverse deps of an {@link InMemoryGraphImpl}, comparing lists of
+ * keys to compact lists of key ids. Prints the heap retained per node. Run with {@code bazel run};
+ * see {@link Microbenchmark}.
+ */
+public final class ReverseDepsMemoryBenchmark {
+  private static final int NUM_NODES = 100_000;
+
+  private final boolean compactReverseDeps;
+  private final List<SkyKey> keys = new ArrayList<>(NUM_NODES);
+  private final int[][] rdeps = new int[NUM_NODES][];
+
+  private ReverseDepsMemoryBenchmark(boolean compactReverseDeps, int numRdeps) {
+    this.compactReverseDeps = compactReverseDeps;
+    for (int i = 0; i < NUM_NODES; i++) {
+      keys.add(new NodeKey(i));
+    }
+    // Give a few hot nodes many more reverse deps, like toolchains and configurations.
+    Random random = new Random(0);
+    int[] parents = new int[NUM_NODES];
+    for (int i = 0; i < NUM_NODES; i++) {
+      parents[i] = i;
+    }
+    for (int i = 0; i < NUM_NODES; i++) {
+      int count = i % 1000 == 0 ? NUM_NODES / 20 : numRdeps;
+      // Partial Fisher-Yates shuffle: the first count parents are a random sample.
+      for (int j = 0; j < count; j++) {
+        int k = j + random.nextInt(NUM_NODES - j);
+        int tmp = parents[j];
+        parents[j] = parents[k];
+        parents[k] = tmp;
+      }
+      rdeps[i] = Arrays.copyOf(parents, count);
+    }
+  }
+
+  InMemoryGraph buildGraph() throws InterruptedException {
+    InMemoryGraphImpl graph = new InMemoryGraphImpl(/*keepEdges=*/ true, compactReverseDeps);
+    Map<SkyKey, ? extends NodeEntry> entries = graph.createIfAbsentBatch(null, Reason.OTHER, keys);
+    for (int node = 0; node < NUM_NODES; node++) {
+      InMemoryNodeEntry entry = (InMemoryNodeEntry) entries.get(keys.get(node));
+      for (int parent : rdeps[node]) {
+        ReverseDepsUtility.addReverseDeps(entry, Collections.singleton(keys.get(parent)));
+      }
+    }
+    return graph;
+  }
+
+  public static void main(String[] args) throws Exception {
+    for (boolean compactReverseDeps : new boolean[] {false, true}) {
+      for (int numRdeps : new int[] {2, 20, 200}) {
+        ReverseDepsMemoryBenchmark benchmark =
+            new ReverseDepsMemoryBenchmark(compactReverseDeps, numRdeps);
+        Microbenchmark.measureRetainedHeap(
+            String.format(
+                "buildGraph compactReverseDeps=%s numRdeps=%d", compactReverseDeps, numRdeps),
+            benchmark::buildGraph,
+            NUM_NODES);
+      }
+    }
+  }
+}
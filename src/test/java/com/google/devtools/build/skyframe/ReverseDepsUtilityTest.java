@@ -19,6 +19,7 @@ import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Interner;
 import com.google.devtools.build.lib.concurrent.BlazeInterners;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -82,6 +83,56 @@ public class ReverseDepsUtilityTest {
     }
   }
 
+  @Test
+  public void testAddAndRemoveCompact() {
+    InMemoryGraphImpl graph =
+        new InMemoryGraphImpl(/*keepEdges=*/ true, /*compactReverseDeps=*/ true);
+    List<SkyKey> rdeps = new ArrayList<>();
+    for (int j = 0; j < numElements; j++) {
+      rdeps.add(Key.create(j));
+    }
+    graph.createIfAbsentBatch(null, Reason.OTHER, rdeps);
+    for (int numRemovals = 0; numRemovals <= numElements; numRemovals++) {
+      InMemoryNodeEntry example = newCompactEntry(graph, -1 - numRemovals);
+      for (SkyKey rdep : rdeps) {
+        ReverseDepsUtility.addReverseDeps(example, Collections.singleton(rdep));
+      }
+      assertThat(ReverseDepsUtility.getReverseDeps(example)).containsExactlyElementsIn(rdeps);
+      if (numElements >= ReverseDepsUtility.COMPACT_LIST_THRESHOLD) {
+        assertThat(example.getReverseDepsRawForReverseDepsUtil())
+            .isInstanceOf(CompactSkyKeyList.class);
+      }
+      for (int i = 0; i < numRemovals; i++) {
+        ReverseDepsUtility.removeReverseDep(example, rdeps.get(i));
+      }
+      assertThat(ReverseDepsUtility.getReverseDeps(example))
+          .containsExactlyElementsIn(rdeps.subList(numRemovals, numElements));
+      assertThat(example.getReverseDepsDataToConsolidateForReverseDepsUtil()).isNull();
+    }
+  }
+
+  @Test
+  public void testDuplicateCheckOnGetReverseDepsCompact() {
+    InMemoryGraphImpl graph =
+        new InMemoryGraphImpl(/*keepEdges=*/ true, /*compactReverseDeps=*/ true);
+    InMemoryNodeEntry example = newCompactEntry(graph, -1);
+    for (int i = 0; i < numElements; i++) {
+      ReverseDepsUtility.addReverseDeps(example, Collections.singleton(Key.create(i)));
+    }
+    ReverseDepsUtility.addReverseDeps(example, Collections.singleton(Key.create(0)));
+    if (numElements == 0) {
+      ReverseDepsUtility.getReverseDeps(example);
+    } else {
+      assertThrows(Exception.class, () -> ReverseDepsUtility.getReverseDeps(example));
+    }
+  }
+
+  private static InMemoryNodeEntry newCompactEntry(InMemoryGraphImpl graph, int arg) {
+    SkyKey key = Key.create(arg);
+    return (InMemoryNodeEntry)
+        graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(key)).get(key);
+  }
+
   @Test
   public void testDuplicateCheckOnGetReverseDeps() {
     InMemoryNodeEntry example = new InMemoryNodeEntry();
@@ -24,8 +24,11 @@ import com.google.bytestream.ByteStreamProto.ReadRequest;
 import com.google.bytestream.ByteStreamProto.ReadResponse;
 import com.google.bytestream.ByteStreamProto.WriteRequest;
 import com.google.bytestream.ByteStreamProto.WriteResponse;
+import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.remote.Chunker;
 import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
+import com.google.devtools.build.lib.remote.util.Compression;
+import com.google.devtools.build.lib.remote.util.Compression.DecompressingOutputStream;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
@@ -33,7 +36,9 @@ import io.grpc.Status;
 import io.grpc.protobuf.StatusProto;
 import io.grpc.stub.StreamObserver;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.UUID;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
@@ -80,7 +85,20 @@ final class ByteStreamServer extends ByteStreamImplBase {
     try {
       // This still relies on the blob size to be small enough to fit in memory.
       // TODO(olaola): refactor to fix this if the need arises.
-      Chunker c = Chunker.builder().setInput(getFromFuture(cache.downloadBlob(digest))).build();
+      byte[] blob = getFromFuture(cache.downloadBlob(digest));
+      boolean compressed = Compression.isCompressedResourceName(request.getResourceName());
+      if (compressed) {
+        // The offset of a compressed read refers to the uncompressed blob.
+        long offset = request.getReadOffset();
+        if (offset < 0 || offset > blob.length) {
+          responseObserver.onError(
+              StatusUtils.invalidArgumentError(
+                  "read_offset", "Offset " + offset + " is out of range for " + blob.length));
+          return;
+        }
+        blob = Arrays.copyOfRange(blob, (int) offset, blob.length);
+      }
+      Chunker c = Chunker.builder().setInput(blob).setCompressed(compressed).build();
       while (c.hasNext()) {
         responseObserver.onNext(
             ReadResponse.newBuilder().setData(c.next().getData()).build());
@@ -111,6 +129,8 @@ final class ByteStreamServer extends ByteStreamImplBase {
       private Digest digest;
       private long offset;
       private String resourceName;
+      private boolean compressed;
+      private boolean finished;
       private boolean closed;
 
       @Override
@@ -122,6 +142,7 @@ final class ByteStreamServer extends ByteStreamImplBase {
         if (digest == null) {
           resourceName = request.getResourceName();
           digest = parseDigestFromResourceName(resourceName);
+          compressed = Compression.isCompressedResourceName(resourceName);
         }
 
         if (digest == null) {
@@ -135,8 +156,11 @@ final class ByteStreamServer extends ByteStreamImplBase {
 
         if (offset == 0) {
           if (cache.containsKey(digest)) {
+            // A compressed upload of an existing blob reports a committed size of -1.
             responseObserver.onNext(
-                WriteResponse.newBuilder().setCommittedSize(digest.getSizeBytes()).build());
+                WriteResponse.newBuilder()
+                    .setCommittedSize(compressed ? -1 : digest.getSizeBytes())
+                    .build());
             responseObserver.onCompleted();
             closed = true;
             return;
@@ -175,6 +199,12 @@ final class ByteStreamServer extends ByteStreamImplBase {
           offset += size;
         }
 
+        finished = request.getFinishWrite();
+        if (compressed) {
+          // The size of the compressed data is not known in advance.
+          return;
+        }
+
         boolean shouldFinishWrite = offset == digest.getSizeBytes();
 
         if (shouldFinishWrite != request.getFinishWrite()) {
@@ -206,7 +236,7 @@ final class ByteStreamServer extends ByteStreamImplBase {
           return;
         }
 
-        if (digest == null || offset != digest.getSizeBytes()) {
+        if (digest == null || (compressed ? !finished : offset != digest.getSizeBytes())) {
           responseObserver.onError(
               StatusProto.toStatusRuntimeException(
                   com.google.rpc.Status.newBuilder()
@@ -218,10 +248,12 @@ final class ByteStreamServer extends ByteStreamImplBase {
         }
 
         try {
-          Digest d = digestUtil.compute(temp);
-          getFromFuture(cache.uploadFile(d, temp));
+          Path blob = compressed ? decompress(temp) : temp;
+          Digest d = digestUtil.compute(blob);
+          getFromFuture(cache.uploadFile(d, blob));
           try {
             temp.delete();
+            blob.delete();
           } catch (IOException e) {
             logger.log(WARNING, "Could not delete temp file.", e);
           }
@@ -246,6 +278,18 @@ final class ByteStreamServer extends ByteStreamImplBase {
     };
   }
 
+  private static Path decompress(Path compressed) throws IOException {
+    Path uncompressed =
+        compressed.getParentDirectory().getRelative(compressed.getBaseName() + ".uncompressed");
+    try (InputStream in = compressed.getInputStream();
+        OutputStream out = uncompressed.getOutputStream();
+        DecompressingOutputStream decompressor = Compression.decompress(out)) {
+      ByteStreams.copy(in, decompressor);
+      decompressor.finish();
+    }
+    return uncompressed;
+  }
+
   private static class NoOpStreamObserver<T> implements StreamObserver<T> {
     @Override
     public void onNext(T value) {
@@ -41,7 +41,8 @@ import java.util.regex.Pattern;
 @Sharable
 public class HttpCacheServerHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
 
-  private static final Pattern URI_PATTERN = Pattern.compile("^/?(.*/)?(ac/|cas/)([a-f0-9]{64})$");
+  private static final Pattern URI_PATTERN =
+      Pattern.compile("^/?(.*/)?(ac/|cas/|cas\\.deflate/)([a-f0-9]{64})$");
 
   private final ConcurrentMap<String, byte[]> cache;
 
@@ -75,6 +75,11 @@ public class HttpCacheServerHandlerTest {
             HttpCacheServerHandler.isUriValid(
                 "cas/e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855"))
         .isTrue();
+
+    assertThat(
+            HttpCacheServerHandler.isUriValid(
+                "http://localhost:8080/cas.deflate/e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855"))
+        .isTrue();
   }
 
   @Test
@@ -95,5 +100,9 @@ public class HttpCacheServerHandlerTest {
         .isFalse();
     assertThat(HttpCacheServerHandler.isUriValid("http://localhost:8080/ac/823rhf&*%OL%_^"))
         .isFalse();
+    assertThat(
+            HttpCacheServerHandler.isUriValid(
+                "http://localhost:8080/cas.zstd/e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855"))
+        .isFalse();
   }
 }